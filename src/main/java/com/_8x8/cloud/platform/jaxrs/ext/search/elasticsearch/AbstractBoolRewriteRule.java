@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Provides the common ground for our built-in {@link QueryRewriteRule}s, all of which work on the clauses of a
+ * {@link BoolQueryBuilder}, and leave every other kind of query alone.
+ */
+abstract class AbstractBoolRewriteRule implements QueryRewriteRule {
+    @Override
+    public QueryBuilder rewrite(final QueryBuilder query) {
+        return query instanceof BoolQueryBuilder ? rewriteBool((BoolQueryBuilder) query) : null;
+    }
+
+    /**
+     * Provides a mechanism to rewrite a single bool query.
+     *
+     * @param boolQuery The bool query to rewrite.
+     * @return The rewritten query, which may be the given bool query modified in place, or null if the rule doesn't
+     * apply.
+     */
+    abstract QueryBuilder rewriteBool(BoolQueryBuilder boolQuery);
+
+    /**
+     * Provides a convenience method to determine whether a bool query is nothing more than the glue our visitor would
+     * have built: no boost, no name, and no minimum number of should clauses. Anything else was put together on
+     * purpose, by a rule of someone else's, and we leave its shape alone.
+     *
+     * @param boolQuery The bool query to check.
+     * @return {@code True} if the bool query is plain glue, else {@code false}.
+     */
+    static boolean isPlain(final BoolQueryBuilder boolQuery) {
+        return AbstractQueryBuilder.DEFAULT_BOOST == boolQuery.boost() && null == boolQuery.queryName() &&
+                null == boolQuery.minimumShouldMatch() && boolQuery.adjustPureNegative();
+    }
+
+    /**
+     * Provides a convenience method to determine whether a leaf query has been left with no boost and no name, and so
+     * can be folded into another without losing anything.
+     *
+     * @param query The query to check.
+     * @return {@code True} if the query is plain, else {@code false}.
+     */
+    static boolean isPlainLeaf(final QueryBuilder query) {
+        return AbstractQueryBuilder.DEFAULT_BOOST == query.boost() && null == query.queryName();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides a hand-written parser for the structure of FIQL expressions. It follows the exact same rules as CXF's
+ * {@link FiqlParser}, right down to the error messages:
+ * <pre>
+ *     * {@code ;} (AND) binds tighter than {@code ,} (OR), and parenthesis group as you'd expect.
+ *     * Groups holding a single expression collapse down to that expression.
+ *     * A comparison is split on the <i>last</i> operator it contains, so values may contain {@code =}.
+ * </pre>
+ * Rather than splitting the expression up into substrings and running regular expressions over them, we walk the
+ * expression once per level of nesting, and hand the boundaries of each comparison to
+ * {@link #createComparison(CharSequence, int, int, ConditionType, int, int)}. What gets built from there is up to subclasses.
+ * <p>
+ * This class holds no state, and is threadsafe so long as subclasses are too.
+ *
+ * @param <E> The type of the tree nodes built by the parser.
+ */
+abstract class AbstractFiqlExpressionParser<E> {
+    private static final char AND = ';';
+    private static final char OR = ',';
+    private static final char OPEN = '(';
+    private static final char CLOSE = ')';
+
+    /**
+     * Parses the given FIQL expression into a tree. The expression is walked in place, so any {@link CharSequence}
+     * will do, and only the selectors and values of comparisons are ever copied out of it.
+     *
+     * @param expression The FIQL expression to parse. Must not be null.
+     * @return The root of the parsed tree.
+     * @throws SearchParseException If the expression is not valid FIQL.
+     */
+    E parse(final CharSequence expression) throws SearchParseException {
+        return parseAndsOrsBrackets(expression, 0, expression.length());
+    }
+
+    /**
+     * Builds the node for a single comparison, such as {@code foo=gt=bar}.
+     *
+     * @param expression     The whole FIQL expression.
+     * @param selectorStart  The start of the selector, inclusive.
+     * @param selectorEnd    The end of the selector, exclusive. This is where the operator starts.
+     * @param conditionType  The {@link ConditionType} of the operator.
+     * @param valueStart     The start of the value, inclusive. The value is never empty.
+     * @param valueEnd       The end of the value, exclusive.
+     * @return The node for the comparison.
+     */
+    abstract E createComparison(CharSequence expression, int selectorStart, int selectorEnd, ConditionType conditionType,
+                                int valueStart, int valueEnd) throws SearchParseException;
+
+    /**
+     * Builds the node gluing two or more parts together.
+     *
+     * @param conditionType Either {@link ConditionType#AND} or {@link ConditionType#OR}.
+     * @param parts         The parts to glue together, in order.
+     * @return The node for the composite expression.
+     */
+    abstract E createComposite(ConditionType conditionType, List<E> parts);
+
+    /**
+     * Parses the given range of the expression, which may hold any number of AND'ed and OR'ed sub-expressions.
+     *
+     * @param expression The whole FIQL expression.
+     * @param start      The start of the range to parse, inclusive.
+     * @param end        The end of the range to parse, exclusive.
+     * @return The root of the parsed tree for the range.
+     */
+    E parseAndsOrsBrackets(final CharSequence expression, final int start, final int end) throws SearchParseException {
+        List<E> ors = null;
+        List<E> ands = null;
+
+        int level = 0;
+        int partStart = start;
+
+        for (int index = start; index < end; index++) {
+            final char character = expression.charAt(index);
+
+            if (OPEN == character) {
+                level++;
+            } else if (CLOSE == character) {
+                level--;
+
+                if (level < 0) {
+                    throw new SearchParseException(String.format("Unexpected closing bracket at position %d", index - start));
+                }
+            } else if (0 == level && (AND == character || OR == character)) {
+                ands = add(ands, parsePart(expression, partStart, index));
+                partStart = index + 1;
+
+                // Every OR closes off the group of ANDs in front of it.
+                if (OR == character) {
+                    ors = add(ors, collapse(ConditionType.AND, ands));
+                    ands = null;
+                }
+            }
+        }
+
+        if (0 != level) {
+            throw new SearchParseException(String.format("Unmatched opening and closing brackets in expression: %s",
+                    expression.subSequence(start, end)));
+        }
+
+        // Whatever is left is our final part. Should the expression end in an operator, this will be an empty
+        // comparison, which gets rejected just like CXF does.
+        ands = add(ands, parsePart(expression, partStart, end));
+        ors = add(ors, collapse(ConditionType.AND, ands));
+
+        return collapse(ConditionType.OR, ors);
+    }
+
+    /**
+     * Parses a single part of an expression, which is either a parenthesized sub-expression or a comparison.
+     */
+    E parsePart(final CharSequence expression, final int start, final int end) throws SearchParseException {
+        if (start < end && OPEN == expression.charAt(start)) {
+            return parseAndsOrsBrackets(expression, start + 1, end - 1);
+        }
+
+        return parseComparison(expression, start, end);
+    }
+
+    /**
+     * Parses a single comparison such as {@code foo=gt=bar}, by splitting it on the last operator it contains.
+     */
+    E parseComparison(final CharSequence expression, final int start, final int end) throws SearchParseException {
+        int runStart = start;
+
+        // CXF only recognizes operators preceded by at least one character of plain ASCII, and takes the last operator
+        // within the first run of ASCII that has one. We do the same, run by run.
+        while (runStart < end) {
+            if (expression.charAt(runStart) > 0x7F) {
+                runStart++;
+                continue;
+            }
+
+            int runEnd = runStart;
+
+            while (runEnd < end && expression.charAt(runEnd) <= 0x7F) {
+                runEnd++;
+            }
+
+            for (int index = runEnd - 1; index > runStart; index--) {
+                final int operatorLength = getOperatorLength(expression, index, end);
+
+                if (operatorLength > 0) {
+                    // An operator with nothing after it isn't a comparison at all.
+                    if (index + operatorLength == end) {
+                        throw new SearchParseException("Not a comparison expression: " + expression.subSequence(start, end));
+                    }
+
+                    return createComparison(expression, start, index, getConditionType(expression, index, operatorLength),
+                            index + operatorLength, end);
+                }
+            }
+
+            runStart = runEnd;
+        }
+
+        throw new SearchParseException("Not a comparison expression: " + expression.subSequence(start, end));
+    }
+
+    /**
+     * Determines the length of the FIQL operator starting at the given index, if any.
+     *
+     * @return The length of the operator, or {@code 0} if there is no operator here.
+     */
+    static int getOperatorLength(final CharSequence expression, final int index, final int end) {
+        final char first = expression.charAt(index);
+
+        if (index + 1 < end && '=' == expression.charAt(index + 1) && ('=' == first || '!' == first)) {
+            return 2;
+        }
+
+        if ('=' == first && index + 3 < end && '=' == expression.charAt(index + 3)) {
+            final char second = expression.charAt(index + 1);
+            final char third = expression.charAt(index + 2);
+
+            if (('g' == second || 'l' == second) && ('t' == third || 'e' == third)) {
+                return 4;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Maps the operator found at the given index onto its {@link ConditionType}.
+     */
+    ConditionType getConditionType(final CharSequence expression, final int index, final int operatorLength) {
+        if (2 == operatorLength) {
+            return '=' == expression.charAt(index) ? ConditionType.EQUALS : ConditionType.NOT_EQUALS;
+        }
+
+        final boolean greater = 'g' == expression.charAt(index + 1);
+        final boolean inclusive = 'e' == expression.charAt(index + 2);
+
+        if (greater) {
+            return inclusive ? ConditionType.GREATER_OR_EQUALS : ConditionType.GREATER_THAN;
+        }
+
+        return inclusive ? ConditionType.LESS_OR_EQUALS : ConditionType.LESS_THAN;
+    }
+
+    /**
+     * Provides a convenience method to glue a list of parts together, unless there's only one of them.
+     */
+    E collapse(final ConditionType conditionType, final List<E> parts) {
+        return 1 == parts.size() ? parts.get(0) : createComposite(conditionType, parts);
+    }
+
+    /**
+     * Provides a convenience method to add to a list we may not have needed yet. Most expressions are a single
+     * comparison, and there's no point in allocating lists for those.
+     */
+    private List<E> add(final List<E> parts, final E part) {
+        if (null == parts) {
+            final List<E> created = new ArrayList<>(2);
+            created.add(part);
+            return created;
+        }
+
+        parts.add(part);
+        return parts;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Provides a small, size-bounded, threadsafe cache with least-recently-used eviction. This is what backs the optional
+ * compiled query caches on {@link ElasticsearchQueryBuilder} and friends.
+ * <p>
+ * The cache is split into a number of independently locked segments, each of which is an access-ordered
+ * {@link LinkedHashMap}. Keys are spread across segments by hash, so concurrent callers only contend when they land on
+ * the same segment. Each segment enforces its share of the maximum size (and weight, if a weigher was given), evicting
+ * its least recently used entries first.
+ * <p>
+ * Please note that values are computed outside of any lock. Two threads missing on the same key at the same time will
+ * both compute the value, and each stores its own, so the last one in wins. This is fine for our purposes, as
+ * everything we cache is a pure function of its key.
+ *
+ * @param <K> The type of the keys held in the cache.
+ * @param <V> The type of the values held in the cache.
+ */
+public class BoundedCache<K, V> {
+    /**
+     * We don't bother splitting caches smaller than this into more than one segment. LRU gets pretty sloppy if each
+     * segment only holds a handful of entries.
+     */
+    private static final int MIN_ENTRIES_PER_SEGMENT = 32;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    Segment<K, V>[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * Constructs a cache bounded solely by the number of entries it holds.
+     *
+     * @param maximumSize The maximum number of entries to hold. Must be positive.
+     */
+    public BoundedCache(final int maximumSize) {
+        this(maximumSize, Long.MAX_VALUE, (key, value) -> 0L);
+    }
+
+    /**
+     * Constructs a cache bounded both by the number of entries it holds, as well as their total weight.
+     *
+     * @param maximumSize   The maximum number of entries to hold. Must be positive.
+     * @param maximumWeight The maximum total weight of all entries, as determined by the given weigher. Must be positive.
+     * @param weigher       A function to determine the weight of a single entry. Weights must not be negative, and must
+     *                      not change while the entry is cached.
+     */
+    public BoundedCache(final int maximumSize, final long maximumWeight, final ToLongBiFunction<? super K, ? super V> weigher) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException(String.format("Cache size must be positive, got %d", maximumSize));
+        }
+
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException(String.format("Cache weight must be positive, got %d", maximumWeight));
+        }
+
+        this.weigher = weigher;
+
+        // Keep to a power of two so we can pick our segment with a mask.
+        final int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maximumSize / MIN_ENTRIES_PER_SEGMENT)));
+        segments = newSegments(segmentCount);
+
+        for (int segmentIndex = 0; segmentIndex < segmentCount; segmentIndex++) {
+            // Hand out any remainder to the first few segments, so that we never exceed our overall bounds.
+            final int segmentSize = maximumSize / segmentCount + (segmentIndex < maximumSize % segmentCount ? 1 : 0);
+            final long segmentWeight = Long.MAX_VALUE == maximumWeight ? Long.MAX_VALUE : Math.max(1, maximumWeight / segmentCount);
+
+            segments[segmentIndex] = new Segment<>(segmentSize, segmentWeight);
+        }
+    }
+
+    /**
+     * Fetches the value for the given key, computing and caching it via the loader if it is not already present.
+     *
+     * @param key    The key to look up. Must not be null.
+     * @param loader The function used to compute the value on a miss. A {@code null} result is returned to the caller,
+     *               but is never cached.
+     * @return The cached or freshly computed value.
+     */
+    public V get(final K key, final Function<? super K, ? extends V> loader) {
+        final V cached = getIfPresent(key);
+
+        if (null != cached) {
+            return cached;
+        }
+
+        final V value = loader.apply(key);
+
+        if (null != value) {
+            put(key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Fetches the value for the given key, if present. This counts towards the hit and miss statistics.
+     *
+     * @param key The key to look up. Must not be null.
+     * @return The cached value, or {@code null} if there isn't one.
+     */
+    public V getIfPresent(final K key) {
+        final V value = segmentFor(key).get(key);
+
+        if (null == value) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+
+        return value;
+    }
+
+    /**
+     * Places the given value into the cache, evicting the least recently used entries as required. Entries that are
+     * heavier than a whole segment may hold are silently dropped.
+     *
+     * @param key   The key to store the value under. Must not be null.
+     * @param value The value to store. Must not be null.
+     */
+    public void put(final K key, final V value) {
+        evictionCount.add(segmentFor(key).put(key, value, weigher.applyAsLong(key, value)));
+    }
+
+    /**
+     * Discards every entry in the cache. Statistics are left untouched.
+     */
+    public void invalidateAll() {
+        for (final Segment<K, V> segment : getSegments()) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return The number of entries currently held in the cache.
+     */
+    public long size() {
+        long size = 0;
+
+        for (final Segment<K, V> segment : getSegments()) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * @return A point-in-time snapshot of the cache statistics.
+     */
+    public CacheStatistics getStatistics() {
+        long weight = 0;
+
+        for (final Segment<K, V> segment : getSegments()) {
+            weight += segment.weight();
+        }
+
+        return new CacheStatistics(hitCount.sum(), missCount.sum(), evictionCount.sum(), size(), weight);
+    }
+
+    /**
+     * Picks the segment responsible for the given key. The hash is spread a little first, as {@link String#hashCode()}
+     * is not great in the low bits for short keys.
+     *
+     * @param key The key to find the segment of.
+     * @return The segment owning the key.
+     */
+    Segment<K, V> segmentFor(final K key) {
+        final int hash = key.hashCode();
+        return getSegments()[(hash ^ (hash >>> 16)) & (getSegments().length - 1)];
+    }
+
+    /**
+     * Provides a convenience method to create an array of segments, as Java won't create generic arrays for us.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Segment<K, V>[] newSegments(final int length) {
+        return (Segment<K, V>[]) new Segment<?, ?>[length];
+    }
+
+    /**
+     * A single, independently locked, slice of the cache.
+     */
+    static class Segment<K, V> {
+        private final LinkedHashMap<K, WeightedValue<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maximumSize;
+        private final long maximumWeight;
+        private long weight;
+
+        Segment(final int maximumSize, final long maximumWeight) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+        }
+
+        synchronized V get(final K key) {
+            final WeightedValue<V> entry = entries.get(key);
+            return null == entry ? null : entry.value;
+        }
+
+        /**
+         * Stores the entry, then trims the segment back down to size.
+         *
+         * @return The number of entries evicted to make room.
+         */
+        synchronized int put(final K key, final V value, final long entryWeight) {
+            if (entryWeight > maximumWeight) {
+                return 0;
+            }
+
+            final WeightedValue<V> previous = entries.put(key, new WeightedValue<>(value, entryWeight));
+            weight += entryWeight - (null == previous ? 0 : previous.weight);
+
+            int evicted = 0;
+            final Iterator<Map.Entry<K, WeightedValue<V>>> eldest = entries.entrySet().iterator();
+
+            while ((entries.size() > maximumSize || weight > maximumWeight) && eldest.hasNext()) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+                evicted++;
+            }
+
+            return evicted;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+
+    private static class WeightedValue<V> {
+        private final V value;
+        private final long weight;
+
+        WeightedValue(final V value, final long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Provides an immutable, point-in-time snapshot of the statistics for a {@link BoundedCache}.
+ */
+public class CacheStatistics {
+    /**
+     * Statistics for a cache that doesn't exist, or has never been used.
+     */
+    public static final CacheStatistics EMPTY = new CacheStatistics(0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long size;
+    private final long weight;
+
+    /**
+     * Constructs a statistics snapshot.
+     *
+     * @param hitCount      The number of lookups that found a cached value.
+     * @param missCount     The number of lookups that did not find a cached value.
+     * @param evictionCount The number of entries evicted to keep the cache within its bounds.
+     * @param size          The number of entries held at the time of the snapshot.
+     * @param weight        The total weight of the entries held at the time of the snapshot.
+     */
+    public CacheStatistics(final long hitCount, final long missCount, final long evictionCount, final long size, final long weight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return The total number of lookups made against the cache.
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return The ratio of lookups that were hits, between {@code 0.0} and {@code 1.0}. A cache that has never been
+     * asked for anything has a hit rate of {@code 1.0}.
+     */
+    public double getHitRate() {
+        return 0 == getRequestCount() ? 1.0 : (double) hitCount / getRequestCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStatistics{hitCount=%d, missCount=%d, evictionCount=%d, size=%d, weight=%d}",
+                hitCount, missCount, evictionCount, size, weight);
+    }
+}
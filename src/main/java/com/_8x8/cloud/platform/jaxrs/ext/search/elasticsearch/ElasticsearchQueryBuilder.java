@@ -16,8 +16,37 @@
 
 package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.RegexpQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides a class to make using FIQL to generate a {@link QueryBuilder}s less cumbersome.
@@ -42,14 +71,139 @@ import org.elasticsearch.index.query.QueryBuilder;
  *     ...
  *     final QueryBuilder queryBuilder = elasticSearchBuilder.generateQueryBuilder("tenantName==taters,(containerName==delicious;tenantName==dinner)");
  * </pre>
+ * <p>
+ * If the same filters come up over and over again, you can also ask for compiled queries to be cached via
+ * {@link ElasticsearchQueryBuilderOptions#cacheSize(int)}. As {@link QueryBuilder}s are mutable, every call hands back
+ * its own copy of the cached query, so callers are free to modify what they get without affecting anyone else.
+ * Turning on {@link ElasticsearchQueryBuilderOptions#fingerprintCacheKeys(boolean)} as well lets equivalent filters
+ * that are merely spelled differently share a cached query, via their {@link QueryFingerprint}.
+ * <p>
+ * Should parsing itself show up in your profiles, {@link ElasticsearchQueryBuilderOptions#nativeParser(boolean)} swaps
+ * the {@link FiqlParser} for a {@link NativeFiqlParser}, which produces identical queries for a fraction of the work.
+ * Dates are a parsing cost of their own, and {@link ElasticsearchQueryBuilderOptions#dateParser(FiqlDateParser)} lets
+ * an {@link IsoDateParser} take them over from CXF, whichever parser is in use. On their way out, dates can skip the
+ * parsing on every shard too, via {@link ElasticsearchQueryBuilderOptions#epochMillisDates(boolean)}.
+ * <p>
+ * If the query is headed straight for the wire as JSON, {@link #writeQuery(String, XContentBuilder)} skips the
+ * {@link QueryBuilder} altogether, and streams the query DSL out as the filter is compiled. Going the other way,
+ * filters can be handed over as raw, percent-encoded bytes via {@link #generateQueryBuilder(ByteBuffer)}, which decodes
+ * them, and with the native parser parses them, without building up intermediate strings.
+ * <p>
+ * To keep hostile filters from eating CPU both here and in Elasticsearch, a {@link QueryBudget} given via
+ * {@link ElasticsearchQueryBuilderOptions#queryBudget(QueryBudget)} rejects filters that are too long, too deep, or
+ * too expensive, before they're parsed and again as their queries are built.
+ * <p>
+ * Compiled queries can be run through a {@link QueryOptimizer}, whose rewrite rules can be switched on and off, or
+ * added to, via {@link ElasticsearchQueryBuilderOptions#queryOptimizer(QueryOptimizer)}. There's none by default. To
+ * find out which rules fired for a given filter, hand a {@link QueryRewriteTrace} to
+ * {@link #generateQueryBuilder(String, QueryRewriteTrace)}. For
+ * filters that are only ever used to filter, {@link ElasticsearchQueryBuilderOptions#filterContext(boolean)} compiles
+ * queries that Elasticsearch doesn't bother scoring. Wildcards become prefix and exists queries wherever they can,
+ * and leading wildcards can be rejected or matched against a reversed subfield via
+ * {@link ElasticsearchQueryBuilderOptions#wildcardPolicy(WildcardPolicy)}. Wildcards over enum properties are matched
+ * against the constants up front instead; see {@link EnumExpansion}.
+ * <p>
+ * Visitors are kept around and re-used, one per thread, so compiling a filter doesn't have to build a new one each
+ * time. Please see {@link VisitorPool} for details.
+ * <p>
+ * Finally, if your filters all follow a handful of templates, you can {@link #prepare(String)} each template once, and
+ * skip parsing entirely when it comes time to fill in the values. Please see {@link PreparedQuery} for details.
  */
 public class ElasticsearchQueryBuilder<T> {
+    /**
+     * Holds the readers for every {@link QueryBuilder} type our visitor and optimizer can produce, so that we can copy them via a
+     * serialization round trip. Anything not in here can't be copied, and can't be cached.
+     */
+    private static final NamedWriteableRegistry QUERY_BUILDER_REGISTRY = new NamedWriteableRegistry(Arrays.asList(
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, BoolQueryBuilder.NAME, BoolQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, ConstantScoreQueryBuilder.NAME, ConstantScoreQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, ExistsQueryBuilder.NAME, ExistsQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, MatchNoneQueryBuilder.NAME, MatchNoneQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, PrefixQueryBuilder.NAME, PrefixQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, RangeQueryBuilder.NAME, RangeQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, RegexpQueryBuilder.NAME, RegexpQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, TermQueryBuilder.NAME, TermQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, TermsQueryBuilder.NAME, TermsQueryBuilder::new),
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, WildcardQueryBuilder.NAME, WildcardQueryBuilder::new)));
+
+    /**
+     * Marks a value to be filled in later within a template given to {@link #prepare(String)}.
+     */
+    static final String PLACEHOLDER = "?";
+
+    private static final String COUNT_PREFIX = "count(";
+
     private final FiqlParser<T> fiqlParser;
+    private final NativeFiqlParser<T> nativeParser;
+    private final FiqlExpressionParser expressionParser;
+    private final FiqlValueConverter<T> valueConverter;
+    private final ElasticsearchQueryWriter<T> queryWriter;
+    private final BoundedCache<String, QueryBuilder> queryCache;
+    private final BoundedCache<QueryFingerprint, QueryBuilder> fingerprintCache;
+    private final QueryBudget queryBudget;
+    private final QueryOptimizer queryOptimizer;
+    private final boolean filterContext;
+    private final WildcardPolicy wildcardPolicy;
+    private final boolean enumComplements;
+    private final boolean epochMillisDates;
+    private final VisitorPool<ElasticsearchQueryBuilderVisitor<T>> visitorPool = new VisitorPool<>();
 
     FiqlParser<T> getFiqlParser() {
         return fiqlParser;
     }
 
+    NativeFiqlParser<T> getNativeParser() {
+        return nativeParser;
+    }
+
+    FiqlExpressionParser getExpressionParser() {
+        return expressionParser;
+    }
+
+    FiqlValueConverter<T> getValueConverter() {
+        return valueConverter;
+    }
+
+    ElasticsearchQueryWriter<T> getQueryWriter() {
+        return queryWriter;
+    }
+
+    BoundedCache<String, QueryBuilder> getQueryCache() {
+        return queryCache;
+    }
+
+    BoundedCache<QueryFingerprint, QueryBuilder> getFingerprintCache() {
+        return fingerprintCache;
+    }
+
+    QueryBudget getQueryBudget() {
+        return queryBudget;
+    }
+
+    QueryOptimizer getQueryOptimizer() {
+        return queryOptimizer;
+    }
+
+    boolean isFilterContext() {
+        return filterContext;
+    }
+
+    WildcardPolicy getWildcardPolicy() {
+        return wildcardPolicy;
+    }
+
+    boolean isEnumComplements() {
+        return enumComplements;
+    }
+
+    boolean isEpochMillisDates() {
+        return epochMillisDates;
+    }
+
+    VisitorPool<ElasticsearchQueryBuilderVisitor<T>> getVisitorPool() {
+        return visitorPool;
+    }
+
     /**
      * Constructs a query builder that allows for easy creation of Elasticsearch {@link QueryBuilder} instances
      * based on FIQL expressions.
@@ -57,23 +211,406 @@ public class ElasticsearchQueryBuilder<T> {
      * @param clazz The model class to use when generating {@link QueryBuilder}s from the given expression.
      */
     public ElasticsearchQueryBuilder(final Class<T> clazz) {
-        this.fiqlParser = new FiqlParser<>(clazz);
+        this(clazz, new ElasticsearchQueryBuilderOptions());
+    }
+
+    /**
+     * Constructs a query builder that allows for easy creation of Elasticsearch {@link QueryBuilder} instances
+     * based on FIQL expressions, using the given options.
+     *
+     * @param clazz   The model class to use when generating {@link QueryBuilder}s from the given expression.
+     * @param options The {@link ElasticsearchQueryBuilderOptions} to apply. Must not be null.
+     */
+    public ElasticsearchQueryBuilder(final Class<T> clazz, final ElasticsearchQueryBuilderOptions options) {
+        this.nativeParser = new NativeFiqlParser<>(clazz, new HashMap<>(), options.dateParser());
+        this.valueConverter = new FiqlValueConverter<>(clazz, new HashMap<>(), options.dateParser());
+        this.expressionParser = new FiqlExpressionParser();
+
+        // Our converter is a FiqlParser in its own right, and the only way to hand CXF's parser a date parser.
+        if (options.nativeParser()) {
+            this.fiqlParser = nativeParser;
+        } else {
+            this.fiqlParser = null == options.dateParser() ? new FiqlParser<>(clazz) : valueConverter;
+        }
+
+        // The writer has to accept exactly the filters our parser does, so it only parses natively if we do.
+        this.queryWriter = new ElasticsearchQueryWriter<>(options.nativeParser() ? nativeParser : valueConverter,
+                this::acquireVisitor, this::releaseVisitor, options);
+        this.queryCache = options.cacheSize() > 0 ? new BoundedCache<>(options.cacheSize()) : null;
+        this.fingerprintCache = null != queryCache && options.fingerprintCacheKeys() ? new BoundedCache<>(options.cacheSize()) : null;
+        this.queryBudget = options.queryBudget();
+        this.queryOptimizer = options.queryOptimizer();
+        this.filterContext = options.filterContext();
+        this.wildcardPolicy = options.wildcardPolicy();
+        this.enumComplements = options.enumComplements();
+        this.epochMillisDates = options.epochMillisDates();
     }
 
     /**
      * Creates an Elasticsearch {@link QueryBuilder} based on a given FIQL filter query string.
+     * <p>
+     * Filters holding a duration, such as {@code updatedTime=gt=-P1D}, are relative to the time they're parsed, and are
+     * always compiled afresh rather than cached.
      *
      * @param filter The filter query string to transform into a {@link QueryBuilder}. Must not be null.
      * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input query string.
+     * @throws QueryBudgetExceededException If the filter is over budget.
      */
     public QueryBuilder generateQueryBuilder(final String filter) {
-        // While our parser is threadsafe and re-usable, there's no real value in keeping visitors around
-        final ElasticsearchQueryBuilderVisitor<T> visitor = createVisitor();
-        visitor.visit(getFiqlParser().parse(filter));
+        final BoundedCache<String, QueryBuilder> cache = getQueryCache();
+
+        // A cached duration would stay pinned to whenever it was first parsed, for as long as it stayed in the cache.
+        if (null == cache || FiqlValueConverter.containsDuration(filter)) {
+            return compileQueryBuilder(filter);
+        }
+
+        // Never hand out the cached instance itself, or the first caller to tweak it would poison it for everyone.
+        return copyQueryBuilder(cache.get(filter, this::compileQueryBuilder));
+    }
+
+    /**
+     * Creates an Elasticsearch {@link QueryBuilder} based on a given FIQL filter query string, recording what our
+     * {@link QueryOptimizer} did to it along the way. The cache is skipped entirely, so that the trace always reflects
+     * the filter being compiled from scratch.
+     *
+     * @param filter The filter query string to transform into a {@link QueryBuilder}. Must not be null.
+     * @param trace  The {@link QueryRewriteTrace} to record which rewrite rules fired in. Must not be null.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input query string.
+     * @throws QueryBudgetExceededException If the filter is over budget.
+     */
+    public QueryBuilder generateQueryBuilder(final String filter, final QueryRewriteTrace trace) {
+        checkQueryBudget(filter);
+        return compileSearchCondition(getFiqlParser().parse(filter), trace);
+    }
+
+    /**
+     * Creates an Elasticsearch {@link QueryBuilder} based on a given FIQL filter held in any {@link CharSequence}, such
+     * as a {@link java.nio.CharBuffer} or {@link StringBuilder}. Given
+     * {@link ElasticsearchQueryBuilderOptions#nativeParser(boolean)}, the filter is parsed in place by the
+     * {@link NativeFiqlParser}, and is never copied into a {@link String} as a whole. CXF's own parser only takes
+     * strings, so otherwise, or when caching is enabled, as the cache is keyed by filter string, the filter is simply
+     * turned into one and handed to {@link #generateQueryBuilder(String)}.
+     * <p>
+     * Either way, the same parser is used as for {@link #generateQueryBuilder(String)}, so the resulting
+     * {@link QueryBuilder}, or the exception thrown, is identical to what it would have given.
+     *
+     * @param filter The filter to transform into a {@link QueryBuilder}. Must not be null.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input filter.
+     * @throws QueryBudgetExceededException If the filter is over budget.
+     */
+    public QueryBuilder generateQueryBuilder(final CharSequence filter) {
+        if (null != getQueryCache() || getFiqlParser() != getNativeParser()) {
+            return generateQueryBuilder(filter.toString());
+        }
+
+        checkQueryBudget(filter);
+        return compileSearchCondition(getNativeParser().parse(filter));
+    }
+
+    /**
+     * Creates an Elasticsearch {@link QueryBuilder} based on a given FIQL filter straight off the wire, as
+     * percent-encoded UTF-8 bytes, such as the raw value of a query string parameter. The bytes between the position
+     * and limit of the buffer are URL-decoded and UTF-8 decoded in a single pass, and then parsed as per
+     * {@link #generateQueryBuilder(CharSequence)}. The position of the buffer is left untouched.
+     *
+     * @param filter The percent-encoded filter to transform into a {@link QueryBuilder}. Must not be null.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input filter.
+     * @throws SearchParseException If the filter holds an invalid percent-encoding, or is not valid FIQL.
+     */
+    public QueryBuilder generateQueryBuilder(final ByteBuffer filter) {
+        return generateQueryBuilder(FiqlInputDecoder.decode(filter));
+    }
+
+    /**
+     * Creates an Elasticsearch {@link QueryBuilder} based on a given slice of an array holding a FIQL filter as
+     * percent-encoded UTF-8 bytes. Please see {@link #generateQueryBuilder(ByteBuffer)} for details.
+     *
+     * @param filter The array holding the percent-encoded filter. Must not be null.
+     * @param offset The offset of the filter within the array.
+     * @param length The length of the filter, in bytes.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input filter.
+     * @throws SearchParseException If the filter holds an invalid percent-encoding, or is not valid FIQL.
+     */
+    public QueryBuilder generateQueryBuilder(final byte[] filter, final int offset, final int length) {
+        return generateQueryBuilder(FiqlInputDecoder.decode(filter, offset, length));
+    }
+
+    /**
+     * Compiles a given FIQL filter query string straight to Elasticsearch query DSL, skipping the {@link QueryBuilder}
+     * entirely. The JSON written is exactly what {@link #generateQueryBuilder(String)} followed by
+     * {@link QueryBuilder#toXContent(XContentBuilder, ToXContent.Params)} would have written, ranges folded and all, but
+     * takes a single pass over the filter. This is handy when the query is headed straight for the wire anyway, such
+     * as over HTTP, or into a stored search.
+     * <p>
+     * Filters are accepted or rejected just as {@link #generateQueryBuilder(String)} would, so wildcards over enum
+     * properties, such as {@code status==AVAIL*}, are only expanded given
+     * {@link ElasticsearchQueryBuilderOptions#nativeParser(boolean)}, and are rejected by CXF otherwise.
+     * <p>
+     * Streaming only knows how to fold adjacent ranges, so if our {@link QueryOptimizer} has any other rules switched
+     * on, or has range folding switched off, the query is built and optimized as usual, and then written out instead.
+     * <p>
+     * Queries written this way are not cached. Should the filter be invalid, the builder may be left holding part of a
+     * query, and should be discarded.
+     *
+     * @param filter  The filter query string to compile. Must not be null.
+     * @param builder The {@link XContentBuilder} to write the query to, as a single JSON object. Must not be null.
+     * @throws IOException          If the builder can't be written to.
+     * @throws SearchParseException If the filter is not valid FIQL, refers to properties the model doesn't have, or is over budget.
+     */
+    public void writeQuery(final String filter, final XContentBuilder builder) throws IOException {
+        if (!canStreamQuery()) {
+            generateQueryBuilder(filter).toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return;
+        }
+
+        checkQueryBudget(filter);
+        getQueryWriter().write(filter, builder);
+    }
+
+    /**
+     * Compiles a given FIQL filter query string straight to Elasticsearch query DSL as JSON, writing it to the given
+     * stream. Please see {@link #writeQuery(String, XContentBuilder)} for details. The stream is flushed, but left
+     * open.
+     *
+     * @param filter       The filter query string to compile. Must not be null.
+     * @param outputStream The stream to write the query to. Must not be null.
+     * @throws IOException          If the stream can't be written to.
+     * @throws SearchParseException If the filter is not valid FIQL, refers to properties the model doesn't have, or is over budget.
+     */
+    public void writeQuery(final String filter, final OutputStream outputStream) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder(outputStream);
+
+        writeQuery(filter, builder);
+        builder.flush();
+    }
+
+    /**
+     * Prepares a FIQL template for repeated use, such as {@code tenantName==?;updatedTime=gt=?}. The template is parsed
+     * and resolved against the model class once, up front, so that {@link PreparedQuery#bind(Object...)} only has to
+     * convert the values and build the query.
+     * <p>
+     * Values written out in the template are converted right away, so relative dates such as durations are fixed at
+     * the time of preparation. Bind them instead if they should be relative to each call.
+     *
+     * @param template The FIQL template to prepare. Must not be null.
+     * @return A threadsafe, re-usable {@link PreparedQuery} for the template.
+     * @throws SearchParseException If the template is not valid FIQL, refers to properties the model doesn't have, or is over budget.
+     */
+    public PreparedQuery<T> prepare(final String template) {
+        checkQueryBudget(template);
+
+        final AtomicInteger parameterCount = new AtomicInteger();
+        final PreparedQuery.Node<T> root = prepareNode(getExpressionParser().parse(template), parameterCount);
+
+        return new PreparedQuery<>(template, root, parameterCount.get(), this::acquireVisitor, this::releaseVisitor);
+    }
+
+    /**
+     * Computes the {@link QueryFingerprint} of a given FIQL filter query string. Filters that only differ in the order
+     * of their parts, redundant parenthesis, or the spelling of their literals share a fingerprint, which makes this
+     * handy for grouping up traffic by query shape.
+     * <p>
+     * Dates are fingerprinted by the instant they stand for, so a duration such as {@code -P1D} is fingerprinted as the
+     * instant it works out to right now, and the same filter fingerprints differently from one moment to the next.
+     * Its shape stays the same, however.
+     *
+     * @param filter The filter query string to fingerprint. Must not be null.
+     * @return A non-null {@link QueryFingerprint} for the filter.
+     */
+    public QueryFingerprint fingerprint(final String filter) {
+        return fingerprint(getFiqlParser().parse(filter));
+    }
+
+    /**
+     * Provides a snapshot of the statistics for the compiled query cache.
+     *
+     * @return The current {@link CacheStatistics}, or {@link CacheStatistics#EMPTY} if caching is disabled.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return null == getQueryCache() ? CacheStatistics.EMPTY : getQueryCache().getStatistics();
+    }
+
+    /**
+     * Provides a snapshot of the statistics for the fingerprint cache, which is only consulted on a miss against the
+     * compiled query cache.
+     *
+     * @return The current {@link CacheStatistics}, or {@link CacheStatistics#EMPTY} if fingerprinting is disabled.
+     */
+    public CacheStatistics getFingerprintCacheStatistics() {
+        return null == getFingerprintCache() ? CacheStatistics.EMPTY : getFingerprintCache().getStatistics();
+    }
+
+    /**
+     * Does the actual work of parsing the given filter, and running the results through a visitor. If fingerprinting
+     * is enabled, we'll first check for an equivalent query compiled from a differently spelled filter, unless the
+     * filter holds a duration, whose fingerprint only holds for the moment it was parsed.
+     *
+     * @param filter The filter query string to transform into a {@link QueryBuilder}. Must not be null.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the input query string.
+     */
+    QueryBuilder compileQueryBuilder(final String filter) {
+        checkQueryBudget(filter);
+
+        final SearchCondition<T> searchCondition = getFiqlParser().parse(filter);
+        final BoundedCache<QueryFingerprint, QueryBuilder> cache = getFingerprintCache();
+
+        if (null == cache || FiqlValueConverter.containsDuration(filter)) {
+            return compileSearchCondition(searchCondition);
+        }
+
+        return cache.get(fingerprint(searchCondition), key -> compileSearchCondition(searchCondition));
+    }
+
+    /**
+     * Measures the given filter against our {@link QueryBudget}, if any, before we do anything expensive with it.
+     *
+     * @param filter The filter to measure.
+     * @throws QueryBudgetExceededException If the filter is over budget.
+     */
+    void checkQueryBudget(final CharSequence filter) {
+        final QueryBudget budget = getQueryBudget();
+
+        if (null != budget) {
+            budget.check(filter);
+        }
+    }
+
+    /**
+     * Determines whether {@link #writeQuery(String, XContentBuilder)} can stream queries via our
+     * {@link ElasticsearchQueryWriter}, which only knows how to fold adjacent ranges the way our visitor does. That's
+     * exactly what happens without an optimizer, which is the default, so long as we're not compiling for filter
+     * context. The {@link QueryOptimizer#MERGE_RANGES} rule intersects ranges wherever they are in a group, and can
+     * replace the whole group with a {@code match_none} query, which we can't know until the group has been read.
+     *
+     * @return {@code True} if streaming gives the same query as building it would, else {@code false}.
+     */
+    boolean canStreamQuery() {
+        return null == getQueryOptimizer() && !isFilterContext();
+    }
+
+    /**
+     * Runs an already parsed filter through a visitor.
+     *
+     * @param searchCondition The parsed filter to transform into a {@link QueryBuilder}.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the parsed filter.
+     */
+    QueryBuilder compileSearchCondition(final SearchCondition<T> searchCondition) {
+        return compileSearchCondition(searchCondition, null);
+    }
+
+    /**
+     * Runs an already parsed filter through a visitor, recording what our {@link QueryOptimizer} did to it.
+     *
+     * @param searchCondition The parsed filter to transform into a {@link QueryBuilder}.
+     * @param trace           The {@link QueryRewriteTrace} to record in, or null if nobody's interested.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder} representing the parsed filter.
+     */
+    QueryBuilder compileSearchCondition(final SearchCondition<T> searchCondition, final QueryRewriteTrace trace) {
+        final ElasticsearchQueryBuilderVisitor<T> visitor = acquireVisitor();
+
+        try {
+            visitor.visit(searchCondition);
+            return visitor.getQuery(trace);
+        } finally {
+            releaseVisitor(visitor);
+        }
+    }
+
+    /**
+     * Takes the current thread's idle visitor from the pool, or creates a new one if there isn't one. Every visitor
+     * acquired must be handed to {@link #releaseVisitor(ElasticsearchQueryBuilderVisitor)} once it's done with.
+     *
+     * @return A freshly reset {@link ElasticsearchQueryBuilderVisitor}, owned by the caller until released.
+     */
+    ElasticsearchQueryBuilderVisitor<T> acquireVisitor() {
+        final ElasticsearchQueryBuilderVisitor<T> visitor = getVisitorPool().poll();
+        return null == visitor ? createVisitor() : visitor;
+    }
+
+    /**
+     * Resets a visitor, and gives it back to the pool for the current thread to use again. The visitor mustn't be used
+     * by the caller afterwards.
+     *
+     * @param visitor The visitor to release, as acquired via {@link #acquireVisitor()}.
+     */
+    void releaseVisitor(final ElasticsearchQueryBuilderVisitor<T> visitor) {
+        visitor.reset();
+        getVisitorPool().offer(visitor);
+    }
+
+    /**
+     * Computes the {@link QueryFingerprint} of an already parsed filter.
+     *
+     * @param searchCondition The parsed filter to fingerprint.
+     * @return The {@link QueryFingerprint} for the parsed filter.
+     */
+    QueryFingerprint fingerprint(final SearchCondition<T> searchCondition) {
+        final QueryFingerprintVisitor<T> visitor = createFingerprintVisitor();
+        visitor.visit(searchCondition);
 
         return visitor.getQuery();
     }
 
+    /**
+     * Resolves a single part of a template given to {@link #prepare(String)}, recursing into composite expressions.
+     *
+     * @param expression     The parsed part of the template.
+     * @param parameterCount Counts the placeholders seen so far, so we can number them in order.
+     * @return The resolved {@link PreparedQuery.Node} for the part.
+     */
+    PreparedQuery.Node<T> prepareNode(final FiqlExpression expression, final AtomicInteger parameterCount) {
+        if (expression instanceof FiqlExpression.Composite) {
+            final FiqlExpression.Composite composite = (FiqlExpression.Composite) expression;
+            final List<PreparedQuery.Node<T>> parts = new ArrayList<>(composite.getParts().size());
+
+            for (final FiqlExpression part : composite.getParts()) {
+                parts.add(prepareNode(part, parameterCount));
+            }
+
+            return new PreparedQuery.CompositeNode<>(composite.getConditionType(), parts);
+        }
+
+        final FiqlExpression.Comparison comparison = (FiqlExpression.Comparison) expression;
+
+        // Anything without a placeholder goes through CXF as usual, so we get exactly what it would have given us.
+        if (!PLACEHOLDER.equals(comparison.getValue())) {
+            return new PreparedQuery.ConstantNode<>(getFiqlParser().parse(comparison.toString()).getStatement());
+        }
+
+        // We don't support count() anyway, and there's no sense in binding values to something we'll reject.
+        if (comparison.getSelector().startsWith(COUNT_PREFIX)) {
+            throw new IllegalArgumentException(String.format("Placeholders are not supported within count() expressions: %s", comparison));
+        }
+
+        return new PreparedQuery.ParameterNode<>(getValueConverter().getProperty(comparison.getSelector()), comparison.getConditionType(),
+                parameterCount.getAndIncrement(), getValueConverter());
+    }
+
+    /**
+     * Creates a deep, fully independent copy of the given {@link QueryBuilder}. Elasticsearch doesn't give us a way to
+     * clone these, but every {@link QueryBuilder} knows how to serialize itself for the transport layer, so we simply
+     * write it out and read it back in again.
+     *
+     * @param queryBuilder The {@link QueryBuilder} to copy. May be null.
+     * @return A copy of the {@link QueryBuilder} sharing no mutable state with the original, or null if given null.
+     */
+    QueryBuilder copyQueryBuilder(final QueryBuilder queryBuilder) {
+        if (null == queryBuilder) {
+            return null;
+        }
+
+        try (final BytesStreamOutput output = new BytesStreamOutput()) {
+            output.writeNamedWriteable(queryBuilder);
+
+            try (final StreamInput input = new NamedWriteableAwareStreamInput(output.bytes().streamInput(), QUERY_BUILDER_REGISTRY)) {
+                return input.readNamedWriteable(QueryBuilder.class);
+            }
+        } catch (final IOException ex) {
+            // We're working purely in memory, so this really shouldn't ever happen.
+            throw new UncheckedIOException(ex);
+        }
+    }
+
     /**
      * Provides a test-friendly method for creating instances of {@link ElasticsearchQueryBuilderVisitor} handling
      * parsed FIQL expressions.
@@ -81,6 +618,22 @@ public class ElasticsearchQueryBuilder<T> {
      * @return A non-null, valid, and fully primed {@link ElasticsearchQueryBuilderVisitor}.
      */
     ElasticsearchQueryBuilderVisitor<T> createVisitor() {
-        return new ElasticsearchQueryBuilderVisitor<>();
+        return new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions()
+                .queryBudget(getQueryBudget())
+                .queryOptimizer(getQueryOptimizer())
+                .filterContext(isFilterContext())
+                .wildcardPolicy(getWildcardPolicy())
+                .enumComplements(isEnumComplements())
+                .epochMillisDates(isEpochMillisDates()));
+    }
+
+    /**
+     * Provides a test-friendly method for creating instances of {@link QueryFingerprintVisitor} for fingerprinting
+     * parsed FIQL expressions.
+     *
+     * @return A non-null, valid, and fully primed {@link QueryFingerprintVisitor}.
+     */
+    QueryFingerprintVisitor<T> createFingerprintVisitor() {
+        return new QueryFingerprintVisitor<>(null == getQueryBudget() ? Integer.MAX_VALUE : getQueryBudget().maxDepth());
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Holds the optional settings for an {@link ElasticsearchQueryBuilder}, the query-building ones of which can also be
+ * handed straight to an {@link ElasticsearchQueryBuilderVisitor}. Setters follow the same fluent style as the
+ * Elasticsearch query builders themselves, so you can configure everything in one go:
+ * <pre>
+ *     final ElasticsearchQueryBuilder&lt;MetadataRecord&gt; builder = new ElasticsearchQueryBuilder&lt;&gt;(MetadataRecord.class,
+ *             new ElasticsearchQueryBuilderOptions().cacheSize(1000));
+ * </pre>
+ * Every option defaults to the behavior of a plain {@link ElasticsearchQueryBuilder}. The values are read once when
+ * the {@link ElasticsearchQueryBuilder} is constructed, so changing an instance afterwards has no effect on builders
+ * already created from it.
+ */
+public class ElasticsearchQueryBuilderOptions {
+    private int cacheSize;
+    private boolean fingerprintCacheKeys;
+    private boolean nativeParser;
+    private QueryBudget queryBudget;
+    private QueryOptimizer queryOptimizer;
+    private boolean filterContext;
+    private WildcardPolicy wildcardPolicy = new WildcardPolicy();
+    private boolean enumComplements;
+    private FiqlDateParser dateParser;
+    private boolean epochMillisDates;
+
+    /**
+     * Sets the maximum number of compiled queries to cache, keyed by filter string. Caching is off by default.
+     * <p>
+     * Entries never expire, so filters holding a duration such as {@code updatedTime=gt=-P1D}, which CXF resolves
+     * against the current time, are never cached, and are compiled afresh on every call.
+     *
+     * @param cacheSize The maximum number of entries to cache, or {@code 0} to disable caching.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions cacheSize(final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException(String.format("Cache size must not be negative, got %d", cacheSize));
+        }
+
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets whether or not cache misses should fall back to looking up the {@link QueryFingerprint} of the filter, so
+     * that equivalent filters such as {@code a==1;b==2} and {@code (b==2;a==1)} share a single compiled query. This is
+     * off by default, and has no effect unless caching is enabled via {@link #cacheSize(int)}.
+     *
+     * @param fingerprintCacheKeys {@code True} to also cache by fingerprint, else {@code false}.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions fingerprintCacheKeys(final boolean fingerprintCacheKeys) {
+        this.fingerprintCacheKeys = fingerprintCacheKeys;
+        return this;
+    }
+
+    public boolean fingerprintCacheKeys() {
+        return fingerprintCacheKeys;
+    }
+
+    /**
+     * Sets whether or not to parse filters with our own {@link NativeFiqlParser}, rather than CXF's
+     * {@link org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser}. Both accept the same expressions and produce identical
+     * queries, but ours skips the regular expressions and per-comparison reflection, and allocates far less along the
+     * way. This is off by default.
+     *
+     * @param nativeParser {@code True} to use the native parser, else {@code false}.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions nativeParser(final boolean nativeParser) {
+        this.nativeParser = nativeParser;
+        return this;
+    }
+
+    public boolean nativeParser() {
+        return nativeParser;
+    }
+
+    /**
+     * Sets the {@link QueryBudget} filters are held to. Filters are measured in a cheap pass before they're parsed,
+     * and again as their queries are built, and anything over budget is rejected with a
+     * {@link QueryBudgetExceededException}. There are no limits by default.
+     *
+     * @param queryBudget The {@link QueryBudget} to apply, or null for no limits.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions queryBudget(final QueryBudget queryBudget) {
+        this.queryBudget = queryBudget;
+        return this;
+    }
+
+    public QueryBudget queryBudget() {
+        return queryBudget;
+    }
+
+    /**
+     * Sets the {@link QueryOptimizer} compiled queries are run through. There's none by default, so queries come out
+     * just as they always have, with adjacent ranges folded together as they're built. Hand over a
+     * {@code new QueryOptimizer()} to opt into all of its built-in rules, then switch rules on and off, or add your own,
+     * to tune the queries sent to Elasticsearch.
+     *
+     * @param queryOptimizer The {@link QueryOptimizer} to apply, or null to skip optimizing altogether, in which case
+     *                       adjacent ranges are still folded together as queries are built.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions queryOptimizer(final QueryOptimizer queryOptimizer) {
+        this.queryOptimizer = queryOptimizer;
+        return this;
+    }
+
+    public QueryOptimizer queryOptimizer() {
+        return queryOptimizer;
+    }
+
+    /**
+     * Sets whether or not to compile queries for filter context, where nothing is scored. AND'ed clauses go into
+     * {@code bool.filter} rather than {@code bool.must}, and the whole query is wrapped in a {@code constant_score}
+     * query, which lets Elasticsearch skip scoring, and cache the clauses it sees often as bitsets. Every match gets the
+     * same score, so this is off by default, for the sake of anyone sorting by score.
+     *
+     * @param filterContext {@code True} to compile for filter context, else {@code false}.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions filterContext(final boolean filterContext) {
+        this.filterContext = filterContext;
+        return this;
+    }
+
+    public boolean filterContext() {
+        return filterContext;
+    }
+
+    /**
+     * Sets the {@link WildcardPolicy} that decides which query a value with a {@code *} in it becomes. Whatever the
+     * policy, a bare {@code *} becomes an {@code exists} query, and trailing wildcards a {@code prefix} query. By
+     * default, leading and infix wildcards are sent to Elasticsearch as wildcard queries.
+     *
+     * @param wildcardPolicy The {@link WildcardPolicy} to apply. Must not be null.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions wildcardPolicy(final WildcardPolicy wildcardPolicy) {
+        if (null == wildcardPolicy) {
+            throw new IllegalArgumentException("Wildcard policy must not be null");
+        }
+
+        this.wildcardPolicy = wildcardPolicy;
+        return this;
+    }
+
+    public WildcardPolicy wildcardPolicy() {
+        return wildcardPolicy;
+    }
+
+    /**
+     * Sets whether or not a negated comparison over an enum property, such as {@code status!=DELETED}, becomes a terms
+     * query for the constants it leaves, whenever there are no more of those than there are constants it excludes. A
+     * positive terms query is cheaper than a {@code must_not}, but a document without the property at all matches
+     * the latter and not the former, so this is off by default. Only turn it on if every document has the property.
+     *
+     * @param enumComplements {@code True} to match the remaining constants, else {@code false}.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions enumComplements(final boolean enumComplements) {
+        this.enumComplements = enumComplements;
+        return this;
+    }
+
+    public boolean enumComplements() {
+        return enumComplements;
+    }
+
+    /**
+     * Sets the {@link FiqlDateParser} that date literals are offered to before CXF sees them, such as an
+     * {@link IsoDateParser}, which also takes times, offsets and epoch milliseconds, at a fraction of the cost of the
+     * {@link java.text.SimpleDateFormat} CXF would build for each literal. Literals the parser declines are still
+     * parsed by CXF. By default, every date is left to CXF.
+     *
+     * @param dateParser The {@link FiqlDateParser} to use, or null to leave dates to CXF.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions dateParser(final FiqlDateParser dateParser) {
+        this.dateParser = dateParser;
+        return this;
+    }
+
+    public FiqlDateParser dateParser() {
+        return dateParser;
+    }
+
+    /**
+     * Sets whether or not dates are sent to Elasticsearch as milliseconds since the epoch, along with the
+     * {@code epoch_millis} format, rather than as strings that every shard has to parse back according to the mapping
+     * of the field. Equality over a date becomes a range holding that one millisecond, as a term query can't carry a
+     * format. This is off by default, as the queries look different, although they match the same documents for any
+     * field mapped as a {@code date}. Please see {@link EpochMillisDates} for details.
+     *
+     * @param epochMillisDates {@code True} to send dates as milliseconds since the epoch, else {@code false}.
+     * @return This instance, for chaining.
+     */
+    public ElasticsearchQueryBuilderOptions epochMillisDates(final boolean epochMillisDates) {
+        this.epochMillisDates = epochMillisDates;
+        return this;
+    }
+
+    public boolean epochMillisDates() {
+        return epochMillisDates;
+    }
+}
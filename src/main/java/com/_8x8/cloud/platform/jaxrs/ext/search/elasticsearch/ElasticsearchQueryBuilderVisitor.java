@@ -22,16 +22,18 @@ import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 import org.apache.cxf.jaxrs.ext.search.collections.CollectionCheckInfo;
 import org.apache.cxf.jaxrs.ext.search.visitor.AbstractSearchConditionVisitor;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.index.query.TermQueryBuilder;
-import org.elasticsearch.index.query.WildcardQueryBuilder;
 
 import java.lang.reflect.Type;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Objects;
 
 // TODO: [greg.feigenson@8x8.com 3/23/17] - Do we need to add aliasing support here? Does that even make sense since we're not relational?
 // TODO: [greg.feigenson@8x8.com 3/23/17] - NULL/Bool handling?
@@ -41,56 +43,191 @@ import java.util.Stack;
  * {@link QueryBuilder} that can later be composed via a {@link org.elasticsearch.action.search.SearchRequestBuilder} or
  * other such mechanism. Pagination, sorting, field projections and other functionality will be handled there.
  * <p>
- * <b>WARNING: this class is inherently un-threadsafe by design.</b> This class cannot meaningfully support concurrency.
- * Attempting to cache, or re-use this class is inherently dangerous and must not be done. There is no meaningful re-use
- * possible due to the Apache designs, so please treat this as a prototypical scope, and not as a singleton.
+ * Expressions are walked without recursion via a {@link SearchConditionWalker}, so even absurdly deep expressions
+ * can't overflow the stack. Given a {@link QueryBudget}, the visitor keeps a running tally of the expression as it
+ * goes, and throws a {@link QueryBudgetExceededException} as soon as the expression goes over budget, or nests deeper
+ * than allowed.
+ * <p>
+ * Given a {@link QueryOptimizer}, the query is run through its rewrite rules on its way out of {@link #getQuery()},
+ * and this visitor leaves the folding of adjacent ranges to the optimizer's {@link QueryOptimizer#MERGE_RANGES} rule.
+ * Without one, ranges are folded as each bool query is built, just as they always have been. Either way, the query can
+ * then be moved into filter context; see {@link #toFilterContext(QueryBuilder)}.
+ * <p>
+ * Values holding a {@code *} are matched by the cheapest query that will do, so {@code name==abc*} becomes a prefix
+ * query rather than a wildcard query. Leading and infix wildcards are allowed, rejected or reversed according to our
+ * {@link WildcardPolicy}. Enum properties are the exception, as we already know every value they can hold: wildcards
+ * over them are matched against the constants up front, and become a terms query, or a {@code match_none} query should
+ * nothing match. See {@link EnumExpansion} for details, including when {@code !=} becomes a terms query too.
+ * <p>
+ * Dates are handed to Elasticsearch as they are by default, and the client formats them as strings. Given
+ * {@code epochMillisDates}, they're sent as milliseconds since the epoch instead, with the {@code epoch_millis} format,
+ * and {@code ==} over a date becomes a range holding that one millisecond. See {@link EpochMillisDates} for details.
+ * <p>
+ * <b>WARNING: this class is inherently un-threadsafe by design.</b> This class cannot meaningfully support concurrency,
+ * and must never be shared between threads. A single thread may re-use an instance for several expressions, so long as
+ * it calls {@link #reset()} between them; {@link ElasticsearchQueryBuilder} keeps one per thread this way.
  */
 public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchConditionVisitor<T, QueryBuilder> {
     private static final String WILDCARD_CHARACTER = "*";
-    private final Stack<List<QueryBuilder>> stateStack = new Stack<>();
-
-    Stack<List<QueryBuilder>> getStateStack() {
+    private final StateStack<QueryBuilder> stateStack = new StateStack<>();
+    private final QueryBudget.Meter meter;
+    private final QueryOptimizer queryOptimizer;
+    private final boolean filterContext;
+    private final WildcardPolicy wildcardPolicy;
+    private final boolean enumComplements;
+    private final boolean epochMillisDates;
+    private final SearchConditionWalker<T> walker;
+
+    StateStack<QueryBuilder> getStateStack() {
         return stateStack;
     }
 
+    SearchConditionWalker<T> getWalker() {
+        return walker;
+    }
+
+    QueryOptimizer getQueryOptimizer() {
+        return queryOptimizer;
+    }
+
+    boolean isFilterContext() {
+        return filterContext;
+    }
+
+    WildcardPolicy getWildcardPolicy() {
+        return wildcardPolicy;
+    }
+
+    boolean isEnumComplements() {
+        return enumComplements;
+    }
+
+    boolean isEpochMillisDates() {
+        return epochMillisDates;
+    }
+
     /**
      * Constructs an instance of an {@link ElasticsearchQueryBuilderVisitor}, using a blank field map.
      * <p>
      * This visitor does not support field aliasing as there is no current use case for it.
      */
     public ElasticsearchQueryBuilderVisitor() {
+        this(new ElasticsearchQueryBuilderOptions());
+    }
+
+    /**
+     * Constructs an instance of an {@link ElasticsearchQueryBuilderVisitor}, using a blank field map, that builds
+     * queries according to the given options. Only the options that apply to building a single query are read: the
+     * {@link QueryBudget}, {@link QueryOptimizer}, filter context, {@link WildcardPolicy}, enum complements, and epoch
+     * millisecond dates. Caching and parsing are left to the {@link ElasticsearchQueryBuilder}.
+     * <p>
+     * As with the builder, the options are read once, so changing them afterwards has no effect on this visitor.
+     *
+     * @param options The {@link ElasticsearchQueryBuilderOptions} to apply. Must not be null.
+     */
+    public ElasticsearchQueryBuilderVisitor(final ElasticsearchQueryBuilderOptions options) {
         // We don't support aliasing for now.
         super(new HashMap<>());
-        getStateStack().push(new ArrayList<>());
+        final QueryBudget queryBudget = options.queryBudget();
+
+        this.meter = null == queryBudget ? null : queryBudget.meter();
+        this.queryOptimizer = options.queryOptimizer();
+        this.filterContext = options.filterContext();
+        this.wildcardPolicy = options.wildcardPolicy();
+        this.enumComplements = options.enumComplements();
+        this.epochMillisDates = options.epochMillisDates();
+        this.walker = new Walker(null == queryBudget ? Integer.MAX_VALUE : queryBudget.maxDepth());
+        getStateStack().push();
+    }
+
+    /**
+     * Resets this visitor so that it can be used for another expression, as though it had just been constructed. Any
+     * {@link QueryBuilder} handed out earlier is unaffected. This is safe to call at any time, including after a visit
+     * has failed part way through.
+     */
+    public void reset() {
+        getStateStack().clear();
+        getStateStack().push();
+
+        if (null != meter) {
+            meter.reset();
+        }
     }
 
     @Override
     public void visit(final SearchCondition<T> searchCondition) {
-        final PrimitiveStatement statement = searchCondition.getStatement();
+        getWalker().walk(searchCondition);
+    }
 
-        // If we've got a primitive statement, we're at a leaf expression like foo==bar.
-        if (null != statement) {
-            if (statement.getProperty() != null) {
-                getStateStack().peek().add(buildSimpleExpression(statement));
-            }
-        } else {
-            // Otherwise we're within a composite structure like (foo==bar OR baz==quux)
-            getStateStack().push(new ArrayList<>());
+    @Override
+    public QueryBuilder getQuery() {
+        return getQuery(null);
+    }
 
-            // Recurse down our tree till we hit our leaves, building our state as we go.
-            searchCondition.getSearchConditions().forEach(x -> x.accept(this));
+    /**
+     * Fetches the query built up by {@link #visit(SearchCondition)}, having run it through our {@link QueryOptimizer},
+     * if we have one.
+     *
+     * @param trace The {@link QueryRewriteTrace} to record what the optimizer did in, or null if nobody's interested.
+     * @return The query, or null if there isn't one.
+     */
+    public QueryBuilder getQuery(final QueryRewriteTrace trace) {
+        return optimize((getStateStack().isEmpty() || getStateStack().peek().isEmpty()) ? null : getStateStack().pop().get(0), trace);
+    }
 
-            // Unwind the stack and build our current level of glue.
-            final QueryBuilder builder = buildCompositeExpression(searchCondition.getConditionType(), getStateStack().pop());
+    /**
+     * Runs a query built by this visitor through our {@link QueryOptimizer}, if we have one, and then into filter
+     * context, if we've been asked to.
+     *
+     * @param query The query to optimize. May be null.
+     * @param trace The {@link QueryRewriteTrace} to record what the optimizer did in, or null if nobody's interested.
+     * @return The optimized query, or the query itself if we don't have an optimizer and aren't in filter context.
+     */
+    QueryBuilder optimize(final QueryBuilder query, final QueryRewriteTrace trace) {
+        final QueryOptimizer optimizer = getQueryOptimizer();
+        final QueryBuilder optimized = null == optimizer ? query : optimizer.optimize(query, trace);
 
-            // Slap the currently transformed value back onto the stack so we can re-compose it.
-            getStateStack().peek().add(builder);
-        }
+        return isFilterContext() ? toFilterContext(optimized) : optimized;
     }
 
-    @Override
-    public QueryBuilder getQuery() {
-        return (getStateStack().isEmpty() || getStateStack().peek().isEmpty()) ? null : getStateStack().pop().get(0);
+    /**
+     * Provides a mechanism to move a finished query into filter context, where nothing is scored. FIQL only ever
+     * filters, so there's nothing to lose, and Elasticsearch gets to skip scoring, and cache the clauses it sees often:
+     * <pre>
+     *     * The must clauses of every bool query in the tree become filter clauses. Should and must_not clauses stay
+     *       put, as neither scores anything in filter context.
+     *     * The query as a whole is wrapped in a {@code constant_score} query, which puts it in filter context.
+     * </pre>
+     * This runs after the optimizer, whose rules all work on must clauses. The tree is rewritten in place, and walked
+     * with a loop rather than by recursion.
+     *
+     * @param query The query to move. May be null.
+     * @return The query, wrapped in a {@link ConstantScoreQueryBuilder}, or null if given null.
+     */
+    QueryBuilder toFilterContext(final QueryBuilder query) {
+        if (null == query) {
+            return null;
+        }
+
+        final Deque<QueryBuilder> pending = new ArrayDeque<>();
+        pending.push(query);
+
+        while (!pending.isEmpty()) {
+            final QueryBuilder current = pending.pop();
+
+            if (current instanceof BoolQueryBuilder) {
+                final BoolQueryBuilder boolQuery = (BoolQueryBuilder) current;
+
+                boolQuery.filter().addAll(boolQuery.must());
+                boolQuery.must().clear();
+
+                boolQuery.filter().forEach(pending::push);
+                boolQuery.should().forEach(pending::push);
+                boolQuery.mustNot().forEach(pending::push);
+            }
+        }
+
+        return query instanceof ConstantScoreQueryBuilder ? query : new ConstantScoreQueryBuilder(query);
     }
 
     /**
@@ -118,18 +255,39 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
         final boolean isWildcard = valueString.contains(WILDCARD_CHARACTER);
 
         final String property = statement.getProperty();
+        final ConditionType condition = statement.getCondition();
+        final Class<?> enumClass = EnumExpansion.getEnumClass(statement.getValueType());
+
+        if (null != meter) {
+            // Wildcards over enums never make it to Elasticsearch, so they're no dearer than any other comparison.
+            final boolean isWildcardQuery = isWildcard && null == enumClass &&
+                    (ConditionType.EQUALS == condition || ConditionType.NOT_EQUALS == condition);
+            meter.leaf(isWildcardQuery, isWildcardQuery && valueString.startsWith(WILDCARD_CHARACTER));
+        }
+
+        if (null != enumClass && ConditionType.EQUALS == condition && isWildcard) {
+            return createEnumQuery(property, enumClass, valueString);
+        }
+
+        if (null != enumClass && ConditionType.NOT_EQUALS == condition && (isWildcard || isEnumComplements())) {
+            return createNegatedEnumQuery(property, enumClass, valueString);
+        }
 
-        switch (statement.getCondition()) {
+        if (value instanceof Date && isEpochMillisDates()) {
+            return createDateQuery(property, condition, (Date) value);
+        }
+
+        switch (condition) {
             // We only support wildcards on (in)equality because the other operators make no sense in Elasticsearch.
             case EQUALS:
                 if (isWildcard) {
-                    return createWildcardQuery(property, valueString);
+                    return createPatternQuery(property, valueString);
                 }
 
                 return createTermQuery(property, value);
             case NOT_EQUALS:
                 if (isWildcard) {
-                    return createBoolQueryBuilder().mustNot(createWildcardQuery(property, valueString));
+                    return createBoolQueryBuilder().mustNot(createPatternQuery(property, valueString));
                 }
 
                 return createBoolQueryBuilder().mustNot(createTermQuery(property, value));
@@ -163,9 +321,12 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
     QueryBuilder buildCompositeExpression(final ConditionType conditionType, final List<QueryBuilder> parts) {
         final BoolQueryBuilder boolQueryBuilder = createBoolQueryBuilder();
 
+        // With an optimizer, folding ranges together is its job rather than ours.
+        final boolean foldRanges = null == getQueryOptimizer();
+
         for (int partIndex = 0; partIndex < parts.size(); partIndex++) {
             final QueryBuilder part = parts.get(partIndex);
-            final QueryBuilder previousPart = partIndex > 0 ? getPreviousQueryPart(boolQueryBuilder, conditionType) : null;
+            final QueryBuilder previousPart = foldRanges && partIndex > 0 ? getPreviousQueryPart(boolQueryBuilder, conditionType) : null;
 
             // Try and fold this into the previous statement part IFF possible.
             if (null != previousPart && canMergeQueryParts(previousPart, part, conditionType)) {
@@ -221,7 +382,8 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
      *     * Neither part is null
      *     * The {@link ConditionType} being applied to both query parts is {@link ConditionType#AND}
      *     * Both query parts are {@link RangeQueryBuilder} instances (EG: no term or wildcard queries)
-     *     * Both query parts refer to the same field in Elasticsearch
+     *     * Both query parts refer to the same field in Elasticsearch, with the same format
+     *     * Neither query part holds a single date; see {@link EpochMillisDates#isExact(Object, Object, String)}
      *     * Both query parts are within the same expression (IE: within the same level of parenthesis).
      * </pre>
      *
@@ -239,8 +401,11 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
             final RangeQueryBuilder previousRangeQuery = (RangeQueryBuilder) previousPart;
             final RangeQueryBuilder currentRangeQuery = (RangeQueryBuilder) currentPart;
 
-            // It also helps if both queries apply to the same field.
-            if (previousRangeQuery.fieldName().equals(currentRangeQuery.fieldName())) {
+            // It also helps if both queries apply to the same field, and if neither has both bounds set for a single date.
+            if (previousRangeQuery.fieldName().equals(currentRangeQuery.fieldName()) &&
+                    Objects.equals(previousRangeQuery.format(), currentRangeQuery.format()) &&
+                    !EpochMillisDates.isExact(previousRangeQuery.from(), previousRangeQuery.to(), previousRangeQuery.format()) &&
+                    !EpochMillisDates.isExact(currentRangeQuery.from(), currentRangeQuery.to(), currentRangeQuery.format())) {
                 return true;
             }
         }
@@ -322,15 +487,54 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
     }
 
     /**
-     * Provides a test-friendly method for creating a {@link WildcardQueryBuilder} for building a string-based prefix
-     * wildcard query.
+     * Provides a test-friendly method for creating the query matching a value with a wildcard in it. Depending on the
+     * pattern, this is an exists, prefix or wildcard query; please see {@link WildcardPolicy} for details.
+     *
+     * @param propertyName The name of the property to match.
+     * @param pattern      The pattern to match, holding at least one {@code *}.
+     * @return A {@link QueryBuilder} for querying via a pattern match.
+     * @throws IllegalArgumentException If our {@link WildcardPolicy} rejects the pattern.
+     */
+    QueryBuilder createPatternQuery(final String propertyName, final String pattern) {
+        return getWildcardPolicy().toQuery(propertyName, pattern);
+    }
+
+    /**
+     * Provides a test-friendly method for creating the query comparing a date as milliseconds since the epoch.
+     *
+     * @param propertyName The name of the property to match.
+     * @param condition    The comparison to make.
+     * @param value        The date to compare against.
+     * @return A {@link QueryBuilder} for the comparison; see {@link EpochMillisDates#toQuery(String, ConditionType, Date)}.
+     */
+    QueryBuilder createDateQuery(final String propertyName, final ConditionType condition, final Date value) {
+        return EpochMillisDates.toQuery(propertyName, condition, value);
+    }
+
+    /**
+     * Provides a test-friendly method for creating the query matching the constants of an enum that match a pattern.
      *
-     * @param propertyName The name of the property to match via the wildcard query.
-     * @param value        The value of the prefix match.
-     * @return A {@link WildcardQueryBuilder} for querying via a prefix match.
+     * @param propertyName The name of the property to match.
+     * @param enumClass    The enum the property holds.
+     * @param pattern      The pattern to match the constants against.
+     * @return A {@link QueryBuilder} for querying the matching constants; see {@link EnumExpansion#toQuery(String, List)}.
      */
-    WildcardQueryBuilder createWildcardQuery(final String propertyName, final String value) {
-        return new WildcardQueryBuilder(propertyName, value);
+    QueryBuilder createEnumQuery(final String propertyName, final Class<?> enumClass, final String pattern) {
+        return EnumExpansion.toQuery(propertyName, EnumExpansion.match(enumClass, pattern));
+    }
+
+    /**
+     * Provides a test-friendly method for creating the query matching the constants of an enum that don't match a
+     * pattern, or value.
+     *
+     * @param propertyName The name of the property to match.
+     * @param enumClass    The enum the property holds.
+     * @param pattern      The pattern, or value, to exclude.
+     * @return A {@link QueryBuilder} for querying the remaining constants; see
+     * {@link EnumExpansion#toNegatedQuery(String, Class, List, boolean)}.
+     */
+    QueryBuilder createNegatedEnumQuery(final String propertyName, final Class<?> enumClass, final String pattern) {
+        return EnumExpansion.toNegatedQuery(propertyName, enumClass, EnumExpansion.match(enumClass, pattern), isEnumComplements());
     }
 
     /**
@@ -345,4 +549,36 @@ public class ElasticsearchQueryBuilderVisitor<T> extends AbstractSearchCondition
         return getPrimitiveFieldClass(statement, statement.getProperty(),
                 statement.getValue().getClass(), statement.getValueType(), statement.getValue());
     }
+
+    /**
+     * Builds up our state as the {@link SearchConditionWalker} makes its way through the expression.
+     */
+    class Walker extends SearchConditionWalker<T> {
+        Walker(final int maxDepth) {
+            super(maxDepth);
+        }
+
+        @Override
+        void visitStatement(final PrimitiveStatement statement) {
+            // We're at a leaf expression like foo==bar.
+            if (statement.getProperty() != null) {
+                getStateStack().peek().add(buildSimpleExpression(statement));
+            }
+        }
+
+        @Override
+        void enterComposite(final SearchCondition<T> composite, final int depth) {
+            // We're within a composite structure like (foo==bar OR baz==quux), whose parts build up on a fresh frame.
+            getStateStack().push();
+        }
+
+        @Override
+        void exitComposite(final SearchCondition<T> composite) {
+            // Unwind the stack and build our current level of glue.
+            final QueryBuilder builder = buildCompositeExpression(composite.getConditionType(), getStateStack().pop());
+
+            // Slap the currently transformed value back onto the stack so we can re-compose it.
+            getStateStack().peek().add(builder);
+        }
+    }
 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Compiles FIQL straight into Elasticsearch query DSL, writing to an {@link XContentBuilder} as it goes. The JSON is
+ * exactly what {@link QueryBuilder#toXContent(XContentBuilder, ToXContent.Params)} would have written for the
+ * {@link QueryBuilder} produced by an {@link ElasticsearchQueryBuilderVisitor}, including the folding of AND'ed ranges
+ * over the same field, but without ever building a {@link org.apache.cxf.jaxrs.ext.search.SearchCondition} or
+ * {@link QueryBuilder} tree:
+ * <pre>
+ *     * Each level of nesting is scanned once to find out how it's glued together, and once more to write it out.
+ *     * Comparisons are converted via a {@link FiqlValueConverter}, so values come out just as they would from CXF.
+ *     * A range is held back until we know whether the next part of the same AND folds into it.
+ * </pre>
+ * As with the visitor, {@code count()} expressions are left to the parser, and rejected where the visitor would reject
+ * them. The parser is whichever the {@link ElasticsearchQueryBuilder} parses with, so the writer accepts exactly the
+ * same filters: given a {@link NativeFiqlParser}, wildcards over enum properties are expanded as usual, while plain
+ * CXF gets to reject them, just as it would have for the visitor.
+ * Should the filter turn out to be invalid part way through, whatever was written so far is left as-is, so callers
+ * should discard the output when an exception is thrown.
+ * <p>
+ * This class holds no state between calls, and is threadsafe.
+ *
+ * @param <T> The model class to resolve properties against.
+ * @see ElasticsearchQueryBuilderVisitor#buildCompositeExpression(org.apache.cxf.jaxrs.ext.search.ConditionType, java.util.List)
+ */
+class ElasticsearchQueryWriter<T> {
+    private static final char AND = ';';
+    private static final char OR = ',';
+    private static final char OPEN = '(';
+    private static final char CLOSE = ')';
+
+    private static final int HAS_AND = 1;
+    private static final int HAS_OR = 2;
+
+    private static final String WILDCARD_CHARACTER = "*";
+    private static final String COUNT_PREFIX = "count(";
+
+    private static final String MUST = "must";
+    private static final String MUST_NOT = "must_not";
+    private static final String SHOULD = "should";
+    private static final String DISABLE_COORD = "disable_coord";
+    private static final String ADJUST_PURE_NEGATIVE = "adjust_pure_negative";
+    private static final String BOOST = "boost";
+    private static final String VALUE = "value";
+    private static final String FROM = "from";
+    private static final String TO = "to";
+    private static final String INCLUDE_LOWER = "include_lower";
+    private static final String INCLUDE_UPPER = "include_upper";
+    private static final String FORMAT = "format";
+
+    private final FiqlValueConverter<T> parser;
+    private final FiqlExpressionParser expressionParser;
+    private final Supplier<ElasticsearchQueryBuilderVisitor<T>> visitorFactory;
+    private final Consumer<ElasticsearchQueryBuilderVisitor<T>> visitorRecycler;
+    private final WildcardPolicy wildcardPolicy;
+    private final boolean enumComplements;
+    private final boolean epochMillisDates;
+
+    FiqlValueConverter<T> getParser() {
+        return parser;
+    }
+
+    FiqlExpressionParser getExpressionParser() {
+        return expressionParser;
+    }
+
+    WildcardPolicy getWildcardPolicy() {
+        return wildcardPolicy;
+    }
+
+    boolean isEnumComplements() {
+        return enumComplements;
+    }
+
+    boolean isEpochMillisDates() {
+        return epochMillisDates;
+    }
+
+    /**
+     * Constructs a writer.
+     *
+     * @param parser          The {@link FiqlValueConverter} used to resolve properties and convert values, and to parse
+     *                        anything handed over to the visitor.
+     * @param visitorFactory  A factory for the visitors used to handle {@code count()} expressions.
+     * @param visitorRecycler Takes back visitors from the factory once each expression is handled.
+     * @param options         The {@link ElasticsearchQueryBuilderOptions} the visitor is built with, whose wildcard
+     *                        policy, enum complements and epoch millisecond dates we apply just as the visitor would.
+     */
+    ElasticsearchQueryWriter(final FiqlValueConverter<T> parser, final Supplier<ElasticsearchQueryBuilderVisitor<T>> visitorFactory,
+                             final Consumer<ElasticsearchQueryBuilderVisitor<T>> visitorRecycler,
+                             final ElasticsearchQueryBuilderOptions options) {
+        this.parser = parser;
+        this.expressionParser = new FiqlExpressionParser();
+        this.visitorFactory = visitorFactory;
+        this.visitorRecycler = visitorRecycler;
+        this.wildcardPolicy = options.wildcardPolicy();
+        this.enumComplements = options.enumComplements();
+        this.epochMillisDates = options.epochMillisDates();
+    }
+
+    /**
+     * Compiles the given filter, writing the resulting query to the given builder as a single JSON object.
+     *
+     * @param filter  The filter query string to compile. Must not be null.
+     * @param builder The {@link XContentBuilder} to write to. Must not be null.
+     * @throws IOException          If the builder can't be written to.
+     * @throws SearchParseException If the filter is not valid FIQL, or can't be applied to the model class.
+     */
+    void write(final String filter, final XContentBuilder builder) throws IOException {
+        writeGroup(filter, 0, filter.length(), builder);
+    }
+
+    /**
+     * Writes the given range of the filter, which may hold any number of AND'ed and OR'ed sub-expressions. Much like
+     * CXF, AND binds tighter than OR, and groups holding a single part collapse down to that part.
+     */
+    void writeGroup(final String filter, final int start, final int end, final XContentBuilder builder) throws IOException {
+        final int separators = scanLevel(filter, start, end);
+
+        if (0 != (separators & HAS_OR)) {
+            writeComposite(filter, start, end, OR, builder);
+        } else if (0 != (separators & HAS_AND)) {
+            writeComposite(filter, start, end, AND, builder);
+        } else {
+            writePendingRange(writePart(filter, start, end, null, builder), builder);
+        }
+    }
+
+    /**
+     * Writes a bool query gluing together the parts of the given range, which are separated by the given separator.
+     * The parts of an OR are themselves groups of AND'ed parts, while the parts of an AND are single comparisons or
+     * parenthesized sub-expressions.
+     */
+    void writeComposite(final String filter, final int start, final int end, final char separator,
+                        final XContentBuilder builder) throws IOException {
+        builder.startObject();
+        builder.startObject(BoolQueryBuilder.NAME);
+        builder.startArray(AND == separator ? MUST : SHOULD);
+
+        PendingRange pendingRange = null;
+        int partStart = start;
+        int partEnd;
+
+        do {
+            partEnd = findSeparator(filter, partStart, end, separator);
+
+            if (AND == separator) {
+                pendingRange = writePart(filter, partStart, partEnd, pendingRange, builder);
+            } else {
+                writeGroup(filter, partStart, partEnd, builder);
+            }
+
+            partStart = partEnd + 1;
+        } while (partEnd < end);
+
+        writePendingRange(pendingRange, builder);
+
+        builder.endArray();
+        writeBoolQueryTail(builder);
+        builder.endObject();
+        builder.endObject();
+    }
+
+    /**
+     * Writes a single part of an AND, which is either a parenthesized sub-expression or a comparison. Ranges aren't
+     * written right away, but handed back so that the next part has the chance to fold into them. Just as with CXF,
+     * parenthesis around a single comparison don't count, so it folds like any other.
+     *
+     * @param pendingRange The range held back by the previous part, if any.
+     * @return The range now being held back, if any.
+     */
+    PendingRange writePart(final String filter, final int start, final int end, final PendingRange pendingRange,
+                           final XContentBuilder builder) throws IOException {
+        if (start < end && OPEN == filter.charAt(start)) {
+            if (0 == scanLevel(filter, start + 1, end - 1)) {
+                return writePart(filter, start + 1, end - 1, pendingRange, builder);
+            }
+
+            writePendingRange(pendingRange, builder);
+            writeGroup(filter, start + 1, end - 1, builder);
+            return null;
+        }
+
+        final FiqlExpression.Comparison comparison = (FiqlExpression.Comparison) getExpressionParser().parseComparison(filter, start, end);
+
+        if (comparison.getSelector().startsWith(COUNT_PREFIX)) {
+            return writeQueryBuilder(buildParsedQuery(comparison), pendingRange, builder);
+        }
+
+        final String property = comparison.getSelector();
+        final PropertySchema.Property schemaProperty = getParser().getProperty(property);
+        final Class<?> valueClass = schemaProperty.getValueClass();
+        final Object converted = getParser().convert(schemaProperty, comparison.getValue());
+
+        // Elasticsearch clients no longer handle enums, just like in the visitor.
+        final Object value = valueClass.isEnum() ? converted.toString() : converted;
+        final String valueString = value.toString();
+        final boolean isWildcard = valueString.contains(WILDCARD_CHARACTER);
+
+        // Only the native parser takes wildcards over enums, so anything else gets the chance to reject them.
+        if (valueClass.isEnum() && isWildcard && !(getParser() instanceof NativeFiqlParser)) {
+            return writeQueryBuilder(buildParsedQuery(comparison), pendingRange, builder);
+        }
+
+        // Comparisons the visitor expands over the constants of an enum are written out just as it builds them.
+        if (valueClass.isEnum() && ConditionType.EQUALS == comparison.getConditionType() && isWildcard) {
+            return writeQueryBuilder(EnumExpansion.toQuery(property, EnumExpansion.match(valueClass, valueString)), pendingRange, builder);
+        }
+
+        if (valueClass.isEnum() && ConditionType.NOT_EQUALS == comparison.getConditionType() && (isWildcard || isEnumComplements())) {
+            return writeQueryBuilder(EnumExpansion.toNegatedQuery(property, valueClass, EnumExpansion.match(valueClass, valueString),
+                    isEnumComplements()), pendingRange, builder);
+        }
+
+        if (value instanceof Date && isEpochMillisDates()) {
+            return writeQueryBuilder(EpochMillisDates.toQuery(property, comparison.getConditionType(), (Date) value), pendingRange, builder);
+        }
+
+        switch (comparison.getConditionType()) {
+            case EQUALS:
+                writePendingRange(pendingRange, builder);
+                writeTermOrWildcard(property, value, valueString, isWildcard, builder);
+                return null;
+            case NOT_EQUALS:
+                writePendingRange(pendingRange, builder);
+                builder.startObject();
+                builder.startObject(BoolQueryBuilder.NAME);
+                builder.startArray(MUST_NOT);
+                writeTermOrWildcard(property, value, valueString, isWildcard, builder);
+                builder.endArray();
+                writeBoolQueryTail(builder);
+                builder.endObject();
+                builder.endObject();
+                return null;
+            case LESS_THAN:
+                return mergeRange(pendingRange, new PendingRange(property, null, value, true, false), builder);
+            case LESS_OR_EQUALS:
+                return mergeRange(pendingRange, new PendingRange(property, null, value, true, true), builder);
+            case GREATER_THAN:
+                return mergeRange(pendingRange, new PendingRange(property, value, null, false, true), builder);
+            case GREATER_OR_EQUALS:
+                return mergeRange(pendingRange, new PendingRange(property, value, null, true, true), builder);
+            default:
+                // The parser never gives us anything else, but let's not pretend otherwise.
+                throw new IllegalArgumentException(String.format("Query contains an unsupported operation: %s", comparison));
+        }
+    }
+
+    /**
+     * Folds the current range into the pending one, if they're over the same field, with the same format, and neither
+     * holds a single date. Otherwise the pending range is written out, and the current one takes its place. This
+     * mirrors {@link ElasticsearchQueryBuilderVisitor#canMergeQueryParts(QueryBuilder, QueryBuilder, ConditionType)}
+     * and {@link ElasticsearchQueryBuilderVisitor#mergeQueryParts(QueryBuilder, QueryBuilder)}.
+     */
+    PendingRange mergeRange(final PendingRange pendingRange, final PendingRange currentRange, final XContentBuilder builder) throws IOException {
+        if (null == pendingRange || !pendingRange.getField().equals(currentRange.getField()) ||
+                !Objects.equals(pendingRange.getFormat(), currentRange.getFormat()) || pendingRange.isExact() || currentRange.isExact()) {
+            writePendingRange(pendingRange, builder);
+            return currentRange;
+        }
+
+        // If the "to" field is empty, we know we're greater than/greater than or equal to.
+        if (null == currentRange.getTo()) {
+            pendingRange.setFrom(currentRange.getFrom(), currentRange.isIncludeLower());
+        } else {
+            pendingRange.setTo(currentRange.getTo(), currentRange.isIncludeUpper());
+        }
+
+        return pendingRange;
+    }
+
+    /**
+     * Handles a comparison by way of our parser and the visitor. This is how we handle {@code count()} expressions,
+     * which the visitor will reject unless they're over a property that isn't a collection, and wildcards over enum
+     * properties when CXF does the parsing, which it rejects outright.
+     */
+    QueryBuilder buildParsedQuery(final FiqlExpression.Comparison comparison) {
+        final PrimitiveStatement statement = getParser().parse(comparison.toString()).getStatement();
+        final ElasticsearchQueryBuilderVisitor<T> visitor = visitorFactory.get();
+
+        try {
+            return visitor.buildSimpleExpression(statement);
+        } finally {
+            visitorRecycler.accept(visitor);
+        }
+    }
+
+    /**
+     * Writes a ready-made {@link QueryBuilder}, making sure ranges still get the chance to be folded together.
+     */
+    PendingRange writeQueryBuilder(final QueryBuilder queryBuilder, final PendingRange pendingRange,
+                                   final XContentBuilder builder) throws IOException {
+        if (queryBuilder instanceof RangeQueryBuilder) {
+            final RangeQueryBuilder rangeQuery = (RangeQueryBuilder) queryBuilder;
+            return mergeRange(pendingRange, new PendingRange(rangeQuery.fieldName(), rangeQuery.from(), rangeQuery.to(),
+                    rangeQuery.includeLower(), rangeQuery.includeUpper(), rangeQuery.format()), builder);
+        }
+
+        writePendingRange(pendingRange, builder);
+        queryBuilder.toXContent(builder, ToXContent.EMPTY_PARAMS);
+
+        return null;
+    }
+
+    /**
+     * Writes a term query, or whichever query our {@link WildcardPolicy} picks if the value contains a wildcard. There
+     * are few enough of those that we simply write out the query the policy builds.
+     */
+    void writeTermOrWildcard(final String property, final Object value, final String valueString, final boolean isWildcard,
+                             final XContentBuilder builder) throws IOException {
+        if (isWildcard) {
+            getWildcardPolicy().toQuery(property, valueString).toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return;
+        }
+
+        builder.startObject();
+        builder.startObject(TermQueryBuilder.NAME);
+        builder.startObject(property);
+        builder.field(VALUE, value);
+        builder.field(BOOST, AbstractQueryBuilder.DEFAULT_BOOST);
+        builder.endObject();
+        builder.endObject();
+        builder.endObject();
+    }
+
+    /**
+     * Writes out the range being held back, if there is one.
+     */
+    void writePendingRange(final PendingRange pendingRange, final XContentBuilder builder) throws IOException {
+        if (null == pendingRange) {
+            return;
+        }
+
+        builder.startObject();
+        builder.startObject(RangeQueryBuilder.NAME);
+        builder.startObject(pendingRange.getField());
+        builder.field(FROM, pendingRange.getFrom());
+        builder.field(TO, pendingRange.getTo());
+        builder.field(INCLUDE_LOWER, pendingRange.isIncludeLower());
+        builder.field(INCLUDE_UPPER, pendingRange.isIncludeUpper());
+
+        if (null != pendingRange.getFormat()) {
+            builder.field(FORMAT, pendingRange.getFormat());
+        }
+
+        builder.field(BOOST, AbstractQueryBuilder.DEFAULT_BOOST);
+        builder.endObject();
+        builder.endObject();
+        builder.endObject();
+    }
+
+    /**
+     * Writes the fields that close out every bool query we produce, which are all left at their defaults.
+     */
+    void writeBoolQueryTail(final XContentBuilder builder) throws IOException {
+        builder.field(DISABLE_COORD, BoolQueryBuilder.DISABLE_COORD_DEFAULT);
+        builder.field(ADJUST_PURE_NEGATIVE, BoolQueryBuilder.ADJUST_PURE_NEGATIVE_DEFAULT);
+        builder.field(BOOST, AbstractQueryBuilder.DEFAULT_BOOST);
+    }
+
+    /**
+     * Scans a single level of the filter, checking that its parenthesis balance, and finding out which separators it
+     * uses outside of them.
+     *
+     * @return A combination of {@link #HAS_AND} and {@link #HAS_OR}.
+     * @throws SearchParseException If the parenthesis don't balance, with the same messages as CXF.
+     */
+    int scanLevel(final String filter, final int start, final int end) throws SearchParseException {
+        int separators = 0;
+        int level = 0;
+
+        for (int index = start; index < end; index++) {
+            final char character = filter.charAt(index);
+
+            if (OPEN == character) {
+                level++;
+            } else if (CLOSE == character) {
+                level--;
+
+                if (level < 0) {
+                    throw new SearchParseException(String.format("Unexpected closing bracket at position %d", index - start));
+                }
+            } else if (0 == level && AND == character) {
+                separators |= HAS_AND;
+            } else if (0 == level && OR == character) {
+                separators |= HAS_OR;
+            }
+        }
+
+        if (0 != level) {
+            throw new SearchParseException(String.format("Unmatched opening and closing brackets in expression: %s",
+                    filter.substring(start, end)));
+        }
+
+        return separators;
+    }
+
+    /**
+     * Finds the next occurrence of the given separator outside of any parenthesis. The range must already have been
+     * checked via {@link #scanLevel(String, int, int)}.
+     *
+     * @return The index of the separator, or {@code end} if there are no more.
+     */
+    int findSeparator(final String filter, final int start, final int end, final char separator) {
+        int level = 0;
+
+        for (int index = start; index < end; index++) {
+            final char character = filter.charAt(index);
+
+            if (OPEN == character) {
+                level++;
+            } else if (CLOSE == character) {
+                level--;
+            } else if (0 == level && separator == character) {
+                return index;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Holds a range that has yet to be written out, in case the next part of the same AND folds into it.
+     */
+    static class PendingRange {
+        private final String field;
+        private Object from;
+        private Object to;
+        private boolean includeLower;
+        private boolean includeUpper;
+        private final String format;
+
+        PendingRange(final String field, final Object from, final Object to, final boolean includeLower, final boolean includeUpper) {
+            this(field, from, to, includeLower, includeUpper, null);
+        }
+
+        PendingRange(final String field, final Object from, final Object to, final boolean includeLower, final boolean includeUpper,
+                     final String format) {
+            this.field = field;
+            this.from = from;
+            this.to = to;
+            this.includeLower = includeLower;
+            this.includeUpper = includeUpper;
+            this.format = format;
+        }
+
+        String getField() {
+            return field;
+        }
+
+        Object getFrom() {
+            return from;
+        }
+
+        Object getTo() {
+            return to;
+        }
+
+        boolean isIncludeLower() {
+            return includeLower;
+        }
+
+        boolean isIncludeUpper() {
+            return includeUpper;
+        }
+
+        String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return {@code True} if this range holds a single date, and mustn't be folded, else {@code false}.
+         * @see EpochMillisDates#isExact(Object, Object, String)
+         */
+        boolean isExact() {
+            return EpochMillisDates.isExact(from, to, format);
+        }
+
+        void setFrom(final Object from, final boolean includeLower) {
+            this.from = from;
+            this.includeLower = includeLower;
+        }
+
+        void setTo(final Object to, final boolean includeUpper) {
+            this.to = to;
+            this.includeUpper = includeUpper;
+        }
+    }
+}
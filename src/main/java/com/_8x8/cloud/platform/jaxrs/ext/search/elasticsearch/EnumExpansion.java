@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expands comparisons against enum properties, such as the {@code status} of a record, at compile time. The constants
+ * of an enum are all known up front, and are indexed as their {@link Object#toString()}, so there's no need to have
+ * Elasticsearch look anything up in its term dictionary:
+ * <pre>
+ *     * A wildcard, such as {@code status==AVAIL*}, is matched against every constant right here, just as
+ *       Elasticsearch would match it against the terms of the field, and becomes a terms query for the constants it
+ *       matches, a term query if there's only the one, or a {@code match_none} query if there are none.
+ *     * A negated comparison, such as {@code status!=DELETED} or {@code status!=DEL*}, can instead become a terms query
+ *       for the constants it doesn't exclude, whenever there are no more of those. This assumes every document holds one
+ *       of the constants, as a document without any value at all no longer matches, so it's only done when asked.
+ * </pre>
+ * This class holds no state, and is threadsafe.
+ */
+final class EnumExpansion {
+    private static final String WILDCARD_CHARACTER = "*";
+
+    private EnumExpansion() {
+    }
+
+    /**
+     * Provides a mechanism to find the constants of an enum matching a value, which may hold wildcards.
+     *
+     * @param enumClass The enum whose constants to match.
+     * @param pattern   The value to match. Should it hold a {@code *}, it's matched just as a wildcard query would match
+     *                  it, else it's matched exactly.
+     * @return The matching constants, as they're indexed, in the order they're declared.
+     */
+    static List<String> match(final Class<?> enumClass, final String pattern) {
+        final List<String> matches = new ArrayList<>();
+
+        // Only a * makes a wildcard query of a value, so anything else has to match exactly.
+        final CharacterRunAutomaton automaton = pattern.contains(WILDCARD_CHARACTER) ?
+                new CharacterRunAutomaton(WildcardQuery.toAutomaton(new Term("", pattern))) : null;
+
+        for (final Object constant : enumClass.getEnumConstants()) {
+            final String value = constant.toString();
+
+            if (null == automaton ? value.equals(pattern) : automaton.run(value)) {
+                matches.add(value);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Provides a mechanism to build a query matching any of the given constants of an enum.
+     *
+     * @param field  The name of the field to match.
+     * @param values The constants to match, as they're indexed.
+     * @return A {@link MatchNoneQueryBuilder} if there are no constants, a {@link TermQueryBuilder} if there's one, or
+     * else a {@link TermsQueryBuilder}.
+     */
+    static QueryBuilder toQuery(final String field, final List<String> values) {
+        if (values.isEmpty()) {
+            return new MatchNoneQueryBuilder();
+        }
+
+        return 1 == values.size() ? new TermQueryBuilder(field, values.get(0)) : new TermsQueryBuilder(field, values);
+    }
+
+    /**
+     * Provides a mechanism to build a query matching none of the given constants of an enum.
+     *
+     * @param field      The name of the field to match.
+     * @param enumClass  The enum the constants belong to.
+     * @param excluded   The constants to exclude, as they're indexed.
+     * @param complement {@code True} to match the remaining constants instead, whenever there are no more of those, else
+     *                   {@code false}.
+     * @return A query for the remaining constants, or else a {@link BoolQueryBuilder} excluding the given ones.
+     */
+    static QueryBuilder toNegatedQuery(final String field, final Class<?> enumClass, final List<String> excluded, final boolean complement) {
+        if (complement) {
+            final List<String> remaining = new ArrayList<>();
+
+            for (final Object constant : enumClass.getEnumConstants()) {
+                if (!excluded.contains(constant.toString())) {
+                    remaining.add(constant.toString());
+                }
+            }
+
+            if (remaining.size() <= excluded.size()) {
+                return toQuery(field, remaining);
+            }
+        }
+
+        return new BoolQueryBuilder().mustNot(toQuery(field, excluded));
+    }
+
+    /**
+     * Provides a convenience method to get the enum a property holds, given the type it was parsed as.
+     *
+     * @param valueType The type of the property.
+     * @return The enum, or null if the property doesn't hold one.
+     */
+    static Class<?> getEnumClass(final Object valueType) {
+        return valueType instanceof Class && ((Class<?>) valueType).isEnum() ? (Class<?>) valueType : null;
+    }
+}
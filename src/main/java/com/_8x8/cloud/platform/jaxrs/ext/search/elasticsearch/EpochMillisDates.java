@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+import java.util.Date;
+
+/**
+ * Encodes comparisons against {@link Date} properties as milliseconds since the epoch. Otherwise, a {@link Date} goes
+ * over the wire as a formatted string, which every shard has to parse back according to the mapping of the field,
+ * in whatever zone it sees fit. A number tagged with the {@code epoch_millis} format needs no such parsing, and means
+ * the same instant everywhere:
+ * <pre>
+ *     * {@code <}, {@code <=}, {@code >} and {@code >=} become ranges over the milliseconds, with that format.
+ *     * {@code ==} becomes a range from and to the same millisecond, as a term query has no way to carry a format.
+ *     * {@code !=} becomes a bool query excluding that same range.
+ * </pre>
+ * Ranges holding a single millisecond can't be folded into others the way {@link ElasticsearchQueryBuilderVisitor}
+ * folds adjacent ranges when it has no optimizer, as later bounds simply replace earlier ones there; see
+ * {@link #isExact(Object, Object, String)}. The {@link QueryOptimizer#MERGE_RANGES} rule intersects them properly.
+ * <p>
+ * This class holds no state, and is threadsafe.
+ */
+final class EpochMillisDates {
+    /**
+     * Holds the name of the Elasticsearch date format for milliseconds since the epoch.
+     */
+    static final String FORMAT = "epoch_millis";
+
+    private EpochMillisDates() {
+    }
+
+    /**
+     * Provides a mechanism to build the query for a single comparison against a date.
+     *
+     * @param field     The name of the field to match.
+     * @param condition The comparison to make.
+     * @param value     The date to compare against.
+     * @return A {@link RangeQueryBuilder}, or a {@link BoolQueryBuilder} excluding one for {@code !=}, or null if the
+     * condition isn't a comparison.
+     */
+    static QueryBuilder toQuery(final String field, final ConditionType condition, final Date value) {
+        final long millis = value.getTime();
+
+        switch (condition) {
+            case EQUALS:
+                return createRangeQuery(field).gte(millis).lte(millis);
+            case NOT_EQUALS:
+                return new BoolQueryBuilder().mustNot(createRangeQuery(field).gte(millis).lte(millis));
+            case LESS_THAN:
+                return createRangeQuery(field).lt(millis);
+            case LESS_OR_EQUALS:
+                return createRangeQuery(field).lte(millis);
+            case GREATER_THAN:
+                return createRangeQuery(field).gt(millis);
+            case GREATER_OR_EQUALS:
+                return createRangeQuery(field).gte(millis);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Provides a convenience method to determine whether a range was built for {@code ==} on a date, and so holds a
+     * single millisecond.
+     *
+     * @param from   The lower bound of the range, if any.
+     * @param to     The upper bound of the range, if any.
+     * @param format The format of the range, if any.
+     * @return {@code True} if the range holds a single millisecond, else {@code false}.
+     */
+    static boolean isExact(final Object from, final Object to, final String format) {
+        return FORMAT.equals(format) && null != from && from.equals(to);
+    }
+
+    /**
+     * Provides a convenience method to create a range over milliseconds since the epoch.
+     */
+    private static RangeQueryBuilder createRangeQuery(final String field) {
+        return new RangeQueryBuilder(field).format(FORMAT);
+    }
+}
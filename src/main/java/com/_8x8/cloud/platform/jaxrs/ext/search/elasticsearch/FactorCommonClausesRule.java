@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pulls clauses shared by several branches of a group out of the group, so that Elasticsearch only has to run them
+ * once. Specifically:
+ * <pre>
+ *     * Within an OR group, AND'ed clauses shared by several branches are AND'ed with the rest of those branches, so
+ *       {@code (t==x;s==a),(t==x;s==b)} becomes {@code t==x;(s==a,s==b)}. The OR'ed remainder is then up for
+ *       {@link MergeTermsRule} to fold into a terms query.
+ *     * Within an AND group, OR'ed clauses shared by several branches are OR'ed with the rest of those branches, so
+ *       {@code (t==x,s==a);(t==x,s==b)} becomes {@code t==x,(s==a;s==b)}.
+ * </pre>
+ * Should a branch hold nothing but the shared clauses, the other branches add nothing to it, and are dropped. Each
+ * rewrite factors out whichever clause is shared by the most branches, along with anything else those branches share,
+ * and leaves the rest to later passes of the {@link QueryOptimizer}.
+ * <p>
+ * Clauses are matched by {@link QueryBuilder#equals(Object)}, via hashing, so the work is proportional to the number of
+ * clauses involved. Groups with more than {@link #DEFAULT_MAX_EFFORT} clauses between their branches are left alone,
+ * so that compiling enormous filters doesn't take forever. Only plain groups are factored; see
+ * {@link AbstractBoolRewriteRule#isPlain(BoolQueryBuilder)}.
+ */
+class FactorCommonClausesRule extends AbstractBoolRewriteRule {
+    /**
+     * Holds the default maximum number of clauses we'll look at across the branches of a single group.
+     */
+    static final int DEFAULT_MAX_EFFORT = 1024;
+
+    private final int maxEffort;
+
+    int getMaxEffort() {
+        return maxEffort;
+    }
+
+    /**
+     * Constructs a rule that looks at no more than {@link #DEFAULT_MAX_EFFORT} clauses per group.
+     */
+    FactorCommonClausesRule() {
+        this(DEFAULT_MAX_EFFORT);
+    }
+
+    /**
+     * @param maxEffort The maximum number of clauses to look at across the branches of a single group.
+     */
+    FactorCommonClausesRule(final int maxEffort) {
+        this.maxEffort = maxEffort;
+    }
+
+    @Override
+    public String getName() {
+        return QueryOptimizer.FACTOR_COMMON_CLAUSES;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery)) {
+            return null;
+        }
+
+        if (boolQuery.must().isEmpty() && boolQuery.filter().isEmpty()) {
+            return factor(boolQuery.should(), true) ? boolQuery : null;
+        }
+
+        if (boolQuery.should().isEmpty()) {
+            return factor(boolQuery.must(), false) ? boolQuery : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a mechanism to factor the clause shared by the most branches out of those branches, in place.
+     *
+     * @param clauses     The branches of the group.
+     * @param disjunction {@code True} if the branches are OR'ed together, else {@code false} if they're AND'ed.
+     * @return {@code True} if anything was factored out, else {@code false}.
+     */
+    boolean factor(final List<QueryBuilder> clauses, final boolean disjunction) {
+        // Break each branch down into the clauses it's made of; for an OR group, that's its AND'ed clauses, and vice versa.
+        final List<Branch> branches = new ArrayList<>(clauses.size());
+        final Map<QueryBuilder, Integer> counts = new HashMap<>();
+        int effort = 0;
+
+        for (int index = 0; index < clauses.size(); index++) {
+            final Branch branch = disjunction ? asConjunction(index, clauses.get(index)) : asDisjunction(index, clauses.get(index));
+
+            if (null != branch) {
+                effort += branch.getClauses().size();
+
+                if (effort > getMaxEffort()) {
+                    return false;
+                }
+
+                branches.add(branch);
+                new LinkedHashSet<>(branch.getClauses()).forEach(clause -> counts.merge(clause, 1, Integer::sum));
+            }
+        }
+
+        // Find whichever clause is shared by the most branches, first come first served.
+        QueryBuilder shared = null;
+        int sharedCount = 1;
+
+        for (final Branch branch : branches) {
+            for (final QueryBuilder clause : branch.getClauses()) {
+                if (counts.get(clause) > sharedCount) {
+                    shared = clause;
+                    sharedCount = counts.get(clause);
+                }
+            }
+        }
+
+        if (null == shared) {
+            return false;
+        }
+
+        // Everything the branches holding that clause have in common comes out with it.
+        final List<Branch> group = new ArrayList<>(sharedCount);
+        Set<QueryBuilder> common = null;
+
+        for (final Branch branch : branches) {
+            if (branch.getClauses().contains(shared)) {
+                group.add(branch);
+
+                if (null == common) {
+                    common = new LinkedHashSet<>(branch.getClauses());
+                } else {
+                    common.retainAll(branch.getClauses());
+                }
+            }
+        }
+
+        clauses.set(group.get(0).getIndex(), factorGroup(group, common, disjunction));
+
+        for (int index = group.size() - 1; index > 0; index--) {
+            clauses.remove(group.get(index).getIndex());
+        }
+
+        return true;
+    }
+
+    /**
+     * Provides a mechanism to build the query standing in for a group of branches sharing the given clauses.
+     *
+     * @param group       The branches, in order.
+     * @param common      The clauses every branch shares, in order.
+     * @param disjunction {@code True} if the branches are OR'ed together, else {@code false} if they're AND'ed.
+     * @return The query standing in for the whole group.
+     */
+    QueryBuilder factorGroup(final List<Branch> group, final Set<QueryBuilder> common, final boolean disjunction) {
+        final BoolQueryBuilder factored = new BoolQueryBuilder();
+        common.forEach(clause -> add(factored, clause, disjunction));
+
+        final BoolQueryBuilder remainders = new BoolQueryBuilder();
+
+        for (final Branch branch : group) {
+            final List<QueryBuilder> remainder = new ArrayList<>(branch.getClauses());
+            remainder.removeAll(common);
+
+            if (remainder.isEmpty()) {
+                // A branch of nothing but shared clauses covers every other branch: x,(x;y) is just x.
+                return factored;
+            }
+
+            if (1 == remainder.size()) {
+                add(remainders, remainder.get(0), !disjunction);
+            } else {
+                final BoolQueryBuilder remainderQuery = new BoolQueryBuilder();
+                remainder.forEach(clause -> add(remainderQuery, clause, disjunction));
+                add(remainders, remainderQuery, !disjunction);
+            }
+        }
+
+        add(factored, remainders, disjunction);
+        return factored;
+    }
+
+    /**
+     * Provides a convenience method to break a branch of an OR group down into its AND'ed clauses. Anything other than
+     * a plain bool query with nothing but must clauses is a branch of one clause.
+     */
+    Branch asConjunction(final int index, final QueryBuilder clause) {
+        if (clause instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder boolQuery = (BoolQueryBuilder) clause;
+
+            if (isPlain(boolQuery) && boolQuery.should().isEmpty() && boolQuery.filter().isEmpty() && boolQuery.mustNot().isEmpty()) {
+                return boolQuery.must().isEmpty() ? null : new Branch(index, boolQuery.must());
+            }
+        }
+
+        return new Branch(index, Collections.singletonList(clause));
+    }
+
+    /**
+     * Provides a convenience method to break a branch of an AND group down into its OR'ed clauses. Only plain bool
+     * queries with nothing but should clauses count; anything else is skipped, as a single clause shared between
+     * branches of an AND group is simply a duplicate.
+     */
+    Branch asDisjunction(final int index, final QueryBuilder clause) {
+        if (clause instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder boolQuery = (BoolQueryBuilder) clause;
+
+            if (isPlain(boolQuery) && !boolQuery.should().isEmpty() && boolQuery.must().isEmpty() &&
+                    boolQuery.filter().isEmpty() && boolQuery.mustNot().isEmpty()) {
+                return new Branch(index, boolQuery.should());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to AND or OR a clause into a bool query.
+     *
+     * @param boolQuery The bool query to add to.
+     * @param clause    The clause to add.
+     * @param must      {@code True} to AND the clause in, else {@code false} to OR it in.
+     */
+    static void add(final BoolQueryBuilder boolQuery, final QueryBuilder clause, final boolean must) {
+        if (must) {
+            boolQuery.must(clause);
+        } else {
+            boolQuery.should(clause);
+        }
+    }
+
+    /**
+     * Holds a single branch of a group, broken down into its clauses.
+     */
+    static class Branch {
+        private final int index;
+        private final List<QueryBuilder> clauses;
+
+        /**
+         * @param index   The index of the branch within its group.
+         * @param clauses The clauses the branch is made of.
+         */
+        Branch(final int index, final List<QueryBuilder> clauses) {
+            this.index = index;
+            this.clauses = clauses;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        List<QueryBuilder> getClauses() {
+            return clauses;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.SearchUtils;
+
+import java.util.Date;
+
+/**
+ * Represents a parser for the date literals in a FIQL expression, such as the {@code 2017-03-01T10:00:00} in
+ * {@code updatedTime=gt=2017-03-01T10:00:00}, that can be plugged into either builder via
+ * {@link ElasticsearchQueryBuilderOptions#dateParser(FiqlDateParser)} or
+ * {@link TranslatingQueryBuilderOptions#dateParser(FiqlDateParser)}. Otherwise, CXF parses every date via a fresh
+ * {@link java.text.SimpleDateFormat} built from {@link SearchUtils#DATE_FORMAT_PROPERTY}.
+ * <p>
+ * Parsers only ever see literals for {@link Date} properties, and may decline any literal they don't recognize, in
+ * which case CXF parses it as before, so a parser only needs to handle the layouts it's good at. Parsers are shared
+ * between threads, so must be threadsafe.
+ *
+ * @see IsoDateParser
+ */
+@FunctionalInterface
+public interface FiqlDateParser {
+    /**
+     * Attempts to parse a single date literal.
+     *
+     * @param value The literal to parse, as it appears in the filter. Never null.
+     * @return The parsed date, or null to hand the literal over to CXF instead.
+     */
+    Date parse(String value);
+}
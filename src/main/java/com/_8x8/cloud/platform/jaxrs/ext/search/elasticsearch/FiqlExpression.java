@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Represents an untyped FIQL expression, as produced by {@link FiqlExpressionParser}. Unlike the
+ * {@link org.apache.cxf.jaxrs.ext.search.SearchCondition}s built by CXF, nothing here has been checked against a model
+ * class yet: selectors and values are kept exactly as they were written. Calling {@link #toString()} gives back
+ * equivalent FIQL.
+ */
+abstract class FiqlExpression {
+    /**
+     * Represents a single comparison, such as {@code foo==bar}.
+     */
+    static final class Comparison extends FiqlExpression {
+        private final String selector;
+        private final ConditionType conditionType;
+        private final String value;
+
+        Comparison(final String selector, final ConditionType conditionType, final String value) {
+            this.selector = selector;
+            this.conditionType = conditionType;
+            this.value = value;
+        }
+
+        String getSelector() {
+            return selector;
+        }
+
+        ConditionType getConditionType() {
+            return conditionType;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return selector + FiqlParser.CONDITION_MAP.get(conditionType) + value;
+        }
+    }
+
+    /**
+     * Represents two or more expressions glued together by {@link ConditionType#AND} or {@link ConditionType#OR}.
+     */
+    static final class Composite extends FiqlExpression {
+        private final ConditionType conditionType;
+        private final List<FiqlExpression> parts;
+
+        Composite(final ConditionType conditionType, final List<FiqlExpression> parts) {
+            this.conditionType = conditionType;
+            this.parts = parts;
+        }
+
+        ConditionType getConditionType() {
+            return conditionType;
+        }
+
+        List<FiqlExpression> getParts() {
+            return parts;
+        }
+
+        @Override
+        public String toString() {
+            return parts.stream()
+                    .map(part -> part instanceof Composite ? "(" + part + ")" : part.toString())
+                    .collect(Collectors.joining(ConditionType.AND.equals(conditionType) ? FiqlParser.AND : FiqlParser.OR));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+
+import java.util.List;
+
+/**
+ * Parses FIQL expressions into an untyped {@link FiqlExpression} tree, keeping selectors and values exactly as they
+ * were written. Please see {@link AbstractFiqlExpressionParser} for the rules we follow.
+ * <p>
+ * This class holds no state, and is threadsafe.
+ */
+class FiqlExpressionParser extends AbstractFiqlExpressionParser<FiqlExpression> {
+    @Override
+    FiqlExpression createComparison(final CharSequence expression, final int selectorStart, final int selectorEnd,
+                                    final ConditionType conditionType, final int valueStart, final int valueEnd) {
+        return new FiqlExpression.Comparison(expression.subSequence(selectorStart, selectorEnd).toString(), conditionType,
+                expression.subSequence(valueStart, valueEnd).toString());
+    }
+
+    @Override
+    FiqlExpression createComposite(final ConditionType conditionType, final List<FiqlExpression> parts) {
+        return new FiqlExpression.Composite(conditionType, parts);
+    }
+}
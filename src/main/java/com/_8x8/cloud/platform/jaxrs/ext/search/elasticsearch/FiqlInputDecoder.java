@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Decodes FIQL filters straight off the wire, as percent-encoded UTF-8 bytes. The usual route of turning the bytes into
+ * a {@link String}, and then running that through {@link java.net.URLDecoder} into yet another {@link String} copies the
+ * whole filter at least twice, and allocates a fair bit of garbage in between. Instead, we undo the percent-encoding and
+ * the UTF-8 encoding together, in a single pass, into a single {@code char[]} that parsers can walk as a
+ * {@link CharSequence}.
+ * <p>
+ * Decoding follows the same rules as {@link java.net.URLDecoder} does for query strings:
+ * <pre>
+ *     * {@code %XX} escapes are replaced by the byte they encode, and must be complete and valid hexadecimal.
+ *     * {@code +} is replaced by a space.
+ *     * Malformed UTF-8 sequences are replaced by {@code U+FFFD}, just like {@link String#String(byte[], java.nio.charset.Charset)}.
+ * </pre>
+ * Note that we can't simply lex the raw bytes, as any of the characters that make up the structure of a FIQL
+ * expression may themselves be percent-encoded.
+ * <p>
+ * This class holds no state, and is threadsafe.
+ */
+final class FiqlInputDecoder {
+    private static final char REPLACEMENT = '\uFFFD';
+    private static final int ESCAPE = '%';
+    private static final int PLUS = '+';
+
+    private FiqlInputDecoder() {
+    }
+
+    /**
+     * Decodes the given slice of percent-encoded UTF-8 bytes. The array is neither modified nor held onto.
+     *
+     * @param bytes  The bytes holding the filter. Must not be null.
+     * @param offset The offset of the filter within the array.
+     * @param length The length of the filter, in bytes.
+     * @return The decoded filter.
+     * @throws SearchParseException      If the filter holds an invalid percent-encoding.
+     * @throws IndexOutOfBoundsException If the slice doesn't fit within the array.
+     */
+    static CharSequence decode(final byte[] bytes, final int offset, final int length) throws SearchParseException {
+        return decode(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Decodes the percent-encoded UTF-8 bytes between the position and the limit of the given buffer. The position of
+     * the buffer is left untouched, and it may be either heap or direct.
+     *
+     * @param buffer The buffer holding the filter. Must not be null.
+     * @return The decoded filter.
+     * @throws SearchParseException If the filter holds an invalid percent-encoding.
+     */
+    static CharSequence decode(final ByteBuffer buffer) throws SearchParseException {
+        final int start = buffer.position();
+        final int end = buffer.limit();
+
+        // Every byte we read turns into at most one char, even for supplementary characters: four bytes for two chars.
+        final char[] chars = new char[end - start];
+        int length = 0;
+
+        // The state of the UTF-8 sequence we're in the middle of, if any.
+        int codePoint = 0;
+        int minimum = 0;
+        int remaining = 0;
+
+        for (int index = start; index < end; index++) {
+            int value = buffer.get(index) & 0xFF;
+
+            if (ESCAPE == value) {
+                value = decodeEscape(buffer, index, end, start);
+                index += 2;
+            } else if (PLUS == value) {
+                value = ' ';
+            }
+
+            if (remaining > 0) {
+                if (0x80 == (value & 0xC0)) {
+                    codePoint = (codePoint << 6) | (value & 0x3F);
+
+                    if (0 == --remaining) {
+                        length = appendCodePoint(chars, length, codePoint, minimum);
+                    }
+
+                    continue;
+                }
+
+                // The sequence was cut short, so it's junk, but whatever cut it short is the start of something new.
+                chars[length++] = REPLACEMENT;
+                remaining = 0;
+            }
+
+            if (value < 0x80) {
+                chars[length++] = (char) value;
+            } else if (0xC0 == (value & 0xE0)) {
+                codePoint = value & 0x1F;
+                minimum = 0x80;
+                remaining = 1;
+            } else if (0xE0 == (value & 0xF0)) {
+                codePoint = value & 0x0F;
+                minimum = 0x800;
+                remaining = 2;
+            } else if (0xF0 == (value & 0xF8)) {
+                codePoint = value & 0x07;
+                minimum = 0x10000;
+                remaining = 3;
+            } else {
+                chars[length++] = REPLACEMENT;
+            }
+        }
+
+        if (remaining > 0) {
+            chars[length++] = REPLACEMENT;
+        }
+
+        return CharBuffer.wrap(chars, 0, length);
+    }
+
+    /**
+     * Decodes the {@code %XX} escape starting at the given index.
+     *
+     * @return The byte the escape stands for.
+     * @throws SearchParseException If the escape is incomplete, or isn't valid hexadecimal.
+     */
+    static int decodeEscape(final ByteBuffer buffer, final int index, final int end, final int start) throws SearchParseException {
+        if (index + 2 >= end) {
+            throw new SearchParseException(String.format("Incomplete percent-encoding at position %d", index - start));
+        }
+
+        final int high = Character.digit((char) (buffer.get(index + 1) & 0xFF), 16);
+        final int low = Character.digit((char) (buffer.get(index + 2) & 0xFF), 16);
+
+        if (high < 0 || low < 0) {
+            throw new SearchParseException(String.format("Invalid percent-encoding at position %d", index - start));
+        }
+
+        return (high << 4) | low;
+    }
+
+    /**
+     * Appends a fully decoded code point, replacing anything UTF-8 doesn't allow: overlong encodings, surrogates, and
+     * code points beyond the range of Unicode.
+     *
+     * @return The new length of the decoded chars.
+     */
+    static int appendCodePoint(final char[] chars, final int length, final int codePoint, final int minimum) {
+        if (codePoint < minimum || codePoint > Character.MAX_CODE_POINT ||
+                (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            chars[length] = REPLACEMENT;
+            return length + 1;
+        }
+
+        return length + Character.toChars(codePoint, chars, length);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Describes the properties of a model class ahead of time, so that they needn't be discovered via reflection. These
+ * are generated for classes marked {@link FiqlSearchable} by the {@link FiqlSearchableProcessor}, and there's rarely a
+ * reason to write one by hand.
+ * <p>
+ * Implementations must be threadsafe, and should describe the very same properties, with the very same types, that
+ * CXF would find on the model class via reflection.
+ */
+public interface FiqlSchema {
+    /**
+     * The suffix added to the name of a model class to get the name of its generated schema.
+     */
+    String CLASS_SUFFIX = "_FiqlSchema";
+
+    /**
+     * Fetches the model class described by this schema.
+     *
+     * @return The model class.
+     */
+    Class<?> getModelClass();
+
+    /**
+     * Describes every property of the model class to the given sink, one call per property.
+     *
+     * @param sink The {@link PropertySink} to describe properties to.
+     */
+    void describe(PropertySink sink);
+
+    /**
+     * Receives the properties described by a {@link FiqlSchema}.
+     */
+    interface PropertySink {
+        /**
+         * Receives a single property.
+         *
+         * @param path          The property, as it would appear in a FIQL expression, such as {@code tenantName} or
+         *                      {@code objectMetadata.status}.
+         * @param valueClass    The class of the values the property holds, with primitives boxed, or of its elements
+         *                      if it's a collection.
+         * @param collection    {@code True} if the property holds a collection of values, else {@code false}.
+         * @param enumConstants The constants of the value class if it's an enum, else null.
+         */
+        void property(String path, Class<?> valueClass, boolean collection, Object[] enumConstants);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a model class whose properties should be described at compile time, rather than discovered via reflection
+ * when the first filter comes along. With this library on the annotation processor path, which it is by default if
+ * it's on the compile classpath, {@link FiqlSearchableProcessor} generates a {@link FiqlSchema} for each marked class,
+ * named after it with a {@code _FiqlSchema} suffix, such as {@code MetadataRecord_FiqlSchema}. Every builder picks it
+ * up from there on its own; there's nothing to configure.
+ * <p>
+ * Should the generated class be missing, for example because annotation processing was switched off, properties are
+ * simply resolved via reflection, as they would be without this annotation.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface FiqlSearchable {
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates a {@link FiqlSchema} for every class marked {@link FiqlSearchable}, describing its properties exactly as
+ * CXF's {@link org.apache.cxf.jaxrs.ext.search.Beanspector} would find them at runtime:
+ * <pre>
+ *     * Every public, non-static getter taking no arguments, named {@code getX} or {@code isX}, is a property, bar
+ *       {@link Object#getClass()}. Inherited getters count, too.
+ *     * Primitives are boxed, and collections are described by the class of their elements, or {@link String} if
+ *       that can't be pinned down, just like {@link FiqlValueConverter#resolveProperty(String)}.
+ *     * The properties of nested beans are described as well, as {@code objectMetadata.status} and so on, stopping
+ *       short of any bean already on the way down, so cycles don't go on forever.
+ * </pre>
+ * Properties whose classes can't be named from the generated class, such as private nested classes, are left out, and
+ * will be resolved via reflection if they ever turn up in a filter.
+ * <p>
+ * This processor is registered as a service, so it runs whenever this library is on the annotation processor path.
+ */
+@SupportedAnnotationTypes("com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.FiqlSearchable")
+public class FiqlSearchableProcessor extends AbstractProcessor {
+    private static final String GETTER_PREFIX = "get";
+    private static final String BOOLEAN_GETTER_PREFIX = "is";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnvironment) {
+        for (final Element element : roundEnvironment.getElementsAnnotatedWith(FiqlSearchable.class)) {
+            if (ElementKind.CLASS != element.getKind()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("@%s only applies to classes", FiqlSearchable.class.getSimpleName()), element);
+                continue;
+            }
+
+            try {
+                writeSchema((TypeElement) element);
+            } catch (final IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Unable to write the FIQL schema for %s: %s", element, ex.getMessage()), element);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the {@link FiqlSchema} for a single model class.
+     *
+     * @param modelElement The model class.
+     * @throws IOException If the source file can't be written.
+     */
+    void writeSchema(final TypeElement modelElement) throws IOException {
+        final String packageName = getPackageName(modelElement);
+        final String schemaName = PropertySchema.getSchemaClassName(processingEnv.getElementUtils().getBinaryName(modelElement).toString());
+        final String simpleName = schemaName.substring(schemaName.lastIndexOf('.') + 1);
+
+        final Map<String, String> properties = new TreeMap<>();
+        final Deque<TypeElement> path = new ArrayDeque<>();
+        path.push(modelElement);
+        collectProperties((DeclaredType) modelElement.asType(), "", path, properties);
+
+        try (final Writer writer = processingEnv.getFiler().createSourceFile(schemaName, modelElement).openWriter()) {
+            if (!packageName.isEmpty()) {
+                writer.write(String.format("package %s;%n%n", packageName));
+            }
+
+            writer.write(String.format("/**%n * Describes the properties of {@link %s} for FIQL. Generated by {@link %s}; do not edit.%n */%n",
+                    modelElement.getQualifiedName(), FiqlSearchableProcessor.class.getName()));
+            writer.write(String.format("public final class %s implements %s {%n", simpleName, FiqlSchema.class.getName()));
+            writer.write(String.format("    @Override%n    public Class<?> getModelClass() {%n        return %s.class;%n    }%n%n",
+                    modelElement.getQualifiedName()));
+            writer.write(String.format("    @Override%n    public void describe(final %s.PropertySink sink) {%n", FiqlSchema.class.getName()));
+
+            for (final String property : properties.values()) {
+                writer.write(String.format("        sink.property(%s);%n", property));
+            }
+
+            writer.write(String.format("    }%n}%n"));
+        }
+    }
+
+    /**
+     * Describes the properties of a bean, and those of any beans nested within it, as the arguments to pass to
+     * {@link FiqlSchema.PropertySink#property(String, Class, boolean, Object[])}.
+     *
+     * @param beanType   The bean to describe.
+     * @param prefix     The path leading to the bean, with a trailing dot, or blank for the model class itself.
+     * @param path       The beans on the way down to this one, so we can tell when we've come full circle.
+     * @param properties The properties described so far, by path.
+     */
+    void collectProperties(final DeclaredType beanType, final String prefix, final Deque<TypeElement> path,
+                           final Map<String, String> properties) {
+        for (final Element member : processingEnv.getElementUtils().getAllMembers((TypeElement) beanType.asElement())) {
+            final String name = getPropertyName(member);
+
+            if (null == name || properties.containsKey(prefix + name)) {
+                continue;
+            }
+
+            // CXF goes by the getter as declared, so generic beans give up their erasures rather than type arguments.
+            final TypeMirror returnType = ((ExecutableElement) member).getReturnType();
+            final boolean collection = isCollection(returnType);
+            final TypeMirror valueType = collection ? getElementType(returnType) : box(returnType);
+            final String valueClass = getClassName(valueType);
+
+            if (null == valueClass) {
+                continue;
+            }
+
+            final Element valueElement = processingEnv.getTypeUtils().asElement(valueType);
+            final boolean isEnum = null != valueElement && ElementKind.ENUM == valueElement.getKind();
+
+            properties.put(prefix + name, String.format("\"%s\", %s.class, %b, %s", prefix + name, valueClass, collection,
+                    isEnum ? valueClass + ".values()" : "null"));
+
+            if (isBean(valueType) && !path.contains(valueElement)) {
+                path.push((TypeElement) valueElement);
+                collectProperties((DeclaredType) valueType, prefix + name + ".", path, properties);
+                path.pop();
+            }
+        }
+    }
+
+    /**
+     * Provides a convenience method to figure out the property a member is the getter for, just like CXF does.
+     *
+     * @param member The member to check.
+     * @return The name of the property, or null if the member isn't a getter.
+     */
+    String getPropertyName(final Element member) {
+        if (ElementKind.METHOD != member.getKind() || !member.getModifiers().contains(Modifier.PUBLIC) ||
+                member.getModifiers().contains(Modifier.STATIC)) {
+            return null;
+        }
+
+        final ExecutableElement method = (ExecutableElement) member;
+        final String methodName = method.getSimpleName().toString();
+
+        if (!method.getParameters().isEmpty() || TypeKind.VOID == method.getReturnType().getKind() || "getClass".equals(methodName)) {
+            return null;
+        }
+
+        if (methodName.startsWith(GETTER_PREFIX) && methodName.length() > GETTER_PREFIX.length()) {
+            return Introspector.decapitalize(methodName.substring(GETTER_PREFIX.length()));
+        }
+
+        if (methodName.startsWith(BOOLEAN_GETTER_PREFIX) && methodName.length() > BOOLEAN_GETTER_PREFIX.length()) {
+            return Introspector.decapitalize(methodName.substring(BOOLEAN_GETTER_PREFIX.length()));
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to determine whether a type is a {@link Collection}.
+     */
+    boolean isCollection(final TypeMirror type) {
+        final TypeMirror collectionType = processingEnv.getElementUtils().getTypeElement(Collection.class.getName()).asType();
+        return TypeKind.DECLARED == type.getKind() &&
+                processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type), processingEnv.getTypeUtils().erasure(collectionType));
+    }
+
+    /**
+     * Provides a convenience method to figure out the type of the elements of a collection. Just like at runtime, that
+     * only works if the first type argument is a plain class; anything else is left as a {@link String}.
+     */
+    TypeMirror getElementType(final TypeMirror collectionType) {
+        final List<? extends TypeMirror> typeArguments = ((DeclaredType) collectionType).getTypeArguments();
+        final TypeMirror elementType = typeArguments.isEmpty() ? null : typeArguments.get(0);
+
+        if (null != elementType && TypeKind.DECLARED == elementType.getKind() && ((DeclaredType) elementType).getTypeArguments().isEmpty()) {
+            return elementType;
+        }
+
+        return processingEnv.getElementUtils().getTypeElement(String.class.getName()).asType();
+    }
+
+    /**
+     * Provides a convenience method to box primitives, and leave everything else alone.
+     */
+    TypeMirror box(final TypeMirror type) {
+        return type.getKind().isPrimitive() ? processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).asType() : type;
+    }
+
+    /**
+     * Provides a convenience method to get the name a generated class can use for the class of a type.
+     *
+     * @param type The type.
+     * @return The name, or null if the type can't be named from the generated class.
+     */
+    String getClassName(final TypeMirror type) {
+        final TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+
+        if (TypeKind.ARRAY == erasure.getKind()) {
+            final String componentName = getClassName(((ArrayType) erasure).getComponentType());
+            return null == componentName ? null : componentName + "[]";
+        }
+
+        if (erasure.getKind().isPrimitive()) {
+            return erasure.toString();
+        }
+
+        if (TypeKind.DECLARED != erasure.getKind()) {
+            return null;
+        }
+
+        for (Element element = ((DeclaredType) erasure).asElement(); !(element instanceof PackageElement); element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                return null;
+            }
+        }
+
+        return ((TypeElement) ((DeclaredType) erasure).asElement()).getQualifiedName().toString();
+    }
+
+    /**
+     * Provides a convenience method to determine whether a type is a bean worth describing the properties of, rather
+     * than a value. Anything from the JDK, and any enum, is a value.
+     */
+    boolean isBean(final TypeMirror type) {
+        if (TypeKind.DECLARED != type.getKind()) {
+            return false;
+        }
+
+        final TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        final String packageName = getPackageName(element);
+
+        return ElementKind.CLASS == element.getKind() && !packageName.startsWith("java.") && !packageName.startsWith("javax.");
+    }
+
+    /**
+     * Provides a convenience method to get the name of the package a class is in.
+     */
+    String getPackageName(final TypeElement element) {
+        return processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+    }
+}
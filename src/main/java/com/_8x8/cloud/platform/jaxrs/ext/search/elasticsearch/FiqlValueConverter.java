@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.Beanspector;
+import org.apache.cxf.jaxrs.ext.search.PropertyNotFoundException;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Provides access to the type resolution and value conversion machinery buried within CXF's {@link FiqlParser}, so that
+ * we can convert FIQL literals without parsing a whole expression. Values converted here come out exactly as they
+ * would have had CXF parsed them as part of a filter, dates, enums, durations and all.
+ * <p>
+ * Given a {@link FiqlDateParser}, date literals are offered to it first, whether they're converted here or parsed as
+ * part of a whole filter, as this is a {@link FiqlParser} in its own right. Only literals it declines go to CXF.
+ * <p>
+ * This class holds no mutable state once constructed, and is threadsafe.
+ *
+ * @param <T> The model class to resolve properties against.
+ */
+class FiqlValueConverter<T> extends FiqlParser<T> {
+    private final PropertySchema schema;
+    private final FiqlDateParser dateParser;
+
+    PropertySchema getSchema() {
+        return schema;
+    }
+
+    FiqlDateParser getDateParser() {
+        return dateParser;
+    }
+
+    /**
+     * Constructs a converter for the given model class.
+     *
+     * @param clazz             The model class to resolve properties against.
+     * @param contextProperties Any parser configuration, such as {@link org.apache.cxf.jaxrs.ext.search.SearchUtils#DATE_FORMAT_PROPERTY}.
+     */
+    FiqlValueConverter(final Class<T> clazz, final Map<String, String> contextProperties) {
+        this(clazz, contextProperties, null);
+    }
+
+    /**
+     * Constructs a converter for the given model class, with a parser for date literals.
+     *
+     * @param clazz             The model class to resolve properties against.
+     * @param contextProperties Any parser configuration, such as {@link org.apache.cxf.jaxrs.ext.search.SearchUtils#DATE_FORMAT_PROPERTY}.
+     * @param dateParser        The {@link FiqlDateParser} to offer date literals to, or null to leave them all to CXF.
+     */
+    FiqlValueConverter(final Class<T> clazz, final Map<String, String> contextProperties, final FiqlDateParser dateParser) {
+        super(clazz, contextProperties);
+        this.schema = PropertySchema.forClass(clazz);
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * Fetches a property of the model class from our shared {@link PropertySchema}, resolving it the first time it's
+     * seen.
+     *
+     * @param property The property, as it would appear in a FIQL expression.
+     * @return The property.
+     * @throws PropertyNotFoundException If the model class has no such property.
+     */
+    PropertySchema.Property getProperty(final String property) throws SearchParseException {
+        return getSchema().getProperty(property, this);
+    }
+
+    /**
+     * Resolves the class of the value a property holds, drilling into nested beans for dotted properties such as
+     * {@code objectMetadata.tenantName}, and into the elements of collections. The answer comes from our shared
+     * {@link PropertySchema}, so the reflection only happens once per property.
+     *
+     * @param property The property to resolve, as it would appear in a FIQL expression.
+     * @return The class of the values the property holds, with primitives boxed.
+     * @throws PropertyNotFoundException If the model class has no such property.
+     */
+    Class<?> resolvePropertyClass(final String property) throws SearchParseException {
+        return getProperty(property).getValueClass();
+    }
+
+    /**
+     * Resolves a property via reflection, without consulting our {@link PropertySchema}.
+     *
+     * @param property The property to resolve, as it would appear in a FIQL expression.
+     * @return The property, whose class has primitives boxed.
+     * @throws PropertyNotFoundException If the model class has no such property.
+     * @see #resolvePropertyClass(String)
+     */
+    PropertySchema.Property resolveProperty(final String property) throws SearchParseException {
+        Class<?> currentClass = conditionClass;
+        boolean collection = false;
+
+        for (final String segment : getActualSetterName(property).split("\\.")) {
+            final Beanspector.TypeInfo typeInfo;
+
+            try {
+                typeInfo = new Beanspector<>(currentClass).getAccessorTypeInfo(segment);
+            } catch (final PropertyNotFoundException ex) {
+                throw ex;
+            } catch (final Exception ex) {
+                throw new PropertyNotFoundException(property, null);
+            }
+
+            // A collection anywhere along the way means the property can hold several values.
+            final boolean isCollection = Collection.class.isAssignableFrom(typeInfo.getWrappedTypeClass());
+            currentClass = isCollection ? getElementClass(typeInfo.getGenericType()) : typeInfo.getWrappedTypeClass();
+            collection |= isCollection;
+        }
+
+        return new PropertySchema.Property(property, currentClass, collection);
+    }
+
+    /**
+     * Converts a FIQL literal to the class of the given property, via the converter it was resolved with. This gives
+     * the same results as {@link #convert(String, Class, String)}, only without the reflection for most classes.
+     *
+     * @param property The property the literal belongs to.
+     * @param value    The literal to convert.
+     * @return The converted value.
+     * @throws SearchParseException If the literal can't be converted.
+     */
+    Object convert(final PropertySchema.Property property, final String value) throws SearchParseException {
+        return property.convert(value, this);
+    }
+
+    /**
+     * Converts a FIQL literal to the given class, using the same rules as CXF. The one exception is a literal holding a
+     * {@code *} for an enum property, which CXF would reject outright, and which we hand back as-is so that the pattern
+     * can be matched against the constants of the enum; see {@link EnumExpansion}.
+     *
+     * @param property   The property the literal belongs to, used for error reporting.
+     * @param valueClass The class to convert to, as given by {@link #resolvePropertyClass(String)}.
+     * @param value      The literal to convert.
+     * @return The converted value.
+     * @throws SearchParseException If the literal can't be converted.
+     */
+    Object convert(final String property, final Class<?> valueClass, final String value) throws SearchParseException {
+        if (valueClass.isEnum() && value.contains("*")) {
+            return value;
+        }
+
+        // Given a nested property, CXF would try to build the beans along the way, so only hand it the last segment.
+        final String setter = property.substring(property.lastIndexOf('.') + 1);
+        return parseType(property, null, null, setter, new Beanspector.TypeInfo(valueClass, valueClass), value);
+    }
+
+    /**
+     * Offers literals for plain {@link Date} properties to our {@link FiqlDateParser} before CXF sees them. The last
+     * segment of a nested property is converted by CXF without coming back through here, so nested dates, along with
+     * collections of dates and subclasses of {@link Date} such as {@link java.sql.Timestamp}, are always left to CXF.
+     */
+    @Override
+    protected Object parseType(final String originalPropName, final Object ownerBean, final Object lastCastedValue,
+                               final String setter, final Beanspector.TypeInfo typeInfo, final String value) throws SearchParseException {
+        if (null != getDateParser() && Date.class == typeInfo.getTypeClass() && -1 == setter.indexOf('.')) {
+            final Date date = getDateParser().parse(value);
+
+            if (null != date) {
+                return date;
+            }
+        }
+
+        return super.parseType(originalPropName, ownerBean, lastCastedValue, setter, typeInfo, value);
+    }
+
+    /**
+     * Determines whether a filter may hold a duration, such as the {@code -P1D} in {@code updatedTime=gt=-P1D}. CXF
+     * turns any date literal it can't parse as a date into a duration added to the current time, so these are the only
+     * literals that convert to something different from one call to the next, and anything compiled from them must
+     * not be cached.
+     * <p>
+     * This is a quick scan over the raw filter, and doesn't know which properties are dates. Anything between two of
+     * {@code = ; , ( )} that is spelled like an XML Schema duration counts, so a few non-date values such as
+     * {@code tenantName==P1D} will be caught too, which merely keeps them out of the cache.
+     *
+     * @param filter The filter to scan. Must not be null.
+     * @return {@code True} if any value in the filter looks like a duration, else {@code false}.
+     */
+    static boolean containsDuration(final CharSequence filter) {
+        final int length = filter.length();
+        int tokenStart = 0;
+
+        for (int index = 0; index <= length; index++) {
+            if (index == length || isDelimiter(filter.charAt(index))) {
+                if (isDuration(filter, tokenStart, index)) {
+                    return true;
+                }
+
+                tokenStart = index + 1;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines whether the given range of a filter is spelled like an XML Schema duration, such as {@code P1D},
+     * {@code -PT12H} or {@code P1Y2M3DT4H5M6.7S}. We're lenient about the order of the fields, as the only cost of a
+     * false positive is a missed cache entry.
+     */
+    static boolean isDuration(final CharSequence filter, final int start, final int end) {
+        int index = start < end && '-' == filter.charAt(start) ? start + 1 : start;
+
+        if (index >= end || 'P' != filter.charAt(index)) {
+            return false;
+        }
+
+        boolean digits = false;
+
+        while (++index < end) {
+            final char character = filter.charAt(index);
+
+            if (character >= '0' && character <= '9') {
+                digits = true;
+            } else if (-1 == "YMWDTHS.".indexOf(character)) {
+                return false;
+            }
+        }
+
+        return digits;
+    }
+
+    private static boolean isDelimiter(final char character) {
+        return '=' == character || ';' == character || ',' == character || '(' == character || ')' == character;
+    }
+
+    /**
+     * Provides a convenience method to figure out the class of the elements of a collection.
+     */
+    private Class<?> getElementClass(final Type genericType) {
+        if (genericType instanceof ParameterizedType) {
+            final Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+        }
+
+        // Raw and wildcard collections don't tell us anything, so just leave the literal as-is.
+        return String.class;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.List;
+
+/**
+ * Pulls the clauses of nested bool queries up into their parent, wherever the parent means the same thing as the
+ * child, so that {@code a==1;(b==2;c==3)} becomes a single bool query with three must clauses, rather than one bool
+ * inside another. Every extra bool query is an extra Lucene {@code BooleanQuery} to run for every candidate document,
+ * so this adds up on large indices. Specifically:
+ * <pre>
+ *     * A must clause that's a bool query without should clauses hands its must, filter and must_not clauses up to
+ *       a parent without should clauses. This covers nested AND groups, as well as the bool query wrapped around
+ *       every {@code !=}.
+ *     * A should clause that's a bool query with nothing but should clauses hands them up to a parent with nothing
+ *       but should and must_not clauses. This covers nested OR groups.
+ * </pre>
+ * Mixing must and should clauses in a single bool query turns the should clauses into optional extras, or not,
+ * depending on the context the query ends up in, so we never flatten into a parent that would end up with both.
+ * Clauses keep their order, so ranges pulled up next to each other can still be folded together. Only plain glue is
+ * flattened; see {@link AbstractBoolRewriteRule#isPlain(BoolQueryBuilder)}.
+ */
+class FlattenBoolsRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.FLATTEN_BOOLS;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery)) {
+            return null;
+        }
+
+        boolean flattened = false;
+        final List<QueryBuilder> mustClauses = boolQuery.must();
+
+        for (int index = 0; boolQuery.should().isEmpty() && index < mustClauses.size(); index++) {
+            final BoolQueryBuilder child = asConjunction(mustClauses.get(index));
+
+            if (null != child) {
+                // Swap the child for its must clauses, in place, and send the rest to the matching lists.
+                mustClauses.remove(index);
+                mustClauses.addAll(index, child.must());
+                boolQuery.filter().addAll(child.filter());
+                boolQuery.mustNot().addAll(child.mustNot());
+
+                index += child.must().size() - 1;
+                flattened = true;
+            }
+        }
+
+        final List<QueryBuilder> shouldClauses = boolQuery.should();
+
+        for (int index = 0; mustClauses.isEmpty() && boolQuery.filter().isEmpty() && index < shouldClauses.size(); index++) {
+            final BoolQueryBuilder child = asDisjunction(shouldClauses.get(index));
+
+            if (null != child) {
+                shouldClauses.remove(index);
+                shouldClauses.addAll(index, child.should());
+
+                index += child.should().size() - 1;
+                flattened = true;
+            }
+        }
+
+        return flattened ? boolQuery : null;
+    }
+
+    /**
+     * Provides a convenience method to determine whether a must clause can hand its clauses up to its parent.
+     *
+     * @return The clause, as a bool query, or null if it can't.
+     */
+    BoolQueryBuilder asConjunction(final QueryBuilder clause) {
+        if (clause instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder boolQuery = (BoolQueryBuilder) clause;
+
+            if (isPlain(boolQuery) && boolQuery.should().isEmpty()) {
+                return boolQuery;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to determine whether a should clause can hand its clauses up to its parent.
+     *
+     * @return The clause, as a bool query, or null if it can't.
+     */
+    BoolQueryBuilder asDisjunction(final QueryBuilder clause) {
+        if (clause instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder boolQuery = (BoolQueryBuilder) clause;
+
+            if (isPlain(boolQuery) && !boolQuery.should().isEmpty() && boolQuery.must().isEmpty() &&
+                    boolQuery.filter().isEmpty() && boolQuery.mustNot().isEmpty()) {
+                return boolQuery;
+            }
+        }
+
+        return null;
+    }
+}
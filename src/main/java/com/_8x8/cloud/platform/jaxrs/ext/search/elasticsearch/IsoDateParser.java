@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Provides a {@link FiqlDateParser} for ISO-8601 dates and times in a fixed layout, as well as epoch milliseconds.
+ * Specifically, any of:
+ * <pre>
+ *     * {@code 2017-03-01}, for midnight at the start of the day.
+ *     * {@code 2017-03-01T10:00}, {@code 2017-03-01T10:00:00}, or {@code 2017-03-01T10:00:00.123}, with anywhere from
+ *       one to nine digits of fractions of a second, of which everything past the milliseconds is dropped.
+ *     * Any of the above with a time, followed by an offset of {@code Z}, {@code +02}, {@code +0200} or {@code +02:00}.
+ *     * {@code 1488362400000}, or any other run of digits, optionally negative, as milliseconds since the epoch.
+ * </pre>
+ * Dates and times without an offset are taken to be in the zone given to the constructor, which is the default zone of
+ * the JVM at the time the parser was built, unless told otherwise. Local times that are skipped or repeated when the
+ * clocks change are resolved as per {@link ZoneRules#getOffset(LocalDateTime)}.
+ * <p>
+ * Literals are read character by character, without regular expressions, {@link java.text.SimpleDateFormat}s or
+ * {@link java.util.Calendar}s, and without allocating anything but the {@link Date} itself. The offset of the zone is
+ * remembered for the stretch of time between two of its transitions, so that only the first literal in each stretch
+ * has to consult the {@link ZoneRules}. Anything else, including out of range fields such as {@code 2017-02-30}, is
+ * declined, and left to CXF, which is lenient about such things. So are dates before {@value #MIN_YEAR}, which we'd
+ * place on the proleptic Gregorian calendar, while CXF's {@link java.text.SimpleDateFormat} switches over to the
+ * Julian calendar before October 1582, and would come out days apart.
+ * <p>
+ * This class is threadsafe.
+ */
+public class IsoDateParser implements FiqlDateParser {
+    private static final long SECONDS_PER_DAY = 86_400L;
+    private static final long DAYS_0000_TO_1970 = 719_528L;
+    private static final int MAX_OFFSET_HOURS = 18;
+
+    /**
+     * Holds the first year entirely on the Gregorian calendar, as far as {@link java.util.GregorianCalendar} is
+     * concerned.
+     */
+    static final int MIN_YEAR = 1583;
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final Integer fixedOffset;
+    private volatile OffsetWindow offsetWindow;
+
+    ZoneId getZone() {
+        return zone;
+    }
+
+    OffsetWindow getOffsetWindow() {
+        return offsetWindow;
+    }
+
+    /**
+     * Constructs a parser for dates and times in the current default zone of the JVM.
+     */
+    public IsoDateParser() {
+        this(TimeZone.getDefault().toZoneId());
+    }
+
+    /**
+     * Constructs a parser for dates and times in the given zone.
+     *
+     * @param zone The zone to place dates and times without an offset in. Must not be null.
+     */
+    public IsoDateParser(final ZoneId zone) {
+        if (null == zone) {
+            throw new IllegalArgumentException("Zone must not be null");
+        }
+
+        this.zone = zone;
+        this.rules = zone.getRules();
+        this.fixedOffset = rules.isFixedOffset() ? rules.getOffset(Instant.EPOCH).getTotalSeconds() : null;
+    }
+
+    @Override
+    public Date parse(final String value) {
+        final int length = value.length();
+
+        if (length < 10 || value.charAt(4) != '-') {
+            return parseEpochMillis(value);
+        }
+
+        final int year = parseDigits(value, 0, 4);
+        final int month = parseDigits(value, 5, 7);
+        final int day = parseDigits(value, 8, 10);
+
+        if (value.charAt(7) != '-' || year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > getLengthOfMonth(year, month)) {
+            return null;
+        }
+
+        final long epochDay = toEpochDay(year, month, day);
+
+        if (10 == length) {
+            return new Date(toEpochMillis(epochDay * SECONDS_PER_DAY, 0));
+        }
+
+        // From here on in, we need at least hours and minutes.
+        if (length < 16 || value.charAt(10) != 'T' || value.charAt(13) != ':') {
+            return null;
+        }
+
+        final int hour = parseDigits(value, 11, 13);
+        final int minute = parseDigits(value, 14, 16);
+        int second = 0;
+        int millis = 0;
+        int index = 16;
+
+        if (index < length && value.charAt(index) == ':') {
+            second = parseDigits(value, index + 1, index + 3);
+            index += 3;
+
+            if (index < length && (value.charAt(index) == '.' || value.charAt(index) == ',')) {
+                final int start = ++index;
+
+                while (index < length && isDigit(value.charAt(index))) {
+                    // Only the first three digits count, the rest are too fine for a Date.
+                    if (index - start < 3) {
+                        millis = millis * 10 + value.charAt(index) - '0';
+                    }
+
+                    index++;
+                }
+
+                if (index == start || index - start > 9) {
+                    return null;
+                }
+
+                for (int digits = index - start; digits < 3; digits++) {
+                    millis *= 10;
+                }
+            }
+        }
+
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+
+        final long localSeconds = epochDay * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+
+        if (index == length) {
+            return new Date(toEpochMillis(localSeconds, millis));
+        }
+
+        final Integer offset = parseOffset(value, index);
+        return null == offset ? null : new Date((localSeconds - offset) * 1000L + millis);
+    }
+
+    /**
+     * Provides a mechanism to parse a literal as milliseconds since the epoch.
+     *
+     * @param value The literal to parse.
+     * @return The date, or null if the literal isn't a run of digits, optionally negative, that fits in a long.
+     */
+    Date parseEpochMillis(final String value) {
+        final int length = value.length();
+        final boolean negative = length > 1 && value.charAt(0) == '-';
+        long millis = 0;
+
+        if (0 == length || length > (negative ? 20 : 19)) {
+            return null;
+        }
+
+        for (int index = negative ? 1 : 0; index < length; index++) {
+            final char character = value.charAt(index);
+
+            if (!isDigit(character)) {
+                return null;
+            }
+
+            // Accumulate negatively, as the magnitude of Long.MIN_VALUE doesn't fit in a long.
+            final long next = millis * 10 - (character - '0');
+
+            if (millis < Long.MIN_VALUE / 10 || next > millis) {
+                return null;
+            }
+
+            millis = next;
+        }
+
+        if (!negative && Long.MIN_VALUE == millis) {
+            return null;
+        }
+
+        return new Date(negative ? millis : -millis);
+    }
+
+    /**
+     * Provides a mechanism to parse an explicit offset, such as {@code Z}, {@code +02}, {@code +0200} or
+     * {@code +02:00}, running to the end of the literal.
+     *
+     * @param value The literal holding the offset.
+     * @param index The index at which the offset starts.
+     * @return The offset, in seconds, or null if there's no valid offset there.
+     */
+    Integer parseOffset(final String value, final int index) {
+        final int length = value.length() - index;
+        final char sign = value.charAt(index);
+
+        if (1 == length && sign == 'Z') {
+            return 0;
+        }
+
+        if ((sign != '+' && sign != '-') || (3 != length && 5 != length && 6 != length)) {
+            return null;
+        }
+
+        final int hours = parseDigits(value, index + 1, index + 3);
+        final int minutes = 3 == length ? 0 :
+                parseDigits(value, 6 == length ? index + 4 : index + 3, index + length);
+
+        if ((6 == length && value.charAt(index + 3) != ':') || hours < 0 || hours > MAX_OFFSET_HOURS || minutes < 0 ||
+                minutes > 59 || (MAX_OFFSET_HOURS == hours && minutes > 0)) {
+            return null;
+        }
+
+        final int offset = hours * 3600 + minutes * 60;
+        return sign == '-' ? -offset : offset;
+    }
+
+    /**
+     * Provides a mechanism to turn a local date and time into milliseconds since the epoch, using the offset of our
+     * zone at that time. Lookups against the {@link ZoneRules} are saved up in an {@link OffsetWindow}.
+     *
+     * @param localSeconds The local date and time, as seconds since the epoch if it were in UTC.
+     * @param millis       The milliseconds past the second.
+     * @return The milliseconds since the epoch.
+     */
+    long toEpochMillis(final long localSeconds, final int millis) {
+        if (null != fixedOffset) {
+            return (localSeconds - fixedOffset) * 1000L + millis;
+        }
+
+        final OffsetWindow window = offsetWindow;
+
+        if (null != window && window.contains(localSeconds)) {
+            return (localSeconds - window.getOffset()) * 1000L + millis;
+        }
+
+        final int offset = rules.getOffset(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC)).getTotalSeconds();
+        final OffsetWindow resolved = createOffsetWindow(localSeconds - offset, offset);
+
+        // Times that fall within a gap or an overlap don't belong to any window, and are looked up every time.
+        if (resolved.contains(localSeconds)) {
+            offsetWindow = resolved;
+        }
+
+        return (localSeconds - offset) * 1000L + millis;
+    }
+
+    /**
+     * Provides a mechanism to work out the stretch of local time around an instant in which our zone keeps to one,
+     * unambiguous offset. That runs from the end of the gap or overlap left by the previous transition, up to the
+     * start of the one left by the next.
+     *
+     * @param epochSecond The instant, in seconds since the epoch.
+     * @param offset      The offset at the instant, in seconds.
+     * @return The {@link OffsetWindow} around the instant.
+     */
+    OffsetWindow createOffsetWindow(final long epochSecond, final int offset) {
+        final ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochSecond(epochSecond + 1));
+        final ZoneOffsetTransition next = rules.nextTransition(Instant.ofEpochSecond(epochSecond));
+
+        final long start = null == previous ? Long.MIN_VALUE : previous.toEpochSecond() +
+                Math.max(previous.getOffsetBefore().getTotalSeconds(), previous.getOffsetAfter().getTotalSeconds());
+        final long end = null == next ? Long.MAX_VALUE : next.toEpochSecond() +
+                Math.min(next.getOffsetBefore().getTotalSeconds(), next.getOffsetAfter().getTotalSeconds());
+
+        return new OffsetWindow(start, end, offset);
+    }
+
+    /**
+     * Provides a convenience method to parse a fixed run of digits.
+     *
+     * @return The number, or {@code -1} if the run is out of bounds, or holds anything but digits.
+     */
+    static int parseDigits(final String value, final int start, final int end) {
+        if (end > value.length()) {
+            return -1;
+        }
+
+        int number = 0;
+
+        for (int index = start; index < end; index++) {
+            final char character = value.charAt(index);
+
+            if (!isDigit(character)) {
+                return -1;
+            }
+
+            number = number * 10 + character - '0';
+        }
+
+        return number;
+    }
+
+    /**
+     * Provides a convenience method to count the days since the epoch, as per {@link java.time.LocalDate#toEpochDay()},
+     * for non-negative years.
+     */
+    static long toEpochDay(final int year, final int month, final int day) {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12 + day - 1;
+
+        if (month > 2) {
+            total -= isLeapYear(year) ? 1 : 2;
+        }
+
+        return total - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * Provides a convenience method to find the number of days in a month.
+     */
+    static int getLengthOfMonth(final int year, final int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(final int year) {
+        return 0 == (year & 3) && (0 != year % 100 || 0 == year % 400);
+    }
+
+    private static boolean isDigit(final char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    /**
+     * Holds a stretch of local time, as seconds since the epoch if it were in UTC, throughout which a zone has a single,
+     * unambiguous offset. Instances are immutable, so they can be swapped in and out without locking.
+     */
+    static final class OffsetWindow {
+        private final long start;
+        private final long end;
+        private final int offset;
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        OffsetWindow(final long start, final long end, final int offset) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+        }
+
+        /**
+         * @param localSeconds The local time to check, as seconds since the epoch if it were in UTC.
+         * @return {@code True} if the local time falls within this window, from its start up to, but not including,
+         * its end, else {@code false}.
+         */
+        boolean contains(final long localSeconds) {
+            return start <= localSeconds && localSeconds < end;
+        }
+    }
+}
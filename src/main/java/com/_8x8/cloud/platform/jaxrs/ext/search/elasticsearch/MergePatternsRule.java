@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RegexpQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Folds OR'ed prefix and wildcard queries over the same field into a single regexp query, so that
+ * {@code name==logs-*,name==metrics-*} becomes one query for {@code logs-.*|metrics-.*}. Elasticsearch has to build an
+ * automaton for each pattern, and walk the terms of the field with it, on every shard; this way, there's only the one
+ * automaton, and a single walk. As with {@link MergeTermsRule}, this covers:
+ * <pre>
+ *     * The should clauses of an OR group, which is to say a bool query with nothing but should and must_not clauses.
+ *     * The must_not clauses of any bool query, as excluding each of several patterns is the same as excluding any of
+ *       them.
+ * </pre>
+ * The regexp query takes the place of the first pattern over its field. Each pattern is translated into the regular
+ * expression syntax Elasticsearch uses, with every literal character that means something there escaped, so the regexp
+ * matches exactly the terms the patterns did.
+ * <p>
+ * A union of patterns can take far more states to determinize than the patterns on their own. Before folding, we
+ * determinize the automaton ourselves, just as Elasticsearch would, and should that take more than
+ * {@link #DEFAULT_MAX_STATES} states at any point, the patterns over that field are left as they are. The limit can be
+ * changed via {@link QueryOptimizer#maxPatternStates(int)}. Only plain prefix and wildcard queries are folded, with no
+ * boost, name or rewrite method.
+ */
+class MergePatternsRule extends AbstractBoolRewriteRule {
+    /**
+     * Holds the default maximum number of states determinizing the automaton of a folded regexp may take, well within
+     * the {@code max_determinized_states} Elasticsearch allows a regexp query.
+     */
+    static final int DEFAULT_MAX_STATES = 1000;
+
+    /**
+     * Holds every character with a meaning in a regular expression, which includes the optional operators
+     * Elasticsearch switches on by default.
+     */
+    private static final String RESERVED_CHARACTERS = ".?+*|{}[]()\"\\#@&<>~";
+
+    private static final char WILDCARD = '*';
+    private static final char SINGLE_CHARACTER_WILDCARD = '?';
+    private static final char ESCAPE = '\\';
+
+    private final int maxStates;
+
+    int getMaxStates() {
+        return maxStates;
+    }
+
+    /**
+     * Constructs a rule that folds patterns into automata of no more than {@link #DEFAULT_MAX_STATES} states.
+     */
+    MergePatternsRule() {
+        this(DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * @param maxStates The maximum number of states determinizing the automaton of a folded regexp may take.
+     */
+    MergePatternsRule(final int maxStates) {
+        this.maxStates = maxStates;
+    }
+
+    @Override
+    public String getName() {
+        return QueryOptimizer.MERGE_PATTERNS;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery)) {
+            return null;
+        }
+
+        final boolean isDisjunction = boolQuery.must().isEmpty() && boolQuery.filter().isEmpty();
+
+        // Both need a go, whatever happens to the first.
+        final boolean mergedShould = isDisjunction && mergePatterns(boolQuery.should());
+        final boolean mergedMustNot = mergePatterns(boolQuery.mustNot());
+
+        return mergedShould || mergedMustNot ? boolQuery : null;
+    }
+
+    /**
+     * Provides a mechanism to fold every group of patterns over the same field in the given clause list into a single
+     * regexp query, in place.
+     *
+     * @param clauses The clauses to fold.
+     * @return {@code True} if anything was folded, else {@code false}.
+     */
+    boolean mergePatterns(final List<QueryBuilder> clauses) {
+        // Gather up the translated patterns for each field, in the order we first see them, without repeats.
+        final Map<String, Set<String>> alternativesByField = new LinkedHashMap<>();
+        final Map<String, Integer> clauseCounts = new HashMap<>();
+
+        for (final QueryBuilder clause : clauses) {
+            final String fieldName = getFieldName(clause);
+
+            if (null != fieldName) {
+                alternativesByField.computeIfAbsent(fieldName, key -> new LinkedHashSet<>()).add(toRegexp(clause));
+                clauseCounts.merge(fieldName, 1, Integer::sum);
+            }
+        }
+
+        // Anything that only had the one pattern, or would blow the budget, stays as it is.
+        final Map<String, String> regexpsByField = new HashMap<>();
+
+        alternativesByField.forEach((fieldName, alternatives) -> {
+            final String regexp = String.join("|", alternatives);
+
+            if (clauseCounts.get(fieldName) > 1 && isWithinBudget(regexp)) {
+                regexpsByField.put(fieldName, regexp);
+            }
+        });
+
+        final Set<String> foldedFields = new HashSet<>();
+        int index = 0;
+
+        while (index < clauses.size()) {
+            final String fieldName = getFieldName(clauses.get(index));
+
+            if (null == fieldName || !regexpsByField.containsKey(fieldName)) {
+                index++;
+            } else if (foldedFields.add(fieldName)) {
+                // The first pattern over a field becomes the regexp query...
+                clauses.set(index, new RegexpQueryBuilder(fieldName, regexpsByField.get(fieldName)));
+                index++;
+            } else {
+                // ...and the rest go.
+                clauses.remove(index);
+            }
+        }
+
+        return !foldedFields.isEmpty();
+    }
+
+    /**
+     * Provides a convenience method to get the field of a clause we can fold.
+     *
+     * @param clause The clause to check.
+     * @return The name of the field the clause matches on, or null if the clause isn't a plain prefix or wildcard query.
+     */
+    String getFieldName(final QueryBuilder clause) {
+        if (clause instanceof PrefixQueryBuilder && isPlainLeaf(clause) && null == ((PrefixQueryBuilder) clause).rewrite()) {
+            return ((PrefixQueryBuilder) clause).fieldName();
+        }
+
+        if (clause instanceof WildcardQueryBuilder && isPlainLeaf(clause) && null == ((WildcardQueryBuilder) clause).rewrite()) {
+            return ((WildcardQueryBuilder) clause).fieldName();
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a mechanism to translate a prefix or wildcard query into a regular expression matching the same terms.
+     *
+     * @param clause The prefix or wildcard query to translate.
+     * @return The regular expression.
+     */
+    String toRegexp(final QueryBuilder clause) {
+        final StringBuilder regexp = new StringBuilder();
+
+        if (clause instanceof PrefixQueryBuilder) {
+            return appendEscaped(((PrefixQueryBuilder) clause).value(), regexp).append(".*").toString();
+        }
+
+        final String pattern = ((WildcardQueryBuilder) clause).value();
+
+        for (int index = 0; index < pattern.length(); index++) {
+            final char character = pattern.charAt(index);
+
+            if (WILDCARD == character) {
+                regexp.append(".*");
+            } else if (SINGLE_CHARACTER_WILDCARD == character) {
+                regexp.append('.');
+            } else if (ESCAPE == character && index + 1 < pattern.length()) {
+                // An escaped character is taken literally; a trailing escape is just a backslash.
+                index++;
+                appendEscaped(pattern.charAt(index), regexp);
+            } else {
+                appendEscaped(character, regexp);
+            }
+        }
+
+        return regexp.toString();
+    }
+
+    /**
+     * Provides a mechanism to determine whether a regular expression determinizes within our budget of states.
+     *
+     * @param regexp The regular expression to check.
+     * @return {@code True} if the automaton is small enough, else {@code false}.
+     */
+    boolean isWithinBudget(final String regexp) {
+        try {
+            final Automaton automaton = new RegExp(regexp).toAutomaton(getMaxStates());
+            return automaton.getNumStates() <= getMaxStates();
+        } catch (final TooComplexToDeterminizeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Provides a convenience method to append literal text to a regular expression.
+     */
+    static StringBuilder appendEscaped(final String literal, final StringBuilder regexp) {
+        for (int index = 0; index < literal.length(); index++) {
+            appendEscaped(literal.charAt(index), regexp);
+        }
+
+        return regexp;
+    }
+
+    /**
+     * Provides a convenience method to append a literal character to a regular expression.
+     */
+    static void appendEscaped(final char character, final StringBuilder regexp) {
+        if (RESERVED_CHARACTERS.indexOf(character) >= 0) {
+            regexp.append(ESCAPE);
+        }
+
+        regexp.append(character);
+    }
+}
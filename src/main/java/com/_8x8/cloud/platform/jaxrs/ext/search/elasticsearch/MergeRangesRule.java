@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+import java.util.List;
+
+/**
+ * Folds AND'ed ranges over the same field into a single range, wherever they are among the must clauses of a bool
+ * query, so that {@code a=gt=1;b==2;a=lt=5} becomes one range from 1 to 5, and a term. Each field's ranges are
+ * intersected, keeping the tightest bound on each side, so {@code a=gt=5;a=gt=10} becomes {@code a=gt=10}, whichever
+ * order the bounds came in. Should the intersection turn out to be empty, as with {@code a=lt=5;a=gt=10}, nothing can
+ * match the bool query, and it's replaced outright by a {@code match_none} query. The range takes the place of the
+ * first range over its field.
+ * <p>
+ * Bounds are only compared when we can be sure of the outcome; see {@link RangeBounds}. Ranges with bounds we can't
+ * compare are left as they are. Without an optimizer, {@link ElasticsearchQueryBuilderVisitor} still folds adjacent
+ * ranges the way it always has, with later bounds replacing earlier ones.
+ *
+ * @see ElasticsearchQueryBuilderVisitor#mergeQueryParts(QueryBuilder, QueryBuilder)
+ */
+class MergeRangesRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.MERGE_RANGES;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        final List<QueryBuilder> clauses = boolQuery.must();
+        boolean merged = false;
+
+        for (int index = 0; index < clauses.size(); index++) {
+            if (!(clauses.get(index) instanceof RangeQueryBuilder)) {
+                continue;
+            }
+
+            final RangeQueryBuilder range = (RangeQueryBuilder) clauses.get(index);
+            int otherIndex = index + 1;
+
+            while (otherIndex < clauses.size()) {
+                final QueryBuilder otherClause = clauses.get(otherIndex);
+
+                if (RangeBounds.canCombine(range, otherClause) && intersect(range, (RangeQueryBuilder) otherClause)) {
+                    clauses.remove(otherIndex);
+                    merged = true;
+                } else {
+                    otherIndex++;
+                }
+            }
+
+            if (RangeBounds.isEmpty(range)) {
+                return new MatchNoneQueryBuilder();
+            }
+        }
+
+        return merged ? boolQuery : null;
+    }
+
+    /**
+     * Provides a mechanism to narrow a range down to its intersection with another range over the same field. Nothing
+     * is changed unless the bounds on both sides can be compared.
+     *
+     * @param range      The range to narrow down, in place.
+     * @param otherRange The range to intersect with.
+     * @return {@code True} if the range now covers the intersection, else {@code false} if the bounds couldn't be
+     * compared.
+     */
+    boolean intersect(final RangeQueryBuilder range, final RangeQueryBuilder otherRange) {
+        final Integer lowerOrder = null == range.from() || null == otherRange.from() ? Integer.valueOf(0) :
+                RangeBounds.compare(range.from(), otherRange.from());
+        final Integer upperOrder = null == range.to() || null == otherRange.to() ? Integer.valueOf(0) :
+                RangeBounds.compare(range.to(), otherRange.to());
+
+        if (null == lowerOrder || null == upperOrder) {
+            return false;
+        }
+
+        // The higher lower bound wins, or the exclusive one if they're the same.
+        if (null != otherRange.from() && (null == range.from() || lowerOrder < 0)) {
+            range.from(otherRange.from());
+            range.includeLower(otherRange.includeLower());
+        } else if (null != otherRange.from() && 0 == lowerOrder) {
+            range.includeLower(range.includeLower() && otherRange.includeLower());
+        }
+
+        // Likewise, the lower upper bound wins.
+        if (null != otherRange.to() && (null == range.to() || upperOrder > 0)) {
+            range.to(otherRange.to());
+            range.includeUpper(otherRange.includeUpper());
+        } else if (null != otherRange.to() && 0 == upperOrder) {
+            range.includeUpper(range.includeUpper() && otherRange.includeUpper());
+        }
+
+        return true;
+    }
+}
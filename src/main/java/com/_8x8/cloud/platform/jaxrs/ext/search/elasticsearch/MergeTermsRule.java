@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds OR'ed term queries over the same field into a single terms query, so that {@code status==a,status==b} becomes
+ * one query matching either value. Lists of a few hundred values are common enough, and as separate should clauses,
+ * they're each scored on their own, and run into {@code indices.query.bool.max_clause_count} sooner or later. A terms
+ * query does neither. Specifically:
+ * <pre>
+ *     * The should clauses of an OR group, which is to say a bool query with nothing but should and must_not clauses.
+ *     * The must_not clauses of any bool query, as excluding each of several values is the same as excluding any of
+ *       them. Once {@link FlattenBoolsRule} has pulled the bool query wrapped around each {@code !=} up into its
+ *       parent, this turns {@code status!=a;status!=b} into a single must_not terms query.
+ * </pre>
+ * The terms query takes the place of the first clause over its field, and every other clause keeps its place, so
+ * clauses over other fields can come in between. Only plain term queries are folded, with no boost or name; wildcards
+ * are wildcard queries, and so are left alone.
+ * <p>
+ * Please note that unlike separate term queries, a terms query gives every match the same score, which is what you want
+ * from a filter anyway.
+ */
+class MergeTermsRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.MERGE_TERMS;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery)) {
+            return null;
+        }
+
+        final boolean isDisjunction = boolQuery.must().isEmpty() && boolQuery.filter().isEmpty();
+
+        // Both need a go, whatever happens to the first.
+        final boolean mergedShould = isDisjunction && mergeTerms(boolQuery.should());
+        final boolean mergedMustNot = mergeTerms(boolQuery.mustNot());
+
+        return mergedShould || mergedMustNot ? boolQuery : null;
+    }
+
+    /**
+     * Provides a mechanism to fold every group of term queries over the same field in the given clause list into a
+     * single terms query, in place.
+     *
+     * @param clauses The clauses to fold.
+     * @return {@code True} if anything was folded, else {@code false}.
+     */
+    boolean mergeTerms(final List<QueryBuilder> clauses) {
+        // Gather up the values for each field, in the order we first see them, so the output doesn't jump around.
+        final Map<String, Collection<Object>> valuesByField = new LinkedHashMap<>();
+        final Map<String, Integer> clauseCounts = new HashMap<>();
+
+        for (final QueryBuilder clause : clauses) {
+            final String fieldName = getFieldName(clause);
+
+            if (null != fieldName) {
+                valuesByField.computeIfAbsent(fieldName, key -> new LinkedHashSet<>()).addAll(getValues(clause));
+                clauseCounts.merge(fieldName, 1, Integer::sum);
+            }
+        }
+
+        boolean merged = false;
+        int index = 0;
+
+        while (index < clauses.size()) {
+            final String fieldName = getFieldName(clauses.get(index));
+
+            if (null == fieldName || clauseCounts.get(fieldName) < 2) {
+                index++;
+            } else if (valuesByField.containsKey(fieldName)) {
+                // The first clause over a field becomes the terms query...
+                clauses.set(index, new TermsQueryBuilder(fieldName, valuesByField.remove(fieldName)));
+                merged = true;
+                index++;
+            } else {
+                // ...and the rest go.
+                clauses.remove(index);
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Provides a convenience method to get the field of a clause we can fold.
+     *
+     * @param clause The clause to check.
+     * @return The name of the field the clause matches on, or null if the clause isn't a plain term or terms query.
+     */
+    String getFieldName(final QueryBuilder clause) {
+        if (clause instanceof TermQueryBuilder && isPlainLeaf(clause)) {
+            return ((TermQueryBuilder) clause).fieldName();
+        }
+
+        if (clause instanceof TermsQueryBuilder && isPlainLeaf(clause) && null == ((TermsQueryBuilder) clause).termsLookup()) {
+            return ((TermsQueryBuilder) clause).fieldName();
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to get the values matched by a clause we can fold.
+     *
+     * @param clause A term or terms query.
+     * @return The values the clause matches.
+     */
+    Collection<Object> getValues(final QueryBuilder clause) {
+        return clause instanceof TermQueryBuilder ?
+                Collections.singletonList(((TermQueryBuilder) clause).value()) : ((TermsQueryBuilder) clause).values();
+    }
+}
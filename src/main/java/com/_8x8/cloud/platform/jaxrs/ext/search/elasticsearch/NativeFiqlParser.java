@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.AndSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.OrSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchConditionVisitor;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a faster alternative to CXF's {@link FiqlParser}, for expressions that are mostly just visited. The stock
+ * parser splits expressions up with regular expressions, and then builds a throwaway instance of the model class for
+ * every single comparison, setting the value on it via reflection just so that visitors can read it back again.
+ * Instead, we:
+ * <pre>
+ *     * Walk the expression once per level of nesting, via {@link AbstractFiqlExpressionParser}.
+ *     * Resolve each property once, and remember it from then on, in the {@link PropertySchema} shared by everything
+ *       built for the model class.
+ *     * Convert values via the converter the property was resolved with, which comes out identical to CXF, as for
+ *       anything beyond strings, numbers, booleans and enums it is CXF.
+ *     * Hand back {@link StatementSearchCondition}s holding the converted values directly.
+ * </pre>
+ * Visitors see exactly the same properties, values and structure they would have from CXF, so the resulting
+ * {@link org.elasticsearch.index.query.QueryBuilder}s are identical. The only exceptions are {@code count()}, which is
+ * rare enough (and rejected by our visitor anyway) that we simply hand those comparisons over to CXF, and nested
+ * properties such as {@code objectMetadata.tenantName}, which visitors expect to find wrapped up in their beans.
+ * <p>
+ * The {@link StatementSearchCondition}s we hand back can still be evaluated in memory via
+ * {@link SearchCondition#isMet(Object)} and {@link SearchCondition#findAll(Collection)}, they just put off the
+ * reflection that takes until it's asked for.
+ * <p>
+ * Like CXF's parser, this class is threadsafe and meant to be re-used.
+ *
+ * @param <T> The model class to resolve properties against.
+ */
+class NativeFiqlParser<T> extends FiqlValueConverter<T> {
+    private static final String COUNT_PREFIX = "count(";
+    private static final char NESTED_SEPARATOR = '.';
+
+    private final SearchConditionParser conditionParser = new SearchConditionParser();
+
+    /**
+     * Constructs a parser for the given model class.
+     *
+     * @param clazz             The model class to resolve properties against.
+     * @param contextProperties Any parser configuration, such as {@link org.apache.cxf.jaxrs.ext.search.SearchUtils#DATE_FORMAT_PROPERTY}.
+     */
+    NativeFiqlParser(final Class<T> clazz, final Map<String, String> contextProperties) {
+        this(clazz, contextProperties, null);
+    }
+
+    /**
+     * Constructs a parser for the given model class, with a parser for date literals.
+     *
+     * @param clazz             The model class to resolve properties against.
+     * @param contextProperties Any parser configuration, such as {@link org.apache.cxf.jaxrs.ext.search.SearchUtils#DATE_FORMAT_PROPERTY}.
+     * @param dateParser        The {@link FiqlDateParser} to offer date literals to, or null to leave them all to CXF.
+     */
+    NativeFiqlParser(final Class<T> clazz, final Map<String, String> contextProperties, final FiqlDateParser dateParser) {
+        super(clazz, contextProperties, dateParser);
+    }
+
+    @Override
+    public SearchCondition<T> parse(final String fiqlExpression) throws SearchParseException {
+        return conditionParser.parse(fiqlExpression);
+    }
+
+    /**
+     * Parses a FIQL expression held in any {@link CharSequence}, such as a {@link java.nio.CharBuffer} or a
+     * {@link StringBuilder}, without copying it into a {@link String} first.
+     *
+     * @param fiqlExpression The FIQL expression to parse. Must not be null.
+     * @return The parsed {@link SearchCondition}.
+     * @throws SearchParseException If the expression is not valid FIQL, or refers to properties the model doesn't have.
+     */
+    SearchCondition<T> parse(final CharSequence fiqlExpression) throws SearchParseException {
+        return conditionParser.parse(fiqlExpression);
+    }
+
+    /**
+     * Builds the {@link SearchCondition} for a single comparison.
+     *
+     * @param selector      The property being compared.
+     * @param conditionType The {@link ConditionType} of the comparison.
+     * @param value         The literal being compared against.
+     * @return The {@link SearchCondition} for the comparison.
+     * @throws SearchParseException If the property doesn't exist, or the literal can't be converted.
+     */
+    SearchCondition<T> createCondition(final String selector, final ConditionType conditionType, final String value) throws SearchParseException {
+        // CXF plays games with the property and its type here, which we'd rather not reproduce. Likewise, for nested
+        // properties CXF hands visitors the intermediate bean rather than the value, and visitors rely on that.
+        if (selector.startsWith(COUNT_PREFIX) || selector.indexOf(NESTED_SEPARATOR) >= 0) {
+            return super.parse(selector + CONDITION_MAP.get(conditionType) + value);
+        }
+
+        final PropertySchema.Property property = getProperty(selector);
+        return new StatementSearchCondition<>(new PrimitiveStatement(selector, convert(property, value), property.getValueClass(), conditionType));
+    }
+
+    /**
+     * Builds {@link SearchCondition}s straight out of the expression, without an intermediate tree.
+     */
+    class SearchConditionParser extends AbstractFiqlExpressionParser<SearchCondition<T>> {
+        @Override
+        SearchCondition<T> createComparison(final CharSequence expression, final int selectorStart, final int selectorEnd,
+                                            final ConditionType conditionType, final int valueStart, final int valueEnd) {
+            return createCondition(expression.subSequence(selectorStart, selectorEnd).toString(), conditionType,
+                    expression.subSequence(valueStart, valueEnd).toString());
+        }
+
+        @Override
+        SearchCondition<T> createComposite(final ConditionType conditionType, final List<SearchCondition<T>> parts) {
+            return ConditionType.AND.equals(conditionType) ? new AndSearchCondition<>(parts) : new OrSearchCondition<>(parts);
+        }
+    }
+
+    /**
+     * Represents a single comparison that has already been converted. CXF's own {@link PrimitiveSearchCondition} would
+     * do the job, were it not for the reflection it does on construction in order to support {@link #isMet(Object)}.
+     * As most conditions are only ever visited, we put that off until someone actually evaluates one in memory, and
+     * then hand the work over to a {@link PrimitiveSearchCondition} built around the beans being evaluated.
+     */
+    static class StatementSearchCondition<T> implements SearchCondition<T> {
+        private final PrimitiveStatement statement;
+
+        StatementSearchCondition(final PrimitiveStatement statement) {
+            this.statement = statement;
+        }
+
+        /**
+         * Evaluates the comparison against a bean, just as CXF would. The {@link PrimitiveSearchCondition} we delegate to
+         * swaps each bean into a {@link org.apache.cxf.jaxrs.ext.search.Beanspector} it holds on to, so we build a fresh
+         * one for every call, which keeps us threadsafe.
+         */
+        @Override
+        public boolean isMet(final T pojo) {
+            return createEvaluator(pojo).isMet(pojo);
+        }
+
+        /**
+         * Evaluates the comparison against each of the given beans, sharing a single {@link PrimitiveSearchCondition}
+         * between them.
+         */
+        @Override
+        public List<T> findAll(final Collection<T> pojos) {
+            final List<T> matches = new ArrayList<>();
+
+            if (!pojos.isEmpty()) {
+                final SearchCondition<T> evaluator = createEvaluator(pojos.iterator().next());
+
+                for (final T pojo : pojos) {
+                    if (evaluator.isMet(pojo)) {
+                        matches.add(pojo);
+                    }
+                }
+            }
+
+            return matches;
+        }
+
+        /**
+         * Builds the {@link PrimitiveSearchCondition} that evaluates our comparison. It needs a bean of the model class
+         * to introspect, which needn't hold anything in particular, so the first bean to be evaluated will do.
+         */
+        SearchCondition<T> createEvaluator(final T pojo) {
+            return new PrimitiveSearchCondition<>(statement.getProperty(), statement.getValue(), statement.getValueType(),
+                    statement.getCondition(), pojo);
+        }
+
+        @Override
+        public T getCondition() {
+            return null;
+        }
+
+        @Override
+        public PrimitiveStatement getStatement() {
+            return statement;
+        }
+
+        @Override
+        public List<SearchCondition<T>> getSearchConditions() {
+            return null;
+        }
+
+        @Override
+        public ConditionType getConditionType() {
+            return statement.getCondition();
+        }
+
+        @Override
+        public void accept(final SearchConditionVisitor<T, ?> visitor) {
+            visitor.visit(this);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Represents a FIQL template that has been parsed and resolved against its model class ahead of time, in the spirit
+ * of a JDBC {@link java.sql.PreparedStatement}. Values are marked with a {@code ?} placeholder, and supplied later:
+ * <pre>
+ *     // Hold onto this.
+ *     final PreparedQuery&lt;MetadataRecord&gt; prepared = elasticSearchBuilder.prepare("tenantName==?;updatedTime=gt=?");
+ *
+ *     ...
+ *     final QueryBuilder queryBuilder = prepared.bind("taters", "2017-03-24");
+ * </pre>
+ * Binding skips the {@link org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser} and the reflection it does for every
+ * comparison, and hands the values straight to the same {@link ElasticsearchQueryBuilderVisitor} methods that would
+ * have built the query otherwise, and through the same {@link QueryOptimizer}. The resulting {@link QueryBuilder} is exactly what
+ * {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} would produce for the filter with the values written in.
+ * <p>
+ * Values may be given either as strings, which are converted exactly like FIQL literals, or as instances of the type
+ * of the property they're bound to, such as a {@link java.util.Date} or an enum constant. Please note that a value
+ * consisting of nothing but {@code ?} is always a placeholder; if you really do want to match a question mark, bind it.
+ * <p>
+ * Instances are immutable, threadsafe, and meant to be created once and re-used.
+ *
+ * @param <T> The model class the template was resolved against.
+ */
+public class PreparedQuery<T> {
+    private final String template;
+    private final Node<T> root;
+    private final int parameterCount;
+    private final Supplier<ElasticsearchQueryBuilderVisitor<T>> visitorFactory;
+    private final Consumer<ElasticsearchQueryBuilderVisitor<T>> visitorRecycler;
+
+    /**
+     * Constructs a prepared query. Please see {@link ElasticsearchQueryBuilder#prepare(String)}.
+     *
+     * @param template       The original FIQL template.
+     * @param root           The root of the resolved template.
+     * @param parameterCount The number of placeholders in the template.
+     * @param visitorFactory  A factory for the visitors used to build queries.
+     * @param visitorRecycler Takes back visitors from the factory once each query is built.
+     */
+    PreparedQuery(final String template, final Node<T> root, final int parameterCount,
+                  final Supplier<ElasticsearchQueryBuilderVisitor<T>> visitorFactory,
+                  final Consumer<ElasticsearchQueryBuilderVisitor<T>> visitorRecycler) {
+        this.template = template;
+        this.root = root;
+        this.parameterCount = parameterCount;
+        this.visitorFactory = visitorFactory;
+        this.visitorRecycler = visitorRecycler;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return The number of values that must be given to {@link #bind(Object...)}.
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    Node<T> getRoot() {
+        return root;
+    }
+
+    /**
+     * Creates an Elasticsearch {@link QueryBuilder} for the template, with the given values filled in for its
+     * placeholders, in order.
+     *
+     * @param values The values to fill in. There must be exactly one for each placeholder, and none may be null.
+     * @return A non-null, valid and fully constructed {@link QueryBuilder}, owned entirely by the caller.
+     * @throws IllegalArgumentException If the wrong number of values are given, or a value is of the wrong type.
+     * @throws org.apache.cxf.jaxrs.ext.search.SearchParseException If a string value can't be converted.
+     */
+    public QueryBuilder bind(final Object... values) {
+        if (values.length != getParameterCount()) {
+            throw new IllegalArgumentException(String.format("Expected %d values for template %s, got %d",
+                    getParameterCount(), getTemplate(), values.length));
+        }
+
+        // Using a visitor per call is what lets us share this instance between threads.
+        final ElasticsearchQueryBuilderVisitor<T> visitor = visitorFactory.get();
+
+        try {
+            return visitor.optimize(getRoot().bind(visitor, values), null);
+        } finally {
+            visitorRecycler.accept(visitor);
+        }
+    }
+
+    /**
+     * Represents a single resolved part of a template.
+     *
+     * @param <T> The model class the template was resolved against.
+     */
+    interface Node<T> {
+        /**
+         * Builds the {@link QueryBuilder} for this part of the template.
+         *
+         * @param visitor The visitor to build the query with.
+         * @param values  The values bound to the template.
+         * @return The {@link QueryBuilder} for this part.
+         */
+        QueryBuilder bind(ElasticsearchQueryBuilderVisitor<T> visitor, Object[] values);
+    }
+
+    /**
+     * Represents a comparison that had its value written out in the template. The value was already converted when we
+     * prepared the template, so all that's left is to hand it to the visitor.
+     */
+    static class ConstantNode<T> implements Node<T> {
+        private final PrimitiveStatement statement;
+
+        ConstantNode(final PrimitiveStatement statement) {
+            this.statement = statement;
+        }
+
+        PrimitiveStatement getStatement() {
+            return statement;
+        }
+
+        @Override
+        public QueryBuilder bind(final ElasticsearchQueryBuilderVisitor<T> visitor, final Object[] values) {
+            return visitor.buildSimpleExpression(getStatement());
+        }
+    }
+
+    /**
+     * Represents a comparison with a placeholder for its value.
+     */
+    static class ParameterNode<T> implements Node<T> {
+        private final PropertySchema.Property schemaProperty;
+        private final String property;
+        private final ConditionType conditionType;
+        private final Class<?> valueClass;
+        private final int parameterIndex;
+        private final FiqlValueConverter<T> valueConverter;
+
+        ParameterNode(final PropertySchema.Property schemaProperty, final ConditionType conditionType, final int parameterIndex,
+                      final FiqlValueConverter<T> valueConverter) {
+            this.schemaProperty = schemaProperty;
+            this.property = schemaProperty.getPath();
+            this.conditionType = conditionType;
+            this.valueClass = schemaProperty.getValueClass();
+            this.parameterIndex = parameterIndex;
+            this.valueConverter = valueConverter;
+        }
+
+        @Override
+        public QueryBuilder bind(final ElasticsearchQueryBuilderVisitor<T> visitor, final Object[] values) {
+            return visitor.buildSimpleExpression(new PrimitiveStatement(property, convert(values[parameterIndex]), valueClass, conditionType));
+        }
+
+        /**
+         * Provides a convenience method to convert a bound value to the class of our property.
+         *
+         * @param value The bound value.
+         * @return The value, converted as needed.
+         */
+        Object convert(final Object value) {
+            if (null == value) {
+                throw new IllegalArgumentException(String.format("Value %d for property %s must not be null", parameterIndex, property));
+            }
+
+            if (valueClass.isInstance(value)) {
+                return value;
+            }
+
+            if (value instanceof String) {
+                return valueConverter.convert(schemaProperty, (String) value);
+            }
+
+            throw new IllegalArgumentException(String.format("Value %d for property %s must be a %s or a String, got %s",
+                    parameterIndex, property, valueClass.getName(), value.getClass().getName()));
+        }
+    }
+
+    /**
+     * Represents two or more parts of a template glued together by {@link ConditionType#AND} or {@link ConditionType#OR}.
+     */
+    static class CompositeNode<T> implements Node<T> {
+        private final ConditionType conditionType;
+        private final List<Node<T>> parts;
+
+        CompositeNode(final ConditionType conditionType, final List<Node<T>> parts) {
+            this.conditionType = conditionType;
+            this.parts = parts;
+        }
+
+        @Override
+        public QueryBuilder bind(final ElasticsearchQueryBuilderVisitor<T> visitor, final Object[] values) {
+            final List<QueryBuilder> queryParts = new ArrayList<>(parts.size());
+
+            for (final Node<T> part : parts) {
+                queryParts.add(part.bind(visitor, values));
+            }
+
+            // Same glue as the visitor, so adjacent ranges get folded together just the same.
+            return visitor.buildCompositeExpression(conditionType, queryParts);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Remembers everything we need to know about the properties of a model class in order to compile comparisons against
+ * them, so that reflection only happens the first time a property is seen, rather than for every comparison. There's a
+ * single schema per model class, shared by every parser, writer and {@link PreparedQuery} built for it, no matter how
+ * many {@link ElasticsearchQueryBuilder}s or {@link TranslatingQueryBuilder}s there are.
+ * <p>
+ * Each {@link Property} holds the class of the values it takes, whether it's a collection of them, the constants of an
+ * enum, and a converter specialized for the class. Strings, numbers, booleans and enums are converted right here, with
+ * the same results CXF would give. Anything else, such as dates, and any literal we can't convert, is handed to CXF, so
+ * errors read exactly as they always have.
+ * <p>
+ * Properties are resolved on demand via a {@link FiqlValueConverter}. Properties that don't exist aren't remembered, so
+ * junk input can't grow a schema beyond the properties the model class actually has. For model classes marked
+ * {@link FiqlSearchable}, the schema starts out with every property described by the {@link FiqlSchema} generated at
+ * compile time, and no reflection is needed at all, save for finding the generated class in the first place. Schemas
+ * are held via a {@link ClassValue}, so they don't keep model classes from being unloaded.
+ * <p>
+ * This class is threadsafe.
+ */
+final class PropertySchema {
+    private static final ClassValue<PropertySchema> SCHEMAS = new ClassValue<PropertySchema>() {
+        @Override
+        protected PropertySchema computeValue(final Class<?> modelClass) {
+            final PropertySchema schema = new PropertySchema(modelClass);
+            final FiqlSchema generated = loadGeneratedSchema(modelClass);
+
+            if (null != generated) {
+                generated.describe((path, valueClass, collection, enumConstants) ->
+                        schema.getProperties().put(path, new Property(path, valueClass, collection, enumConstants)));
+            }
+
+            return schema;
+        }
+    };
+
+    private static final String WILDCARD_CHARACTER = "*";
+
+    private final Class<?> modelClass;
+    private final Map<String, Property> properties = new ConcurrentHashMap<>();
+
+    Class<?> getModelClass() {
+        return modelClass;
+    }
+
+    Map<String, Property> getProperties() {
+        return properties;
+    }
+
+    private PropertySchema(final Class<?> modelClass) {
+        this.modelClass = modelClass;
+    }
+
+    /**
+     * Fetches the schema shared by everything built for the given model class.
+     *
+     * @param modelClass The model class.
+     * @return The schema for the model class.
+     */
+    static PropertySchema forClass(final Class<?> modelClass) {
+        return SCHEMAS.get(modelClass);
+    }
+
+    /**
+     * Provides a mechanism to load the {@link FiqlSchema} generated for a model class, if it was marked
+     * {@link FiqlSearchable} and the generated class is around.
+     *
+     * @param modelClass The model class.
+     * @return The generated schema, or null if there isn't one.
+     */
+    static FiqlSchema loadGeneratedSchema(final Class<?> modelClass) {
+        if (!modelClass.isAnnotationPresent(FiqlSearchable.class)) {
+            return null;
+        }
+
+        try {
+            final Class<?> schemaClass = Class.forName(getSchemaClassName(modelClass.getName()), true, modelClass.getClassLoader());
+            return (FiqlSchema) schemaClass.newInstance();
+        } catch (final ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException ex) {
+            // Without a usable schema, we simply fall back on reflection.
+            return null;
+        }
+    }
+
+    /**
+     * Provides a convenience method to figure out the name of the {@link FiqlSchema} generated for a model class. The
+     * schema sits in the same package, with the names of any enclosing classes joined by underscores, so
+     * {@code Outer.Inner} gets {@code Outer_Inner_FiqlSchema}.
+     *
+     * @param binaryName The binary name of the model class, as given by {@link Class#getName()}.
+     * @return The binary name of the schema.
+     */
+    static String getSchemaClassName(final String binaryName) {
+        final int packageEnd = binaryName.lastIndexOf('.') + 1;
+        return binaryName.substring(0, packageEnd) + binaryName.substring(packageEnd).replace('$', '_') + FiqlSchema.CLASS_SUFFIX;
+    }
+
+    /**
+     * Fetches a property of our model class, resolving it via the given converter the first time we see it. Should two
+     * threads see a property for the first time at once, both resolve it, and the first one in wins; either way, the
+     * outcome is the same.
+     *
+     * @param path     The property, as it would appear in a FIQL expression.
+     * @param resolver The {@link FiqlValueConverter} to resolve the property with, if need be.
+     * @return The property.
+     * @throws SearchParseException If the model class has no such property.
+     */
+    Property getProperty(final String path, final FiqlValueConverter<?> resolver) throws SearchParseException {
+        final Property cached = getProperties().get(path);
+
+        if (null != cached) {
+            return cached;
+        }
+
+        final Property resolved = resolver.resolveProperty(path);
+        final Property existing = getProperties().putIfAbsent(path, resolved);
+
+        return null == existing ? resolved : existing;
+    }
+
+    /**
+     * Provides a mechanism to pick the converter for a class of values. Each converter hands back null for anything it
+     * can't convert, in which case CXF gets a go.
+     *
+     * @param valueClass    The class of the values to convert.
+     * @param enumConstants The constants of the class by name, if it's an enum, else null.
+     * @return The converter, or null if CXF has to convert every value.
+     */
+    static Function<String, Object> createConverter(final Class<?> valueClass, final Map<String, Object> enumConstants) {
+        if (String.class == valueClass) {
+            return value -> value;
+        }
+
+        if (null != enumConstants) {
+            // CXF tries the literal as given, and then upper-cased. Wildcards are matched against the constants later on.
+            return value -> {
+                if (value.contains(WILDCARD_CHARACTER)) {
+                    return value;
+                }
+
+                final Object constant = enumConstants.get(value);
+                return null == constant ? enumConstants.get(value.toUpperCase(Locale.getDefault())) : constant;
+            };
+        }
+
+        // CXF builds these via their String constructors, which parse exactly the same way.
+        if (Long.class == valueClass) {
+            return numeric(Long::valueOf);
+        } else if (Integer.class == valueClass) {
+            return numeric(Integer::valueOf);
+        } else if (Short.class == valueClass) {
+            return numeric(Short::valueOf);
+        } else if (Byte.class == valueClass) {
+            return numeric(Byte::valueOf);
+        } else if (Double.class == valueClass) {
+            return numeric(Double::valueOf);
+        } else if (Float.class == valueClass) {
+            return numeric(Float::valueOf);
+        } else if (Boolean.class == valueClass) {
+            return Boolean::valueOf;
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to wrap a number parser, so that junk is left to CXF to complain about.
+     */
+    private static Function<String, Object> numeric(final Function<String, Object> parser) {
+        return value -> {
+            try {
+                return parser.apply(value);
+            } catch (final NumberFormatException ex) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Provides a convenience method to index the constants of an enum by name.
+     *
+     * @param valueClass The class to index.
+     * @return The constants by name, or null if the class isn't an enum.
+     */
+    static Map<String, Object> indexEnumConstants(final Class<?> valueClass) {
+        return valueClass.isEnum() ? indexEnumConstants(valueClass.getEnumConstants()) : null;
+    }
+
+    /**
+     * Provides a convenience method to index the given constants of an enum by name.
+     *
+     * @param enumConstants The constants to index, or null.
+     * @return The constants by name, or null if given null.
+     */
+    static Map<String, Object> indexEnumConstants(final Object[] enumConstants) {
+        if (null == enumConstants) {
+            return null;
+        }
+
+        final Map<String, Object> constants = new HashMap<>();
+
+        for (final Object constant : enumConstants) {
+            constants.put(((Enum<?>) constant).name(), constant);
+        }
+
+        return Collections.unmodifiableMap(constants);
+    }
+
+    /**
+     * Represents a single, resolved property of a model class. Instances are immutable.
+     */
+    static final class Property {
+        private final String path;
+        private final Class<?> valueClass;
+        private final boolean collection;
+        private final Map<String, Object> enumConstants;
+        private final Function<String, Object> converter;
+
+        String getPath() {
+            return path;
+        }
+
+        Class<?> getValueClass() {
+            return valueClass;
+        }
+
+        boolean isCollection() {
+            return collection;
+        }
+
+        Map<String, Object> getEnumConstants() {
+            return enumConstants;
+        }
+
+        /**
+         * Constructs a property.
+         *
+         * @param path       The property, as it would appear in a FIQL expression.
+         * @param valueClass The class of the values the property holds, or of its elements if it's a collection.
+         * @param collection {@code True} if the property is a collection, else {@code false}.
+         */
+        Property(final String path, final Class<?> valueClass, final boolean collection) {
+            this(path, valueClass, collection, valueClass.getEnumConstants());
+        }
+
+        /**
+         * Constructs a property whose enum constants are already known, as they are for a generated {@link FiqlSchema}.
+         *
+         * @param path          The property, as it would appear in a FIQL expression.
+         * @param valueClass    The class of the values the property holds, or of its elements if it's a collection.
+         * @param collection    {@code True} if the property is a collection, else {@code false}.
+         * @param enumConstants The constants of the value class if it's an enum, else null.
+         */
+        Property(final String path, final Class<?> valueClass, final boolean collection, final Object[] enumConstants) {
+            this.path = path;
+            this.valueClass = valueClass;
+            this.collection = collection;
+            this.enumConstants = indexEnumConstants(enumConstants);
+            this.converter = createConverter(valueClass, this.enumConstants);
+        }
+
+        /**
+         * Converts a FIQL literal to the class of this property, falling back to CXF for anything our converter
+         * can't handle.
+         *
+         * @param value    The literal to convert.
+         * @param fallback The {@link FiqlValueConverter} to fall back on.
+         * @return The converted value.
+         * @throws SearchParseException If the literal can't be converted.
+         */
+        Object convert(final String value, final FiqlValueConverter<?> fallback) throws SearchParseException {
+            final Object converted = null == converter ? null : converter.apply(value);
+            return null == converted ? fallback.convert(getPath(), getValueClass(), value) : converted;
+        }
+    }
+}
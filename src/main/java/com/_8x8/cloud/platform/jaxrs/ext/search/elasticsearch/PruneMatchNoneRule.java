@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Carries {@code match_none} queries left behind by other rules, such as {@link MergeRangesRule} finding a range that
+ * can't match anything, up through the tree, so that Elasticsearch doesn't have to find out for itself:
+ * <pre>
+ *     * A bool query with a must or filter clause that matches nothing matches nothing itself.
+ *     * An OR group whose should clauses all match nothing matches nothing; otherwise, those that match nothing can go.
+ *     * A must_not clause that matches nothing excludes nothing, and can go.
+ * </pre>
+ * Should clauses are only pruned from plain OR groups, with nothing but should and must_not clauses; see
+ * {@link AbstractBoolRewriteRule#isPlain(BoolQueryBuilder)}.
+ */
+class PruneMatchNoneRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.PRUNE_MATCH_NONE;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (boolQuery.must().stream().anyMatch(PruneMatchNoneRule::isMatchNone) ||
+                boolQuery.filter().stream().anyMatch(PruneMatchNoneRule::isMatchNone)) {
+            return new MatchNoneQueryBuilder();
+        }
+
+        boolean pruned = boolQuery.mustNot().removeIf(PruneMatchNoneRule::isMatchNone);
+
+        if (isPlain(boolQuery) && boolQuery.must().isEmpty() && boolQuery.filter().isEmpty() && !boolQuery.should().isEmpty()) {
+            if (boolQuery.should().stream().allMatch(PruneMatchNoneRule::isMatchNone)) {
+                return new MatchNoneQueryBuilder();
+            }
+
+            pruned |= boolQuery.should().removeIf(PruneMatchNoneRule::isMatchNone);
+        }
+
+        return pruned ? boolQuery : null;
+    }
+
+    /**
+     * Provides a convenience method to determine whether a clause matches nothing at all.
+     */
+    static boolean isMatchNone(final QueryBuilder clause) {
+        return clause instanceof MatchNoneQueryBuilder;
+    }
+}
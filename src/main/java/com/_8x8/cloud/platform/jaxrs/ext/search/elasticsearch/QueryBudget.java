@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Holds limits on how big and how expensive a filter may be, so that a single hostile (or just unfortunate) filter
+ * can't tie up a request thread parsing it, nor every shard of the cluster running it. Setters follow the same fluent
+ * style as {@link ElasticsearchQueryBuilderOptions}, and every limit defaults to unlimited:
+ * <pre>
+ *     final QueryBudget budget = new QueryBudget()
+ *             .maxLength(4096)
+ *             .maxDepth(4)
+ *             .maxLeadingWildcards(0);
+ * </pre>
+ * Filters are measured as follows:
+ * <pre>
+ *     * Length counts the characters of the (decoded) filter.
+ *     * Depth counts levels of parenthesis, so {@code a==1;(b==2,c==3)} has a depth of 1.
+ *     * Leaves count comparisons, such as {@code a==1}.
+ *     * Wildcards count equality and inequality comparisons with a {@code *} in their value, and leading wildcards
+ *       those whose value starts with one, which Elasticsearch can only answer by walking every term of the field.
+ *     * The estimated cost adds up {@link #LEAF_COST} for each comparison, {@link #WILDCARD_COST} for each wildcard,
+ *       or {@link #LEADING_WILDCARD_COST} for each leading wildcard.
+ * </pre>
+ * {@link #check(CharSequence)} measures a filter in a single cheap pass, without parsing it, and stops as soon as any
+ * limit is exceeded. The {@link ElasticsearchQueryBuilderVisitor} measures the parsed filter again as it builds the
+ * query, which catches anything the cheap pass can't see, such as values bound to a {@link PreparedQuery}.
+ * <p>
+ * As with {@link ElasticsearchQueryBuilderOptions}, the values are meant to be set up once. Budgets are threadsafe so
+ * long as they aren't changed while in use.
+ */
+public class QueryBudget {
+    /**
+     * Holds the estimated cost of a comparison that is neither a wildcard nor a leading wildcard.
+     */
+    public static final long LEAF_COST = 1;
+
+    /**
+     * Holds the estimated cost of a wildcard comparison.
+     */
+    public static final long WILDCARD_COST = 10;
+
+    /**
+     * Holds the estimated cost of a leading wildcard comparison.
+     */
+    public static final long LEADING_WILDCARD_COST = 100;
+
+    private static final char AND = ';';
+    private static final char OR = ',';
+    private static final char OPEN = '(';
+    private static final char CLOSE = ')';
+    private static final char WILDCARD = '*';
+
+    /**
+     * Lists the limits a {@link QueryBudget} can place on a filter.
+     */
+    public enum Limit {
+        LENGTH("length"),
+        DEPTH("nesting depth"),
+        LEAVES("number of comparisons"),
+        WILDCARDS("number of wildcards"),
+        LEADING_WILDCARDS("number of leading wildcards"),
+        COST("estimated cost");
+
+        private final String description;
+
+        Limit(final String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private int maxLength = Integer.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxLeaves = Integer.MAX_VALUE;
+    private int maxWildcards = Integer.MAX_VALUE;
+    private int maxLeadingWildcards = Integer.MAX_VALUE;
+    private long maxCost = Long.MAX_VALUE;
+
+    /**
+     * Sets the maximum length of a filter, in characters.
+     *
+     * @param maxLength The maximum length.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxLength(final int maxLength) {
+        this.maxLength = requireNotNegative(Limit.LENGTH, maxLength);
+        return this;
+    }
+
+    public int maxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Sets the maximum levels of parenthesis a filter may nest.
+     *
+     * @param maxDepth The maximum depth, where {@code 0} allows no parenthesis at all.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxDepth(final int maxDepth) {
+        this.maxDepth = requireNotNegative(Limit.DEPTH, maxDepth);
+        return this;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the maximum number of comparisons within a filter.
+     *
+     * @param maxLeaves The maximum number of comparisons.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxLeaves(final int maxLeaves) {
+        this.maxLeaves = requireNotNegative(Limit.LEAVES, maxLeaves);
+        return this;
+    }
+
+    public int maxLeaves() {
+        return maxLeaves;
+    }
+
+    /**
+     * Sets the maximum number of wildcard comparisons within a filter, leading or otherwise.
+     *
+     * @param maxWildcards The maximum number of wildcards, where {@code 0} disallows them altogether.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxWildcards(final int maxWildcards) {
+        this.maxWildcards = requireNotNegative(Limit.WILDCARDS, maxWildcards);
+        return this;
+    }
+
+    public int maxWildcards() {
+        return maxWildcards;
+    }
+
+    /**
+     * Sets the maximum number of comparisons within a filter whose value starts with a wildcard, such as
+     * {@code tenantName==*taters}.
+     *
+     * @param maxLeadingWildcards The maximum number of leading wildcards, where {@code 0} disallows them altogether.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxLeadingWildcards(final int maxLeadingWildcards) {
+        this.maxLeadingWildcards = requireNotNegative(Limit.LEADING_WILDCARDS, maxLeadingWildcards);
+        return this;
+    }
+
+    public int maxLeadingWildcards() {
+        return maxLeadingWildcards;
+    }
+
+    /**
+     * Sets the maximum estimated cost of a filter. Please see the class Javadocs for how the cost is estimated.
+     *
+     * @param maxCost The maximum estimated cost.
+     * @return This instance, for chaining.
+     */
+    public QueryBudget maxCost(final long maxCost) {
+        if (maxCost < 0) {
+            throw new IllegalArgumentException(String.format("Maximum %s must not be negative, got %d", Limit.COST.getDescription(), maxCost));
+        }
+
+        this.maxCost = maxCost;
+        return this;
+    }
+
+    public long maxCost() {
+        return maxCost;
+    }
+
+    /**
+     * Measures a filter against this budget in a single pass, without parsing it. This is cheap enough to run on
+     * every request, and stops at the first limit exceeded, so even enormous filters are turned away quickly.
+     * <p>
+     * The pass doesn't validate the filter, so a filter that passes may still fail to parse.
+     *
+     * @param filter The filter to measure. Must not be null.
+     * @throws QueryBudgetExceededException If the filter exceeds any of the limits.
+     */
+    public void check(final CharSequence filter) throws QueryBudgetExceededException {
+        final int length = filter.length();
+
+        if (length > maxLength()) {
+            throw new QueryBudgetExceededException(Limit.LENGTH, maxLength());
+        }
+
+        final Meter meter = meter();
+        int depth = 0;
+        int segmentStart = 0;
+
+        // Every comparison ends at a separator, a closing bracket, or the end of the filter. FIQL has no quoting, so
+        // there's no need to worry about any of these turning up in values.
+        for (int index = 0; index < length; index++) {
+            final char character = filter.charAt(index);
+
+            if (OPEN == character) {
+                meter.enterGroup(++depth);
+                segmentStart = index + 1;
+            } else if (CLOSE == character || AND == character || OR == character) {
+                measureComparison(meter, filter, segmentStart, index);
+                segmentStart = index + 1;
+
+                if (CLOSE == character) {
+                    depth--;
+                }
+            }
+        }
+
+        measureComparison(meter, filter, segmentStart, length);
+    }
+
+    /**
+     * Creates a fresh {@link Meter} to measure a single filter against this budget.
+     *
+     * @return A new {@link Meter}.
+     */
+    Meter meter() {
+        return new Meter();
+    }
+
+    /**
+     * Measures a single comparison during {@link #check(CharSequence)}, by finding its operator the same way the
+     * parsers do: the last one within the comparison wins. Empty segments, such as between a closing bracket and a
+     * separator, are skipped.
+     */
+    void measureComparison(final Meter meter, final CharSequence filter, final int start, final int end) {
+        if (start >= end) {
+            return;
+        }
+
+        for (int index = end - 1; index > start; index--) {
+            final int operatorLength = AbstractFiqlExpressionParser.getOperatorLength(filter, index, end);
+
+            if (operatorLength > 0) {
+                final int valueStart = index + operatorLength;
+
+                // Only equality and inequality make wildcard queries.
+                final boolean wildcard = 2 == operatorLength && contains(filter, valueStart, end, WILDCARD);
+                meter.leaf(wildcard, wildcard && WILDCARD == filter.charAt(valueStart));
+                return;
+            }
+        }
+
+        // Not a comparison at all, which the parser will reject, but it's still work.
+        meter.leaf(false, false);
+    }
+
+    /**
+     * Provides a convenience method to check for a character within part of a {@link CharSequence}.
+     */
+    private static boolean contains(final CharSequence filter, final int start, final int end, final char character) {
+        for (int index = start; index < end; index++) {
+            if (character == filter.charAt(index)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides a convenience method to validate limits.
+     */
+    private static int requireNotNegative(final Limit limit, final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("Maximum %s must not be negative, got %d", limit.getDescription(), value));
+        }
+
+        return value;
+    }
+
+    /**
+     * Keeps a running tally of a single filter against the budget, failing as soon as any limit is exceeded. Shared by
+     * {@link #check(CharSequence)} and the {@link ElasticsearchQueryBuilderVisitor}, so both measure the same way.
+     * <p>
+     * Like visitors, meters are not threadsafe, and are good for a single filter at a time.
+     */
+    class Meter {
+        private int leaves;
+        private int wildcards;
+        private int leadingWildcards;
+        private long cost;
+
+        /**
+         * Accounts for entering a parenthesized group at the given depth, where {@code 1} is the outermost group.
+         */
+        void enterGroup(final int depth) throws QueryBudgetExceededException {
+            if (depth > maxDepth()) {
+                throw new QueryBudgetExceededException(Limit.DEPTH, maxDepth());
+            }
+        }
+
+        /**
+         * Accounts for a single comparison.
+         *
+         * @param wildcard        Whether the comparison is a wildcard query.
+         * @param leadingWildcard Whether the comparison is a wildcard query starting with a wildcard.
+         */
+        void leaf(final boolean wildcard, final boolean leadingWildcard) throws QueryBudgetExceededException {
+            if (++leaves > maxLeaves()) {
+                throw new QueryBudgetExceededException(Limit.LEAVES, maxLeaves());
+            }
+
+            if (wildcard && ++wildcards > maxWildcards()) {
+                throw new QueryBudgetExceededException(Limit.WILDCARDS, maxWildcards());
+            }
+
+            if (leadingWildcard && ++leadingWildcards > maxLeadingWildcards()) {
+                throw new QueryBudgetExceededException(Limit.LEADING_WILDCARDS, maxLeadingWildcards());
+            }
+
+            cost += leadingWildcard ? LEADING_WILDCARD_COST : wildcard ? WILDCARD_COST : LEAF_COST;
+
+            if (cost > maxCost()) {
+                throw new QueryBudgetExceededException(Limit.COST, maxCost());
+            }
+        }
+
+        /**
+         * Resets the tally, so the meter can be used for another filter.
+         */
+        void reset() {
+            leaves = 0;
+            wildcards = 0;
+            leadingWildcards = 0;
+            cost = 0;
+        }
+
+        int getLeaves() {
+            return leaves;
+        }
+
+        int getWildcards() {
+            return wildcards;
+        }
+
+        int getLeadingWildcards() {
+            return leadingWildcards;
+        }
+
+        long getCost() {
+            return cost;
+        }
+    }
+}
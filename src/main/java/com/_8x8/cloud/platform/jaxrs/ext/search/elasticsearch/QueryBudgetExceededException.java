@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+
+/**
+ * Thrown when a filter goes over one of the limits of a {@link QueryBudget}. As this is a {@link SearchParseException},
+ * anything already turning invalid filters into a {@code 400 Bad Request} will do the same for these, but you can
+ * also catch this specifically to tell the caller which limit they hit.
+ */
+public class QueryBudgetExceededException extends SearchParseException {
+    private static final long serialVersionUID = 1L;
+
+    private final QueryBudget.Limit limit;
+    private final long maximum;
+
+    /**
+     * Constructs an exception for the given limit.
+     *
+     * @param limit   The {@link QueryBudget.Limit} that was exceeded.
+     * @param maximum The maximum allowed by the budget for the limit.
+     */
+    public QueryBudgetExceededException(final QueryBudget.Limit limit, final long maximum) {
+        super(String.format("Filter exceeds the maximum %s of %d", limit.getDescription(), maximum));
+        this.limit = limit;
+        this.maximum = maximum;
+    }
+
+    public QueryBudget.Limit getLimit() {
+        return limit;
+    }
+
+    public long getMaximum() {
+        return maximum;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Represents the fingerprint of a parsed FIQL expression, as produced by {@link QueryFingerprintVisitor}.
+ * <p>
+ * A fingerprint comes in two flavors:
+ * <pre>
+ *     * The structural fingerprint identifies the query itself. Two filters that only differ in the order of their
+ *       {@code AND}/{@code OR} parts, redundant parenthesis, or the spelling of their literals ({@code 05} vs {@code 5})
+ *       share a structural fingerprint.
+ *     * The shape fingerprint identifies the query with all of its literals stripped out. For example,
+ *       {@code tenantName==taters;storedBytes=gt=5} and {@code storedBytes=gt=100;tenantName==dinner} share a shape.
+ * </pre>
+ * Both are 128-bit MurmurHash3 hashes of a canonical string form, which is also available should you want to log it.
+ * Instances are immutable, and compare equal IFF their canonical forms match, so they make fine cache keys. The hashes
+ * only pick the bucket; MurmurHash3 isn't collision-resistant, and a filter crafted to collide with someone else's must
+ * never be handed their query.
+ */
+public class QueryFingerprint {
+    private static final long SEED = 0x8a8c1d;
+
+    private final String canonicalForm;
+    private final String shape;
+    private final MurmurHash3.Hash128 structuralHash;
+    private final MurmurHash3.Hash128 shapeHash;
+
+    /**
+     * Constructs a fingerprint from the canonical forms of a query.
+     *
+     * @param canonicalForm The canonical form of the query, literals included.
+     * @param shape         The canonical form of the query, with literals replaced by placeholders.
+     */
+    public QueryFingerprint(final String canonicalForm, final String shape) {
+        this(canonicalForm, shape, hash(canonicalForm), hash(shape));
+    }
+
+    /**
+     * Constructs a fingerprint from the canonical forms of a query and their hashes. This is test-friendly, as it lets
+     * us fake a collision.
+     *
+     * @param canonicalForm  The canonical form of the query, literals included.
+     * @param shape          The canonical form of the query, with literals replaced by placeholders.
+     * @param structuralHash The hash of the canonical form.
+     * @param shapeHash      The hash of the shape.
+     */
+    QueryFingerprint(final String canonicalForm, final String shape, final MurmurHash3.Hash128 structuralHash,
+                     final MurmurHash3.Hash128 shapeHash) {
+        this.canonicalForm = canonicalForm;
+        this.shape = shape;
+        this.structuralHash = structuralHash;
+        this.shapeHash = shapeHash;
+    }
+
+    public String getCanonicalForm() {
+        return canonicalForm;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * @return The lower 64 bits of the structural fingerprint.
+     */
+    public long getStructuralHash() {
+        return structuralHash.h1;
+    }
+
+    /**
+     * @return The full 128-bit structural fingerprint, as 32 hex characters.
+     */
+    public String getStructuralHashString() {
+        return String.format("%016x%016x", structuralHash.h2, structuralHash.h1);
+    }
+
+    /**
+     * @return The lower 64 bits of the shape fingerprint.
+     */
+    public long getShapeHash() {
+        return shapeHash.h1;
+    }
+
+    /**
+     * @return The full 128-bit shape fingerprint, as 32 hex characters.
+     */
+    public String getShapeHashString() {
+        return String.format("%016x%016x", shapeHash.h2, shapeHash.h1);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (null == other || getClass() != other.getClass()) {
+            return false;
+        }
+
+        // Equal hashes only make a match likely, so the canonical forms have the final say.
+        final QueryFingerprint that = (QueryFingerprint) other;
+        return structuralHash.h1 == that.structuralHash.h1 && structuralHash.h2 == that.structuralHash.h2 &&
+                canonicalForm.equals(that.canonicalForm);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) structuralHash.h1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryFingerprint{structural=%s, shape=%s, canonicalForm=%s}",
+                getStructuralHashString(), getShapeHashString(), canonicalForm);
+    }
+
+    private static MurmurHash3.Hash128 hash(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, SEED, new MurmurHash3.Hash128());
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.collections.CollectionCheckInfo;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.apache.cxf.jaxrs.ext.search.visitor.AbstractSearchConditionVisitor;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides a FIQL visitor for computing the {@link QueryFingerprint} of a parsed expression. This lets us recognize
+ * filters that are written differently, but mean the same thing, such as {@code a==1;b==2} and {@code (b==2;a==1)}.
+ * <p>
+ * The visitor builds a canonical form of the expression by:
+ * <pre>
+ *     * Flattening nested groups of the same type, EG: {@code a==1,(b==2,c==3)} becomes {@code a==1,b==2,c==3}.
+ *     * Sorting the parts of every {@code AND} and {@code OR} group, as both are commutative.
+ *     * Normalizing literals to the typed values CXF parsed them into, so {@code 05} and {@code 5} are the same number,
+ *       and dates are compared by the instant they represent rather than how they were spelled.
+ * </pre>
+ * Please note that an {@code AND} group holding more than one lower (or upper) bound for the same field is left in its
+ * original order. This is only kept for builders without a {@link QueryOptimizer}, which is the default: there,
+ * {@link ElasticsearchQueryBuilderVisitor} folds adjacent ranges into one as it goes, letting the last bound win, so
+ * {@code a=gt=1;a=gt=5} and {@code a=gt=5;a=gt=1} really do produce different queries. The optimizer's
+ * {@link QueryOptimizer#MERGE_RANGES} rule intersects ranges whatever their order, so with an optimizer, such filters
+ * merely get a fingerprint, and a cache entry, per order.
+ * <p>
+ * As with the other visitors, expressions are walked without recursion via a {@link SearchConditionWalker}, so deep
+ * expressions can't overflow the stack while we look them up in a cache, and may be limited to a maximum depth.
+ * <p>
+ * <b>WARNING: this class is inherently un-threadsafe by design.</b> Much like the other visitors, please treat this as
+ * a prototypical scope, and not as a singleton.
+ */
+public class QueryFingerprintVisitor<T> extends AbstractSearchConditionVisitor<T, QueryFingerprint> {
+    /**
+     * Stands in for a literal value in the shape of a query.
+     */
+    static final String LITERAL_PLACEHOLDER = "?";
+
+    /**
+     * Stands in for a wildcard literal value in the shape of a query. These get their own placeholder as they produce
+     * an entirely different kind of Elasticsearch query.
+     */
+    static final String WILDCARD_PLACEHOLDER = "?*";
+
+    private static final String WILDCARD_CHARACTER = "*";
+    private static final Map<ConditionType, String> OPERATORS = new HashMap<>();
+
+    static {
+        OPERATORS.put(ConditionType.EQUALS, FiqlParser.EQ);
+        OPERATORS.put(ConditionType.NOT_EQUALS, FiqlParser.NEQ);
+        OPERATORS.put(ConditionType.GREATER_THAN, FiqlParser.GT);
+        OPERATORS.put(ConditionType.GREATER_OR_EQUALS, FiqlParser.GE);
+        OPERATORS.put(ConditionType.LESS_THAN, FiqlParser.LT);
+        OPERATORS.put(ConditionType.LESS_OR_EQUALS, FiqlParser.LE);
+    }
+
+    /**
+     * Orders the parts of a group by shape first, so that the shape of a group doesn't depend on its literals.
+     */
+    private static final Comparator<Node> NODE_ORDER = Comparator.comparing((Node node) -> node.shape).thenComparing(node -> node.canonicalForm);
+
+    private final StateStack<Node> stateStack = new StateStack<>();
+    private final SearchConditionWalker<T> walker;
+
+    StateStack<Node> getStateStack() {
+        return stateStack;
+    }
+
+    SearchConditionWalker<T> getWalker() {
+        return walker;
+    }
+
+    /**
+     * Constructs an instance of a {@link QueryFingerprintVisitor}, using a blank field map, for expressions of any
+     * depth.
+     */
+    public QueryFingerprintVisitor() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs an instance of a {@link QueryFingerprintVisitor}, using a blank field map.
+     *
+     * @param maxDepth The maximum levels of parenthesis an expression may nest, as per {@link QueryBudget#maxDepth(int)}.
+     *                 Deeper expressions get a {@link QueryBudgetExceededException}.
+     */
+    public QueryFingerprintVisitor(final int maxDepth) {
+        super(new HashMap<>());
+        this.walker = new Walker(maxDepth);
+        getStateStack().push();
+    }
+
+    @Override
+    public void visit(final SearchCondition<T> searchCondition) {
+        getWalker().walk(searchCondition);
+    }
+
+    @Override
+    public QueryFingerprint getQuery() {
+        if (getStateStack().isEmpty() || getStateStack().peek().isEmpty()) {
+            return null;
+        }
+
+        final Node root = getStateStack().pop().get(0);
+        return new QueryFingerprint(root.canonicalForm, root.shape);
+    }
+
+    /**
+     * Builds the canonical node for a leaf-level expression, such as {@code foo==bar}.
+     *
+     * @param statement The {@link PrimitiveStatement} representing the leaf-level node.
+     * @return The canonical {@link Node} for the expression.
+     */
+    Node buildSimpleNode(final PrimitiveStatement statement) {
+        // Let CXF unwrap our value, so that collection operators don't get lost along the way. FIQL only has count().
+        final ClassValue classValue = doGetPrimitiveFieldClass(statement);
+        final CollectionCheckInfo collectionCheckInfo = classValue.getCollectionCheckInfo();
+
+        final String property = null == collectionCheckInfo ?
+                statement.getProperty() : "count(" + statement.getProperty() + ")";
+        final String operator = getOperator(statement.getCondition());
+        final String literal = normalizeLiteral(null == collectionCheckInfo ? classValue.getValue() : collectionCheckInfo.getCollectionCheckValue());
+        final String placeholder = literal.contains(WILDCARD_CHARACTER) ? WILDCARD_PLACEHOLDER : LITERAL_PLACEHOLDER;
+
+        return new Node(statement.getCondition(), property + operator + literal, property + operator + placeholder,
+                getRangeBound(property, statement.getCondition()), null);
+    }
+
+    /**
+     * Builds the canonical node for a composite expression, flattening and sorting its parts where that is safe to do.
+     *
+     * @param conditionType The {@link ConditionType} of the composite expression (EG: {@code AND}, {@code OR}).
+     * @param parts         The canonical nodes of the parts of the expression.
+     * @return The canonical {@link Node} for the expression, or {@code null} if it had no parts at all.
+     */
+    Node buildCompositeNode(final ConditionType conditionType, final List<Node> parts) {
+        if (parts.isEmpty()) {
+            return null;
+        }
+
+        // Redundant parenthesis around a single expression don't change anything.
+        if (1 == parts.size()) {
+            return parts.get(0);
+        }
+
+        final List<Node> flattened = new ArrayList<>();
+
+        for (final Node part : parts) {
+            if (conditionType.equals(part.conditionType) && null != part.parts) {
+                flattened.addAll(part.parts);
+            } else {
+                flattened.add(part);
+            }
+        }
+
+        final List<Node> ordered;
+
+        if (ConditionType.OR.equals(conditionType) || !hasConflictingRangeBounds(flattened)) {
+            ordered = flattened;
+            ordered.sort(NODE_ORDER);
+        } else {
+            // Order matters here, so don't touch anything. The parts may be a frame of our state stack, so take a copy.
+            ordered = new ArrayList<>(parts);
+        }
+
+        final String operator = ConditionType.AND.equals(conditionType) ? "and" : "or";
+        final StringBuilder canonicalForm = new StringBuilder(operator).append('(');
+        final StringBuilder shape = new StringBuilder(operator).append('(');
+
+        for (int partIndex = 0; partIndex < ordered.size(); partIndex++) {
+            if (partIndex > 0) {
+                canonicalForm.append(',');
+                shape.append(',');
+            }
+
+            canonicalForm.append(ordered.get(partIndex).canonicalForm);
+            shape.append(ordered.get(partIndex).shape);
+        }
+
+        return new Node(conditionType, canonicalForm.append(')').toString(), shape.append(')').toString(), null, ordered);
+    }
+
+    /**
+     * Determines whether or not any of the given parts place the same kind of bound on the same field. Without an
+     * optimizer, such parts are folded into one another in order by {@link ElasticsearchQueryBuilderVisitor}, so we
+     * can't re-order them.
+     *
+     * @param parts The parts of an {@code AND} expression to check.
+     * @return {@code True} if two or more of the parts are lower (or upper) bounds on the same field, else {@code false}.
+     */
+    boolean hasConflictingRangeBounds(final List<Node> parts) {
+        final Set<String> rangeBounds = new HashSet<>();
+
+        for (final Node part : parts) {
+            if (null != part.rangeBound && !rangeBounds.add(part.rangeBound)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides a convenience method to normalize a parsed literal into a stable string form. Dates become their epoch
+     * milliseconds, enums their names, and the characters we use to build our canonical form are escaped.
+     *
+     * @param value The literal value parsed by CXF.
+     * @return The normalized string form of the literal.
+     */
+    String normalizeLiteral(final Object value) {
+        if (value instanceof Date) {
+            return Long.toString(((Date) value).getTime());
+        }
+
+        final String literal = value instanceof Enum ? ((Enum<?>) value).name() : String.valueOf(value);
+        final StringBuilder escaped = new StringBuilder(literal.length());
+
+        for (int index = 0; index < literal.length(); index++) {
+            final char character = literal.charAt(index);
+
+            if ('\\' == character || ',' == character || '(' == character || ')' == character) {
+                escaped.append('\\');
+            }
+
+            escaped.append(character);
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * Provides a convenience method to get the FIQL operator for a given {@link ConditionType}.
+     *
+     * @param conditionType The {@link ConditionType} of the leaf-level expression.
+     * @return The FIQL operator, such as {@code =gt=}.
+     */
+    String getOperator(final ConditionType conditionType) {
+        final String operator = OPERATORS.get(conditionType);
+
+        if (null == operator) {
+            throw new IllegalArgumentException(String.format("Query contains an unsupported operation: %s", conditionType));
+        }
+
+        return operator;
+    }
+
+    /**
+     * Provides a convenience method to describe the kind of range bound a leaf-level expression places on a field.
+     *
+     * @param property      The property the expression applies to.
+     * @param conditionType The {@link ConditionType} of the expression.
+     * @return A key identifying the field and the direction of the bound, or {@code null} if this isn't a range.
+     */
+    String getRangeBound(final String property, final ConditionType conditionType) {
+        switch (conditionType) {
+            case GREATER_THAN:
+            case GREATER_OR_EQUALS:
+                return property + ">";
+            case LESS_THAN:
+            case LESS_OR_EQUALS:
+                return property + "<";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Provides a test-friendly way of dealing with
+     * {@link #getPrimitiveFieldClass(PrimitiveStatement, String, Class, Type, Object)} as most things to do with the
+     * {@link org.apache.cxf.jaxrs.ext.search.visitor.AbstractSearchConditionVisitor.ClassValue} are protected.
+     *
+     * @param statement The {@link PrimitiveStatement} to get the value of.
+     * @return A set of metadata regarding the type described in the given {@link PrimitiveStatement}.
+     */
+    ClassValue doGetPrimitiveFieldClass(final PrimitiveStatement statement) {
+        return getPrimitiveFieldClass(statement, statement.getProperty(),
+                statement.getValue().getClass(), statement.getValueType(), statement.getValue());
+    }
+
+    /**
+     * Builds up our state as the {@link SearchConditionWalker} makes its way through the expression.
+     */
+    class Walker extends SearchConditionWalker<T> {
+        Walker(final int maxDepth) {
+            super(maxDepth);
+        }
+
+        @Override
+        void visitStatement(final PrimitiveStatement statement) {
+            // Same drill as the other visitors: leaves go straight onto the stack, composites get built on the way back up.
+            if (statement.getProperty() != null) {
+                getStateStack().peek().add(buildSimpleNode(statement));
+            }
+        }
+
+        @Override
+        void enterComposite(final SearchCondition<T> composite, final int depth) {
+            getStateStack().push();
+        }
+
+        @Override
+        void exitComposite(final SearchCondition<T> composite) {
+            final Node node = buildCompositeNode(composite.getConditionType(), getStateStack().pop());
+
+            if (null != node) {
+                getStateStack().peek().add(node);
+            }
+        }
+    }
+
+    /**
+     * Holds the canonical form of a single expression within the tree, along with what we need to know to fold it into
+     * its parent.
+     */
+    static class Node {
+        private final ConditionType conditionType;
+        private final String canonicalForm;
+        private final String shape;
+        private final String rangeBound;
+        private final List<Node> parts;
+
+        Node(final ConditionType conditionType, final String canonicalForm, final String shape, final String rangeBound,
+             final List<Node> parts) {
+            this.conditionType = conditionType;
+            this.canonicalForm = canonicalForm;
+            this.shape = shape;
+            this.rangeBound = rangeBound;
+            this.parts = parts;
+        }
+
+        String getCanonicalForm() {
+            return canonicalForm;
+        }
+
+        String getShape() {
+            return shape;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites the {@link QueryBuilder} tree built by an {@link ElasticsearchQueryBuilderVisitor} into something cheaper
+ * for Elasticsearch to run, via an ordered set of {@link QueryRewriteRule}s. Much like Elasticsearch's own
+ * {@link QueryBuilder#rewrite} step, the rules are applied over and over until none of them has anything left to do:
+ * <pre>
+ *     * Each pass hands every node of the tree to every enabled rule, in order, children before their parents.
+ *     * Whenever a rule fires, the rules after it see the rewritten node.
+ *     * Passes repeat until one goes by without any rule firing, or we run out of passes.
+ * </pre>
+ * Optimizers are opt-in: {@link ElasticsearchQueryBuilderOptions} holds none by default, so that compiled queries come
+ * out just as they always have. Setters follow the same fluent style. Out of the box, an optimizer holds the following
+ * built-in rules, each of which can be switched off by name:
+ * <pre>
+ *     * {@link #FLATTEN_BOOLS} pulls the clauses of nested AND and OR groups up into their parent group.
+ *     * {@link #FACTOR_COMMON_CLAUSES} pulls clauses shared by several branches of an OR group, or an AND group, out
+ *       of those branches.
+ *     * {@link #MERGE_RANGES} folds AND'ed ranges over the same field into a single range, or a {@code match_none}
+ *       query if they can't all match.
+ *     * {@link #UNION_RANGES} folds OR'ed ranges over the same field that overlap or touch into a single range, or an
+ *       {@code exists} query if they cover everything.
+ *     * {@link #MERGE_TERMS} folds OR'ed term queries, as well as negated term queries, over the same field into a
+ *       single terms query.
+ *     * {@link #MERGE_PATTERNS} folds OR'ed prefix and wildcard queries, as well as negated ones, over the same field
+ *       into a single regexp query.
+ *     * {@link #PRUNE_MATCH_NONE} carries {@code match_none} queries up through the tree.
+ *     * {@link #UNWRAP_SINGLE_CLAUSE_BOOLS} swaps bool queries holding a single clause for the clause itself.
+ * </pre>
+ * Rules of your own can be added to the end via {@link #addRule(QueryRewriteRule)}:
+ * <pre>
+ *     final QueryOptimizer optimizer = new QueryOptimizer()
+ *             .disableRule(QueryOptimizer.MERGE_RANGES)
+ *             .addRule(new MyRewriteRule());
+ * </pre>
+ * The tree is walked with a loop rather than by recursion, so deeply nested queries are no problem. Optimizers hold no
+ * state between queries, and are threadsafe so long as they aren't changed while in use.
+ */
+public class QueryOptimizer {
+    /**
+     * Names the rule that pulls the clauses of nested AND and OR groups up into their parent, such as turning
+     * {@code a==1;(b==2;c==3)} into a single bool query.
+     */
+    public static final String FLATTEN_BOOLS = "flatten-bools";
+
+    /**
+     * Names the rule that pulls clauses shared by several branches of a group out of them, such as turning
+     * {@code (a==1;b==2),(a==1;b==3)} into {@code a==1;(b==2,b==3)}.
+     */
+    public static final String FACTOR_COMMON_CLAUSES = "factor-common-clauses";
+
+    /**
+     * Names the rule that swaps a bool query holding a single must or should clause for the clause itself.
+     */
+    public static final String UNWRAP_SINGLE_CLAUSE_BOOLS = "unwrap-single-clause-bools";
+
+    /**
+     * Names the rule that folds AND'ed ranges over the same field, such as {@code a=gt=1;a=lt=5}, into a single range,
+     * keeping the tightest bounds, and replaces the whole group with a {@code match_none} query if the range is empty.
+     */
+    public static final String MERGE_RANGES = "merge-ranges";
+
+    /**
+     * Names the rule that folds OR'ed ranges over the same field that overlap or touch, such as {@code a=lt=5,a=lt=9},
+     * into a single range, or an {@code exists} query if they cover every value.
+     */
+    public static final String UNION_RANGES = "union-ranges";
+
+    /**
+     * Names the rule that folds OR'ed term queries over the same field, such as {@code a==1,a==2}, into a single terms
+     * query, and does the same for AND'ed negations, such as {@code a!=1;a!=2}.
+     */
+    public static final String MERGE_TERMS = "merge-terms";
+
+    /**
+     * Names the rule that folds OR'ed prefix and wildcard queries over the same field, such as {@code a==x*,a==y*},
+     * into a single regexp query, and does the same for AND'ed negations, such as {@code a!=x*;a!=y*}.
+     */
+    public static final String MERGE_PATTERNS = "merge-patterns";
+
+    /**
+     * Names the rule that carries {@code match_none} queries up through the tree, such as turning an AND group with a
+     * clause that matches nothing into a {@code match_none} query itself.
+     */
+    public static final String PRUNE_MATCH_NONE = "prune-match-none";
+
+    /**
+     * Holds the default maximum number of passes over the query tree.
+     */
+    public static final int DEFAULT_MAX_PASSES = 8;
+
+    private final List<QueryRewriteRule> rules = new ArrayList<>();
+    private final Set<String> disabledRules = new HashSet<>();
+    private int maxPasses = DEFAULT_MAX_PASSES;
+    private int maxPatternStates = MergePatternsRule.DEFAULT_MAX_STATES;
+
+    /**
+     * Constructs an optimizer holding all of the built-in rules.
+     */
+    public QueryOptimizer() {
+        // Flattening first means ranges pulled up next to each other get folded in the same pass, and unwrapping last
+        // catches anything left holding a single clause by the rules before it.
+        addRule(new FlattenBoolsRule());
+        addRule(new FactorCommonClausesRule());
+        addRule(new MergeRangesRule());
+        addRule(new UnionRangesRule());
+        addRule(new MergeTermsRule());
+        addRule(new MergePatternsRule());
+        addRule(new PruneMatchNoneRule());
+        addRule(new UnwrapSingleClauseBoolsRule());
+    }
+
+    /**
+     * Adds a rule, to be run after every rule added before it. The rule starts out enabled.
+     *
+     * @param rule The rule to add. Its name must not already be taken.
+     * @return This instance, for chaining.
+     */
+    public QueryOptimizer addRule(final QueryRewriteRule rule) {
+        if (null != findRule(rule.getName())) {
+            throw new IllegalArgumentException(String.format("A rewrite rule named %s already exists", rule.getName()));
+        }
+
+        rules.add(rule);
+        return this;
+    }
+
+    /**
+     * Switches a rule back on.
+     *
+     * @param ruleName The name of the rule.
+     * @return This instance, for chaining.
+     */
+    public QueryOptimizer enableRule(final String ruleName) {
+        disabledRules.remove(requireRule(ruleName));
+        return this;
+    }
+
+    /**
+     * Switches a rule off, so that it's skipped until it's switched back on.
+     *
+     * @param ruleName The name of the rule.
+     * @return This instance, for chaining.
+     */
+    public QueryOptimizer disableRule(final String ruleName) {
+        disabledRules.add(requireRule(ruleName));
+        return this;
+    }
+
+    /**
+     * @param ruleName The name of the rule.
+     * @return {@code True} if the rule exists, and is switched on, else {@code false}.
+     */
+    public boolean isRuleEnabled(final String ruleName) {
+        return null != findRule(ruleName) && !disabledRules.contains(ruleName);
+    }
+
+    /**
+     * @return The names of every rule that's switched on, in the order they're run.
+     */
+    public Set<String> getEnabledRuleNames() {
+        final Set<String> ruleNames = new LinkedHashSet<>();
+
+        for (final QueryRewriteRule rule : getEnabledRules()) {
+            ruleNames.add(rule.getName());
+        }
+
+        return Collections.unmodifiableSet(ruleNames);
+    }
+
+    /**
+     * Sets the maximum number of passes made over a query tree. Well-behaved rules settle down within a couple of
+     * passes; this is only here so that a pair of rules undoing each other's work can't spin forever.
+     *
+     * @param maxPasses The maximum number of passes, which must be at least {@code 1}.
+     * @return This instance, for chaining.
+     */
+    public QueryOptimizer maxPasses(final int maxPasses) {
+        if (maxPasses < 1) {
+            throw new IllegalArgumentException(String.format("Maximum passes must be at least 1, got %d", maxPasses));
+        }
+
+        this.maxPasses = maxPasses;
+        return this;
+    }
+
+    public int maxPasses() {
+        return maxPasses;
+    }
+
+    /**
+     * Sets the maximum number of states the {@link #MERGE_PATTERNS} rule may take to determinize the automaton of a
+     * single regexp query. Patterns whose union would need more are left as they are. The default is well within the
+     * {@code max_determinized_states} Elasticsearch allows a regexp query.
+     *
+     * @param maxPatternStates The maximum number of states, which must be at least {@code 1}.
+     * @return This instance, for chaining.
+     */
+    public QueryOptimizer maxPatternStates(final int maxPatternStates) {
+        if (maxPatternStates < 1) {
+            throw new IllegalArgumentException(String.format("Maximum pattern states must be at least 1, got %d", maxPatternStates));
+        }
+
+        // The rule holds no state of its own, so we simply swap in one with the new budget, in the same place.
+        rules.set(rules.indexOf(findRule(MERGE_PATTERNS)), new MergePatternsRule(maxPatternStates));
+        this.maxPatternStates = maxPatternStates;
+        return this;
+    }
+
+    public int maxPatternStates() {
+        return maxPatternStates;
+    }
+
+    /**
+     * Optimizes the given query tree. The tree is rewritten in place wherever possible, so callers should hand over a
+     * tree that nobody else is holding on to.
+     *
+     * @param query The root of the query tree. May be null.
+     * @param trace The {@link QueryRewriteTrace} to record what happened in, or null if nobody's interested.
+     * @return The root of the optimized query tree, which may or may not be the original root, or null if given null.
+     */
+    public QueryBuilder optimize(final QueryBuilder query, final QueryRewriteTrace trace) {
+        if (null == query) {
+            return null;
+        }
+
+        final List<QueryRewriteRule> enabledRules = getEnabledRules();
+        final Site root = new Site(query, null, 0);
+        boolean fired = true;
+
+        for (int pass = 0; fired && pass < maxPasses(); pass++) {
+            if (null != trace) {
+                trace.pass();
+            }
+
+            fired = rewritePass(root, enabledRules, trace);
+        }
+
+        if (null != trace) {
+            trace.converged(!fired);
+        }
+
+        return root.getQuery();
+    }
+
+    /**
+     * Makes a single pass over the tree under the given root, handing every node to every rule, children first.
+     *
+     * @return {@code True} if any rule fired, else {@code false}.
+     */
+    boolean rewritePass(final Site root, final List<QueryRewriteRule> enabledRules, final QueryRewriteTrace trace) {
+        // Walking the tree top down gives us every parent before its children, so going through the list backwards
+        // gives us every child before its parent. Replacing a child in its clause list leaves its siblings' indexes be.
+        final List<Site> sites = new ArrayList<>();
+        final Deque<Site> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        while (!pending.isEmpty()) {
+            final Site site = pending.pop();
+            sites.add(site);
+
+            if (site.getQuery() instanceof BoolQueryBuilder) {
+                final BoolQueryBuilder boolQuery = (BoolQueryBuilder) site.getQuery();
+
+                pushClauses(boolQuery.must(), pending);
+                pushClauses(boolQuery.filter(), pending);
+                pushClauses(boolQuery.should(), pending);
+                pushClauses(boolQuery.mustNot(), pending);
+            }
+        }
+
+        boolean fired = false;
+
+        for (int index = sites.size() - 1; index >= 0; index--) {
+            final Site site = sites.get(index);
+            QueryBuilder query = site.getQuery();
+
+            for (final QueryRewriteRule rule : enabledRules) {
+                final QueryBuilder rewritten = rule.rewrite(query);
+
+                if (null != rewritten) {
+                    fired = true;
+                    query = rewritten;
+
+                    if (null != trace) {
+                        trace.fired(rule.getName());
+                    }
+                }
+            }
+
+            site.replace(query);
+        }
+
+        return fired;
+    }
+
+    /**
+     * @return Every rule that's switched on, in the order they're run.
+     */
+    List<QueryRewriteRule> getEnabledRules() {
+        final List<QueryRewriteRule> enabledRules = new ArrayList<>(rules.size());
+
+        for (final QueryRewriteRule rule : rules) {
+            if (!disabledRules.contains(rule.getName())) {
+                enabledRules.add(rule);
+            }
+        }
+
+        return enabledRules;
+    }
+
+    /**
+     * Provides a convenience method to look up a rule by name.
+     *
+     * @return The rule, or null if there's no such rule.
+     */
+    QueryRewriteRule findRule(final String ruleName) {
+        for (final QueryRewriteRule rule : rules) {
+            if (rule.getName().equals(ruleName)) {
+                return rule;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to make sure a rule exists before switching it on or off, so that a typo doesn't
+     * silently do nothing.
+     */
+    String requireRule(final String ruleName) {
+        if (null == findRule(ruleName)) {
+            throw new IllegalArgumentException(String.format("Unknown rewrite rule: %s", ruleName));
+        }
+
+        return ruleName;
+    }
+
+    /**
+     * Provides a convenience method to queue up the clauses of a bool query, remembering where each one came from.
+     */
+    private static void pushClauses(final List<QueryBuilder> clauses, final Deque<Site> pending) {
+        for (int index = 0; index < clauses.size(); index++) {
+            pending.push(new Site(clauses.get(index), clauses, index));
+        }
+    }
+
+    /**
+     * Remembers where a node of the tree lives, so that a rewritten node can be put back in its place.
+     */
+    static class Site {
+        private QueryBuilder query;
+        private final List<QueryBuilder> clauses;
+        private final int index;
+
+        /**
+         * @param query   The node.
+         * @param clauses The clause list of the parent holding the node, or null for the root.
+         * @param index   The index of the node within the clause list.
+         */
+        Site(final QueryBuilder query, final List<QueryBuilder> clauses, final int index) {
+            this.query = query;
+            this.clauses = clauses;
+            this.index = index;
+        }
+
+        QueryBuilder getQuery() {
+            return query;
+        }
+
+        void replace(final QueryBuilder query) {
+            this.query = query;
+
+            if (null != clauses) {
+                clauses.set(index, query);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Represents a single rewrite applied by a {@link QueryOptimizer}, such as folding two ranges over the same field into
+ * one. The optimizer hands each rule every node of the query tree in turn, children before their parents, so by the
+ * time a rule sees a {@link org.elasticsearch.index.query.BoolQueryBuilder} its clauses have already been rewritten.
+ * <p>
+ * Rules must only ever produce an equivalent query, that is, one matching exactly the same documents. They are free to
+ * modify the node they're given in place, as the optimizer only ever works on trees it owns. Rules are shared between
+ * threads, so must not hold any state of their own.
+ */
+public interface QueryRewriteRule {
+    /**
+     * @return The name of the rule, which is used to switch it on and off, and to report on it in a
+     * {@link QueryRewriteTrace}. Must be unique within a {@link QueryOptimizer}.
+     */
+    String getName();
+
+    /**
+     * Attempts to rewrite a single node of the query tree.
+     *
+     * @param query The node to rewrite. Never null.
+     * @return The rewritten node, which may be the given node modified in place, or null if the rule doesn't apply.
+     * Returning anything other than null counts as the rule having fired, so rules must return null when there's
+     * nothing left for them to do, or the optimizer never settles.
+     */
+    QueryBuilder rewrite(QueryBuilder query);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records what a {@link QueryOptimizer} did to a query: how many passes it took, whether it settled down, and how
+ * many times each {@link QueryRewriteRule} fired, in the order they first fired. Handy for checking that a rule does
+ * what you think it does, or for finding out why a query came out the way it did:
+ * <pre>
+ *     final QueryRewriteTrace trace = new QueryRewriteTrace();
+ *     final QueryBuilder queryBuilder = elasticSearchBuilder.generateQueryBuilder("storedBytes=gt=5;storedBytes=lt=10", trace);
+ *
+ *     trace.getFiringCount(QueryOptimizer.MERGE_RANGES); // 1
+ * </pre>
+ * Traces are not threadsafe, and are meant to be used for a single query.
+ */
+public class QueryRewriteTrace {
+    private final Map<String, Integer> firings = new LinkedHashMap<>();
+    private int passes;
+    private boolean converged;
+
+    /**
+     * @return The number of passes the optimizer made over the query tree, including the final pass where nothing
+     * fired, if it got that far.
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * @return {@code True} if the optimizer reached a point where no rule fired, else {@code false} if it gave up
+     * after its maximum number of passes.
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * @return The number of times each rule fired, keyed by rule name in the order they first fired. Rules that never
+     * fired are left out.
+     */
+    public Map<String, Integer> getFirings() {
+        return Collections.unmodifiableMap(firings);
+    }
+
+    /**
+     * @param ruleName The name of the rule.
+     * @return The number of times the given rule fired.
+     */
+    public int getFiringCount(final String ruleName) {
+        return firings.getOrDefault(ruleName, 0);
+    }
+
+    /**
+     * @return {@code True} if any rule fired at all, else {@code false}.
+     */
+    public boolean hasFired() {
+        return !firings.isEmpty();
+    }
+
+    /**
+     * Records the start of another pass over the query tree.
+     */
+    void pass() {
+        passes++;
+    }
+
+    /**
+     * Records a rule firing.
+     *
+     * @param ruleName The name of the rule that fired.
+     */
+    void fired(final String ruleName) {
+        firings.merge(ruleName, 1, Integer::sum);
+    }
+
+    /**
+     * Records whether or not the optimizer settled down.
+     */
+    void converged(final boolean converged) {
+        this.converged = converged;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryRewriteTrace{passes=%d, converged=%s, firings=%s}", passes, converged, firings);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Compares the bounds of {@link RangeQueryBuilder}s, so that ranges over the same field can be combined. Elasticsearch
+ * does the real comparing against whatever the mapping says the field is, which we know nothing about, so we only ever
+ * compare values we can be sure of:
+ * <pre>
+ *     * Numbers against numbers, exactly, whatever their types.
+ *     * Strings against strings, byte by byte in UTF-8, just like Lucene orders keywords.
+ *     * Dates against dates.
+ * </pre>
+ * Anything else, such as a date against a string, can't be compared, and ranges holding such bounds are left alone.
+ * <p>
+ * This class holds no state, and is threadsafe.
+ */
+final class RangeBounds {
+    private RangeBounds() {
+    }
+
+    /**
+     * Determines whether two queries are both ranges we can combine, which is to say plain ranges over the same field,
+     * with the same format, time zone and relation.
+     *
+     * @param left  The first query.
+     * @param right The second query.
+     * @return {@code True} if both queries are ranges that can be combined, else {@code false}.
+     */
+    static boolean canCombine(final QueryBuilder left, final QueryBuilder right) {
+        if (!(left instanceof RangeQueryBuilder) || !(right instanceof RangeQueryBuilder) ||
+                !AbstractBoolRewriteRule.isPlainLeaf(left) || !AbstractBoolRewriteRule.isPlainLeaf(right)) {
+            return false;
+        }
+
+        final RangeQueryBuilder leftRange = (RangeQueryBuilder) left;
+        final RangeQueryBuilder rightRange = (RangeQueryBuilder) right;
+
+        return leftRange.fieldName().equals(rightRange.fieldName()) &&
+                Objects.equals(leftRange.format(), rightRange.format()) &&
+                Objects.equals(leftRange.timeZone(), rightRange.timeZone()) &&
+                Objects.equals(leftRange.relation(), rightRange.relation());
+    }
+
+    /**
+     * Determines whether a range can't possibly match anything, because its lower bound is above its upper bound, or
+     * they're the same value and either one excludes it.
+     *
+     * @param range The range to check.
+     * @return {@code True} if the range is known to be empty, else {@code false}.
+     */
+    static boolean isEmpty(final RangeQueryBuilder range) {
+        if (null == range.from() || null == range.to()) {
+            return false;
+        }
+
+        final Integer order = compare(range.from(), range.to());
+        return null != order && (order > 0 || (0 == order && !(range.includeLower() && range.includeUpper())));
+    }
+
+    /**
+     * Compares two bound values.
+     *
+     * @param left  The first value. Must not be null.
+     * @param right The second value. Must not be null.
+     * @return A negative number, zero or a positive number as the first value is below, the same as or above the
+     * second, or null if the two can't be compared.
+     */
+    static Integer compare(final Object left, final Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            return compareNumbers((Number) left, (Number) right);
+        }
+
+        if (left instanceof String && right instanceof String) {
+            return new BytesRef((String) left).compareTo(new BytesRef((String) right));
+        }
+
+        if (left instanceof Date && right instanceof Date) {
+            return ((Date) left).compareTo((Date) right);
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides a convenience method to compare two numbers of any type, without losing precision along the way.
+     *
+     * @return The same as {@link #compare(Object, Object)}, or null if either number isn't finite.
+     */
+    static Integer compareNumbers(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return Long.compare(left.longValue(), right.longValue());
+        }
+
+        final BigDecimal leftDecimal = toBigDecimal(left);
+        final BigDecimal rightDecimal = toBigDecimal(right);
+
+        return null == leftDecimal || null == rightDecimal ? null : leftDecimal.compareTo(rightDecimal);
+    }
+
+    /**
+     * Provides a convenience method to determine whether a number fits in a long without rounding.
+     */
+    static boolean isIntegral(final Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * Provides a convenience method to turn a number into a {@link BigDecimal}.
+     *
+     * @return The number as a {@link BigDecimal}, or null if it isn't finite, or isn't a type we know.
+     */
+    static BigDecimal toBigDecimal(final Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        }
+
+        if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        }
+
+        if (isIntegral(number)) {
+            return BigDecimal.valueOf(number.longValue());
+        }
+
+        if ((number instanceof Double || number instanceof Float) && Double.isFinite(number.doubleValue())) {
+            // Going via the string keeps floats from picking up binary noise on their way to double.
+            return new BigDecimal(number.toString());
+        }
+
+        return null;
+    }
+}
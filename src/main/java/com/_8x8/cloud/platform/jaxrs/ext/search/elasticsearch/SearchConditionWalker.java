@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walks a tree of {@link SearchCondition}s depth first, handing each comparison and each composite to the visitor that
+ * owns it. The usual way of doing this, having every composite call {@link SearchCondition#accept} on each of its
+ * parts, costs a few stack frames per level of nesting, so a deep enough filter brings the whole thing down with a
+ * {@link StackOverflowError}. Instead, we keep our own stack of open composites, and walk the tree in a loop, using the
+ * same amount of Java stack no matter how deeply the filter nests.
+ * <p>
+ * Composites are recognized the same way our visitors always have: anything without a {@link PrimitiveStatement} is a
+ * composite, whose parts are its {@link SearchCondition#getSearchConditions()}. Parts are walked directly, rather
+ * than via {@link SearchCondition#accept}, which is what every {@link SearchCondition} in CXF would have done anyway.
+ * <p>
+ * Nesting is limited to a maximum depth, counted as levels of parenthesis in the same way as
+ * {@link QueryBudget#maxDepth(int)}: the outermost composite sits at a depth of {@code 0}, and its composite parts at
+ * a depth of {@code 1}. Going deeper than that throws a {@link QueryBudgetExceededException} before anything below
+ * that depth is walked.
+ * <p>
+ * Like the visitors they belong to, walkers are not threadsafe, but can walk any number of trees one after the other.
+ *
+ * @param <T> The model class of the conditions being walked.
+ */
+abstract class SearchConditionWalker<T> {
+    /**
+     * Holds the depth of our stack of open composites to begin with. It grows as needed.
+     */
+    static final int INITIAL_DEPTH = 8;
+
+    private final int maxDepth;
+    private SearchCondition<T>[] composites;
+    private List<SearchCondition<T>>[] parts;
+    private int[] nextParts;
+    private int depth;
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Constructs a walker.
+     *
+     * @param maxDepth The maximum depth composites may be nested to. Must not be negative.
+     */
+    SearchConditionWalker(final int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException(String.format("Maximum depth must not be negative, got %d", maxDepth));
+        }
+
+        this.maxDepth = maxDepth;
+        this.composites = newComposites(INITIAL_DEPTH);
+        this.parts = newParts(INITIAL_DEPTH);
+        this.nextParts = new int[INITIAL_DEPTH];
+    }
+
+    /**
+     * Walks the tree under the given condition, calling {@link #visitStatement(PrimitiveStatement)} for every
+     * comparison, and {@link #enterComposite(SearchCondition, int)} and {@link #exitComposite(SearchCondition)} around
+     * the parts of every composite, in order.
+     *
+     * @param root The condition to walk, which may be a single comparison.
+     * @throws QueryBudgetExceededException If composites are nested beyond the maximum depth.
+     */
+    void walk(final SearchCondition<T> root) {
+        try {
+            SearchCondition<T> next = root;
+
+            while (true) {
+                if (null != next) {
+                    final PrimitiveStatement statement = next.getStatement();
+
+                    if (null != statement) {
+                        visitStatement(statement);
+                    } else {
+                        open(next);
+                    }
+                }
+
+                // Once the last composite is closed, we're done.
+                if (0 == depth) {
+                    return;
+                }
+
+                final int top = depth - 1;
+
+                if (nextParts[top] < parts[top].size()) {
+                    next = parts[top].get(nextParts[top]++);
+                } else {
+                    next = null;
+                    exitComposite(close());
+                }
+            }
+        } finally {
+            // Don't hang on to anything from this tree, even if a visitor blew up part way through.
+            while (depth > 0) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Provides a mechanism to handle a single comparison, such as {@code foo==bar}.
+     *
+     * @param statement The {@link PrimitiveStatement} of the comparison.
+     */
+    abstract void visitStatement(PrimitiveStatement statement);
+
+    /**
+     * Provides a mechanism to handle the start of a composite, before any of its parts.
+     *
+     * @param composite The composite condition.
+     * @param depth     The depth of the composite, where the outermost composite is at {@code 0}.
+     */
+    abstract void enterComposite(SearchCondition<T> composite, int depth);
+
+    /**
+     * Provides a mechanism to handle the end of a composite, after all of its parts.
+     *
+     * @param composite The composite condition.
+     */
+    abstract void exitComposite(SearchCondition<T> composite);
+
+    /**
+     * Pushes a composite onto our stack, making sure we don't go too deep.
+     */
+    private void open(final SearchCondition<T> composite) {
+        if (depth > getMaxDepth()) {
+            throw new QueryBudgetExceededException(QueryBudget.Limit.DEPTH, getMaxDepth());
+        }
+
+        if (depth == composites.length) {
+            final int length = depth << 1;
+
+            composites = Arrays.copyOf(composites, length);
+            parts = Arrays.copyOf(parts, length);
+            nextParts = Arrays.copyOf(nextParts, length);
+        }
+
+        // Grab the parts once; some conditions build a new list every time they're asked.
+        composites[depth] = composite;
+        parts[depth] = composite.getSearchConditions();
+        nextParts[depth] = 0;
+
+        enterComposite(composite, depth++);
+    }
+
+    /**
+     * Pops the innermost composite off our stack.
+     */
+    private SearchCondition<T> close() {
+        final SearchCondition<T> composite = composites[--depth];
+
+        composites[depth] = null;
+        parts[depth] = null;
+
+        return composite;
+    }
+
+    /**
+     * Provides a convenience method to create an array of composites, as Java won't create generic arrays for us.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> SearchCondition<T>[] newComposites(final int length) {
+        return (SearchCondition<T>[]) new SearchCondition<?>[length];
+    }
+
+    /**
+     * Provides a convenience method to create an array of the parts of composites, as Java won't create generic arrays
+     * for us.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<SearchCondition<T>>[] newParts(final int length) {
+        return (List<SearchCondition<T>>[]) new List<?>[length];
+    }
+}
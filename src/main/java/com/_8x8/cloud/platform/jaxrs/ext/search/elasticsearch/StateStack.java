@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.List;
+
+/**
+ * Provides the stack of partially built expressions our visitors keep while walking a parsed filter, one frame per
+ * level of nesting. Unlike {@link java.util.Stack}, this is backed by a plain array, isn't synchronized, and never
+ * throws a frame away: popped frames are kept, and cleared for re-use by the next push. Combined with
+ * {@link #clear()}, a visitor that's reset between filters settles down to allocating nothing at all for its state,
+ * no matter how many filters it goes through.
+ * <p>
+ * The catch is that a popped frame is only good until the next push, so callers must be done with it by then. Our
+ * visitors always are, as they fold a popped frame into a single expression straight away.
+ * <p>
+ * Like the visitors themselves, this class is not threadsafe.
+ *
+ * @param <E> The type of the partially built expressions.
+ */
+class StateStack<E> {
+    /**
+     * Holds the number of frames we start out with. Very few filters nest anywhere near this deeply.
+     */
+    static final int INITIAL_DEPTH = 8;
+
+    /**
+     * Holds the initial capacity of each frame. Most groups hold only a handful of comparisons.
+     */
+    static final int FRAME_CAPACITY = 8;
+
+    private List<E>[] frames;
+    private int size;
+
+    List<E>[] getFrames() {
+        return frames;
+    }
+
+    /**
+     * Constructs an empty stack.
+     */
+    StateStack() {
+        this.frames = newFrames(INITIAL_DEPTH);
+    }
+
+    /**
+     * Pushes an empty frame onto the stack, re-using a previously popped frame if there is one.
+     *
+     * @return The frame now at the top of the stack, which is always empty.
+     */
+    List<E> push() {
+        if (size == frames.length) {
+            frames = Arrays.copyOf(frames, size << 1);
+        }
+
+        List<E> frame = frames[size];
+
+        if (null == frame) {
+            frame = new ArrayList<>(FRAME_CAPACITY);
+            frames[size] = frame;
+        } else {
+            frame.clear();
+        }
+
+        size++;
+        return frame;
+    }
+
+    /**
+     * @return The frame at the top of the stack.
+     * @throws EmptyStackException If the stack is empty.
+     */
+    List<E> peek() {
+        if (0 == size) {
+            throw new EmptyStackException();
+        }
+
+        return frames[size - 1];
+    }
+
+    /**
+     * Pops the frame at the top of the stack. The frame remains valid until the next call to {@link #push()}.
+     *
+     * @return The frame that was at the top of the stack.
+     * @throws EmptyStackException If the stack is empty.
+     */
+    List<E> pop() {
+        final List<E> frame = peek();
+        size--;
+
+        return frame;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * Empties the stack, clearing every frame ever used so we don't hang on to expressions from an earlier filter. The
+     * frames themselves are kept for re-use.
+     */
+    void clear() {
+        for (final List<E> frame : frames) {
+            if (null == frame) {
+                break;
+            }
+
+            frame.clear();
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Provides a convenience method to create an array of frames, as Java won't create generic arrays for us. Only
+     * ever holding {@code List<E>}s, the array is safe to use as such.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> List<E>[] newFrames(final int length) {
+        return (List<E>[]) new List<?>[length];
+    }
+}
@@ -16,25 +16,47 @@
 
 package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
 import org.apache.cxf.jaxrs.ext.search.SearchUtils;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Provides a class to make using {@link TranslatingQueryBuilderVisitor}s less cumbersome to use.
+ * <p>
+ * As the output of a translation depends only on the filter and on the settings given to the constructor, translated
+ * filters can optionally be cached via {@link TranslatingQueryBuilderOptions}, either by filter string alone, or also
+ * by {@link QueryFingerprint} so that equivalent filters share a translation.
+ * <p>
+ * Filters may also be handed over as any {@link CharSequence}, or straight off the wire as percent-encoded bytes via
+ * {@link #translateFiqlQuery(ByteBuffer)}, in which case they're decoded and parsed without intermediate strings.
+ * <p>
+ * Visitors, along with their date formats, are kept around and re-used, one per thread. Please see {@link VisitorPool}
+ * for details.
  */
 public class TranslatingQueryBuilder<T> {
     private final FiqlParser<T> fiqlParser;
+    private final NativeFiqlParser<T> nativeParser;
     private final Map<String, String> fieldMap;
     private final String dateFormat;
     private final Map<String, FiqlTransformationFunction> transformationFunctions;
+    private final BoundedCache<String, String> translationCache;
+    private final BoundedCache<QueryFingerprint, String> fingerprintCache;
+    private final int maxDepth;
+    private final VisitorPool<TranslatingQueryBuilderVisitor<T>> visitorPool = new VisitorPool<>();
 
     FiqlParser<T> getFiqlParser() {
         return fiqlParser;
     }
 
+    NativeFiqlParser<T> getNativeParser() {
+        return nativeParser;
+    }
+
     Map<String, String> getFieldMap() {
         return fieldMap;
     }
@@ -47,6 +69,22 @@ public class TranslatingQueryBuilder<T> {
         return transformationFunctions;
     }
 
+    BoundedCache<String, String> getTranslationCache() {
+        return translationCache;
+    }
+
+    BoundedCache<QueryFingerprint, String> getFingerprintCache() {
+        return fingerprintCache;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    VisitorPool<TranslatingQueryBuilderVisitor<T>> getVisitorPool() {
+        return visitorPool;
+    }
+
     /**
      * Constructs a query builder that allows for easy translation of FIQL expressions.
      * <p>
@@ -63,6 +101,28 @@ public class TranslatingQueryBuilder<T> {
      */
     public TranslatingQueryBuilder(final Class<T> clazz, final Map<String, String> fieldMap, final String dateFormat,
                                    final Map<String, FiqlTransformationFunction> transformationFunctions) {
+        this(clazz, fieldMap, dateFormat, transformationFunctions, new TranslatingQueryBuilderOptions());
+    }
+
+    /**
+     * Constructs a query builder that allows for easy translation of FIQL expressions, using the given options.
+     * <p>
+     * Please see the {@link TranslatingQueryBuilderVisitor} constructor Javadocs for details. If you enable caching,
+     * please don't modify the field map or transformation functions afterwards, as they're baked into cached results.
+     *
+     * @param clazz                   The model class to use when translating expressions.
+     * @param fieldMap                An optional mapping of field names in the format of {@code A -> B}, such that
+     *                                fields of name {@code A} will be translated to name {@code B}.
+     * @param dateFormat              An optional date format, compatible with {@link java.text.DateFormat} instances,
+     *                                for parsing {@link java.util.Date} entities within translated expressions.
+     * @param transformationFunctions An optional mapping of post-translation field names to
+     *                                {@link FiqlTransformationFunction} for custom fine-grained, field level transformations.
+     * @param options                 The {@link TranslatingQueryBuilderOptions} to apply. Must not be null.
+     * @see TranslatingQueryBuilderVisitor
+     */
+    public TranslatingQueryBuilder(final Class<T> clazz, final Map<String, String> fieldMap, final String dateFormat,
+                                   final Map<String, FiqlTransformationFunction> transformationFunctions,
+                                   final TranslatingQueryBuilderOptions options) {
         final Map<String, String> parserConfiguration = new HashMap<>();
 
         // Make sure to propagate the custom date format, if any, so we can have consistent date handling and we don't
@@ -71,22 +131,188 @@ public class TranslatingQueryBuilder<T> {
             parserConfiguration.put(SearchUtils.DATE_FORMAT_PROPERTY, dateFormat);
         }
 
-        this.fiqlParser = new FiqlParser<>(clazz, parserConfiguration);
+        // Dates are offered to the date parser first, if there is one, and only fall back to the date format above.
+        this.fiqlParser = null == options.dateParser() ? new FiqlParser<>(clazz, parserConfiguration) :
+                new FiqlValueConverter<>(clazz, parserConfiguration, options.dateParser());
+        this.nativeParser = new NativeFiqlParser<>(clazz, parserConfiguration, options.dateParser());
         this.fieldMap = fieldMap;
         this.dateFormat = dateFormat;
         this.transformationFunctions = transformationFunctions;
+
+        // Weigh each entry by the characters it holds onto, so a few enormous filters can't push out everything else.
+        this.translationCache = options.cacheSize() > 0 ?
+                new BoundedCache<>(options.cacheSize(), options.cacheWeight(), (filter, translated) -> filter.length() + translated.length()) : null;
+        this.fingerprintCache = null != translationCache && options.fingerprintCacheKeys() ?
+                new BoundedCache<>(options.cacheSize(), options.cacheWeight(), (fingerprint, translated) -> fingerprint.getCanonicalForm().length() + translated.length()) : null;
+        this.maxDepth = options.maxDepth();
     }
 
     /**
      * Translates a FIQL query string based on the type assigned to the given {@link TranslatingQueryBuilder}.
      * The output of the translation will be a syntactically valid FIQL query string.
+     * <p>
+     * Filters holding a duration, such as {@code updatedTime=gt=-P1D}, come out as the date it works out to at the
+     * time of translation, so they're always translated afresh rather than cached.
      *
      * @param filter The FIQL query filter to translate to another form.
      * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
      */
     public String translateFiqlQuery(final String filter) {
-        final TranslatingQueryBuilderVisitor<T> visitor = createVisitor(getFieldMap(), getDateFormat(), getTransformationFunctions());
-        visitor.visit(getFiqlParser().parse(filter));
+        final BoundedCache<String, String> cache = getTranslationCache();
+
+        if (null == cache || FiqlValueConverter.containsDuration(filter)) {
+            return doTranslateFiqlQuery(filter);
+        }
+
+        // Strings are immutable, so unlike query builders we can hand out cached results as-is.
+        return cache.get(filter, this::doTranslateFiqlQuery);
+    }
+
+    /**
+     * Translates a FIQL query held in any {@link CharSequence}, such as a {@link java.nio.CharBuffer} or
+     * {@link StringBuilder}. The filter is parsed in place by a {@link NativeFiqlParser}, and is never copied into a
+     * {@link String} as a whole, unless caching is enabled, as the cache is keyed by filter string.
+     * <p>
+     * The translation is identical to what {@link #translateFiqlQuery(String)} would have produced, with one exception.
+     * CXF rejects wildcards over enum properties, such as {@code status==AVAIL*}, while the native parser passes them
+     * through as-is, so such filters only translate here, and only without caching.
+     *
+     * @param filter The FIQL query filter to translate to another form. Must not be null.
+     * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
+     */
+    public String translateFiqlQuery(final CharSequence filter) {
+        if (null != getTranslationCache()) {
+            return translateFiqlQuery(filter.toString());
+        }
+
+        return translateSearchCondition(getNativeParser().parse(filter));
+    }
+
+    /**
+     * Translates a FIQL query straight off the wire, as percent-encoded UTF-8 bytes, such as the raw value of a query
+     * string parameter. The bytes between the position and limit of the buffer are URL-decoded and UTF-8 decoded in a
+     * single pass, and then parsed as per {@link #translateFiqlQuery(CharSequence)}. The position of the buffer is
+     * left untouched.
+     *
+     * @param filter The percent-encoded FIQL query filter to translate. Must not be null.
+     * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
+     * @throws SearchParseException If the filter holds an invalid percent-encoding, or is not valid FIQL.
+     */
+    public String translateFiqlQuery(final ByteBuffer filter) {
+        return translateFiqlQuery(FiqlInputDecoder.decode(filter));
+    }
+
+    /**
+     * Translates a FIQL query held in a slice of an array as percent-encoded UTF-8 bytes. Please see
+     * {@link #translateFiqlQuery(ByteBuffer)} for details.
+     *
+     * @param filter The array holding the percent-encoded FIQL query filter. Must not be null.
+     * @param offset The offset of the filter within the array.
+     * @param length The length of the filter, in bytes.
+     * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
+     * @throws SearchParseException If the filter holds an invalid percent-encoding, or is not valid FIQL.
+     */
+    public String translateFiqlQuery(final byte[] filter, final int offset, final int length) {
+        return translateFiqlQuery(FiqlInputDecoder.decode(filter, offset, length));
+    }
+
+    /**
+     * Computes the {@link QueryFingerprint} of a given FIQL filter query string.
+     *
+     * @param filter The FIQL query filter to fingerprint.
+     * @return A non-null {@link QueryFingerprint} for the filter.
+     * @see ElasticsearchQueryBuilder#fingerprint(String)
+     */
+    public QueryFingerprint fingerprint(final String filter) {
+        return fingerprint(getFiqlParser().parse(filter));
+    }
+
+    /**
+     * Provides a snapshot of the statistics for the translation cache.
+     *
+     * @return The current {@link CacheStatistics}, or {@link CacheStatistics#EMPTY} if caching is disabled.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return null == getTranslationCache() ? CacheStatistics.EMPTY : getTranslationCache().getStatistics();
+    }
+
+    /**
+     * Provides a snapshot of the statistics for the fingerprint cache, which is only consulted on a miss against the
+     * translation cache.
+     *
+     * @return The current {@link CacheStatistics}, or {@link CacheStatistics#EMPTY} if fingerprinting is disabled.
+     */
+    public CacheStatistics getFingerprintCacheStatistics() {
+        return null == getFingerprintCache() ? CacheStatistics.EMPTY : getFingerprintCache().getStatistics();
+    }
+
+    /**
+     * Does the actual work of parsing the given filter, and running the results through a visitor. If fingerprinting
+     * is enabled, we'll first check for a translation of an equivalent, differently spelled filter, unless the filter
+     * holds a duration.
+     *
+     * @param filter The FIQL query filter to translate to another form.
+     * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
+     */
+    String doTranslateFiqlQuery(final String filter) {
+        final SearchCondition<T> searchCondition = getFiqlParser().parse(filter);
+        final BoundedCache<QueryFingerprint, String> cache = getFingerprintCache();
+
+        if (null == cache || FiqlValueConverter.containsDuration(filter)) {
+            return translateSearchCondition(searchCondition);
+        }
+
+        return cache.get(fingerprint(searchCondition), key -> translateSearchCondition(searchCondition));
+    }
+
+    /**
+     * Runs an already parsed filter through a visitor.
+     *
+     * @param searchCondition The parsed filter to translate.
+     * @return A translated FIQL query filter, matching the mappings and translations specified in the constructor.
+     */
+    String translateSearchCondition(final SearchCondition<T> searchCondition) {
+        final TranslatingQueryBuilderVisitor<T> visitor = acquireVisitor();
+
+        try {
+            visitor.visit(searchCondition);
+            return visitor.getQuery();
+        } finally {
+            releaseVisitor(visitor);
+        }
+    }
+
+    /**
+     * Takes the current thread's idle visitor from the pool, or creates a new one if there isn't one. Every visitor
+     * acquired must be handed to {@link #releaseVisitor(TranslatingQueryBuilderVisitor)} once it's done with.
+     *
+     * @return A freshly reset {@link TranslatingQueryBuilderVisitor}, owned by the caller until released.
+     */
+    TranslatingQueryBuilderVisitor<T> acquireVisitor() {
+        final TranslatingQueryBuilderVisitor<T> visitor = getVisitorPool().poll();
+        return null == visitor ? createVisitor(getFieldMap(), getDateFormat(), getTransformationFunctions()) : visitor;
+    }
+
+    /**
+     * Resets a visitor, and gives it back to the pool for the current thread to use again. The visitor mustn't be used
+     * by the caller afterwards.
+     *
+     * @param visitor The visitor to release, as acquired via {@link #acquireVisitor()}.
+     */
+    void releaseVisitor(final TranslatingQueryBuilderVisitor<T> visitor) {
+        visitor.reset();
+        getVisitorPool().offer(visitor);
+    }
+
+    /**
+     * Computes the {@link QueryFingerprint} of an already parsed filter.
+     *
+     * @param searchCondition The parsed filter to fingerprint.
+     * @return The {@link QueryFingerprint} for the parsed filter.
+     */
+    QueryFingerprint fingerprint(final SearchCondition<T> searchCondition) {
+        final QueryFingerprintVisitor<T> visitor = createFingerprintVisitor();
+        visitor.visit(searchCondition);
 
         return visitor.getQuery();
     }
@@ -99,6 +325,16 @@ public class TranslatingQueryBuilder<T> {
      */
     TranslatingQueryBuilderVisitor<T> createVisitor(final Map<String, String> fieldMap, final String dateFormat,
                                                     final Map<String, FiqlTransformationFunction> transformationFunctions) {
-        return new TranslatingQueryBuilderVisitor<>(fieldMap, dateFormat, transformationFunctions);
+        return new TranslatingQueryBuilderVisitor<>(fieldMap, dateFormat, transformationFunctions, getMaxDepth());
+    }
+
+    /**
+     * Provides a test-friendly method for creating instances of {@link QueryFingerprintVisitor} for fingerprinting
+     * parsed FIQL expressions.
+     *
+     * @return A non-null, valid, and fully primed {@link QueryFingerprintVisitor}.
+     */
+    QueryFingerprintVisitor<T> createFingerprintVisitor() {
+        return new QueryFingerprintVisitor<>(getMaxDepth());
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Holds the optional settings for a {@link TranslatingQueryBuilder}, in the same fluent style as
+ * {@link ElasticsearchQueryBuilderOptions}:
+ * <pre>
+ *     final TranslatingQueryBuilder&lt;MetadataRecord&gt; builder = new TranslatingQueryBuilder&lt;&gt;(MetadataRecord.class,
+ *             fieldMap, dateFormat, transformationFunctions,
+ *             new TranslatingQueryBuilderOptions().cacheSize(500).cacheWeight(1_000_000));
+ * </pre>
+ * Every option defaults to the behavior of a plain {@link TranslatingQueryBuilder}, and the values are read once when
+ * the {@link TranslatingQueryBuilder} is constructed.
+ */
+public class TranslatingQueryBuilderOptions {
+    private int cacheSize;
+    private long cacheWeight = Long.MAX_VALUE;
+    private boolean fingerprintCacheKeys;
+    private int maxDepth = Integer.MAX_VALUE;
+    private FiqlDateParser dateParser;
+
+    /**
+     * Sets the maximum number of translated filters to cache, keyed by the original filter string. Caching is off by
+     * default.
+     * <p>
+     * As with {@link ElasticsearchQueryBuilderOptions#cacheSize(int)}, filters holding a duration are never cached.
+     *
+     * @param cacheSize The maximum number of entries to cache, or {@code 0} to disable caching.
+     * @return This instance, for chaining.
+     */
+    public TranslatingQueryBuilderOptions cacheSize(final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException(String.format("Cache size must not be negative, got %d", cacheSize));
+        }
+
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum total weight of the translation cache, where the weight of an entry is the combined length of
+     * the original and the translated filter strings. Unbounded by default, so only {@link #cacheSize(int)} applies.
+     *
+     * @param cacheWeight The maximum total weight, in characters. Must be positive.
+     * @return This instance, for chaining.
+     */
+    public TranslatingQueryBuilderOptions cacheWeight(final long cacheWeight) {
+        if (cacheWeight <= 0) {
+            throw new IllegalArgumentException(String.format("Cache weight must be positive, got %d", cacheWeight));
+        }
+
+        this.cacheWeight = cacheWeight;
+        return this;
+    }
+
+    public long cacheWeight() {
+        return cacheWeight;
+    }
+
+    /**
+     * Sets whether or not cache misses should fall back to looking up the {@link QueryFingerprint} of the filter, so
+     * that equivalent filters share a single translation. Off by default, and has no effect unless caching is enabled.
+     *
+     * @param fingerprintCacheKeys {@code True} to also cache by fingerprint, else {@code false}.
+     * @return This instance, for chaining.
+     * @see ElasticsearchQueryBuilderOptions#fingerprintCacheKeys(boolean)
+     */
+    public TranslatingQueryBuilderOptions fingerprintCacheKeys(final boolean fingerprintCacheKeys) {
+        this.fingerprintCacheKeys = fingerprintCacheKeys;
+        return this;
+    }
+
+    public boolean fingerprintCacheKeys() {
+        return fingerprintCacheKeys;
+    }
+
+    /**
+     * Sets the maximum levels of parenthesis a filter may nest, counted as per {@link QueryBudget#maxDepth(int)}.
+     * Deeper filters get a {@link QueryBudgetExceededException} from the visitor. Unlimited by default, as visitors
+     * walk filters without recursion, however deep they go.
+     *
+     * @param maxDepth The maximum depth, where {@code 0} allows no parenthesis at all.
+     * @return This instance, for chaining.
+     */
+    public TranslatingQueryBuilderOptions maxDepth(final int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException(String.format("Maximum depth must not be negative, got %d", maxDepth));
+        }
+
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the {@link FiqlDateParser} that date literals are offered to before CXF sees them, such as an
+     * {@link IsoDateParser}, which also takes times, offsets and epoch milliseconds, at a fraction of the cost of the
+     * {@link java.text.SimpleDateFormat} CXF would build for each literal. Literals the parser declines are still
+     * parsed by CXF. By default, every date is left to CXF.
+     *
+     * @param dateParser The {@link FiqlDateParser} to use, or null to leave dates to CXF.
+     * @return This instance, for chaining.
+     */
+    public TranslatingQueryBuilderOptions dateParser(final FiqlDateParser dateParser) {
+        this.dateParser = dateParser;
+        return this;
+    }
+
+    public FiqlDateParser dateParser() {
+        return dateParser;
+    }
+}
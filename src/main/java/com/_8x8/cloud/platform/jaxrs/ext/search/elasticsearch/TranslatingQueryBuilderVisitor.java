@@ -24,12 +24,10 @@ import org.apache.cxf.jaxrs.ext.search.visitor.AbstractSearchConditionVisitor;
 
 import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import static org.apache.cxf.jaxrs.ext.search.ConditionType.AND;
 import static org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser.CONDITION_MAP;
@@ -55,12 +53,13 @@ public class TranslatingQueryBuilderVisitor<T> extends AbstractSearchConditionVi
     private static final String CLOSE_PAREN = ")";
     private static final String EMPTY_STRING = "";
 
-    private final Stack<List<String>> stateStack = new Stack<>();
+    private final StateStack<String> stateStack = new StateStack<>();
     private final SimpleDateFormat simpleDateFormat;
     private final Map<String, FiqlTransformationFunction> transformationFunctions;
+    private final SearchConditionWalker<T> walker;
     private final static FiqlTransformationFunction defaultHandler = (property, operation, value) -> String.format("%s%s%s", property, operation, value);
 
-    Stack<List<String>> getStateStack() {
+    StateStack<String> getStateStack() {
         return stateStack;
     }
 
@@ -76,6 +75,10 @@ public class TranslatingQueryBuilderVisitor<T> extends AbstractSearchConditionVi
         return defaultHandler;
     }
 
+    SearchConditionWalker<T> getWalker() {
+        return walker;
+    }
+
     /**
      * Constructs a translating visitor.
      * <p>
@@ -95,6 +98,21 @@ public class TranslatingQueryBuilderVisitor<T> extends AbstractSearchConditionVi
      */
     public TranslatingQueryBuilderVisitor(final Map<String, String> fieldMap, final String dateFormat,
                                           final Map<String, FiqlTransformationFunction> transformationFunctions) {
+        this(fieldMap, dateFormat, transformationFunctions, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a translating visitor that refuses expressions nested beyond the given depth. Please see
+     * {@link #TranslatingQueryBuilderVisitor(Map, String, Map)} for details of the other parameters.
+     *
+     * @param fieldMap                A mapping of field values to aliases.
+     * @param dateFormat              An optional string representing a {@link java.text.DateFormat}.
+     * @param transformationFunctions An optional mapping of property names to {@link FiqlTransformationFunction}.
+     * @param maxDepth                The maximum levels of parenthesis an expression may nest, as per
+     *                                {@link QueryBudget#maxDepth(int)}. Deeper expressions get a {@link QueryBudgetExceededException}.
+     */
+    public TranslatingQueryBuilderVisitor(final Map<String, String> fieldMap, final String dateFormat,
+                                          final Map<String, FiqlTransformationFunction> transformationFunctions, final int maxDepth) {
         // Honor any field map overrides.
         super(null == fieldMap ? new HashMap<>() : fieldMap);
 
@@ -104,32 +122,29 @@ public class TranslatingQueryBuilderVisitor<T> extends AbstractSearchConditionVi
         // Likewise if we've been given any custom transformation functions.
         this.transformationFunctions = (null == transformationFunctions) ? new HashMap<>() : transformationFunctions;
 
+        // Walk expressions without recursion, so deep ones can't overflow the stack.
+        this.walker = new Walker(maxDepth);
+
         // Start that stack off right.
-        getStateStack().push(new ArrayList<>());
+        getStateStack().push();
+    }
+
+    /**
+     * Resets this visitor so that it can be used for another expression, as though it had just been constructed. This
+     * is safe to call at any time, including after a visit has failed part way through.
+     * <p>
+     * As with any other visitor, instances must never be shared between threads, but a single thread may re-use one
+     * for as many expressions as it likes, so long as it calls this in between. This saves building a new
+     * {@link SimpleDateFormat} every time, which is what {@link TranslatingQueryBuilder} does.
+     */
+    public void reset() {
+        getStateStack().clear();
+        getStateStack().push();
     }
 
     @Override
     public void visit(final SearchCondition<T> searchCondition) {
-        final PrimitiveStatement statement = searchCondition.getStatement();
-
-        // If we've got a primitive statement, we're at a leaf expression like foo==bar.
-        if (null != statement) {
-            if (statement.getProperty() != null) {
-                getStateStack().peek().add(buildSimpleExpression(statement));
-            }
-        } else {
-            // Otherwise we're within a composite structure like (foo==bar OR baz==quux)
-            getStateStack().push(new ArrayList<>());
-
-            // Recurse down our tree till we hit our leaves, building our state as we go.
-            searchCondition.getSearchConditions().forEach(x -> x.accept(this));
-
-            // Unwind the stack and build our current level of glue.
-            final String builder = buildCompositeExpression(searchCondition.getConditionType(), getStateStack().pop());
-
-            // Slap the currently transformed value back onto the stack so we can re-compose it.
-            getStateStack().peek().add(builder);
-        }
+        getWalker().walk(searchCondition);
     }
 
     @Override
@@ -236,4 +251,36 @@ public class TranslatingQueryBuilderVisitor<T> extends AbstractSearchConditionVi
         return getPrimitiveFieldClass(statement, statement.getProperty(),
                 statement.getValue().getClass(), statement.getValueType(), statement.getValue());
     }
-}
\ No newline at end of file
+
+    /**
+     * Builds up our state as the {@link SearchConditionWalker} makes its way through the expression.
+     */
+    class Walker extends SearchConditionWalker<T> {
+        Walker(final int maxDepth) {
+            super(maxDepth);
+        }
+
+        @Override
+        void visitStatement(final PrimitiveStatement statement) {
+            // We're at a leaf expression like foo==bar.
+            if (statement.getProperty() != null) {
+                getStateStack().peek().add(buildSimpleExpression(statement));
+            }
+        }
+
+        @Override
+        void enterComposite(final SearchCondition<T> composite, final int depth) {
+            // We're within a composite structure like (foo==bar OR baz==quux), whose parts build up on a fresh frame.
+            getStateStack().push();
+        }
+
+        @Override
+        void exitComposite(final SearchCondition<T> composite) {
+            // Unwind the stack and build our current level of glue.
+            final String builder = buildCompositeExpression(composite.getConditionType(), getStateStack().pop());
+
+            // Slap the currently transformed value back onto the stack so we can re-compose it.
+            getStateStack().peek().add(builder);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+
+import java.util.List;
+
+/**
+ * Folds OR'ed ranges over the same field into as few ranges as possible, wherever they are among the should clauses of
+ * an OR group. Ranges that overlap, or touch at a value at least one of them includes, become a single range covering
+ * both, so {@code a=lt=10,a=lt=20} becomes {@code a=lt=20}, and {@code a=ge=1;a=le=5,a=ge=5;a=le=9} becomes one range
+ * from 1 to 9. Should the ranges over a field end up covering everything, as with {@code a=lt=5,a=ge=5}, all that's
+ * left is to check the field has a value at all, and the range is replaced by an {@code exists} query.
+ * <p>
+ * Ranges only touch when they share a value; we know nothing of the mapping, so {@code a=le=4,a=ge=5} is left be, even
+ * though there's nothing in between for whole numbers. Bounds are only compared when we can be sure of the outcome;
+ * see {@link RangeBounds}. Only an OR group is folded, which is to say a plain bool query with nothing but should and
+ * must_not clauses.
+ */
+class UnionRangesRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.UNION_RANGES;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery) || !boolQuery.must().isEmpty() || !boolQuery.filter().isEmpty()) {
+            return null;
+        }
+
+        final List<QueryBuilder> clauses = boolQuery.should();
+        boolean merged = false;
+
+        for (int index = 0; index < clauses.size(); index++) {
+            if (!(clauses.get(index) instanceof RangeQueryBuilder)) {
+                continue;
+            }
+
+            final RangeQueryBuilder range = (RangeQueryBuilder) clauses.get(index);
+            boolean grown = true;
+
+            // Each time the range grows, it may reach ranges it didn't before, so we go round again until it stops.
+            while (grown) {
+                grown = false;
+                int otherIndex = index + 1;
+
+                while (otherIndex < clauses.size()) {
+                    final QueryBuilder otherClause = clauses.get(otherIndex);
+
+                    if (RangeBounds.canCombine(range, otherClause) && union(range, (RangeQueryBuilder) otherClause)) {
+                        clauses.remove(otherIndex);
+                        grown = true;
+                        merged = true;
+                    } else {
+                        otherIndex++;
+                    }
+                }
+            }
+
+            if (null == range.from() && null == range.to() && isPlainLeaf(range) && null == range.relation()) {
+                clauses.set(index, new ExistsQueryBuilder(range.fieldName()));
+                merged = true;
+            }
+        }
+
+        return merged ? boolQuery : null;
+    }
+
+    /**
+     * Provides a mechanism to grow a range to cover another range over the same field, so long as the two overlap or
+     * touch. Nothing is changed otherwise.
+     *
+     * @param range      The range to grow, in place.
+     * @param otherRange The range to cover.
+     * @return {@code True} if the range now covers both, else {@code false} if the ranges don't meet, or their bounds
+     * couldn't be compared.
+     */
+    boolean union(final RangeQueryBuilder range, final RangeQueryBuilder otherRange) {
+        if (!meets(range, otherRange) || !meets(otherRange, range)) {
+            return false;
+        }
+
+        final Integer lowerOrder = null == range.from() || null == otherRange.from() ? Integer.valueOf(0) :
+                RangeBounds.compare(range.from(), otherRange.from());
+        final Integer upperOrder = null == range.to() || null == otherRange.to() ? Integer.valueOf(0) :
+                RangeBounds.compare(range.to(), otherRange.to());
+
+        if (null == lowerOrder || null == upperOrder) {
+            return false;
+        }
+
+        // The lower lower bound wins, or the inclusive one if they're the same, and a missing bound beats them all.
+        if (null == otherRange.from() || lowerOrder > 0) {
+            range.from(otherRange.from());
+            range.includeLower(otherRange.includeLower());
+        } else if (null != range.from() && 0 == lowerOrder) {
+            range.includeLower(range.includeLower() || otherRange.includeLower());
+        }
+
+        // Likewise, the higher upper bound wins.
+        if (null == otherRange.to() || upperOrder < 0) {
+            range.to(otherRange.to());
+            range.includeUpper(otherRange.includeUpper());
+        } else if (null != range.to() && 0 == upperOrder) {
+            range.includeUpper(range.includeUpper() || otherRange.includeUpper());
+        }
+
+        return true;
+    }
+
+    /**
+     * Provides a convenience method to determine whether the lower end of one range reaches the upper end of another,
+     * so that there's no gap between the two.
+     *
+     * @return {@code True} if there's no gap, else {@code false} if there is, or the bounds can't be compared.
+     */
+    boolean meets(final RangeQueryBuilder range, final RangeQueryBuilder otherRange) {
+        if (null == range.from() || null == otherRange.to()) {
+            return true;
+        }
+
+        final Integer order = RangeBounds.compare(range.from(), otherRange.to());
+        return null != order && (order < 0 || (0 == order && (range.includeLower() || otherRange.includeUpper())));
+    }
+}
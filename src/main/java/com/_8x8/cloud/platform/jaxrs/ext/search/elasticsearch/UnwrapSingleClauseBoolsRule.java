@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Swaps a bool query holding a single must or should clause for the clause itself, as a bool query of one clause
+ * matches exactly what the clause does. These turn up wherever flattening leaves a lone clause behind, or a
+ * {@link QueryRewriteRule} folds a whole group into one query. A lone must_not clause is left alone, as it's the bool
+ * query that does the negating. Only plain glue is unwrapped; see
+ * {@link AbstractBoolRewriteRule#isPlain(BoolQueryBuilder)}.
+ */
+class UnwrapSingleClauseBoolsRule extends AbstractBoolRewriteRule {
+    @Override
+    public String getName() {
+        return QueryOptimizer.UNWRAP_SINGLE_CLAUSE_BOOLS;
+    }
+
+    @Override
+    QueryBuilder rewriteBool(final BoolQueryBuilder boolQuery) {
+        if (!isPlain(boolQuery) || !boolQuery.filter().isEmpty() || !boolQuery.mustNot().isEmpty()) {
+            return null;
+        }
+
+        if (1 == boolQuery.must().size() && boolQuery.should().isEmpty()) {
+            return boolQuery.must().get(0);
+        }
+
+        if (1 == boolQuery.should().size() && boolQuery.must().isEmpty()) {
+            return boolQuery.should().get(0);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+/**
+ * Keeps a single idle visitor per thread, so that query builders can re-use visitors rather than building a new one
+ * for every filter. Visitors aren't threadsafe, so keeping them per thread means no locking at all, and the pool never
+ * holds more visitors than there are threads using the builder.
+ * <p>
+ * Taking a visitor out of the pool leaves the thread's slot empty until it's given back, so re-entrant use, say from a
+ * {@link FiqlTransformationFunction} translating another filter with the same builder, simply finds nothing and builds
+ * a visitor of its own. It's up to the caller to reset visitors before giving them back.
+ * <p>
+ * Please note that each pool holds on to one visitor for every thread that has used it, for as long as the pool
+ * itself is around. Visitors are small, and don't refer back to their builder, so this is no worse than keeping the
+ * builder itself around.
+ *
+ * @param <V> The type of visitor to pool.
+ */
+class VisitorPool<V> {
+    private final ThreadLocal<V> idleVisitors = new ThreadLocal<>();
+
+    /**
+     * Takes the current thread's idle visitor out of the pool.
+     *
+     * @return The idle visitor, or null if the current thread doesn't have one.
+     */
+    V poll() {
+        final V visitor = idleVisitors.get();
+
+        if (null != visitor) {
+            idleVisitors.set(null);
+        }
+
+        return visitor;
+    }
+
+    /**
+     * Gives a visitor back to the pool, as the current thread's idle visitor.
+     *
+     * @param visitor The visitor, which must already be reset.
+     */
+    void offer(final V visitor) {
+        idleVisitors.set(visitor);
+    }
+}
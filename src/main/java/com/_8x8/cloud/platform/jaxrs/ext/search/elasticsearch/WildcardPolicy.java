@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+
+/**
+ * Decides which query a value containing a {@code *} turns into. A {@code wildcard} query has to be run as an
+ * automaton over the terms of the field, which is overkill for the patterns most filters actually use, so the
+ * pattern is classified first:
+ * <pre>
+ *     * A bare {@code *}, as in {@code name==*}, matches any value at all, and becomes an {@code exists} query.
+ *     * Trailing wildcards only, as in {@code name==abc*}, become a {@code prefix} query for {@code abc}, which just
+ *       seeks to the first matching term.
+ *     * Anything else has a leading or infix wildcard, as in {@code name==*abc} or {@code name==a*c}, and is up to
+ *       the {@link Action} given to {@link #leadingWildcards(Action)}.
+ * </pre>
+ * Elasticsearch also treats {@code ?} and {@code \} as special within a wildcard query, so patterns holding either
+ * are always left as wildcard queries, whatever the policy, to keep their meaning. Setters follow the same fluent style
+ * as {@link ElasticsearchQueryBuilderOptions}, and by default every wildcard is allowed:
+ * <pre>
+ *     final WildcardPolicy policy = new WildcardPolicy()
+ *             .leadingWildcards(WildcardPolicy.Action.REVERSE)
+ *             .reverseSubfield("reversed");
+ * </pre>
+ * As with {@link QueryBudget}, the values are meant to be set up once. Policies are threadsafe so long as they aren't
+ * changed while in use.
+ */
+public class WildcardPolicy {
+    private static final char WILDCARD = '*';
+    private static final char SINGLE_CHARACTER_WILDCARD = '?';
+    private static final char ESCAPE = '\\';
+
+    /**
+     * Lists what can be done with a pattern holding a leading or infix wildcard.
+     */
+    public enum Action {
+        /**
+         * Sends the pattern to Elasticsearch as a wildcard query, as is.
+         */
+        ALLOW,
+
+        /**
+         * Rejects the filter with an {@link IllegalArgumentException}.
+         */
+        REJECT,
+
+        /**
+         * Matches a pattern with a leading wildcard against the reverse subfield, given via
+         * {@link #reverseSubfield(String)}, in which every term is indexed backwards. There, {@code *abc} becomes a
+         * prefix query for {@code cba}. Patterns that end with a wildcard gain nothing from being reversed, and are
+         * allowed as is, as is everything when no reverse subfield has been given.
+         */
+        REVERSE
+    }
+
+    private Action leadingWildcards = Action.ALLOW;
+    private String reverseSubfield;
+
+    /**
+     * Sets what to do with patterns holding a leading or infix wildcard.
+     *
+     * @param leadingWildcards The {@link Action} to take. Must not be null.
+     * @return This instance, for chaining.
+     */
+    public WildcardPolicy leadingWildcards(final Action leadingWildcards) {
+        if (null == leadingWildcards) {
+            throw new IllegalArgumentException("Leading wildcard action must not be null");
+        }
+
+        this.leadingWildcards = leadingWildcards;
+        return this;
+    }
+
+    public Action leadingWildcards() {
+        return leadingWildcards;
+    }
+
+    /**
+     * Sets the name of the subfield holding each field's terms backwards, for use with {@link Action#REVERSE}. This is
+     * typically a multi-field analyzed with the {@code reverse} token filter, so {@code reversed} would send matches
+     * against {@code tenantName} to {@code tenantName.reversed}.
+     *
+     * @param reverseSubfield The name of the reverse subfield, or null if there isn't one.
+     * @return This instance, for chaining.
+     */
+    public WildcardPolicy reverseSubfield(final String reverseSubfield) {
+        this.reverseSubfield = reverseSubfield;
+        return this;
+    }
+
+    public String reverseSubfield() {
+        return reverseSubfield;
+    }
+
+    /**
+     * Provides a mechanism to turn a pattern holding at least one {@code *} into the cheapest query matching it.
+     *
+     * @param field   The name of the field to match.
+     * @param pattern The pattern to match.
+     * @return An {@link ExistsQueryBuilder}, {@link PrefixQueryBuilder} or {@link WildcardQueryBuilder}, depending on
+     * the pattern.
+     * @throws IllegalArgumentException If the pattern holds a leading or infix wildcard, and those are rejected.
+     */
+    QueryBuilder toQuery(final String field, final String pattern) {
+        final int stemLength = getStemLength(pattern);
+
+        if (0 == stemLength) {
+            return new ExistsQueryBuilder(field);
+        }
+
+        if (!hasSpecialCharacters(pattern, stemLength)) {
+            return new PrefixQueryBuilder(field, pattern.substring(0, stemLength));
+        }
+
+        // A single character wildcard or an escape on its own doesn't say anything about where our wildcards are.
+        if (pattern.indexOf(WILDCARD) >= stemLength) {
+            return new WildcardQueryBuilder(field, pattern);
+        }
+
+        if (Action.REJECT == leadingWildcards()) {
+            throw new IllegalArgumentException(String.format("Query contains a leading or infix wildcard, which isn't allowed: %s %s",
+                    field, pattern));
+        }
+
+        if (Action.REVERSE == leadingWildcards() && null != reverseSubfield() && canReverse(pattern)) {
+            final String reversed = new StringBuilder(pattern).reverse().toString();
+            final String reversedField = field + '.' + reverseSubfield();
+            final int reversedStemLength = getStemLength(reversed);
+
+            return hasSpecialCharacters(reversed, reversedStemLength) ? new WildcardQueryBuilder(reversedField, reversed) :
+                    new PrefixQueryBuilder(reversedField, reversed.substring(0, reversedStemLength));
+        }
+
+        return new WildcardQueryBuilder(field, pattern);
+    }
+
+    /**
+     * Provides a convenience method to find the length of a pattern once its trailing wildcards are stripped off.
+     */
+    static int getStemLength(final String pattern) {
+        int length = pattern.length();
+
+        while (length > 0 && WILDCARD == pattern.charAt(length - 1)) {
+            length--;
+        }
+
+        return length;
+    }
+
+    /**
+     * Provides a convenience method to determine whether the stem of a pattern holds anything a prefix query wouldn't
+     * take literally.
+     */
+    static boolean hasSpecialCharacters(final String pattern, final int stemLength) {
+        for (int index = 0; index < stemLength; index++) {
+            final char character = pattern.charAt(index);
+
+            if (WILDCARD == character || SINGLE_CHARACTER_WILDCARD == character || ESCAPE == character) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides a convenience method to determine whether reversing a pattern moves its leading wildcards to the end,
+     * without turning an escape around, which would change what it escapes.
+     */
+    static boolean canReverse(final String pattern) {
+        return WILDCARD == pattern.charAt(0) && WILDCARD != pattern.charAt(pattern.length() - 1) && pattern.indexOf(ESCAPE) < 0;
+    }
+}
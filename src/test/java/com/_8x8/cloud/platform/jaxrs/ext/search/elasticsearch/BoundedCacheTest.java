@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link BoundedCache} at the unit level.
+ */
+public class BoundedCacheTest {
+    /**
+     * Tests {@link BoundedCache#get(Object, Function)} to make sure we only load once, and track our statistics.
+     */
+    @Test
+    public void testGet() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10);
+        final AtomicInteger loads = new AtomicInteger();
+        final Function<String, String> loader = key -> key + loads.incrementAndGet();
+
+        assertThat(cache.get("taters", loader), is("taters1"));
+        assertThat(cache.get("taters", loader), is("taters1"));
+        assertThat(cache.get("potatoes", loader), is("potatoes2"));
+
+        final CacheStatistics statistics = cache.getStatistics();
+        assertThat(statistics.getHitCount(), is(1L));
+        assertThat(statistics.getMissCount(), is(2L));
+        assertThat(statistics.getEvictionCount(), is(0L));
+        assertThat(statistics.getSize(), is(2L));
+        assertThat(statistics.getRequestCount(), is(3L));
+    }
+
+    /**
+     * Tests {@link BoundedCache#get(Object, Function)} for the case where the loader comes back with nothing. We should
+     * pass that along, but not cache it.
+     */
+    @Test
+    public void testGetForNullValue() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10);
+
+        assertThat(cache.get("taters", key -> null), is(nullValue()));
+        assertThat(cache.size(), is(0L));
+    }
+
+    /**
+     * Tests that we evict the least recently used entry, rather than the oldest, once we're over our size.
+     */
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(2);
+
+        cache.put("first", "1");
+        cache.put("second", "2");
+
+        // Touch the first entry, so the second one becomes the least recently used.
+        assertThat(cache.getIfPresent("first"), is("1"));
+
+        cache.put("third", "3");
+
+        assertThat(cache.getIfPresent("first"), is("1"));
+        assertThat(cache.getIfPresent("second"), is(nullValue()));
+        assertThat(cache.getIfPresent("third"), is("3"));
+        assertThat(cache.getStatistics().getEvictionCount(), is(1L));
+    }
+
+    /**
+     * Tests that we keep to our maximum weight, and that entries too heavy to ever fit are never cached.
+     */
+    @Test
+    public void testWeightEviction() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10, 10, (key, value) -> value.length());
+
+        cache.put("first", "12345");
+        cache.put("second", "12345");
+        assertThat(cache.getStatistics().getWeight(), is(10L));
+
+        cache.put("third", "123");
+        assertThat(cache.getIfPresent("first"), is(nullValue()));
+        assertThat(cache.getStatistics().getWeight(), is(8L));
+
+        cache.put("heavy", "12345678901");
+        assertThat(cache.getIfPresent("heavy"), is(nullValue()));
+        assertThat(cache.getStatistics().getWeight(), is(8L));
+    }
+
+    /**
+     * Tests {@link BoundedCache#invalidateAll()} to make sure it does what we expect.
+     */
+    @Test
+    public void testInvalidateAll() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10, 100, (key, value) -> value.length());
+
+        cache.put("first", "1");
+        cache.put("second", "2");
+        cache.invalidateAll();
+
+        assertThat(cache.size(), is(0L));
+        assertThat(cache.getStatistics().getWeight(), is(0L));
+    }
+
+    /**
+     * Tests that we never exceed our maximum size, even when spread across segments and hammered from several threads.
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final BoundedCache<Integer, String> cache = new BoundedCache<>(100);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        assertThat(cache.getSegments().length > 1, is(true));
+
+        final List<Future<?>> futures = new ArrayList<>();
+
+        for (int thread = 0; thread < 4; thread++) {
+            futures.add(executor.submit(() -> {
+                for (int key = 0; key < 10_000; key++) {
+                    assertThat(cache.get(key % 250, String::valueOf), is(String.valueOf(key % 250)));
+                }
+            }));
+        }
+
+        // Make sure any assertion failures in our workers get rethrown here.
+        for (final Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+
+        executor.shutdown();
+
+        assertThat(cache.size(), lessThanOrEqualTo(100L));
+        assertThat(cache.getStatistics().getRequestCount(), is(40_000L));
+    }
+
+    /**
+     * Tests that we refuse to build caches with silly bounds.
+     */
+    @Test
+    public void testConstructorForInvalidBounds() throws Exception {
+        try {
+            new BoundedCache<String, String>(0);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Cache size must be positive, got 0"));
+        }
+
+        try {
+            new BoundedCache<String, String>(10, 0, (key, value) -> 1L);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Cache weight must be positive, got 0"));
+        }
+    }
+}
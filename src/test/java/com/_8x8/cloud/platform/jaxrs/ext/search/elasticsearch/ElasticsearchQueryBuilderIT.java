@@ -17,19 +17,92 @@
 package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
 import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.Status;
+import org.apache.cxf.jaxrs.ext.search.PropertyNotFoundException;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.RegexpQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 /**
  * Tests the {@link ElasticsearchQueryBuilder} at the integration level.
  */
 public class ElasticsearchQueryBuilderIT {
+    private static final TimeZone defaultTimezone = TimeZone.getDefault();
+
+    /**
+     * Holds the same expressions as {@link ElasticsearchQueryBuilderVisitorIT}, minus the ones that blow up.
+     */
+    private static final String[] FIQL_FILTERS = {
+            "tenantName==TestTenant", "tenantName==Test*", "tenantName==*", "tenantName==*Tenant", "storedBytes==5", "updatedTime==2010-03-11", "status==AVAILABLE",
+            "tenantName!=TestTenant", "tenantName!=Test*", "storedBytes!=5", "updatedTime!=2010-03-11", "status!=AVAILABLE",
+            "storedBytes=lt=3", "updatedTime=lt=2010-03-11", "storedBytes=gt=3", "updatedTime=gt=2010-03-11",
+            "storedBytes=le=3", "updatedTime=le=2010-03-11", "storedBytes=ge=3", "updatedTime=ge=2010-03-11",
+            "tenantName==taters;containerName==delicious", "storedBytes=gt=100;storedBytes=lt=1000",
+            "storedBytes=lt=1000;storedBytes=gt=100", "storedBytes=ge=100;storedBytes=lt=1000",
+            "storedBytes=gt=100;storedBytes=le=1000", "storedBytes=gt=100;storedBytes=le=1000;storedBytes=lt=500",
+            "storedBytes=ge=100;storedBytes=le=1000", "storedBytes=gt=100;storedBytes=lt=3000;storedBytes=lt=1000",
+            "storedBytes=gt=100;containerId=lt=1000", "storedBytes=gt=100;storedBytes==1000",
+            "(storedBytes=ge=300;storedBytes=le=400);storedBytes=ge=100", "storedBytes=gt=100;((storedBytes=lt=1000))",
+            "storedBytes=gt=100,storedBytes=lt=1000",
+            "tenantName==taters,containerName==delicious", "tenantName==taters,(containerName==delicious;tenantName==dinner)",
+            "tags==user:1234,tags==user:1234"
+    };
+
     private final ElasticsearchQueryBuilder<MetadataRecord> elasticsearchQueryBuilder =
             new ElasticsearchQueryBuilder<>(MetadataRecord.class);
+    private final ElasticsearchQueryBuilder<MetadataRecord> optimizingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+            new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer()));
+
+    @Before
+    public void setUp() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TimeZone.setDefault(defaultTimezone);
+    }
 
     /**
      * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure it generates the query we expect.
@@ -50,4 +123,899 @@ public class ElasticsearchQueryBuilderIT {
 
         assertThat(generatedBuilder.toString(), is(builder.toString()));
     }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(byte[], int, int)} and friends to make sure that
+     * filters straight off the wire give exactly the same query as their decoded strings, for every expression we know
+     * of, with and without caching.
+     */
+    @Test
+    public void testGenerateQueryBuilderForEncodedFilter() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().cacheSize(10));
+
+        for (final String fiqlFilter : FIQL_FILTERS) {
+            final String expected = elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toString();
+            final byte[] encoded = ("_s=" + URLEncoder.encode(fiqlFilter, "UTF-8") + "&").getBytes(StandardCharsets.US_ASCII);
+
+            assertThat(fiqlFilter, elasticsearchQueryBuilder.generateQueryBuilder(encoded, 3, encoded.length - 4).toString(), is(expected));
+            assertThat(fiqlFilter, elasticsearchQueryBuilder.generateQueryBuilder(
+                    ByteBuffer.wrap(fiqlFilter.getBytes(StandardCharsets.UTF_8))).toString(), is(expected));
+            assertThat(fiqlFilter, elasticsearchQueryBuilder.generateQueryBuilder(new StringBuilder(fiqlFilter)).toString(), is(expected));
+            assertThat(fiqlFilter, cachingBuilder.generateQueryBuilder(encoded, 3, encoded.length - 4).toString(), is(expected));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(ByteBuffer)} for filters that aren't encoded properly,
+     * or aren't valid once decoded.
+     */
+    @Test
+    public void testGenerateQueryBuilderForInvalidEncodedFilter() throws Exception {
+        try {
+            elasticsearchQueryBuilder.generateQueryBuilder(ByteBuffer.wrap("tenantName%3D%3D%G1".getBytes(StandardCharsets.UTF_8)));
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), is("Invalid percent-encoding at position 16"));
+        }
+
+        try {
+            elasticsearchQueryBuilder.generateQueryBuilder(ByteBuffer.wrap("tenantName%3D%3Dtaters%3B%28".getBytes(StandardCharsets.UTF_8)));
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), is("Unmatched opening and closing brackets in expression: tenantName==taters;("));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(CharSequence)} to make sure it sticks to the parser
+     * we asked for, whether or not caching is enabled. CXF rejects wildcards over enum properties, while the native
+     * parser expands them.
+     */
+    @Test
+    public void testGenerateQueryBuilderForCharSequenceUsesConfiguredParser() throws Exception {
+        for (final int cacheSize : new int[]{0, 100}) {
+            final ElasticsearchQueryBuilder<MetadataRecord> cxfBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                    new ElasticsearchQueryBuilderOptions().cacheSize(cacheSize));
+            final ElasticsearchQueryBuilder<MetadataRecord> nativeBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                    new ElasticsearchQueryBuilderOptions().cacheSize(cacheSize).nativeParser(true));
+
+            assertThat(nativeBuilder.generateQueryBuilder(new StringBuilder("status==AVAIL*")), is(new TermQueryBuilder("status", "AVAILABLE")));
+
+            try {
+                cxfBuilder.generateQueryBuilder(new StringBuilder("status==AVAIL*"));
+                fail("Oops, we should have caught an exception here...");
+            } catch (final SearchParseException ex) {
+                assertThat(ex.getMessage(), containsString("AVAIL*"));
+            }
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure pooled visitors give the same
+     * queries as fresh ones, even right after a filter blew up part way through its visit, and when shared between
+     * threads. The threads use the native parser, as sharing CXF's parser between threads turns out not to be safe.
+     */
+    @Test
+    public void testGenerateQueryBuilderReusesVisitors() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> nativeBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().nativeParser(true));
+        final List<String> expected = new ArrayList<>();
+
+        for (final String fiqlFilter : FIQL_FILTERS) {
+            expected.add(new ElasticsearchQueryBuilder<>(MetadataRecord.class).generateQueryBuilder(fiqlFilter).toString());
+        }
+
+        final Consumer<ElasticsearchQueryBuilder<MetadataRecord>> compileAll = builder -> {
+            for (int filterIndex = 0; filterIndex < FIQL_FILTERS.length; filterIndex++) {
+                assertThat(FIQL_FILTERS[filterIndex], builder.generateQueryBuilder(FIQL_FILTERS[filterIndex]).toString(),
+                        is(expected.get(filterIndex)));
+            }
+        };
+
+        for (int round = 0; round < 3; round++) {
+            try {
+                elasticsearchQueryBuilder.generateQueryBuilder("tenantName==taters;(storedBytes=gt=5,count(tags)=ge=2)");
+                fail("Oops, we should have caught an exception here...");
+            } catch (final IllegalArgumentException ex) {
+                assertThat(ex.getMessage(), is("Query contains an illegal operation: tags GREATER_OR_EQUALS SIZE 2"));
+            }
+
+            compileAll.accept(elasticsearchQueryBuilder);
+        }
+
+        final AtomicReference<Throwable> otherFailure = new AtomicReference<>();
+        final Thread other = new Thread(() -> {
+            for (int round = 0; round < 50; round++) {
+                compileAll.accept(nativeBuilder);
+            }
+        });
+
+        other.setUncaughtExceptionHandler((thread, ex) -> otherFailure.set(ex));
+        other.start();
+
+        for (int round = 0; round < 50; round++) {
+            compileAll.accept(nativeBuilder);
+        }
+
+        other.join();
+
+        assertThat(String.valueOf(otherFailure.get()), otherFailure.get(), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} with caching enabled. We should get back
+     * the same query as without caching, and mutating what we get back must not affect later callers.
+     */
+    @Test
+    public void testGenerateQueryBuilderWithCache() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder =
+                new ElasticsearchQueryBuilder<>(MetadataRecord.class, new ElasticsearchQueryBuilderOptions().cacheSize(10));
+
+        final String fiqlFilter = "tenantName==taters,(containerName==delicious;storedBytes=gt=100;storedBytes=lt=1000)";
+        final String expected = elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toString();
+
+        // Go ahead and vandalize our first result...
+        final BoolQueryBuilder first = (BoolQueryBuilder) cachingBuilder.generateQueryBuilder(fiqlFilter);
+        assertThat(first.toString(), is(expected));
+
+        final BoolQueryBuilder nested = (BoolQueryBuilder) first.should().get(1);
+        ((RangeQueryBuilder) nested.must().get(1)).to(5L);
+        first.mustNot(new TermQueryBuilder("tenantName", "vandal"));
+
+        // ...which shouldn't have any effect on the next one.
+        assertThat(cachingBuilder.generateQueryBuilder(fiqlFilter).toString(), is(expected));
+
+        final CacheStatistics statistics = cachingBuilder.getCacheStatistics();
+        assertThat(statistics.getHitCount(), is(1L));
+        assertThat(statistics.getMissCount(), is(1L));
+        assertThat(statistics.getSize(), is(1L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} with fingerprinting enabled. Equivalent
+     * filters should share a single compiled query, and still come back as independent copies.
+     */
+    @Test
+    public void testGenerateQueryBuilderWithFingerprintCache() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().cacheSize(10).fingerprintCacheKeys(true));
+
+        final String expected = elasticsearchQueryBuilder.generateQueryBuilder("tenantName==taters;storedBytes=gt=100").toString();
+
+        final QueryBuilder first = cachingBuilder.generateQueryBuilder("tenantName==taters;storedBytes=gt=100");
+        final QueryBuilder second = cachingBuilder.generateQueryBuilder("(storedBytes=gt=0100;tenantName==taters)");
+
+        assertThat(first.toString(), is(expected));
+        assertThat(second.toString(), is(expected));
+        assertThat(second == first, is(false));
+
+        assertThat(cachingBuilder.getCacheStatistics().getMissCount(), is(2L));
+        assertThat(cachingBuilder.getFingerprintCacheStatistics().getHitCount(), is(1L));
+        assertThat(cachingBuilder.getFingerprintCacheStatistics().getMissCount(), is(1L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} with caching enabled, for a filter holding a
+     * duration. Once the clock has moved on, the same filter must give a later cutoff, rather than the one we first
+     * compiled.
+     */
+    @Test
+    public void testGenerateQueryBuilderWithCacheForDuration() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder =
+                new ElasticsearchQueryBuilder<>(MetadataRecord.class, new ElasticsearchQueryBuilderOptions().cacheSize(10));
+
+        final Date first = (Date) ((RangeQueryBuilder) cachingBuilder.generateQueryBuilder("updatedTime=gt=-P1D")).from();
+        final long firstCalled = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() == firstCalled) {
+            Thread.sleep(1);
+        }
+
+        final Date second = (Date) ((RangeQueryBuilder) cachingBuilder.generateQueryBuilder("updatedTime=gt=-P1D")).from();
+
+        assertThat(second.after(first), is(true));
+        assertThat(cachingBuilder.getCacheStatistics().getHitCount(), is(0L));
+        assertThat(cachingBuilder.getCacheStatistics().getSize(), is(0L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} with fingerprinting enabled, for equivalent
+     * filters holding a duration. Their fingerprints are only good for the moment they were parsed, so neither should
+     * come anywhere near the fingerprint cache.
+     */
+    @Test
+    public void testGenerateQueryBuilderWithFingerprintCacheForDuration() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().cacheSize(10).fingerprintCacheKeys(true));
+
+        final Date first = (Date) ((RangeQueryBuilder) cachingBuilder.generateQueryBuilder("updatedTime=gt=-P1D")).from();
+        final long firstCalled = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() == firstCalled) {
+            Thread.sleep(1);
+        }
+
+        final Date second = (Date) ((RangeQueryBuilder) cachingBuilder.generateQueryBuilder("(updatedTime=gt=-P1D)")).from();
+
+        assertThat(second.after(first), is(true));
+        assertThat(cachingBuilder.getFingerprintCacheStatistics().getHitCount(), is(0L));
+        assertThat(cachingBuilder.getFingerprintCacheStatistics().getMissCount(), is(0L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#prepare(String)} to make sure that binding string values to a template
+     * gives exactly the same query as writing them out in the filter, for every expression we know of.
+     */
+    @Test
+    public void testPrepare() throws Exception {
+        final FiqlExpressionParser expressionParser = new FiqlExpressionParser();
+
+        for (final String fiqlFilter : FIQL_FILTERS) {
+            final List<Object> values = new ArrayList<>();
+            final String template = toTemplate(expressionParser.parse(fiqlFilter), values).toString();
+
+            final PreparedQuery<MetadataRecord> prepared = elasticsearchQueryBuilder.prepare(template);
+
+            assertThat(prepared.getParameterCount(), is(values.size()));
+            assertThat(fiqlFilter, prepared.bind(values.toArray()).toString(),
+                    is(elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toString()));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#prepare(String)} when binding typed values, and mixing placeholders with
+     * values written out in the template.
+     */
+    @Test
+    public void testPrepareForTypedValues() throws Exception {
+        final PreparedQuery<MetadataRecord> prepared =
+                elasticsearchQueryBuilder.prepare("tenantName==taters;status==?;updatedTime=gt=?;storedBytes=lt=?");
+
+        final QueryBuilder expected = elasticsearchQueryBuilder.generateQueryBuilder(
+                "tenantName==taters;status==DELETED;updatedTime=gt=2010-03-11;storedBytes=lt=1000");
+
+        assertThat(prepared.bind(Status.DELETED, new Date(1268265600000L), 1000L).toString(), is(expected.toString()));
+        assertThat(prepared.bind("deleted", "2010-03-11", "1000").toString(), is(expected.toString()));
+
+        // Every call gets its own query.
+        final BoolQueryBuilder first = (BoolQueryBuilder) prepared.bind("DELETED", "2010-03-11", "1000");
+        first.must(new TermQueryBuilder("tenantName", "vandal"));
+
+        assertThat(prepared.bind("DELETED", "2010-03-11", "1000").toString(), is(expected.toString()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#prepare(String)} for templates that refer to properties our model doesn't
+     * have, or use placeholders where we don't allow them.
+     */
+    @Test
+    public void testPrepareForInvalidTemplate() throws Exception {
+        try {
+            elasticsearchQueryBuilder.prepare("tenantName==?;taters==?");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final PropertyNotFoundException ex) {
+            assertThat(ex.getName(), is("taters"));
+        }
+
+        try {
+            elasticsearchQueryBuilder.prepare("count(tags)=ge=?");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Placeholders are not supported within count() expressions: count(tags)=ge=?"));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#writeQuery(String, OutputStream)} to make sure it writes exactly the JSON
+     * the {@link QueryBuilder} would have, including for ranges folded together at several levels of nesting, both when
+     * streaming and when the optimizer has more to do than we can stream.
+     */
+    @Test
+    public void testWriteQuery() throws Exception {
+        final List<String> fiqlFilters = new ArrayList<>(Arrays.asList(FIQL_FILTERS));
+        fiqlFilters.add("storedBytes=gt=1;(storedBytes=lt=5,(containerId=ge=2;containerId=le=3;tenantName!=a*));storedBytes=lt=9;storedBytes=ge=2");
+        fiqlFilters.add("count(storedBytes)=ge=2;storedBytes=lt=9,((status==deleted))");
+
+        assertThat(elasticsearchQueryBuilder.canStreamQuery(), is(true));
+        assertThat(optimizingBuilder.canStreamQuery(), is(false));
+
+        for (final ElasticsearchQueryBuilder<MetadataRecord> builder : Arrays.asList(elasticsearchQueryBuilder, optimizingBuilder)) {
+            for (final String fiqlFilter : fiqlFilters) {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                builder.writeQuery(fiqlFilter, outputStream);
+
+                final XContentBuilder expected = XContentFactory.jsonBuilder();
+                builder.generateQueryBuilder(fiqlFilter).toXContent(expected, ToXContent.EMPTY_PARAMS);
+
+                assertThat(fiqlFilter, outputStream.toString(StandardCharsets.UTF_8.name()), is(expected.string()));
+            }
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#writeQuery(String, XContentBuilder)} to make sure a builder with default
+     * options streams the query via its {@link ElasticsearchQueryWriter}, rather than building it first.
+     */
+    @Test
+    public void testWriteQueryStreamsByDefault() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> builder = spy(new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions()));
+        final String fiqlFilter = "tenantName==taters;storedBytes=gt=100;storedBytes=lt=1000";
+        final XContentBuilder written = XContentFactory.jsonBuilder();
+
+        assertThat(builder.canStreamQuery(), is(true));
+
+        builder.writeQuery(fiqlFilter, written);
+
+        verify(builder).getQueryWriter();
+        verify(builder, never()).generateQueryBuilder(anyString());
+
+        final XContentBuilder expected = XContentFactory.jsonBuilder();
+        elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toXContent(expected, ToXContent.EMPTY_PARAMS);
+
+        assertThat(written.string(), is(expected.string()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#writeQuery(String, XContentBuilder)} for filters we can't compile.
+     */
+    @Test
+    public void testWriteQueryForInvalidFilter() throws Exception {
+        try {
+            elasticsearchQueryBuilder.writeQuery("tenantName==taters;(storedBytes=gt=5", XContentFactory.jsonBuilder());
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), is("Unmatched opening and closing brackets in expression: tenantName==taters;(storedBytes=gt=5"));
+        }
+
+        try {
+            elasticsearchQueryBuilder.writeQuery("count(tags)=ge=2", XContentFactory.jsonBuilder());
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Query contains an illegal operation: tags GREATER_OR_EQUALS SIZE 2"));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#writeQuery(String, XContentBuilder)} to make sure it accepts wildcards over
+     * enum properties exactly when {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} does, which is only
+     * with the native parser.
+     */
+    @Test
+    public void testWriteQueryForEnumWildcard() throws Exception {
+        final String fiqlFilter = "tenantName==taters;status==AVAIL*";
+
+        for (final ElasticsearchQueryBuilder<MetadataRecord> builder : Arrays.asList(elasticsearchQueryBuilder, new ElasticsearchQueryBuilder<>(
+                MetadataRecord.class, new ElasticsearchQueryBuilderOptions().dateParser(new IsoDateParser())))) {
+            try {
+                builder.generateQueryBuilder(fiqlFilter);
+                fail("Oops, we should have caught an exception here...");
+            } catch (final SearchParseException ex) {
+                assertThat(ex.getMessage(), containsString("AVAIL*"));
+            }
+
+            try {
+                builder.writeQuery(fiqlFilter, XContentFactory.jsonBuilder());
+                fail("Oops, we should have caught an exception here...");
+            } catch (final SearchParseException ex) {
+                assertThat(ex.getMessage(), containsString("AVAIL*"));
+            }
+        }
+
+        final ElasticsearchQueryBuilder<MetadataRecord> nativeBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().nativeParser(true));
+        final XContentBuilder written = XContentFactory.jsonBuilder();
+        nativeBuilder.writeQuery(fiqlFilter, written);
+
+        final XContentBuilder expected = XContentFactory.jsonBuilder();
+        nativeBuilder.generateQueryBuilder(fiqlFilter).toXContent(expected, ToXContent.EMPTY_PARAMS);
+
+        assertThat(written.string(), is(expected.string()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder} with a {@link QueryBudget}, both for filters turned away before parsing,
+     * and for values bound to a {@link PreparedQuery} that only the visitor gets to see.
+     */
+    @Test
+    public void testQueryBudget() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> budgetedBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().queryBudget(new QueryBudget().maxDepth(1).maxLeadingWildcards(0)));
+
+        assertThat(budgetedBuilder.generateQueryBuilder("tenantName==taters*;(storedBytes=gt=5,status==deleted)").toString(),
+                is(elasticsearchQueryBuilder.generateQueryBuilder("tenantName==taters*;(storedBytes=gt=5,status==deleted)").toString()));
+
+        try {
+            budgetedBuilder.generateQueryBuilder("tenantName==taters;(storedBytes=gt=5,((status==deleted)))");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final QueryBudgetExceededException ex) {
+            assertThat(ex.getLimit(), is(QueryBudget.Limit.DEPTH));
+            assertThat(ex.getMessage(), is("Filter exceeds the maximum nesting depth of 1"));
+        }
+
+        try {
+            budgetedBuilder.writeQuery("tenantName==*taters", XContentFactory.jsonBuilder());
+            fail("Oops, we should have caught an exception here...");
+        } catch (final QueryBudgetExceededException ex) {
+            assertThat(ex.getLimit(), is(QueryBudget.Limit.LEADING_WILDCARDS));
+        }
+
+        final PreparedQuery<MetadataRecord> prepared = budgetedBuilder.prepare("tenantName==?");
+        prepared.bind("taters*");
+
+        try {
+            prepared.bind("*taters");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final QueryBudgetExceededException ex) {
+            assertThat(ex.getLimit(), is(QueryBudget.Limit.LEADING_WILDCARDS));
+            assertThat(ex.getMessage(), is("Filter exceeds the maximum number of leading wildcards of 0"));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String, QueryRewriteTrace)} and friends to make sure
+     * the default builder gives the same queries we got before there was an optimizer, that range folding by the
+     * optimizer does too for the usual filters, that its rules can be switched off, and that we can find out which
+     * rules fired.
+     */
+    @Test
+    public void testQueryOptimizer() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> unoptimizedBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(null));
+        final ElasticsearchQueryBuilder<MetadataRecord> rangeFoldingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(rangeFoldingOptimizer()));
+        final List<String> fiqlFilters = new ArrayList<>(Arrays.asList(FIQL_FILTERS));
+        fiqlFilters.add("storedBytes=gt=1;(storedBytes=lt=5,(containerId=ge=2;containerId=le=3;tenantName!=a*));storedBytes=lt=9;storedBytes=ge=2");
+
+        assertThat(elasticsearchQueryBuilder.getQueryOptimizer(), is(nullValue()));
+
+        for (final String fiqlFilter : fiqlFilters) {
+            assertThat(fiqlFilter, elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toString(),
+                    is(unoptimizedBuilder.generateQueryBuilder(fiqlFilter).toString()));
+        }
+
+        for (final String fiqlFilter : FIQL_FILTERS) {
+            assertThat(fiqlFilter, rangeFoldingBuilder.generateQueryBuilder(fiqlFilter).toString(),
+                    is(unoptimizedBuilder.generateQueryBuilder(fiqlFilter).toString()));
+        }
+
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        optimizingBuilder.generateQueryBuilder("storedBytes=gt=1;storedBytes=lt=9;(containerId=ge=2;containerId=le=3,tenantName==a)", trace);
+
+        assertThat(trace.getFiringCount(QueryOptimizer.MERGE_RANGES), is(2));
+        assertThat(trace.isConverged(), is(true));
+
+        // Without range folding, we can't stream, but should still write out exactly what we'd have built.
+        final ElasticsearchQueryBuilder<MetadataRecord> nonMergingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer().disableRule(QueryOptimizer.MERGE_RANGES)));
+        final QueryBuilder unmerged = nonMergingBuilder.generateQueryBuilder("storedBytes=gt=100;storedBytes=lt=1000");
+
+        assertThat(unmerged, is(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(100L))
+                .must(new RangeQueryBuilder("storedBytes").lt(1000L))));
+
+        final XContentBuilder written = XContentFactory.jsonBuilder();
+        nonMergingBuilder.writeQuery("storedBytes=gt=100;storedBytes=lt=1000", written);
+
+        final XContentBuilder expected = XContentFactory.jsonBuilder();
+        unmerged.toXContent(expected, ToXContent.EMPTY_PARAMS);
+
+        assertThat(written.string(), is(expected.string()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer flattens
+     * nested groups of the same kind, and unwraps groups left holding a single clause.
+     */
+    @Test
+    public void testQueryOptimizerFlattensBools() throws Exception {
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==a;(storedBytes=gt=1;storedBytes=lt=9);tenantName!=b"),
+                is(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "a"))
+                        .must(new RangeQueryBuilder("storedBytes").gt(1L).lt(9L))
+                        .mustNot(new TermQueryBuilder("tenantName", "b"))));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==a,(containerName==b,(containerId==3))"),
+                is(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("tenantName", "a"))
+                        .should(new TermQueryBuilder("containerName", "b"))
+                        .should(new TermQueryBuilder("containerId", 3L))));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("((storedBytes=gt=1;storedBytes=lt=9))"),
+                is(new RangeQueryBuilder("storedBytes").gt(1L).lt(9L)));
+
+        // AND inside OR keeps its own bool, as should clauses next to must clauses mean something else entirely.
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==a,(tenantName==b;storedBytes=gt=1)"),
+                is(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("tenantName", "a"))
+                        .should(new BoolQueryBuilder()
+                                .must(new TermQueryBuilder("tenantName", "b"))
+                                .must(new RangeQueryBuilder("storedBytes").gt(1L)))));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer folds
+     * long lists of OR'ed values into a terms query, at any level, and with other fields mixed in, as well as lists of
+     * excluded values.
+     */
+    @Test
+    public void testQueryOptimizerMergesTerms() throws Exception {
+        final StringBuilder fiqlFilter = new StringBuilder("tenantName==taters;(status==DELETED");
+        final List<Object> containerIds = new ArrayList<>();
+
+        for (long containerId = 0; containerId < 250; containerId++) {
+            fiqlFilter.append(",containerId==").append(containerId);
+            containerIds.add(containerId);
+
+            if (100 == containerId) {
+                fiqlFilter.append(",(containerName==a*,status==AVAILABLE)");
+            }
+        }
+
+        fiqlFilter.append(")");
+
+        assertThat(optimizingBuilder.generateQueryBuilder(fiqlFilter.toString()), is(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .must(new BoolQueryBuilder()
+                        .should(new TermsQueryBuilder("status", "DELETED", "AVAILABLE"))
+                        .should(new TermsQueryBuilder("containerId", containerIds))
+                        .should(new PrefixQueryBuilder("containerName", "a")))));
+
+        // A lone value stays a term query, and patterns are another rule's business.
+        assertThat(optimizingBuilder.generateQueryBuilder("containerId==1,containerName==a*,containerName==b*"),
+                is(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("containerId", 1L))
+                        .should(new RegexpQueryBuilder("containerName", "a.*|b.*"))));
+
+        // Exclusions get the same treatment.
+        assertThat(optimizingBuilder.generateQueryBuilder("status!=DELETED;tenantName==taters;status!=AVAILABLE;containerName!=a*"),
+                is(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "taters"))
+                        .mustNot(new TermsQueryBuilder("status", "DELETED", "AVAILABLE"))
+                        .mustNot(new PrefixQueryBuilder("containerName", "a"))));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("containerId!=1;containerId!=2;containerId!=3"),
+                is(new BoolQueryBuilder().mustNot(new TermsQueryBuilder("containerId", Arrays.asList(1L, 2L, 3L)))));
+
+        // Terms queries survive the cache, too.
+        final ElasticsearchQueryBuilder<MetadataRecord> cachingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().cacheSize(10));
+        assertThat(cachingBuilder.generateQueryBuilder("status==DELETED,status==AVAILABLE"),
+                is(cachingBuilder.generateQueryBuilder("status==DELETED,status==AVAILABLE")));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer folds
+     * every AND'ed range over a field, wherever it is, into the tightest range, or a {@code match_none} query if they
+     * can't all match.
+     */
+    @Test
+    public void testQueryOptimizerMergesRanges() throws Exception {
+        assertThat(optimizingBuilder.generateQueryBuilder(
+                "storedBytes=gt=1;(storedBytes=lt=5,(containerId=ge=2;containerId=le=3;tenantName!=a*));storedBytes=lt=9;storedBytes=ge=2"),
+                is(new BoolQueryBuilder()
+                        .must(new RangeQueryBuilder("storedBytes").gte(2L).lt(9L))
+                        .must(new BoolQueryBuilder()
+                                .should(new RangeQueryBuilder("storedBytes").lt(5L))
+                                .should(new BoolQueryBuilder()
+                                        .must(new RangeQueryBuilder("containerId").gte(2L).lte(3L))
+                                        .mustNot(new PrefixQueryBuilder("tenantName", "a"))))));
+
+        // Whichever order the bounds come in, the tightest wins.
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=gt=10;storedBytes=gt=5"),
+                is(new RangeQueryBuilder("storedBytes").gt(10L)));
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=gt=5;tenantName==x;storedBytes=lt=9;storedBytes=le=9"),
+                is(new BoolQueryBuilder()
+                        .must(new RangeQueryBuilder("storedBytes").gt(5L).lt(9L))
+                        .must(new TermQueryBuilder("tenantName", "x"))));
+        assertThat(optimizingBuilder.generateQueryBuilder("updatedTime=ge=2010-03-11;updatedTime=lt=2011-03-11;updatedTime=gt=2010-01-01"),
+                is(optimizingBuilder.generateQueryBuilder("updatedTime=ge=2010-03-11;updatedTime=lt=2011-03-11")));
+
+        // Ranges that can't all match short-circuit their whole group, and anything it's AND'ed with.
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=lt=5;storedBytes=gt=10"), is(new MatchNoneQueryBuilder()));
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=lt=5;tenantName==x;storedBytes=ge=5"), is(new MatchNoneQueryBuilder()));
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==x;(containerId=ge=3;containerId=lt=3,(status==DELETED;storedBytes=gt=9;storedBytes=lt=1))"),
+                is(new MatchNoneQueryBuilder()));
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==x,(storedBytes=gt=9;storedBytes=lt=1)"),
+                is(new TermQueryBuilder("tenantName", "x")));
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=ge=5;storedBytes=le=5"),
+                is(new RangeQueryBuilder("storedBytes").gte(5L).lte(5L)));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer folds
+     * OR'ed ranges over a field that overlap or touch, such as date buckets, into as few ranges as it can.
+     */
+    @Test
+    public void testQueryOptimizerUnionsRanges() throws Exception {
+        assertThat(optimizingBuilder.generateQueryBuilder("updatedTime=lt=2017-01-10,updatedTime=lt=2017-02-01"),
+                is(optimizingBuilder.generateQueryBuilder("updatedTime=lt=2017-02-01")));
+
+        assertThat(optimizingBuilder.generateQueryBuilder(
+                "(updatedTime=ge=2017-01-01;updatedTime=lt=2017-02-01),(updatedTime=ge=2017-02-01;updatedTime=lt=2017-03-01),tenantName==x"),
+                is(optimizingBuilder.generateQueryBuilder("(updatedTime=ge=2017-01-01;updatedTime=lt=2017-03-01),tenantName==x")));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=gt=10;storedBytes=lt=20,storedBytes=gt=30;storedBytes=lt=40"),
+                is(new BoolQueryBuilder()
+                        .should(new RangeQueryBuilder("storedBytes").gt(10L).lt(20L))
+                        .should(new RangeQueryBuilder("storedBytes").gt(30L).lt(40L))));
+
+        // Covering every value just leaves checking there's a value at all.
+        assertThat(optimizingBuilder.generateQueryBuilder("storedBytes=lt=10,storedBytes=ge=5"), is(new ExistsQueryBuilder("storedBytes")));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer pulls
+     * clauses shared between branches out of them, and that what's left gets folded further where it can be.
+     */
+    @Test
+    public void testQueryOptimizerFactorsCommonClauses() throws Exception {
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+
+        assertThat(optimizingBuilder.generateQueryBuilder(
+                "(tenantName==x;containerName==a),(tenantName==x;containerName==b),(containerName==c;tenantName==x)", trace),
+                is(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "x"))
+                        .must(new TermsQueryBuilder("containerName", "a", "b", "c"))));
+
+        assertThat(trace.getFiringCount(QueryOptimizer.FACTOR_COMMON_CLAUSES), is(1));
+        assertThat(trace.getFiringCount(QueryOptimizer.MERGE_TERMS), is(1));
+        assertThat(trace.isConverged(), is(true));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("(tenantName==x,containerId==1);(containerId==2,tenantName==x)"),
+                is(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("tenantName", "x"))
+                        .should(new BoolQueryBuilder()
+                                .must(new TermQueryBuilder("containerId", 1L))
+                                .must(new TermQueryBuilder("containerId", 2L)))));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("tenantName==x,(tenantName==x;storedBytes=gt=5)"),
+                is(new TermQueryBuilder("tenantName", "x")));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} to make sure the optimizer folds
+     * OR'ed prefix and wildcard patterns over a field into a single regexp query, unless it would take too many states.
+     */
+    @Test
+    public void testQueryOptimizerMergesPatterns() throws Exception {
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+
+        assertThat(optimizingBuilder.generateQueryBuilder(
+                "tenantName==taters;(containerName==logs-*,containerName==metrics-*,containerName==*.trace,status==DELETED)", trace),
+                is(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "taters"))
+                        .must(new BoolQueryBuilder()
+                                .should(new RegexpQueryBuilder("containerName", "logs-.*|metrics-.*|.*\\.trace"))
+                                .should(new TermQueryBuilder("status", "DELETED")))));
+        assertThat(trace.getFiringCount(QueryOptimizer.MERGE_PATTERNS), is(1));
+
+        assertThat(optimizingBuilder.generateQueryBuilder("containerName!=a*;containerName!=b*;tenantName==taters"),
+                is(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "taters"))
+                        .mustNot(new RegexpQueryBuilder("containerName", "a.*|b.*"))));
+
+        // Too many states, and the patterns are left be.
+        final ElasticsearchQueryBuilder<MetadataRecord> frugalBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer().maxPatternStates(10)).cacheSize(10));
+        final QueryBuilder expected = new BoolQueryBuilder()
+                .should(new WildcardQueryBuilder("containerName", "*a??"))
+                .should(new WildcardQueryBuilder("containerName", "*b??"));
+
+        assertThat(frugalBuilder.generateQueryBuilder("containerName==*a??,containerName==*b??"), is(expected));
+
+        // Regexp queries survive the cache, too.
+        assertThat(frugalBuilder.generateQueryBuilder("containerName==a*,containerName==b*"),
+                is(frugalBuilder.generateQueryBuilder("containerName==a*,containerName==b*")));
+        assertThat(frugalBuilder.getCacheStatistics().getHitCount(), is(1L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderOptions#filterContext(boolean)} to make sure queries come out wrapped in a
+     * {@code constant_score} query with filter rather than must clauses, however they're compiled, written or cached.
+     */
+    @Test
+    public void testFilterContext() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> filteringBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().filterContext(true).cacheSize(10).queryOptimizer(new QueryOptimizer()));
+        final String fiqlFilter = "tenantName==taters;(storedBytes=gt=5;storedBytes=lt=9,status==DELETED);containerName!=a*";
+        final QueryBuilder expected = new ConstantScoreQueryBuilder(new BoolQueryBuilder()
+                .filter(new TermQueryBuilder("tenantName", "taters"))
+                .filter(new BoolQueryBuilder()
+                        .should(new RangeQueryBuilder("storedBytes").gt(5L).lt(9L))
+                        .should(new TermQueryBuilder("status", "DELETED")))
+                .mustNot(new PrefixQueryBuilder("containerName", "a")));
+
+        assertThat(filteringBuilder.generateQueryBuilder(fiqlFilter), is(expected));
+        assertThat(filteringBuilder.generateQueryBuilder(fiqlFilter), is(expected));
+        assertThat(filteringBuilder.getCacheStatistics().getHitCount(), is(1L));
+
+        assertThat(filteringBuilder.prepare("tenantName==?").bind("taters"),
+                is(new ConstantScoreQueryBuilder(new TermQueryBuilder("tenantName", "taters"))));
+
+        // There's no streaming this, but we should still write out exactly what we'd have built.
+        assertThat(filteringBuilder.canStreamQuery(), is(false));
+
+        final XContentBuilder written = XContentFactory.jsonBuilder();
+        filteringBuilder.writeQuery(fiqlFilter, written);
+
+        final XContentBuilder expectedContent = XContentFactory.jsonBuilder();
+        expected.toXContent(expectedContent, ToXContent.EMPTY_PARAMS);
+
+        assertThat(written.string(), is(expectedContent.string()));
+
+        // Off by default.
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder("tenantName==taters"), is(new TermQueryBuilder("tenantName", "taters")));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderOptions#wildcardPolicy(WildcardPolicy)} to make sure wildcards become the
+     * cheapest query that will do, and that leading wildcards are rejected or reversed when we ask, however the
+     * queries are compiled, written or cached.
+     */
+    @Test
+    public void testWildcardPolicy() throws Exception {
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder("tenantName==*"), is(new ExistsQueryBuilder("tenantName")));
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder("tenantName!=*"),
+                is(new BoolQueryBuilder().mustNot(new ExistsQueryBuilder("tenantName"))));
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder("tenantName==taters*"), is(new PrefixQueryBuilder("tenantName", "taters")));
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder("tenantName==*taters"), is(new WildcardQueryBuilder("tenantName", "*taters")));
+
+        final ElasticsearchQueryBuilder<MetadataRecord> rejectingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions()
+                        .queryOptimizer(null)
+                        .wildcardPolicy(new WildcardPolicy().leadingWildcards(WildcardPolicy.Action.REJECT)));
+
+        assertThat(rejectingBuilder.generateQueryBuilder("tenantName==taters*"), is(new PrefixQueryBuilder("tenantName", "taters")));
+
+        for (final String fiqlFilter : new String[]{"containerName==a;tenantName==*taters", "tenantName!=ta*ters"}) {
+            try {
+                rejectingBuilder.generateQueryBuilder(fiqlFilter);
+                fail("Oops, we should have caught an exception here...");
+            } catch (final IllegalArgumentException ex) {
+                assertThat(ex.getMessage(), startsWith("Query contains a leading or infix wildcard, which isn't allowed: tenantName "));
+            }
+
+            try {
+                rejectingBuilder.writeQuery(fiqlFilter, XContentFactory.jsonBuilder());
+                fail("Oops, we should have caught an exception here...");
+            } catch (final IllegalArgumentException ex) {
+                assertThat(ex.getMessage(), startsWith("Query contains a leading or infix wildcard, which isn't allowed: tenantName "));
+            }
+        }
+
+        final ElasticsearchQueryBuilder<MetadataRecord> reversingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions()
+                        .cacheSize(10)
+                        .wildcardPolicy(new WildcardPolicy().leadingWildcards(WildcardPolicy.Action.REVERSE).reverseSubfield("reversed")));
+        final QueryBuilder expected = new BoolQueryBuilder()
+                .should(new PrefixQueryBuilder("tenantName.reversed", "sretat"))
+                .should(new PrefixQueryBuilder("containerName", "a"));
+
+        assertThat(reversingBuilder.generateQueryBuilder("tenantName==*taters,containerName==a*"), is(expected));
+        assertThat(reversingBuilder.generateQueryBuilder("tenantName==*taters,containerName==a*"), is(expected));
+        assertThat(reversingBuilder.getCacheStatistics().getHitCount(), is(1L));
+    }
+
+    /**
+     * Tests wildcards over enum properties to make sure they're matched against the constants up front, and that
+     * negated comparisons only become terms queries over the remaining constants when we ask, however the queries are
+     * compiled or written. CXF's own parser won't have wildcards over enums at all.
+     */
+    @Test
+    public void testEnumExpansion() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> nativeBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().nativeParser(true));
+        final ElasticsearchQueryBuilder<MetadataRecord> streamingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().nativeParser(true).queryOptimizer(null));
+        final ElasticsearchQueryBuilder<MetadataRecord> complementingBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().nativeParser(true).queryOptimizer(null).enumComplements(true));
+
+        assertThat(nativeBuilder.generateQueryBuilder("status==AVAIL*"), is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(nativeBuilder.generateQueryBuilder("status==*"),
+                is(new TermsQueryBuilder("status", Arrays.asList("AVAILABLE", "DELETED"))));
+        assertThat(nativeBuilder.generateQueryBuilder("status==GONE*"), is(new MatchNoneQueryBuilder()));
+        assertThat(nativeBuilder.generateQueryBuilder("status!=DEL*"),
+                is(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "DELETED"))));
+        assertThat(nativeBuilder.generateQueryBuilder("status!=DELETED"),
+                is(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "DELETED"))));
+
+        assertThat(complementingBuilder.generateQueryBuilder("status!=DELETED"), is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(complementingBuilder.generateQueryBuilder("status!=DEL*"), is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(complementingBuilder.generateQueryBuilder("status!=*"), is(new MatchNoneQueryBuilder()));
+
+        for (final ElasticsearchQueryBuilder<MetadataRecord> builder : Arrays.asList(streamingBuilder, complementingBuilder)) {
+            assertThat(builder.canStreamQuery(), is(true));
+
+            for (final String fiqlFilter : new String[]{"status==AVAIL*;storedBytes=gt=1;storedBytes=lt=5", "status!=DELETED,status==X*"}) {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                builder.writeQuery(fiqlFilter, outputStream);
+
+                final XContentBuilder expected = XContentFactory.jsonBuilder();
+                builder.generateQueryBuilder(fiqlFilter).toXContent(expected, ToXContent.EMPTY_PARAMS);
+
+                assertThat(fiqlFilter, outputStream.toString(StandardCharsets.UTF_8.name()), is(expected.string()));
+            }
+        }
+
+        try {
+            elasticsearchQueryBuilder.generateQueryBuilder("status==AVAIL*");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), containsString("AVAIL*"));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderOptions#dateParser(FiqlDateParser)} to make sure an {@link IsoDateParser}
+     * gives exactly the same queries as CXF for the dates it understands, whichever parser we use, and takes times,
+     * offsets and epoch milliseconds on top.
+     */
+    @Test
+    public void testDateParser() throws Exception {
+        final FiqlDateParser dateParser = new IsoDateParser(ZoneOffset.UTC);
+        final ElasticsearchQueryBuilder<MetadataRecord> cxfBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().dateParser(dateParser));
+        final ElasticsearchQueryBuilder<MetadataRecord> nativeBuilder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().dateParser(dateParser).nativeParser(true));
+
+        for (final String fiqlFilter : FIQL_FILTERS) {
+            final String expected = elasticsearchQueryBuilder.generateQueryBuilder(fiqlFilter).toString();
+
+            assertThat(fiqlFilter, cxfBuilder.generateQueryBuilder(fiqlFilter).toString(), is(expected));
+            assertThat(fiqlFilter, nativeBuilder.generateQueryBuilder(fiqlFilter).toString(), is(expected));
+        }
+
+        final QueryBuilder expected = elasticsearchQueryBuilder.generateQueryBuilder("updatedTime=gt=2010-03-11");
+
+        for (final String date : new String[]{"2010-03-11T00:00", "2010-03-11T00:00:00.000Z", "2010-03-11T01:00:00+01:00", "1268265600000"}) {
+            final String fiqlFilter = "updatedTime=gt=" + date;
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final XContentBuilder expectedContent = XContentFactory.jsonBuilder();
+
+            nativeBuilder.writeQuery(fiqlFilter, outputStream);
+            expected.toXContent(expectedContent, ToXContent.EMPTY_PARAMS);
+
+            assertThat(fiqlFilter, cxfBuilder.generateQueryBuilder(fiqlFilter), is(expected));
+            assertThat(fiqlFilter, nativeBuilder.generateQueryBuilder(fiqlFilter), is(expected));
+            assertThat(fiqlFilter, nativeBuilder.prepare("updatedTime=gt=?").bind(date), is(expected));
+            assertThat(fiqlFilter, outputStream.toString(StandardCharsets.UTF_8.name()), is(expectedContent.string()));
+        }
+
+        try {
+            elasticsearchQueryBuilder.generateQueryBuilder("updatedTime=gt=1268265600000");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), containsString("1268265600000"));
+        }
+    }
+
+    /**
+     * Provides a convenience method to build an optimizer that does nothing but fold ranges, which is all we can stream.
+     */
+    private static QueryOptimizer rangeFoldingOptimizer() {
+        return QueryOptimizerTest.withoutBuiltInRules().enableRule(QueryOptimizer.MERGE_RANGES);
+    }
+
+    /**
+     * Turns a parsed filter into a template, swapping every value for a placeholder.
+     */
+    private FiqlExpression toTemplate(final FiqlExpression expression, final List<Object> values) {
+        if (expression instanceof FiqlExpression.Comparison) {
+            final FiqlExpression.Comparison comparison = (FiqlExpression.Comparison) expression;
+            values.add(comparison.getValue());
+
+            return new FiqlExpression.Comparison(comparison.getSelector(), comparison.getConditionType(), "?");
+        }
+
+        final FiqlExpression.Composite composite = (FiqlExpression.Composite) expression;
+        final List<FiqlExpression> parts = new ArrayList<>();
+
+        for (final FiqlExpression part : composite.getParts()) {
+            parts.add(toTemplate(part, values));
+        }
+
+        return new FiqlExpression.Composite(composite.getConditionType(), parts);
+    }
 }
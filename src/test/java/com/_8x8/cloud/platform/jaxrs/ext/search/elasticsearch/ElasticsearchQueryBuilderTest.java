@@ -17,21 +17,41 @@
 package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
 import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -65,17 +85,368 @@ public class ElasticsearchQueryBuilderTest {
         elasticsearchQueryBuilder.generateQueryBuilder("taters");
 
         verify(elasticsearchQueryBuilder).generateQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder).getQueryCache();
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder).checkQueryBudget("taters");
+        verify(elasticsearchQueryBuilder).getQueryBudget();
+        verify(elasticsearchQueryBuilder).getFingerprintCache();
+        verify(elasticsearchQueryBuilder).compileSearchCondition(any());
+        verify(elasticsearchQueryBuilder).compileSearchCondition(any(), eq((QueryRewriteTrace) null));
+        verify(elasticsearchQueryBuilder).acquireVisitor();
         verify(elasticsearchQueryBuilder).createVisitor();
+        verify(elasticsearchQueryBuilder).releaseVisitor(visitor);
+        verify(elasticsearchQueryBuilder, times(2)).getVisitorPool();
         verify(elasticsearchQueryBuilder).getFiqlParser();
 
         verify(visitor).visit(any());
-        verify(visitor).getQuery();
+        verify(visitor).getQuery(null);
+        verify(visitor).reset();
 
         verify(fiqlParser).parse("taters");
 
         verifyNoMoreCollaboration();
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)} for the case where caching is enabled. We
+     * should only compile once, and every caller should get their own copy of the cached query.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testGenerateQueryBuilderWithCache() throws Exception {
+        final BoundedCache<String, QueryBuilder> cache = new BoundedCache<>(10);
+        final QueryBuilder compiled = new TermQueryBuilder("tenantName", "taters");
+
+        doReturn(cache).when(elasticsearchQueryBuilder).getQueryCache();
+        doReturn(compiled).when(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+
+        final QueryBuilder first = elasticsearchQueryBuilder.generateQueryBuilder("taters");
+        final QueryBuilder second = elasticsearchQueryBuilder.generateQueryBuilder("taters");
+
+        assertThat(first, is(compiled));
+        assertThat(second, is(compiled));
+        assertThat(first, is(not(sameInstance(compiled))));
+        assertThat(second, is(not(sameInstance(first))));
+
+        verify(elasticsearchQueryBuilder, times(2)).generateQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder, times(2)).getQueryCache();
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder, times(2)).copyQueryBuilder(compiled);
+
+        verifyNoMoreCollaboration();
+
+        assertThat(cache.getStatistics().getHitCount(), is(1L));
+        assertThat(cache.getStatistics().getMissCount(), is(1L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(CharSequence)} to make sure we parse the filter in
+     * place, given the native parser.
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored", "unchecked"})
+    @Test
+    public void testGenerateQueryBuilderForCharSequence() throws Exception {
+        final NativeFiqlParser<MetadataRecord> nativeParser = mock(NativeFiqlParser.class);
+        final SearchCondition<MetadataRecord> searchCondition = mock(SearchCondition.class);
+        final CharSequence filter = new StringBuilder("taters");
+
+        doReturn(nativeParser).when(elasticsearchQueryBuilder).getFiqlParser();
+        doReturn(nativeParser).when(elasticsearchQueryBuilder).getNativeParser();
+        doReturn(searchCondition).when(nativeParser).parse(filter);
+
+        elasticsearchQueryBuilder.generateQueryBuilder(filter);
+
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(filter);
+        verify(elasticsearchQueryBuilder).getQueryCache();
+        verify(elasticsearchQueryBuilder).getFiqlParser();
+        verify(elasticsearchQueryBuilder).checkQueryBudget(filter);
+        verify(elasticsearchQueryBuilder).getQueryBudget();
+        verify(elasticsearchQueryBuilder, times(2)).getNativeParser();
+        verify(elasticsearchQueryBuilder).compileSearchCondition(searchCondition);
+        verify(elasticsearchQueryBuilder).compileSearchCondition(searchCondition, null);
+        verify(elasticsearchQueryBuilder).acquireVisitor();
+        verify(elasticsearchQueryBuilder).createVisitor();
+        verify(elasticsearchQueryBuilder).releaseVisitor(visitor);
+        verify(elasticsearchQueryBuilder, times(2)).getVisitorPool();
+
+        verify(visitor).visit(searchCondition);
+        verify(visitor).getQuery(null);
+        verify(visitor).reset();
+
+        verify(nativeParser).parse(filter);
+
+        verifyNoMoreCollaboration(nativeParser, searchCondition);
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(CharSequence)} for the case where we're using CXF's
+     * parser, which only takes strings, so we hand the filter to {@link ElasticsearchQueryBuilder#generateQueryBuilder(String)}.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testGenerateQueryBuilderForCharSequenceWithoutNativeParser() throws Exception {
+        final QueryBuilder compiled = new TermQueryBuilder("tenantName", "taters");
+        final CharSequence filter = new StringBuilder("taters");
+
+        doReturn(compiled).when(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder(filter), is(compiled));
+
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(filter);
+        verify(elasticsearchQueryBuilder).generateQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder, times(2)).getQueryCache();
+        verify(elasticsearchQueryBuilder).getFiqlParser();
+        verify(elasticsearchQueryBuilder).getNativeParser();
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(CharSequence)} for the case where caching is
+     * enabled, in which case we need a string to use as the key after all.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testGenerateQueryBuilderForCharSequenceWithCache() throws Exception {
+        final BoundedCache<String, QueryBuilder> cache = new BoundedCache<>(10);
+        final QueryBuilder compiled = new TermQueryBuilder("tenantName", "taters");
+        final CharSequence filter = new StringBuilder("taters");
+
+        doReturn(cache).when(elasticsearchQueryBuilder).getQueryCache();
+        doReturn(compiled).when(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+
+        assertThat(elasticsearchQueryBuilder.generateQueryBuilder(filter), is(compiled));
+
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(filter);
+        verify(elasticsearchQueryBuilder).generateQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder, times(2)).getQueryCache();
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("taters");
+        verify(elasticsearchQueryBuilder).copyQueryBuilder(compiled);
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(ByteBuffer)} to make sure we decode the filter
+     * before handing it off.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testGenerateQueryBuilderForByteBuffer() throws Exception {
+        final ByteBuffer filter = ByteBuffer.wrap("tenantName%3D%3Dtaters".getBytes(StandardCharsets.UTF_8));
+        final ArgumentCaptor<CharSequence> captor = ArgumentCaptor.forClass(CharSequence.class);
+
+        doReturn(null).when(elasticsearchQueryBuilder).generateQueryBuilder(any(CharSequence.class));
+
+        elasticsearchQueryBuilder.generateQueryBuilder(filter);
+
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(filter);
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(captor.capture());
+
+        verifyNoMoreCollaboration();
+
+        assertThat(captor.getValue().toString(), is("tenantName==taters"));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#generateQueryBuilder(byte[], int, int)} to make sure we decode only the
+     * given slice before handing it off.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testGenerateQueryBuilderForBytes() throws Exception {
+        final byte[] filter = "&_s=tenantName%3D%3Dtaters".getBytes(StandardCharsets.UTF_8);
+        final ArgumentCaptor<CharSequence> captor = ArgumentCaptor.forClass(CharSequence.class);
+
+        doReturn(null).when(elasticsearchQueryBuilder).generateQueryBuilder(any(CharSequence.class));
+
+        elasticsearchQueryBuilder.generateQueryBuilder(filter, 4, filter.length - 4);
+
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(filter, 4, filter.length - 4);
+        verify(elasticsearchQueryBuilder).generateQueryBuilder(captor.capture());
+
+        verifyNoMoreCollaboration();
+
+        assertThat(captor.getValue().toString(), is("tenantName==taters"));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#compileQueryBuilder(String)} for the case where fingerprinting is enabled.
+     * Filters sharing a fingerprint should only be compiled once.
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored", "unchecked"})
+    @Test
+    public void testCompileQueryBuilderWithFingerprintCache() throws Exception {
+        final BoundedCache<QueryFingerprint, QueryBuilder> cache = new BoundedCache<>(10);
+        final SearchCondition<MetadataRecord> first = mock(SearchCondition.class);
+        final SearchCondition<MetadataRecord> second = mock(SearchCondition.class);
+        final QueryFingerprint fingerprint = new QueryFingerprint("and(a==1,b==2)", "and(a==?,b==?)");
+        final QueryBuilder compiled = new TermQueryBuilder("tenantName", "taters");
+
+        doReturn(cache).when(elasticsearchQueryBuilder).getFingerprintCache();
+        doReturn(first).when(fiqlParser).parse("a==1;b==2");
+        doReturn(second).when(fiqlParser).parse("b==2;a==1");
+        doReturn(fingerprint).when(elasticsearchQueryBuilder).fingerprint(first);
+        doReturn(fingerprint).when(elasticsearchQueryBuilder).fingerprint(second);
+        doReturn(compiled).when(elasticsearchQueryBuilder).compileSearchCondition(first);
+
+        assertThat(elasticsearchQueryBuilder.compileQueryBuilder("a==1;b==2"), is(sameInstance(compiled)));
+        assertThat(elasticsearchQueryBuilder.compileQueryBuilder("b==2;a==1"), is(sameInstance(compiled)));
+
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("a==1;b==2");
+        verify(elasticsearchQueryBuilder).compileQueryBuilder("b==2;a==1");
+        verify(elasticsearchQueryBuilder).checkQueryBudget("a==1;b==2");
+        verify(elasticsearchQueryBuilder).checkQueryBudget("b==2;a==1");
+        verify(elasticsearchQueryBuilder, times(2)).getQueryBudget();
+        verify(elasticsearchQueryBuilder, times(2)).getFiqlParser();
+        verify(elasticsearchQueryBuilder, times(2)).getFingerprintCache();
+        verify(elasticsearchQueryBuilder).fingerprint(first);
+        verify(elasticsearchQueryBuilder).fingerprint(second);
+        verify(elasticsearchQueryBuilder).compileSearchCondition(first);
+
+        verify(fiqlParser).parse("a==1;b==2");
+        verify(fiqlParser).parse("b==2;a==1");
+
+        verifyNoMoreCollaboration(first, second);
+
+        assertThat(elasticsearchQueryBuilder.getFingerprintCacheStatistics().getHitCount(), is(1L));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#fingerprint(String)} to make sure it does what we expect.
+     */
+    @Test
+    public void testFingerprint() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> builder = new ElasticsearchQueryBuilder<>(MetadataRecord.class);
+
+        assertThat(builder.fingerprint("tenantName==taters;containerName==delicious"),
+                is(builder.fingerprint("(containerName==delicious;tenantName==taters)")));
+    }
+
+    /**
+     * Tests constructing an {@link ElasticsearchQueryBuilder} only creates a fingerprint cache if caching is enabled.
+     */
+    @Test
+    public void testConstructorWithFingerprintCacheKeys() throws Exception {
+        final ElasticsearchQueryBuilderOptions options = new ElasticsearchQueryBuilderOptions().fingerprintCacheKeys(true);
+
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, options).getFingerprintCache(), is(nullValue()));
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, options.cacheSize(10)).getFingerprintCache(), is(notNullValue()));
+        assertThat(elasticsearchQueryBuilder.getFingerprintCacheStatistics(), is(CacheStatistics.EMPTY));
+    }
+
+    /**
+     * Tests constructing an {@link ElasticsearchQueryBuilder} picks the parser we asked for.
+     */
+    @Test
+    public void testConstructorWithNativeParser() throws Exception {
+        final ElasticsearchQueryBuilderOptions options = new ElasticsearchQueryBuilderOptions();
+
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, options).getFiqlParser(),
+                is(not(instanceOf(NativeFiqlParser.class))));
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, options.nativeParser(true)).getFiqlParser(),
+                is(instanceOf(NativeFiqlParser.class)));
+    }
+
+    /**
+     * Tests constructing an {@link ElasticsearchQueryBuilder} hands the {@link FiqlDateParser} we asked for to every
+     * parser, swapping CXF's parser for our converter if need be.
+     */
+    @Test
+    public void testConstructorWithDateParser() throws Exception {
+        final FiqlDateParser dateParser = new IsoDateParser();
+        final ElasticsearchQueryBuilder<MetadataRecord> builder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().dateParser(dateParser));
+
+        assertThat(elasticsearchQueryBuilder.getValueConverter().getDateParser(), is(nullValue()));
+        assertThat(builder.getNativeParser().getDateParser(), is(sameInstance(dateParser)));
+        assertThat(builder.getValueConverter().getDateParser(), is(sameInstance(dateParser)));
+        assertThat(builder.getFiqlParser(), is(sameInstance(builder.getValueConverter())));
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, new ElasticsearchQueryBuilderOptions().dateParser(dateParser)
+                .nativeParser(true)).getFiqlParser(), is(instanceOf(NativeFiqlParser.class)));
+    }
+
+    /**
+     * Tests constructing an {@link ElasticsearchQueryBuilder} hands {@code epochMillisDates} to both the visitors and
+     * the writer, so dates come out the same whichever way a filter is compiled.
+     */
+    @Test
+    public void testConstructorWithEpochMillisDates() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> builder = new ElasticsearchQueryBuilder<>(MetadataRecord.class,
+                new ElasticsearchQueryBuilderOptions().epochMillisDates(true));
+
+        assertThat(elasticsearchQueryBuilder.isEpochMillisDates(), is(false));
+        assertThat(elasticsearchQueryBuilder.createVisitor().isEpochMillisDates(), is(false));
+        assertThat(builder.isEpochMillisDates(), is(true));
+        assertThat(builder.createVisitor().isEpochMillisDates(), is(true));
+        assertThat(builder.getQueryWriter().isEpochMillisDates(), is(true));
+    }
+
+    /**
+     * Tests constructing an {@link ElasticsearchQueryBuilder} picks up the {@link QueryBudget} we asked for.
+     */
+    @Test
+    public void testConstructorWithQueryBudget() throws Exception {
+        final QueryBudget queryBudget = new QueryBudget().maxDepth(2);
+
+        assertThat(elasticsearchQueryBuilder.getQueryBudget(), is(nullValue()));
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, new ElasticsearchQueryBuilderOptions().queryBudget(queryBudget))
+                .getQueryBudget(), is(sameInstance(queryBudget)));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#checkQueryBudget(CharSequence)} to make sure we measure filters against
+     * the budget, if there is one.
+     */
+    @Test
+    public void testCheckQueryBudget() throws Exception {
+        final QueryBudget queryBudget = mock(QueryBudget.class);
+
+        elasticsearchQueryBuilder.checkQueryBudget("taters");
+        doReturn(queryBudget).when(elasticsearchQueryBuilder).getQueryBudget();
+        elasticsearchQueryBuilder.checkQueryBudget("taters");
+
+        verify(elasticsearchQueryBuilder, times(2)).checkQueryBudget("taters");
+        verify(elasticsearchQueryBuilder, times(2)).getQueryBudget();
+
+        verify(queryBudget).check("taters");
+
+        verifyNoMoreCollaboration(queryBudget);
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#copyQueryBuilder(QueryBuilder)} to make sure that changes to a copy don't
+     * leak back into the original, even for nested queries.
+     */
+    @Test
+    public void testCopyQueryBuilder() throws Exception {
+        final RangeQueryBuilder range = new RangeQueryBuilder("storedBytes").gt(100L);
+        final BoolQueryBuilder original = new BoolQueryBuilder()
+                .must(range)
+                .mustNot(new WildcardQueryBuilder("tenantName", "*Test"))
+                .mustNot(new PrefixQueryBuilder("containerName", "Test"));
+
+        final BoolQueryBuilder copy = (BoolQueryBuilder) elasticsearchQueryBuilder.copyQueryBuilder(original);
+
+        assertThat(copy, is(original));
+
+        ((RangeQueryBuilder) copy.must().get(0)).lt(1000L);
+        copy.should(new TermQueryBuilder("tenantName", "taters"));
+
+        assertThat(range.to(), is(nullValue()));
+        assertThat(original.should().isEmpty(), is(true));
+        assertThat(elasticsearchQueryBuilder.copyQueryBuilder(null), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#getCacheStatistics()} for the case where caching is disabled.
+     */
+    @Test
+    public void testGetCacheStatisticsWithoutCache() throws Exception {
+        assertThat(elasticsearchQueryBuilder.getCacheStatistics(), is(CacheStatistics.EMPTY));
+    }
+
     /**
      * Tests {@link ElasticsearchQueryBuilder#createVisitor()} to make sure it does what we expect.
      */
@@ -88,6 +459,100 @@ public class ElasticsearchQueryBuilderTest {
         assertThat(builder, is(notNullValue()));
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#acquireVisitor()} and
+     * {@link ElasticsearchQueryBuilder#releaseVisitor(ElasticsearchQueryBuilderVisitor)} to make sure we only create a
+     * visitor when the pool has none, and reset visitors on their way back into it.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testAcquireAndReleaseVisitor() throws Exception {
+        assertThat(elasticsearchQueryBuilder.acquireVisitor(), is(sameInstance(visitor)));
+        elasticsearchQueryBuilder.releaseVisitor(visitor);
+
+        assertThat(elasticsearchQueryBuilder.acquireVisitor(), is(sameInstance(visitor)));
+
+        // Until it's released again, the visitor belongs to its caller.
+        assertThat(elasticsearchQueryBuilder.getVisitorPool().poll(), is(nullValue()));
+
+        verify(elasticsearchQueryBuilder, times(2)).acquireVisitor();
+        verify(elasticsearchQueryBuilder).createVisitor();
+        verify(elasticsearchQueryBuilder).releaseVisitor(visitor);
+        verify(elasticsearchQueryBuilder, times(4)).getVisitorPool();
+
+        verify(visitor).reset();
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#writeQuery(String, XContentBuilder)} to make sure it hands off to our
+     * writer, without parsing or visiting anything itself.
+     */
+    @Test
+    public void testWriteQuery() throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+        doReturn(null).when(elasticsearchQueryBuilder).getQueryOptimizer();
+
+        elasticsearchQueryBuilder.writeQuery("tenantName==taters", builder);
+
+        verify(elasticsearchQueryBuilder).writeQuery("tenantName==taters", builder);
+        verify(elasticsearchQueryBuilder).canStreamQuery();
+        verify(elasticsearchQueryBuilder).isFilterContext();
+        verify(elasticsearchQueryBuilder).getQueryOptimizer();
+        verify(elasticsearchQueryBuilder).checkQueryBudget("tenantName==taters");
+        verify(elasticsearchQueryBuilder).getQueryBudget();
+        verify(elasticsearchQueryBuilder).getQueryWriter();
+
+        verifyNoMoreCollaboration();
+
+        assertThat(builder.string(), is("{\"term\":{\"tenantName\":{\"value\":\"taters\",\"boost\":1.0}}}"));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#prepare(String)} to make sure we resolve placeholders and constants into
+     * the right kinds of nodes, numbering placeholders in order.
+     */
+    @Test
+    public void testPrepare() throws Exception {
+        final PreparedQuery<MetadataRecord> prepared = new ElasticsearchQueryBuilder<>(MetadataRecord.class)
+                .prepare("tenantName==taters;(storedBytes=gt=?,updatedTime=lt=?)");
+
+        assertThat(prepared.getTemplate(), is("tenantName==taters;(storedBytes=gt=?,updatedTime=lt=?)"));
+        assertThat(prepared.getParameterCount(), is(2));
+        assertThat(prepared.getRoot(), is(instanceOf(PreparedQuery.CompositeNode.class)));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#prepareNode(FiqlExpression, AtomicInteger)} to make sure it does what we
+     * expect for each kind of expression.
+     */
+    @Test
+    public void testPrepareNode() throws Exception {
+        final ElasticsearchQueryBuilder<MetadataRecord> builder = new ElasticsearchQueryBuilder<>(MetadataRecord.class);
+        final AtomicInteger parameterCount = new AtomicInteger();
+
+        assertThat(builder.prepareNode(new FiqlExpression.Comparison("tenantName", ConditionType.EQUALS, "taters"), parameterCount),
+                is(instanceOf(PreparedQuery.ConstantNode.class)));
+        assertThat(parameterCount.get(), is(0));
+
+        assertThat(builder.prepareNode(new FiqlExpression.Comparison("storedBytes", ConditionType.EQUALS, "?"), parameterCount),
+                is(instanceOf(PreparedQuery.ParameterNode.class)));
+        assertThat(parameterCount.get(), is(1));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilder#createFingerprintVisitor()} to make sure it does what we expect, including
+     * holding expressions to the maximum depth of our {@link QueryBudget}, if any.
+     */
+    @Test
+    public void testCreateFingerprintVisitor() throws Exception {
+        assertThat(elasticsearchQueryBuilder.createFingerprintVisitor(), is(notNullValue()));
+        assertThat(elasticsearchQueryBuilder.createFingerprintVisitor().getWalker().getMaxDepth(), is(Integer.MAX_VALUE));
+        assertThat(new ElasticsearchQueryBuilder<>(MetadataRecord.class, new ElasticsearchQueryBuilderOptions().queryBudget(new QueryBudget().maxDepth(2)))
+                .createFingerprintVisitor().getWalker().getMaxDepth(), is(2));
+    }
+
     private void verifyNoMoreCollaboration(final Object... additionalCollaborators) {
         verifyNoMoreInteractions(fiqlParser, visitor, elasticsearchQueryBuilder);
         Stream.of(additionalCollaborators)
@@ -51,7 +51,7 @@ public class ElasticsearchQueryBuilderVisitorIT {
      * Holds an instance of the {@link FiqlParser} we'll use for parsing the actual expressions. This will in turn be
      * passed to our {@link ElasticsearchQueryBuilderVisitor}.
      */
-    private final FiqlParser<MetadataRecord> parser = new FiqlParser<>(MetadataRecord.class);
+    private final FiqlParser<MetadataRecord> parser = createParser();
 
     /**
      * Hold on to a {@link TestName} rule so that we can do some clever JSON comparison at the end of our test.
@@ -88,6 +88,24 @@ public class ElasticsearchQueryBuilderVisitorIT {
         doTest("tenantName==Test*");
     }
 
+    /**
+     * Tests the equality operator on a property that is a {@link String}, where the FIQL expression is nothing but a
+     * wildcard ({@code *}).
+     */
+    @Test
+    public void testStringEqualityForBareWildcard() throws Exception {
+        doTest("tenantName==*");
+    }
+
+    /**
+     * Tests the equality operator on a property that is a {@link String}, where the FIQL expression is a leading
+     * wildcard ({@code *}).
+     */
+    @Test
+    public void testStringEqualityForLeadingWildcard() throws Exception {
+        doTest("tenantName==*Tenant");
+    }
+
     /**
      * Tests the equality operator on a property that is a {@link Long}.
      */
@@ -221,6 +239,41 @@ public class ElasticsearchQueryBuilderVisitorIT {
         doTest("updatedTime=ge=2010-03-11");
     }
 
+    /**
+     * Tests the equality operator on a property that is a {@link Date}, sent as milliseconds since the epoch, which
+     * becomes a range holding that one millisecond.
+     */
+    @Test
+    public void testDateEqualityAsEpochMillis() throws Exception {
+        doTest("updatedTime==2010-03-11", true);
+    }
+
+    /**
+     * Tests the inequality operator on a property that is a {@link Date}, sent as milliseconds since the epoch.
+     */
+    @Test
+    public void testDateInequalityAsEpochMillis() throws Exception {
+        doTest("updatedTime!=2010-03-11", true);
+    }
+
+    /**
+     * Tests AND'ed range operators on a property that is a {@link Date}, sent as milliseconds since the epoch, which
+     * are folded into a single range just like any other.
+     */
+    @Test
+    public void testDateRangeAsEpochMillis() throws Exception {
+        doTest("updatedTime=ge=2010-03-11;updatedTime=lt=2010-03-12", true);
+    }
+
+    /**
+     * Tests an AND'ed range and equality operator on a property that is a {@link Date}, sent as milliseconds since the
+     * epoch, which mustn't be folded together, as the later bound would simply replace the earlier one.
+     */
+    @Test
+    public void testDateRangeAndEqualityAsEpochMillis() throws Exception {
+        doTest("updatedTime=gt=2010-03-01;updatedTime==2010-03-11", true);
+    }
+
     /**
      * Tests an AND operator on a two-part AND operation.
      */
@@ -329,6 +382,15 @@ public class ElasticsearchQueryBuilderVisitorIT {
         doTest("(storedBytes=ge=300;storedBytes=le=400);storedBytes=ge=100");
     }
 
+    /**
+     * Tests to make sure that parenthesis around a single comparison don't keep it from being collapsed, however many
+     * there are, as the group collapses down to the comparison itself.
+     */
+    @Test
+    public void testAndConditionRangeQueryCollapsingForParenthesizedComparison() throws Exception {
+        doTest("storedBytes=gt=100;((storedBytes=lt=1000))");
+    }
+
     /**
      * Tests to make sure that {@code OR} leaf nodes do not get collapsed together, even when they're
      * {@link RangeQueryBuilder}s of the same field.
@@ -402,6 +464,16 @@ public class ElasticsearchQueryBuilderVisitorIT {
         }
     }
 
+    /**
+     * Provides a test-friendly method for creating the {@link FiqlParser} under test, so that other parsers can be run
+     * against the same expected results.
+     *
+     * @return The {@link FiqlParser} to parse our expressions with.
+     */
+    FiqlParser<MetadataRecord> createParser() {
+        return new FiqlParser<>(MetadataRecord.class);
+    }
+
     /**
      * Provides a convenience method to do a test run. Takes the {@link FiqlParser} created with the test, parses the
      * input FIQL, generates an AST and runs that through the {@link ElasticsearchQueryBuilderVisitor}. Once the visitor
@@ -411,10 +483,18 @@ public class ElasticsearchQueryBuilderVisitorIT {
      * @param fiqlExpression The FIQL expression to visit.
      */
     private void doTest(final String fiqlExpression) throws Exception {
-        // Build our QueryBuilder from our expression.
-        final ElasticsearchQueryBuilderVisitor<MetadataRecord> elasticsearchQueryBuilderVisitor =
-                new ElasticsearchQueryBuilderVisitor<>();
-        elasticsearchQueryBuilderVisitor.visit(parser.parse(fiqlExpression));
+        doTest(fiqlExpression, false);
+    }
+
+    /**
+     * Provides a convenience method to do a test run, as per {@link #doTest(String)}, optionally sending dates as
+     * milliseconds since the epoch.
+     *
+     * @param fiqlExpression   The FIQL expression to visit.
+     * @param epochMillisDates {@code True} to send dates as milliseconds since the epoch, else {@code false}.
+     */
+    private void doTest(final String fiqlExpression, final boolean epochMillisDates) throws Exception {
+        final String actual = compile(fiqlExpression, epochMillisDates);
 
         // Compare the output of this test run to our input file containing our expected result.
         final String testResourceName = String.format("/ElasticsearchQueryBuilderVisitorIT/%s.json", testName.getMethodName());
@@ -424,8 +504,24 @@ public class ElasticsearchQueryBuilderVisitorIT {
                 throw new RuntimeException(String.format("Failed to find resource %s, are you sure your file exists? Perhaps this is an invalid test scenario?", testResourceName));
             }
 
-            assertThat(elasticsearchQueryBuilderVisitor.getQuery().toString(),
-                    is(IOUtils.toString(expected, Charset.defaultCharset())));
+            assertThat(actual, is(IOUtils.toString(expected, Charset.defaultCharset())));
         }
     }
+
+    /**
+     * Provides a test-friendly method for compiling a FIQL expression down to pretty-printed JSON. By default this
+     * parses the expression, and runs it through an {@link ElasticsearchQueryBuilderVisitor}.
+     *
+     * @param fiqlExpression   The FIQL expression to compile.
+     * @param epochMillisDates {@code True} to send dates as milliseconds since the epoch, else {@code false}.
+     * @return The pretty-printed JSON for the resulting query.
+     */
+    String compile(final String fiqlExpression, final boolean epochMillisDates) throws Exception {
+        // Build our QueryBuilder from our expression.
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> elasticsearchQueryBuilderVisitor =
+                new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions().epochMillisDates(epochMillisDates));
+        elasticsearchQueryBuilderVisitor.visit(parser.parse(fiqlExpression));
+
+        return elasticsearchQueryBuilderVisitor.getQuery().toString();
+    }
 }
@@ -23,11 +23,15 @@ import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
 import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 import org.apache.cxf.jaxrs.ext.search.collections.CollectionCheck;
 import org.apache.cxf.jaxrs.ext.search.collections.CollectionCheckInfo;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
 import org.apache.cxf.jaxrs.ext.search.visitor.AbstractSearchConditionVisitor;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
 import org.elasticsearch.index.query.WildcardQueryBuilder;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,8 +40,8 @@ import org.mockito.Mockito;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.Stack;
 import java.util.stream.Stream;
 
 import static org.apache.cxf.jaxrs.ext.search.ConditionType.AND;
@@ -52,6 +56,7 @@ import static org.apache.cxf.jaxrs.ext.search.ConditionType.OR;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.core.IsNull.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -83,9 +88,11 @@ public class ElasticsearchQueryBuilderVisitorTest {
     @SuppressWarnings("unchecked")
     @Before
     public void setUp() throws Exception {
+        // Our walker needs to call back into the spy, rather than the visitor it was copied from.
+        doReturn(visitor.new Walker(Integer.MAX_VALUE)).when(visitor).getWalker();
         doReturn(classValue).when(visitor).doGetPrimitiveFieldClass(any(PrimitiveStatement.class));
 
-        doReturn(wildcardQueryBuilder).when(visitor).createWildcardQuery(anyString(), anyString());
+        doReturn(wildcardQueryBuilder).when(visitor).createPatternQuery(anyString(), anyString());
         doReturn(boolQueryBuilder).when(visitor).createBoolQueryBuilder();
         doReturn(termQueryBuilder).when(visitor).createTermQuery(anyString(), any());
         doReturn(rangeQueryBuilder).when(visitor).createRangeQuery(anyString());
@@ -117,6 +124,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
+        verify(visitor).getWalker();
         verify(visitor).getStateStack();
         verify(visitor).buildSimpleExpression(statement);
 
@@ -147,6 +155,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
+        verify(visitor).getWalker();
 
         verify(searchCondition).getStatement();
 
@@ -170,27 +179,34 @@ public class ElasticsearchQueryBuilderVisitorTest {
         final SearchCondition<MetadataRecord> nestedCondition = mock(SearchCondition.class);
         searchConditions.add(nestedCondition);
 
+        doReturn(statement).when(nestedCondition).getStatement();
+        doReturn("potato").when(statement).getProperty();
+
         final SearchCondition<MetadataRecord> searchCondition = mock(SearchCondition.class);
         final QueryBuilder builder = mock(QueryBuilder.class);
+        final QueryBuilder nestedBuilder = mock(QueryBuilder.class);
 
         doReturn(searchConditions).when(searchCondition).getSearchConditions();
+        doReturn(nestedBuilder).when(visitor).buildSimpleExpression(statement);
         doReturn(builder).when(visitor).buildCompositeExpression(any(ConditionType.class), anyListOf(QueryBuilder.class));
 
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
-        verify(visitor, times(3)).getStateStack();
+        verify(visitor).getWalker();
+        verify(visitor, times(4)).getStateStack();
+        verify(visitor).buildSimpleExpression(statement);
         verify(visitor).buildCompositeExpression(any(ConditionType.class), anyListOf(QueryBuilder.class));
 
         verify(searchCondition).getStatement();
         verify(searchCondition).getSearchConditions();
         verify(searchCondition).getConditionType();
 
-        verify(searchCondition).getStatement();
+        verify(nestedCondition).getStatement();
 
-        verify(nestedCondition).accept(visitor);
+        verify(statement).getProperty();
 
-        verifyNoMoreCollaboration(searchCondition, builder, nestedCondition);
+        verifyNoMoreCollaboration(searchCondition, builder, nestedBuilder, nestedCondition);
 
         // We should get back our builder too.
         assertThat(visitor.getStateStack().size(), is(1));
@@ -204,13 +220,12 @@ public class ElasticsearchQueryBuilderVisitorTest {
     @Test
     public void testGetQuery() throws Exception {
         // If our stack is empty, our query is null.
-        doReturn(new Stack<List<QueryBuilder>>()).when(visitor).getStateStack();
+        doReturn(new StateStack<QueryBuilder>()).when(visitor).getStateStack();
         assertThat(visitor.getQuery(), is(nullValue()));
 
         // Likewise, if our stack contains an empty list of state.
-        final List<QueryBuilder> queryBuilders = new ArrayList<>();
-        final Stack<List<QueryBuilder>> stateStack = new Stack<>();
-        stateStack.push(queryBuilders);
+        final StateStack<QueryBuilder> stateStack = new StateStack<>();
+        final List<QueryBuilder> queryBuilders = stateStack.push();
 
         doReturn(stateStack).when(visitor).getStateStack();
         assertThat(visitor.getQuery(), is(nullValue()));
@@ -222,6 +237,115 @@ public class ElasticsearchQueryBuilderVisitorTest {
         assertThat(visitor.getQuery(), is(queryBuilder));
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#getQuery(QueryRewriteTrace)} to make sure our query goes through
+     * our optimizer on its way out.
+     */
+    @Test
+    public void testGetQueryWithOptimizer() throws Exception {
+        final QueryOptimizer queryOptimizer = mock(QueryOptimizer.class);
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> optimizingVisitor =
+                new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions().queryOptimizer(queryOptimizer));
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+
+        doReturn(rangeQueryBuilder).when(queryOptimizer).optimize(termQueryBuilder, trace);
+        optimizingVisitor.getStateStack().peek().add(termQueryBuilder);
+
+        assertThat(optimizingVisitor.getQuery(trace), is(rangeQueryBuilder));
+
+        verify(queryOptimizer).optimize(termQueryBuilder, trace);
+        verifyNoMoreInteractions(queryOptimizer);
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#buildCompositeExpression(ConditionType, List)} for the case where
+     * we have an optimizer. Folding ranges is left to the optimizer, so we shouldn't fold anything ourselves.
+     */
+    @Test
+    public void testBuildCompositeExpressionWithOptimizer() throws Exception {
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> optimizingVisitor = new ElasticsearchQueryBuilderVisitor<>(
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer()));
+        final RangeQueryBuilder lowerBound = new RangeQueryBuilder("storedBytes").gt(5);
+        final RangeQueryBuilder upperBound = new RangeQueryBuilder("storedBytes").lt(10);
+
+        final BoolQueryBuilder built = (BoolQueryBuilder) optimizingVisitor.buildCompositeExpression(AND, Arrays.asList(lowerBound, upperBound));
+        assertThat(built.must(), is(Arrays.<QueryBuilder>asList(lowerBound, upperBound)));
+
+        // The optimizer then takes care of it.
+        optimizingVisitor.getStateStack().peek().add(built);
+        assertThat(optimizingVisitor.getQuery(), is(new RangeQueryBuilder("storedBytes").gt(5).lt(10)));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#getQuery(QueryRewriteTrace)} to make sure our query is moved into
+     * filter context after it's been optimized, and only if we've been asked to.
+     */
+    @Test
+    public void testGetQueryWithFilterContext() throws Exception {
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> filteringVisitor = new ElasticsearchQueryBuilderVisitor<>(
+                new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer()).filterContext(true));
+        filteringVisitor.getStateStack().peek().add(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(5))
+                .must(new RangeQueryBuilder("storedBytes").lt(10)));
+
+        assertThat(filteringVisitor.getQuery(), is(new ConstantScoreQueryBuilder(new RangeQueryBuilder("storedBytes").gt(5).lt(10))));
+        assertThat(new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions().queryOptimizer(new QueryOptimizer()))
+                .isFilterContext(), is(false));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#toFilterContext(QueryBuilder)} to make sure every must clause in
+     * the tree becomes a filter clause, and nothing else moves.
+     */
+    @Test
+    public void testToFilterContext() throws Exception {
+        final QueryBuilder query = new BoolQueryBuilder()
+                .must(termQueryBuilder)
+                .must(new BoolQueryBuilder()
+                        .should(new BoolQueryBuilder().must(rangeQueryBuilder).mustNot(wildcardQueryBuilder))
+                        .should(termQueryBuilder))
+                .mustNot(wildcardQueryBuilder);
+
+        assertThat(visitor.toFilterContext(query), is(new ConstantScoreQueryBuilder(new BoolQueryBuilder()
+                .filter(termQueryBuilder)
+                .filter(new BoolQueryBuilder()
+                        .should(new BoolQueryBuilder().filter(rangeQueryBuilder).mustNot(wildcardQueryBuilder))
+                        .should(termQueryBuilder))
+                .mustNot(wildcardQueryBuilder))));
+
+        // Leaves are wrapped as they are, and anything already wrapped is left be.
+        assertThat(visitor.toFilterContext(termQueryBuilder), is(new ConstantScoreQueryBuilder(termQueryBuilder)));
+
+        final ConstantScoreQueryBuilder wrapped = new ConstantScoreQueryBuilder(termQueryBuilder);
+        assertThat(visitor.toFilterContext(wrapped), is(sameInstance(wrapped)));
+        assertThat(visitor.toFilterContext(null), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#reset()} to make sure we're left with a single, empty frame, even
+     * after a visit went wrong part way through, and that our budget starts over.
+     */
+    @Test
+    public void testReset() throws Exception {
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> budgetedVisitor =
+                new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions().queryBudget(new QueryBudget().maxLeaves(1)));
+        final FiqlParser<MetadataRecord> parser = new FiqlParser<>(MetadataRecord.class);
+
+        budgetedVisitor.getStateStack().push().add(termQueryBuilder);
+        budgetedVisitor.getStateStack().push().add(rangeQueryBuilder);
+        budgetedVisitor.reset();
+
+        assertThat(budgetedVisitor.getStateStack().size(), is(1));
+        assertThat(budgetedVisitor.getStateStack().peek().isEmpty(), is(true));
+
+        // Each expression gets the whole budget to itself.
+        for (int attempt = 0; attempt < 3; attempt++) {
+            budgetedVisitor.visit(parser.parse("tenantName==taters"));
+            assertThat(budgetedVisitor.getQuery(), is(instanceOf(TermQueryBuilder.class)));
+            budgetedVisitor.reset();
+        }
+    }
+
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
      * we're building a {@link ConditionType#EQUALS} expression.
@@ -246,13 +370,14 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verifyNoMoreCollaboration();
     }
 
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
-     * we're building a {@link ConditionType#EQUALS} expression with a prefix wildcard.
+     * we're building a {@link ConditionType#EQUALS} expression with a wildcard.
      */
     @SuppressWarnings("unchecked")
     @Test
@@ -269,11 +394,12 @@ public class ElasticsearchQueryBuilderVisitorTest {
         verify(visitor).buildSimpleExpression(statement);
         verify(visitor).doGetPrimitiveFieldClass(statement);
         verify(visitor).validateNotCollectionCheck(statement, classValue);
-        verify(visitor).createWildcardQuery(property, value.toString());
+        verify(visitor).createPatternQuery(property, value.toString());
         verify(visitor).getEnumSafeValue(classValue);
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verifyNoMoreCollaboration();
     }
@@ -303,6 +429,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(boolQueryBuilder).mustNot(termQueryBuilder);
 
@@ -311,7 +438,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
-     * we're building a {@link ConditionType#NOT_EQUALS} expression with a prefix wildcard.
+     * we're building a {@link ConditionType#NOT_EQUALS} expression with a wildcard.
      */
     @SuppressWarnings("unchecked")
     @Test
@@ -329,17 +456,115 @@ public class ElasticsearchQueryBuilderVisitorTest {
         verify(visitor).doGetPrimitiveFieldClass(statement);
         verify(visitor).validateNotCollectionCheck(statement, classValue);
         verify(visitor).createBoolQueryBuilder();
-        verify(visitor).createWildcardQuery(property, value.toString());
+        verify(visitor).createPatternQuery(property, value.toString());
         verify(visitor).getEnumSafeValue(classValue);
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(boolQueryBuilder).mustNot(any(WildcardQueryBuilder.class));
 
         verifyNoMoreCollaboration();
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
+     * we're building a {@link ConditionType#EQUALS} expression with a wildcard over an enum.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBuildSimpleEqualsEnumWildcardExpression() throws Exception {
+        final Object value = "AVAIL*";
+        final String property = "status";
+
+        doReturn(value).when(classValue).getValue();
+        doReturn(EQUALS).when(statement).getCondition();
+        doReturn(property).when(statement).getProperty();
+        doReturn(Status.class).when(statement).getValueType();
+        doReturn(termQueryBuilder).when(visitor).createEnumQuery(property, Status.class, value.toString());
+
+        assertThat(visitor.buildSimpleExpression(statement), sameInstance(termQueryBuilder));
+
+        verify(visitor).buildSimpleExpression(statement);
+        verify(visitor).doGetPrimitiveFieldClass(statement);
+        verify(visitor).validateNotCollectionCheck(statement, classValue);
+        verify(visitor).createEnumQuery(property, Status.class, value.toString());
+        verify(visitor).getEnumSafeValue(classValue);
+
+        verify(statement).getProperty();
+        verify(statement).getCondition();
+        verify(statement).getValueType();
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
+     * we're building a {@link ConditionType#NOT_EQUALS} expression with a wildcard over an enum.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBuildSimpleInequalityEnumWildcardExpression() throws Exception {
+        final Object value = "DEL*";
+        final String property = "status";
+
+        doReturn(value).when(classValue).getValue();
+        doReturn(NOT_EQUALS).when(statement).getCondition();
+        doReturn(property).when(statement).getProperty();
+        doReturn(Status.class).when(statement).getValueType();
+        doReturn(boolQueryBuilder).when(visitor).createNegatedEnumQuery(property, Status.class, value.toString());
+
+        assertThat(visitor.buildSimpleExpression(statement), sameInstance(boolQueryBuilder));
+
+        verify(visitor).buildSimpleExpression(statement);
+        verify(visitor).doGetPrimitiveFieldClass(statement);
+        verify(visitor).validateNotCollectionCheck(statement, classValue);
+        verify(visitor).createNegatedEnumQuery(property, Status.class, value.toString());
+        verify(visitor).getEnumSafeValue(classValue);
+
+        verify(statement).getProperty();
+        verify(statement).getCondition();
+        verify(statement).getValueType();
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
+     * we're building a {@link ConditionType#NOT_EQUALS} expression over an enum, without complements. This should
+     * be left as a plain must_not.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBuildSimpleInequalityEnumExpression() throws Exception {
+        final Object value = "DELETED";
+        final String property = "status";
+
+        doReturn(value).when(classValue).getValue();
+        doReturn(NOT_EQUALS).when(statement).getCondition();
+        doReturn(property).when(statement).getProperty();
+        doReturn(Status.class).when(statement).getValueType();
+
+        assertThat(visitor.buildSimpleExpression(statement), sameInstance(boolQueryBuilder));
+
+        verify(visitor).buildSimpleExpression(statement);
+        verify(visitor).doGetPrimitiveFieldClass(statement);
+        verify(visitor).validateNotCollectionCheck(statement, classValue);
+        verify(visitor).isEnumComplements();
+        verify(visitor).createBoolQueryBuilder();
+        verify(visitor).createTermQuery(property, value);
+        verify(visitor).getEnumSafeValue(classValue);
+
+        verify(statement).getProperty();
+        verify(statement).getCondition();
+        verify(statement).getValueType();
+
+        verify(boolQueryBuilder).mustNot(termQueryBuilder);
+
+        verifyNoMoreCollaboration();
+    }
+
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
      * we're building a {@link ConditionType#LESS_THAN} expression.
@@ -364,6 +589,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(rangeQueryBuilder).lt(value);
 
@@ -394,6 +620,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(rangeQueryBuilder).lte(value);
 
@@ -424,6 +651,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(rangeQueryBuilder).gt(value);
 
@@ -454,12 +682,45 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(statement).getProperty();
         verify(statement).getCondition();
+        verify(statement).getValueType();
 
         verify(rangeQueryBuilder).gte(value);
 
         verifyNoMoreCollaboration();
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
+     * we're comparing a date, and sending dates as milliseconds since the epoch.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBuildSimpleEqualsDateExpression() throws Exception {
+        final Date value = new Date(1268265600000L);
+        final String property = "created";
+
+        doReturn(value).when(classValue).getValue();
+        doReturn(EQUALS).when(statement).getCondition();
+        doReturn(property).when(statement).getProperty();
+        doReturn(true).when(visitor).isEpochMillisDates();
+        doReturn(rangeQueryBuilder).when(visitor).createDateQuery(anyString(), any(), any());
+
+        assertThat(visitor.buildSimpleExpression(statement), sameInstance(rangeQueryBuilder));
+
+        verify(visitor).buildSimpleExpression(statement);
+        verify(visitor).doGetPrimitiveFieldClass(statement);
+        verify(visitor).validateNotCollectionCheck(statement, classValue);
+        verify(visitor).isEpochMillisDates();
+        verify(visitor).createDateQuery(property, EQUALS, value);
+        verify(visitor).getEnumSafeValue(classValue);
+
+        verify(statement).getProperty();
+        verify(statement).getCondition();
+        verify(statement).getValueType();
+
+        verifyNoMoreCollaboration();
+    }
+
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#buildSimpleExpression(PrimitiveStatement)} for the case where
      * someone has passed us a compound operator such as AND or OR.
@@ -512,6 +773,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(visitor).buildCompositeExpression(conditionType, parts);
         verify(visitor).createBoolQueryBuilder();
+        verify(visitor).getQueryOptimizer();
 
         verify(boolQueryBuilder).must(part);
 
@@ -541,6 +803,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
                     verify(localVisitor).buildCompositeExpression(type, parts);
                     verify(localVisitor).createBoolQueryBuilder();
+                    verify(localVisitor).getQueryOptimizer();
 
                     verify(boolQueryBuilder).should(part);
 
@@ -570,6 +833,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(visitor).buildCompositeExpression(conditionType, parts);
         verify(visitor).createBoolQueryBuilder();
+        verify(visitor).getQueryOptimizer();
         verify(visitor).getPreviousQueryPart(boolQueryBuilder, conditionType);
         verify(visitor).canMergeQueryParts(part, secondPart, conditionType);
         verify(visitor).mergeQueryParts(part, secondPart);
@@ -600,6 +864,7 @@ public class ElasticsearchQueryBuilderVisitorTest {
 
         verify(visitor).buildCompositeExpression(conditionType, parts);
         verify(visitor).createBoolQueryBuilder();
+        verify(visitor).getQueryOptimizer();
         verify(visitor).getPreviousQueryPart(boolQueryBuilder, conditionType);
         verify(visitor).canMergeQueryParts(part, secondPart, conditionType);
 
@@ -768,6 +1033,38 @@ public class ElasticsearchQueryBuilderVisitorTest {
         assertThat(visitor.canMergeQueryParts(previousPart, currentPart, ConditionType.AND), is(false));
     }
 
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#canMergeQueryParts(QueryBuilder, QueryBuilder, ConditionType)} for
+     * the case where both query parts point at the same field, but with different formats.
+     */
+    @Test
+    public void testCanMergeQueryPartsForDifferentFormats() throws Exception {
+        final RangeQueryBuilder previousPart = mock(RangeQueryBuilder.class);
+        final RangeQueryBuilder currentPart = mock(RangeQueryBuilder.class);
+
+        doReturn("taters").when(previousPart).fieldName();
+        doReturn("taters").when(currentPart).fieldName();
+        doReturn("epoch_millis").when(currentPart).format();
+
+        assertThat(visitor.canMergeQueryParts(previousPart, currentPart, ConditionType.AND), is(false));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#canMergeQueryParts(QueryBuilder, QueryBuilder, ConditionType)} for
+     * the case where one of the query parts holds a single date, as sent for {@code ==} with {@code epochMillisDates}.
+     * Letting the later bounds replace it would drop the equality altogether.
+     */
+    @Test
+    public void testCanMergeQueryPartsForExactDate() throws Exception {
+        final RangeQueryBuilder previousPart = new RangeQueryBuilder("taters").gt(1L).format("epoch_millis");
+        final RangeQueryBuilder currentPart = new RangeQueryBuilder("taters").gte(5L).lte(5L).format("epoch_millis");
+
+        assertThat(visitor.canMergeQueryParts(previousPart, currentPart, ConditionType.AND), is(false));
+        assertThat(visitor.canMergeQueryParts(currentPart, previousPart, ConditionType.AND), is(false));
+        assertThat(visitor.canMergeQueryParts(previousPart, new RangeQueryBuilder("taters").lt(9L).format("epoch_millis"),
+                ConditionType.AND), is(true));
+    }
+
     /**
      * Tests {@link ElasticsearchQueryBuilderVisitor#mergeQueryParts(QueryBuilder, QueryBuilder)} for the case where our
      * current query part is a less than/less than or equal to.
@@ -926,21 +1223,87 @@ public class ElasticsearchQueryBuilderVisitorTest {
     }
 
     /**
-     * Tests {@link ElasticsearchQueryBuilderVisitor#createWildcardQuery(String, String)} (String, Object)} to make sure
-     * it does what we think it does.
+     * Tests {@link ElasticsearchQueryBuilderVisitor#createPatternQuery(String, String)} to make sure it hands the
+     * pattern to our {@link WildcardPolicy}.
      */
     @Test
-    public void testCreateWildcardQuery() throws Exception {
-        doCallRealMethod().when(visitor).createWildcardQuery(anyString(), anyString());
+    public void testCreatePatternQuery() throws Exception {
+        final WildcardPolicy wildcardPolicy = mock(WildcardPolicy.class);
+        final QueryBuilder queryBuilder = mock(QueryBuilder.class);
 
-        final WildcardQueryBuilder queryBuilder = visitor.createWildcardQuery("fieldNameTaters", "tatersValue");
+        doCallRealMethod().when(visitor).createPatternQuery(anyString(), anyString());
+        doReturn(wildcardPolicy).when(visitor).getWildcardPolicy();
+        doReturn(queryBuilder).when(wildcardPolicy).toQuery("fieldNameTaters", "taters*Value");
 
-        assertThat(queryBuilder.fieldName(), is("fieldNameTaters"));
-        assertThat(queryBuilder.value(), is("tatersValue"));
+        assertThat(visitor.createPatternQuery("fieldNameTaters", "taters*Value"), is(queryBuilder));
 
-        verify(visitor).createWildcardQuery("fieldNameTaters", "tatersValue");
+        verify(visitor).createPatternQuery("fieldNameTaters", "taters*Value");
+        verify(visitor).getWildcardPolicy();
 
-        verifyNoMoreCollaboration(visitor);
+        verify(wildcardPolicy).toQuery("fieldNameTaters", "taters*Value");
+
+        verifyNoMoreCollaboration(wildcardPolicy, queryBuilder);
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#createEnumQuery(String, Class, String)} to make sure patterns are
+     * matched against the constants of the enum.
+     */
+    @Test
+    public void testCreateEnumQuery() throws Exception {
+        doCallRealMethod().when(visitor).createEnumQuery(anyString(), any(), anyString());
+
+        assertThat(visitor.createEnumQuery("status", Status.class, "AVAIL*"), is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(visitor.createEnumQuery("status", Status.class, "*E*"),
+                is(new TermsQueryBuilder("status", Arrays.asList("AVAILABLE", "DELETED"))));
+        assertThat(visitor.createEnumQuery("status", Status.class, "GONE*"), is(new MatchNoneQueryBuilder()));
+
+        verify(visitor).createEnumQuery("status", Status.class, "AVAIL*");
+        verify(visitor).createEnumQuery("status", Status.class, "*E*");
+        verify(visitor).createEnumQuery("status", Status.class, "GONE*");
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#createNegatedEnumQuery(String, Class, String)} both with and
+     * without complements.
+     */
+    @Test
+    public void testCreateNegatedEnumQuery() throws Exception {
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> complementingVisitor =
+                new ElasticsearchQueryBuilderVisitor<>(new ElasticsearchQueryBuilderOptions().enumComplements(true));
+
+        doCallRealMethod().when(visitor).createNegatedEnumQuery(anyString(), any(), anyString());
+
+        assertThat(visitor.createNegatedEnumQuery("status", Status.class, "DEL*"),
+                is(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "DELETED"))));
+        assertThat(complementingVisitor.createNegatedEnumQuery("status", Status.class, "DEL*"),
+                is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(complementingVisitor.createNegatedEnumQuery("status", Status.class, "DELETED"),
+                is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(complementingVisitor.createNegatedEnumQuery("status", Status.class, "*"), is(new MatchNoneQueryBuilder()));
+
+        verify(visitor).createNegatedEnumQuery("status", Status.class, "DEL*");
+        verify(visitor).isEnumComplements();
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryBuilderVisitor#createDateQuery(String, ConditionType, Date)} to make sure it does
+     * what we think it does.
+     */
+    @Test
+    public void testCreateDateQuery() throws Exception {
+        doCallRealMethod().when(visitor).createDateQuery(anyString(), any(), any());
+
+        assertThat(visitor.createDateQuery("created", EQUALS, new Date(5L)),
+                is(new RangeQueryBuilder("created").gte(5L).lte(5L).format("epoch_millis")));
+
+        verify(visitor).createDateQuery("created", EQUALS, new Date(5L));
+
+        verifyNoMoreCollaboration();
     }
 
     private void verifyNoMoreCollaboration(final Object... additionalCollaborators) {
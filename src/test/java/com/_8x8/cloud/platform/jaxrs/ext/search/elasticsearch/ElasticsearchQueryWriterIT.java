@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.util.HashMap;
+
+/**
+ * Tests the {@link ElasticsearchQueryWriter} at the integration level. Every scenario from the
+ * {@link ElasticsearchQueryBuilderVisitorIT} is compiled straight to JSON instead, and checked against the very same
+ * expected results.
+ */
+public class ElasticsearchQueryWriterIT extends ElasticsearchQueryBuilderVisitorIT {
+    private final NativeFiqlParser<MetadataRecord> nativeParser = new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>());
+
+    @Override
+    String compile(final String fiqlExpression, final boolean epochMillisDates) throws Exception {
+        final ElasticsearchQueryWriter<MetadataRecord> writer = new ElasticsearchQueryWriter<>(nativeParser, ElasticsearchQueryBuilderVisitor::new,
+                ElasticsearchQueryBuilderVisitor::reset, new ElasticsearchQueryBuilderOptions().epochMillisDates(epochMillisDates));
+        final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+        writer.write(fiqlExpression, builder);
+
+        return builder.string();
+    }
+}
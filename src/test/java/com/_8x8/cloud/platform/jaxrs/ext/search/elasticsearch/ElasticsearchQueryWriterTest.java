@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link ElasticsearchQueryWriter} at the unit level.
+ */
+public class ElasticsearchQueryWriterTest {
+    private final ElasticsearchQueryWriter<MetadataRecord> writer =
+            new ElasticsearchQueryWriter<>(new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>()), ElasticsearchQueryBuilderVisitor::new,
+                    ElasticsearchQueryBuilderVisitor::reset, new ElasticsearchQueryBuilderOptions());
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#mergeRange(ElasticsearchQueryWriter.PendingRange, ElasticsearchQueryWriter.PendingRange, XContentBuilder)}
+     * to make sure ranges over the same field fold together, with the latest bound winning.
+     */
+    @Test
+    public void testMergeRange() throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+        final ElasticsearchQueryWriter.PendingRange pending = new ElasticsearchQueryWriter.PendingRange("storedBytes", 1L, null, false, true);
+
+        assertThat(writer.mergeRange(pending, new ElasticsearchQueryWriter.PendingRange("storedBytes", null, 9L, true, false), builder),
+                is(sameInstance(pending)));
+        assertThat(writer.mergeRange(pending, new ElasticsearchQueryWriter.PendingRange("storedBytes", 2L, null, true, true), builder),
+                is(sameInstance(pending)));
+
+        assertThat(pending.getFrom(), is(2L));
+        assertThat(pending.isIncludeLower(), is(true));
+        assertThat(pending.getTo(), is(9L));
+        assertThat(pending.isIncludeUpper(), is(false));
+
+        // Nothing should have been written so far.
+        assertThat(builder.bytes().length(), is(0));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#mergeRange(ElasticsearchQueryWriter.PendingRange, ElasticsearchQueryWriter.PendingRange, XContentBuilder)}
+     * to make sure ranges over different fields don't fold together.
+     */
+    @Test
+    public void testMergeRangeForDifferentFields() throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startArray();
+        final ElasticsearchQueryWriter.PendingRange current = new ElasticsearchQueryWriter.PendingRange("containerId", null, 9L, true, false);
+
+        assertThat(writer.mergeRange(null, current, builder), is(sameInstance(current)));
+        assertThat(writer.mergeRange(new ElasticsearchQueryWriter.PendingRange("storedBytes", 1L, null, false, true), current, builder),
+                is(sameInstance(current)));
+
+        assertThat(builder.endArray().string(),
+                is("[{\"range\":{\"storedBytes\":{\"from\":1,\"to\":null,\"include_lower\":false,\"include_upper\":true,\"boost\":1.0}}}]"));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#writePart(String, int, int, ElasticsearchQueryWriter.PendingRange, XContentBuilder)}
+     * to make sure ranges are held back, and anything else is written right away.
+     */
+    @Test
+    public void testWritePart() throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startArray();
+
+        final ElasticsearchQueryWriter.PendingRange range = writer.writePart("storedBytes=le=5", 0, 16, null, builder);
+        assertThat(range.getTo(), is(5L));
+        assertThat(range.isIncludeUpper(), is(true));
+
+        assertThat(writer.writePart("status==deleted", 0, 15, range, builder), is(nullValue()));
+        assertThat(builder.endArray().string(),
+                is("[{\"range\":{\"storedBytes\":{\"from\":null,\"to\":5,\"include_lower\":true,\"include_upper\":true,\"boost\":1.0}}}," +
+                        "{\"term\":{\"status\":{\"value\":\"DELETED\",\"boost\":1.0}}}]"));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#scanLevel(String, int, int)} to make sure it does what we expect.
+     */
+    @Test
+    public void testScanLevel() throws Exception {
+        assertThat(writer.scanLevel("a==1", 0, 4), is(0));
+        assertThat(writer.scanLevel("a==1;(b==2,c==3)", 0, 16), is(1));
+        assertThat(writer.scanLevel("a==1;b==2,c==3", 0, 14), is(3));
+
+        try {
+            writer.scanLevel("x(a==1))", 1, 8);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), is("Unexpected closing bracket at position 6"));
+        }
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#findSeparator(String, int, int, char)} to make sure we skip over anything
+     * in parenthesis.
+     */
+    @Test
+    public void testFindSeparator() throws Exception {
+        assertThat(writer.findSeparator("(a==1;b==2);c==3", 0, 16, ';'), is(11));
+        assertThat(writer.findSeparator("(a==1;b==2);c==3", 12, 16, ';'), is(16));
+    }
+
+    /**
+     * Tests {@link ElasticsearchQueryWriter#buildParsedQuery(FiqlExpression.Comparison)} to make sure every visitor it
+     * takes from the factory is handed back, even when the visitor rejects the expression.
+     */
+    @Test
+    public void testBuildParsedQuery() throws Exception {
+        final ElasticsearchQueryBuilderVisitor<MetadataRecord> visitor = new ElasticsearchQueryBuilderVisitor<>();
+        final List<ElasticsearchQueryBuilderVisitor<MetadataRecord>> recycled = new ArrayList<>();
+        final ElasticsearchQueryWriter<MetadataRecord> pooledWriter = new ElasticsearchQueryWriter<>(
+                new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>()), () -> visitor, recycled::add, new ElasticsearchQueryBuilderOptions());
+
+        assertThat(pooledWriter.buildParsedQuery(parseComparison("count(storedBytes)=ge=2")),
+                is(new ElasticsearchQueryBuilderVisitor<MetadataRecord>().buildSimpleExpression(
+                        new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>()).parse("count(storedBytes)=ge=2").getStatement())));
+        assertThat(recycled, is(Collections.singletonList(visitor)));
+
+        try {
+            pooledWriter.buildParsedQuery(parseComparison("count(tags)=ge=2"));
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Query contains an illegal operation: tags GREATER_OR_EQUALS SIZE 2"));
+        }
+
+        assertThat(recycled, is(Arrays.asList(visitor, visitor)));
+    }
+
+    /**
+     * Provides a convenience method to parse a single comparison.
+     */
+    private FiqlExpression.Comparison parseComparison(final String comparison) {
+        return (FiqlExpression.Comparison) writer.getExpressionParser().parseComparison(comparison, 0, comparison.length());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.Status;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link EnumExpansion} at the unit level.
+ */
+public class EnumExpansionTest {
+    /**
+     * Tests {@link EnumExpansion#match(Class, String)} to make sure patterns match just as a wildcard query would, and
+     * anything else matches exactly.
+     */
+    @Test
+    public void testMatch() throws Exception {
+        assertThat(EnumExpansion.match(Status.class, "*"), is(Arrays.asList("AVAILABLE", "DELETED")));
+        assertThat(EnumExpansion.match(Status.class, "AVAIL*"), is(Collections.singletonList("AVAILABLE")));
+        assertThat(EnumExpansion.match(Status.class, "*LE*"), is(Arrays.asList("AVAILABLE", "DELETED")));
+        assertThat(EnumExpansion.match(Status.class, "D?L*"), is(Collections.singletonList("DELETED")));
+        assertThat(EnumExpansion.match(Status.class, "avail*"), is(Collections.emptyList()));
+        assertThat(EnumExpansion.match(Status.class, "DELETED"), is(Collections.singletonList("DELETED")));
+
+        // Without a *, a ? is just another character.
+        assertThat(EnumExpansion.match(Status.class, "D?LETED"), is(Collections.emptyList()));
+    }
+
+    /**
+     * Tests {@link EnumExpansion#toQuery(String, java.util.List)} for none, one and several constants.
+     */
+    @Test
+    public void testToQuery() throws Exception {
+        assertThat(EnumExpansion.toQuery("status", Collections.emptyList()), is(new MatchNoneQueryBuilder()));
+        assertThat(EnumExpansion.toQuery("status", Collections.singletonList("DELETED")), is(new TermQueryBuilder("status", "DELETED")));
+        assertThat(EnumExpansion.toQuery("status", Arrays.asList("AVAILABLE", "DELETED")),
+                is(new TermsQueryBuilder("status", Arrays.asList("AVAILABLE", "DELETED"))));
+    }
+
+    /**
+     * Tests {@link EnumExpansion#toNegatedQuery(String, Class, java.util.List, boolean)} to make sure the remaining
+     * constants are only matched when asked, and when there are no more of them than there are excluded constants.
+     */
+    @Test
+    public void testToNegatedQuery() throws Exception {
+        assertThat(EnumExpansion.toNegatedQuery("status", Status.class, Collections.singletonList("DELETED"), false),
+                is(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "DELETED"))));
+        assertThat(EnumExpansion.toNegatedQuery("status", Status.class, Collections.singletonList("DELETED"), true),
+                is(new TermQueryBuilder("status", "AVAILABLE")));
+        assertThat(EnumExpansion.toNegatedQuery("status", Status.class, Arrays.asList("AVAILABLE", "DELETED"), true),
+                is(new MatchNoneQueryBuilder()));
+
+        // Excluding nothing leaves every constant, which is more than we'd save.
+        assertThat(EnumExpansion.toNegatedQuery("status", Status.class, Collections.emptyList(), true),
+                is(new BoolQueryBuilder().mustNot(new MatchNoneQueryBuilder())));
+    }
+
+    /**
+     * Tests {@link EnumExpansion#getEnumClass(Object)} for enums, and everything else.
+     */
+    @Test
+    public void testGetEnumClass() throws Exception {
+        assertThat(EnumExpansion.getEnumClass(Status.class), is((Object) Status.class));
+        assertThat(EnumExpansion.getEnumClass(Date.class), is(nullValue()));
+        assertThat(EnumExpansion.getEnumClass(null), is(nullValue()));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link EpochMillisDates} at the unit level.
+ */
+public class EpochMillisDatesTest {
+    private static final Date DATE = new Date(1268265600000L);
+
+    /**
+     * Tests {@link EpochMillisDates#toQuery(String, ConditionType, Date)} for every comparison, to make sure each range
+     * carries the milliseconds and the {@code epoch_millis} format.
+     */
+    @Test
+    public void testToQuery() throws Exception {
+        final RangeQueryBuilder exact = new RangeQueryBuilder("created").gte(1268265600000L).lte(1268265600000L).format("epoch_millis");
+
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.EQUALS, DATE), is(exact));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.NOT_EQUALS, DATE), is(new BoolQueryBuilder().mustNot(exact)));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.LESS_THAN, DATE),
+                is(new RangeQueryBuilder("created").lt(1268265600000L).format("epoch_millis")));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.LESS_OR_EQUALS, DATE),
+                is(new RangeQueryBuilder("created").lte(1268265600000L).format("epoch_millis")));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.GREATER_THAN, DATE),
+                is(new RangeQueryBuilder("created").gt(1268265600000L).format("epoch_millis")));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.GREATER_OR_EQUALS, DATE),
+                is(new RangeQueryBuilder("created").gte(1268265600000L).format("epoch_millis")));
+    }
+
+    /**
+     * Tests {@link EpochMillisDates#toQuery(String, ConditionType, Date)} for conditions that aren't comparisons.
+     */
+    @Test
+    public void testToQueryForNonComparison() throws Exception {
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.AND, DATE), is(nullValue()));
+        assertThat(EpochMillisDates.toQuery("created", ConditionType.OR, DATE), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link EpochMillisDates#isExact(Object, Object, String)} to make sure only ranges from and to the same
+     * millisecond, with the {@code epoch_millis} format, hold a single date.
+     */
+    @Test
+    public void testIsExact() throws Exception {
+        assertThat(EpochMillisDates.isExact(1L, 1L, "epoch_millis"), is(true));
+        assertThat(EpochMillisDates.isExact(1L, 2L, "epoch_millis"), is(false));
+        assertThat(EpochMillisDates.isExact(1L, null, "epoch_millis"), is(false));
+        assertThat(EpochMillisDates.isExact(null, null, "epoch_millis"), is(false));
+        assertThat(EpochMillisDates.isExact(1L, 1L, null), is(false));
+        assertThat(EpochMillisDates.isExact(1L, 1L, "yyyy-MM-dd"), is(false));
+    }
+}
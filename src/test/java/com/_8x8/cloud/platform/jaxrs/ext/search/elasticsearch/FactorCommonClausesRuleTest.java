@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link FactorCommonClausesRule} at the unit level.
+ */
+public class FactorCommonClausesRuleTest {
+    private final FactorCommonClausesRule rule = new FactorCommonClausesRule();
+    private final TermQueryBuilder x = new TermQueryBuilder("tenantName", "x");
+    private final TermQueryBuilder y = new TermQueryBuilder("containerName", "y");
+    private final TermQueryBuilder a = new TermQueryBuilder("status", "a");
+    private final TermQueryBuilder b = new TermQueryBuilder("status", "b");
+    private final TermQueryBuilder c = new TermQueryBuilder("status", "c");
+
+    /**
+     * Tests {@link FactorCommonClausesRule#rewrite(QueryBuilder)} to make sure AND'ed clauses shared by every branch
+     * of an OR group come out of it.
+     */
+    @Test
+    public void testRewriteForDisjunctions() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(y).must(a))
+                .should(new BoolQueryBuilder().must(b).must(x).must(y))
+                .should(new BoolQueryBuilder().must(x).must(c).must(y));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder()
+                        .must(x)
+                        .must(y)
+                        .must(new BoolQueryBuilder().should(a).should(b).should(c)))));
+
+        // Once factored, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link FactorCommonClausesRule#rewrite(QueryBuilder)} to make sure only the branches sharing a clause are
+     * factored, that what's left of a branch keeps its own group, and that branches covered by another are dropped.
+     */
+    @Test
+    public void testRewriteForSomeBranches() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(c)
+                .should(new BoolQueryBuilder().must(x).must(a).must(y))
+                .should(new BoolQueryBuilder().must(x).must(b));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .should(c)
+                .should(new BoolQueryBuilder()
+                        .must(x)
+                        .must(new BoolQueryBuilder().should(new BoolQueryBuilder().must(a).must(y)).should(b)))));
+
+        // x,(x;a) is just x.
+        final BoolQueryBuilder absorbed = new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(a))
+                .should(x);
+
+        assertThat(rule.rewrite(absorbed), is(sameInstance(absorbed)));
+        assertThat(absorbed, is(new BoolQueryBuilder().should(new BoolQueryBuilder().must(x))));
+    }
+
+    /**
+     * Tests {@link FactorCommonClausesRule#rewrite(QueryBuilder)} to make sure OR'ed clauses shared by branches of an
+     * AND group come out of it, leaving anything else in the group be.
+     */
+    @Test
+    public void testRewriteForConjunctions() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new BoolQueryBuilder().should(x).should(a))
+                .must(y)
+                .must(new BoolQueryBuilder().should(b).should(x))
+                .mustNot(c);
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .must(new BoolQueryBuilder()
+                        .should(x)
+                        .should(new BoolQueryBuilder().must(a).must(b)))
+                .must(y)
+                .mustNot(c)));
+
+        // A clause shared by two plain branches of an AND group is just a duplicate, which isn't our problem.
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(x).must(x)), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link FactorCommonClausesRule#rewrite(QueryBuilder)} for things we must leave alone: groups with nothing
+     * in common, groups mixing must and should clauses, bool queries someone built on purpose, groups too big to
+     * bother with, and anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnfactorableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(a))
+                .should(new BoolQueryBuilder().must(y).must(b))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(c)
+                .should(new BoolQueryBuilder().must(x).must(a))
+                .should(new BoolQueryBuilder().must(x).must(b))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(a))
+                .should(new BoolQueryBuilder().must(x).must(b))
+                .boost(2)), is(nullValue()));
+
+        // A branch with a boost, or a negation, is a clause in its own right rather than a group of clauses.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(a).boost(2))
+                .should(new BoolQueryBuilder().must(x).must(b).mustNot(c))), is(nullValue()));
+
+        assertThat(new FactorCommonClausesRule(3).rewrite(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().must(x).must(a))
+                .should(new BoolQueryBuilder().must(x).must(b))), is(nullValue()));
+
+        assertThat(rule.rewrite(x), is(nullValue()));
+    }
+}
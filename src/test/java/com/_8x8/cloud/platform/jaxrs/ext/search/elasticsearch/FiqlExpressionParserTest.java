@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link FiqlExpressionParser} at the unit level.
+ */
+public class FiqlExpressionParserTest {
+    private final FiqlExpressionParser parser = new FiqlExpressionParser();
+
+    /**
+     * Tests {@link FiqlExpressionParser#parse(String)} for a single comparison, for each of our operators.
+     */
+    @Test
+    public void testParseComparison() throws Exception {
+        assertComparison("tenantName==taters", "tenantName", ConditionType.EQUALS, "taters");
+        assertComparison("tenantName!=taters", "tenantName", ConditionType.NOT_EQUALS, "taters");
+        assertComparison("storedBytes=lt=5", "storedBytes", ConditionType.LESS_THAN, "5");
+        assertComparison("storedBytes=le=5", "storedBytes", ConditionType.LESS_OR_EQUALS, "5");
+        assertComparison("storedBytes=gt=5", "storedBytes", ConditionType.GREATER_THAN, "5");
+        assertComparison("storedBytes=ge=5", "storedBytes", ConditionType.GREATER_OR_EQUALS, "5");
+    }
+
+    /**
+     * Tests {@link FiqlExpressionParser#parse(String)} to make sure we split on the last operator, just like CXF.
+     */
+    @Test
+    public void testParseComparisonForMultipleOperators() throws Exception {
+        assertComparison("tenantName==a==b", "tenantName==a", ConditionType.EQUALS, "b");
+        assertComparison("tenantName===b", "tenantName=", ConditionType.EQUALS, "b");
+        assertComparison("count(tags)=ge=2", "count(tags)", ConditionType.GREATER_OR_EQUALS, "2");
+    }
+
+    /**
+     * Tests {@link FiqlExpressionParser#parse(String)} to make sure AND binds tighter than OR, and parenthesis group.
+     */
+    @Test
+    public void testParseComposite() throws Exception {
+        assertThat(parser.parse("a==1;b==2,c==3").toString(), is("(a==1;b==2),c==3"));
+        assertThat(parser.parse("a==1,b==2;c==3").toString(), is("a==1,(b==2;c==3)"));
+        assertThat(parser.parse("a==1;(b==2,c==3)").toString(), is("a==1;(b==2,c==3)"));
+        assertThat(parser.parse("((a==1))").toString(), is("a==1"));
+
+        final FiqlExpression.Composite composite = (FiqlExpression.Composite) parser.parse("a==1;b==2;c==3");
+        assertThat(composite.getConditionType(), is(ConditionType.AND));
+        assertThat(composite.getParts().size(), is(3));
+    }
+
+    /**
+     * Tests {@link FiqlExpressionParser#parse(String)} to make sure we reject the same expressions as CXF, with the
+     * same messages.
+     */
+    @Test
+    public void testParseForInvalidExpressions() throws Exception {
+        for (final String expression : new String[]{"tenantName", "tenantName==", "tenantName==a==", "tenantName==a;",
+                ";tenantName==a", "tenantName==a)", "(tenantName==a", "tenantName==a;(storedBytes==1))", "==a", ""}) {
+            assertSameFailure(expression);
+        }
+    }
+
+    private void assertComparison(final String expression, final String selector, final ConditionType conditionType, final String value) {
+        final FiqlExpression parsed = parser.parse(expression);
+        assertThat(parsed, is(instanceOf(FiqlExpression.Comparison.class)));
+
+        final FiqlExpression.Comparison comparison = (FiqlExpression.Comparison) parsed;
+        assertThat(comparison.getSelector(), is(selector));
+        assertThat(comparison.getConditionType(), is(conditionType));
+        assertThat(comparison.getValue(), is(value));
+        assertThat(comparison.toString(), is(expression));
+    }
+
+    private void assertSameFailure(final String expression) {
+        String expected = null;
+
+        try {
+            new FiqlParser<>(MetadataRecord.class).parse(expression);
+            fail("Oops, CXF should have rejected " + expression);
+        } catch (final SearchParseException ex) {
+            expected = ex.getMessage();
+        } catch (final IndexOutOfBoundsException ex) {
+            // CXF doesn't cope with empty expressions too gracefully.
+            expected = "Not a comparison expression: ";
+        }
+
+        try {
+            parser.parse(expression);
+            fail("Oops, we should have caught an exception here for " + expression);
+        } catch (final SearchParseException ex) {
+            assertThat(expression, ex.getMessage(), is(expected));
+        }
+    }
+}
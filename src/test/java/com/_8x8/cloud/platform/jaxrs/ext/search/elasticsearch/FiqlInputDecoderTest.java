@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.junit.Test;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link FiqlInputDecoder} at the unit level.
+ */
+public class FiqlInputDecoderTest {
+    /**
+     * Tests {@link FiqlInputDecoder#decode(byte[], int, int)} to make sure we decode exactly like {@link URLDecoder}
+     * would, for plain, escaped and multi-byte input alike.
+     */
+    @Test
+    public void testDecode() throws Exception {
+        Stream.of(
+                "tenantName==taters",
+                "tenantName==Taters*;(storedBytes=gt=100,storedBytes=lt=5)",
+                "updatedTime=gt=2017-03-24T10:00:00+01:00",
+                "tenantName==café,tenantName==日本,tenantName==🥔",
+                "tenantName==100%"
+        ).forEach(filter -> {
+            try {
+                final String encoded = URLEncoder.encode(filter, "UTF-8");
+
+                assertThat(decode(encoded), is(URLDecoder.decode(encoded, "UTF-8")));
+                assertThat(decode(encoded), is(filter));
+            } catch (final Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    /**
+     * Tests {@link FiqlInputDecoder#decode(byte[], int, int)} for input that was never encoded in the first place, and
+     * input that mixes raw multi-byte characters with escapes.
+     */
+    @Test
+    public void testDecodeForUnencodedInput() throws Exception {
+        assertThat(decode("tenantName==taters;storedBytes=gt=100"), is("tenantName==taters;storedBytes=gt=100"));
+        assertThat(decode("tenantName==café%3Bcaf%C3%A9+au+lait"), is("tenantName==café;café au lait"));
+        assertThat(decode("tenantName==%f0%9f%a5%94"), is("tenantName==🥔"));
+        assertThat(decode(""), is(""));
+    }
+
+    /**
+     * Tests {@link FiqlInputDecoder#decode(byte[], int, int)} for malformed UTF-8, which should be replaced just like
+     * the JDK does when building strings. The JDK may use more than one replacement for a single malformed sequence,
+     * which we don't bother with.
+     */
+    @Test
+    public void testDecodeForMalformedUtf8() throws Exception {
+        Stream.of(
+                new byte[]{'a', (byte) 0xC3},
+                new byte[]{'a', (byte) 0xC3, 'b'},
+                new byte[]{'a', (byte) 0x80, 'b'},
+                new byte[]{'a', (byte) 0xFF, 'b'},
+                new byte[]{'a', (byte) 0xE6, (byte) 0x97, 'b'},
+                new byte[]{(byte) 0xC0, (byte) 0xAF},
+                new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0x80}
+        ).forEach(bytes -> assertThat(FiqlInputDecoder.decode(bytes, 0, bytes.length).toString().replaceAll("\uFFFD+", "\uFFFD"),
+                is(new String(bytes, StandardCharsets.UTF_8).replaceAll("\uFFFD+", "\uFFFD"))));
+    }
+
+    /**
+     * Tests {@link FiqlInputDecoder#decode(byte[], int, int)} to make sure we only look at the given slice.
+     */
+    @Test
+    public void testDecodeForSlice() throws Exception {
+        final byte[] bytes = "xxtenantName%3D%3Dtatersyy".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(FiqlInputDecoder.decode(bytes, 2, bytes.length - 4).toString(), is("tenantName==taters"));
+    }
+
+    /**
+     * Tests {@link FiqlInputDecoder#decode(ByteBuffer)} for both heap and direct buffers, whose positions must be left
+     * alone.
+     */
+    @Test
+    public void testDecodeForByteBuffer() throws Exception {
+        final byte[] bytes = "xxtenantName%3D%3Dtaters".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer heap = ByteBuffer.wrap(bytes);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+
+        direct.put(bytes).flip();
+
+        for (final ByteBuffer buffer : new ByteBuffer[]{heap, direct}) {
+            buffer.position(2);
+
+            assertThat(FiqlInputDecoder.decode(buffer).toString(), is("tenantName==taters"));
+            assertThat(buffer.position(), is(2));
+            assertThat(buffer.limit(), is(bytes.length));
+        }
+    }
+
+    /**
+     * Tests {@link FiqlInputDecoder#decode(byte[], int, int)} for broken escapes, which are errors rather than junk.
+     */
+    @Test
+    public void testDecodeForInvalidEscape() throws Exception {
+        assertInvalid("tenantName==%zz", "Invalid percent-encoding at position 12");
+        assertInvalid("tenantName==%4", "Incomplete percent-encoding at position 12");
+        assertInvalid("tenantName==%", "Incomplete percent-encoding at position 12");
+    }
+
+    /**
+     * Provides a convenience method to decode a string as though it came off the wire.
+     */
+    private String decode(final String encoded) {
+        final byte[] bytes = encoded.getBytes(StandardCharsets.UTF_8);
+        return FiqlInputDecoder.decode(bytes, 0, bytes.length).toString();
+    }
+
+    /**
+     * Provides a convenience method to make sure decoding fails with the given message.
+     */
+    private void assertInvalid(final String encoded, final String message) {
+        try {
+            decode(encoded);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), is(message));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link FiqlSearchableProcessor} by compiling a small model with it, and checking the {@link FiqlSchema} it
+ * generates against what we'd find via reflection.
+ */
+public class FiqlSearchableProcessorTest {
+    private static final String SAMPLE_SOURCE = String.join("\n",
+            "package sample;",
+            "",
+            "import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.FiqlSearchable;",
+            "import java.util.List;",
+            "import java.util.Set;",
+            "",
+            "@FiqlSearchable",
+            "public class Sample extends Base<Long> {",
+            "    public enum Kind { SMALL, LARGE }",
+            "    private static class Hidden { }",
+            "    public static class Child {",
+            "        public String getName() { return null; }",
+            "        public Sample getParent() { return null; }",
+            "    }",
+            "    public int getCount() { return 0; }",
+            "    public boolean isActive() { return false; }",
+            "    public Kind getKind() { return null; }",
+            "    public List<Kind> getKinds() { return null; }",
+            "    public Set<List<String>> getGroups() { return null; }",
+            "    public Child getChild() { return null; }",
+            "    public Hidden getHidden() { return null; }",
+            "    public static String getShared() { return null; }",
+            "    public String getLabel(final int index) { return null; }",
+            "}",
+            "",
+            "class Base<T> {",
+            "    public T getValue() { return null; }",
+            "}",
+            "");
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("fiql-schema");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Tests {@link FiqlSearchableProcessor} to make sure the generated schema describes the same properties CXF would
+     * find, leaving out only those it can't name.
+     */
+    @Test
+    public void testGeneratedSchema() throws Exception {
+        final Map<String, Object[]> described = new HashMap<>();
+        final FiqlSchema schema = compileSample();
+
+        schema.describe((path, valueClass, collection, enumConstants) ->
+                described.put(path, new Object[]{valueClass, collection, enumConstants}));
+
+        assertThat(schema.getModelClass().getName(), is("sample.Sample"));
+        assertThat(described.keySet(), is((Object) new HashSet<>(Arrays.asList("count", "active", "kind", "kinds",
+                "groups", "child", "child.name", "child.parent", "value"))));
+
+        final FiqlValueConverter<?> reflection = new FiqlValueConverter<>(schema.getModelClass(), new HashMap<>());
+
+        for (final Map.Entry<String, Object[]> entry : described.entrySet()) {
+            final PropertySchema.Property resolved = reflection.resolveProperty(entry.getKey());
+
+            assertThat(entry.getKey(), entry.getValue()[0], is((Object) resolved.getValueClass()));
+            assertThat(entry.getKey(), entry.getValue()[1], is((Object) resolved.isCollection()));
+            assertThat(entry.getKey(), entry.getValue()[2], is((Object) resolved.getValueClass().getEnumConstants()));
+        }
+
+        assertThat(described.get("count")[0], is((Object) Integer.class));
+        assertThat(described.get("kinds")[1], is((Object) true));
+        assertThat(described.get("groups")[0], is((Object) String.class));
+        assertThat(described.get("value")[0], is((Object) Object.class));
+        assertThat(described.get("child")[2], is(nullValue()));
+    }
+
+    /**
+     * Tests {@link FiqlSearchableProcessor} to make sure the generated schema is picked up for the model class.
+     */
+    @Test
+    public void testLoadGeneratedSchema() throws Exception {
+        final FiqlSchema schema = compileSample();
+        final FiqlSchema loaded = PropertySchema.loadGeneratedSchema(schema.getModelClass());
+
+        assertThat(loaded.getClass(), is((Object) schema.getClass()));
+        assertThat(PropertySchema.forClass(schema.getModelClass()).getProperties().get("child.name").getValueClass(),
+                is((Object) String.class));
+    }
+
+    /**
+     * Compiles our sample model with the processor, and loads up the schema it generated.
+     */
+    private FiqlSchema compileSample() throws Exception {
+        final Path source = directory.resolve("Sample.java");
+        Files.write(source, SAMPLE_SOURCE.getBytes(StandardCharsets.UTF_8));
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final String classpath = new File(FiqlSearchable.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+
+        try (final StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-classpath", classpath, "-d", directory.toString(), "-s", directory.toString()),
+                    null, fileManager.getJavaFileObjects(source.toFile()));
+            task.setProcessors(Collections.singletonList(new FiqlSearchableProcessor()));
+
+            assertThat(diagnostics.getDiagnostics().toString(), task.call(), is(true));
+        }
+
+        for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            assertThat(diagnostic.toString(), diagnostic.getKind() == Diagnostic.Kind.ERROR, is(false));
+        }
+
+        final URLClassLoader classLoader = new URLClassLoader(new URL[]{directory.toUri().toURL()}, FiqlSearchable.class.getClassLoader());
+        return (FiqlSchema) classLoader.loadClass("sample.Sample" + FiqlSchema.CLASS_SUFFIX).newInstance();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link FiqlValueConverter} at the unit level.
+ */
+public class FiqlValueConverterTest {
+    /**
+     * Tests {@link FiqlValueConverter#containsDuration(CharSequence)} to make sure durations are found wherever they
+     * are in a filter, and that ordinary values aren't mistaken for them.
+     */
+    @Test
+    public void testContainsDuration() throws Exception {
+        assertThat(FiqlValueConverter.containsDuration("updatedTime=gt=-P1D"), is(true));
+        assertThat(FiqlValueConverter.containsDuration("updatedTime=gt=P1Y2M3DT4H5M6.7S"), is(true));
+        assertThat(FiqlValueConverter.containsDuration("tenantName==taters;(updatedTime=lt=PT12H,storedBytes=gt=5)"), is(true));
+        assertThat(FiqlValueConverter.containsDuration(new StringBuilder("updatedTime!=P2W")), is(true));
+
+        assertThat(FiqlValueConverter.containsDuration("updatedTime=gt=2017-03-01T10:00:00"), is(false));
+        assertThat(FiqlValueConverter.containsDuration("tenantName==Potato;containerName==P"), is(false));
+        assertThat(FiqlValueConverter.containsDuration("tenantName==PT;storedBytes=gt=-5"), is(false));
+        assertThat(FiqlValueConverter.containsDuration(""), is(false));
+    }
+}
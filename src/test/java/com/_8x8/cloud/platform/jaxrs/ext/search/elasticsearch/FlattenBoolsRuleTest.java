@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link FlattenBoolsRule} at the unit level.
+ */
+public class FlattenBoolsRuleTest {
+    private final FlattenBoolsRule rule = new FlattenBoolsRule();
+
+    /**
+     * Tests {@link FlattenBoolsRule#rewrite(QueryBuilder)} to make sure nested AND groups hand their clauses up in
+     * order, including the must_not clauses of a {@code !=}.
+     */
+    @Test
+    public void testRewriteForConjunctions() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "a"))
+                .must(new BoolQueryBuilder()
+                        .must(new RangeQueryBuilder("storedBytes").gt(1))
+                        .must(new RangeQueryBuilder("storedBytes").lt(9)))
+                .must(new BoolQueryBuilder().mustNot(new TermQueryBuilder("tenantName", "b")))
+                .must(new TermQueryBuilder("containerId", 5));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "a"))
+                .must(new RangeQueryBuilder("storedBytes").gt(1))
+                .must(new RangeQueryBuilder("storedBytes").lt(9))
+                .must(new TermQueryBuilder("containerId", 5))
+                .mustNot(new TermQueryBuilder("tenantName", "b"))));
+
+        // Once flattened, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link FlattenBoolsRule#rewrite(QueryBuilder)} to make sure nested OR groups hand their clauses up in order.
+     */
+    @Test
+    public void testRewriteForDisjunctions() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("tenantName", "a"))
+                        .should(new TermQueryBuilder("tenantName", "b")))
+                .should(new TermQueryBuilder("tenantName", "c"));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("tenantName", "a"))
+                .should(new TermQueryBuilder("tenantName", "b"))
+                .should(new TermQueryBuilder("tenantName", "c"))));
+    }
+
+    /**
+     * Tests {@link FlattenBoolsRule#rewrite(QueryBuilder)} for things we must leave alone: groups of a different kind
+     * than their parent, anything that would mix must and should clauses, bool queries someone built on purpose, and
+     * anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnflattenableQueries() throws Exception {
+        // AND inside OR, and OR inside AND.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("tenantName", "a"))
+                .should(new BoolQueryBuilder()
+                        .must(new TermQueryBuilder("tenantName", "b"))
+                        .must(new TermQueryBuilder("containerId", 5)))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "a"))
+                .must(new BoolQueryBuilder()
+                        .should(new TermQueryBuilder("tenantName", "b"))
+                        .should(new TermQueryBuilder("containerId", 5)))), is(nullValue()));
+
+        // A != inside OR can't hand its must_not clause up without changing what the OR means.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("tenantName", "a"))
+                .should(new BoolQueryBuilder().mustNot(new TermQueryBuilder("tenantName", "b")))), is(nullValue()));
+
+        // Boosted children and parents are left alone.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "a"))
+                .must(new BoolQueryBuilder().must(new TermQueryBuilder("tenantName", "b")).boost(2))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "a"))
+                .must(new BoolQueryBuilder().must(new TermQueryBuilder("tenantName", "b")))
+                .queryName("taters")), is(nullValue()));
+
+        assertThat(rule.rewrite(new TermQueryBuilder("tenantName", "a")), is(nullValue()));
+    }
+}
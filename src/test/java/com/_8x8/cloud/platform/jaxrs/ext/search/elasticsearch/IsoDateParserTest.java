@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link IsoDateParser} at the unit level, using {@code java.time} as the reference.
+ */
+public class IsoDateParserTest {
+    private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+    /**
+     * Tests constructing an {@link IsoDateParser} picks the zone we asked for, or the default one.
+     */
+    @Test
+    public void testConstructor() throws Exception {
+        assertThat(new IsoDateParser().getZone(), is(TimeZone.getDefault().toZoneId()));
+        assertThat(new IsoDateParser(BERLIN).getZone(), is(BERLIN));
+
+        try {
+            new IsoDateParser(null);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Zone must not be null"));
+        }
+    }
+
+    /**
+     * Tests {@link IsoDateParser#parse(String)} for every layout we support.
+     */
+    @Test
+    public void testParse() throws Exception {
+        final IsoDateParser parser = new IsoDateParser(BERLIN);
+
+        assertThat(parser.parse("2017-03-01"), is(toDate(LocalDate.of(2017, 3, 1).atStartOfDay(BERLIN).toInstant().toEpochMilli())));
+        assertThat(parser.parse("2017-03-01T10:15"), is(toDate(LocalDateTime.of(2017, 3, 1, 10, 15), BERLIN)));
+        assertThat(parser.parse("2017-07-01T10:15:30"), is(toDate(LocalDateTime.of(2017, 7, 1, 10, 15, 30), BERLIN)));
+        assertThat(parser.parse("2017-07-01T10:15:30.1"), is(toDate(LocalDateTime.of(2017, 7, 1, 10, 15, 30, 100_000_000), BERLIN)));
+        assertThat(parser.parse("2017-07-01T10:15:30,12"), is(toDate(LocalDateTime.of(2017, 7, 1, 10, 15, 30, 120_000_000), BERLIN)));
+        assertThat(parser.parse("2017-07-01T10:15:30.123456789"), is(toDate(LocalDateTime.of(2017, 7, 1, 10, 15, 30, 123_000_000), BERLIN)));
+        assertThat(parser.parse("2017-07-01T10:15:30Z"), is(toDate(OffsetDateTime.parse("2017-07-01T10:15:30Z").toInstant().toEpochMilli())));
+        assertThat(parser.parse("2017-07-01T10:15+02"), is(toDate(OffsetDateTime.parse("2017-07-01T10:15+02:00").toInstant().toEpochMilli())));
+        assertThat(parser.parse("2017-07-01T10:15:30.5-0530"), is(toDate(OffsetDateTime.parse("2017-07-01T10:15:30.5-05:30").toInstant().toEpochMilli())));
+        assertThat(parser.parse("2017-07-01T10:15:30+18:00"), is(toDate(OffsetDateTime.parse("2017-07-01T10:15:30+18:00").toInstant().toEpochMilli())));
+        assertThat(parser.parse("2016-02-29T23:59:59.999"), is(toDate(LocalDateTime.of(2016, 2, 29, 23, 59, 59, 999_000_000), BERLIN)));
+        assertThat(parser.parse("1583-01-01"), is(toDate(LocalDate.of(1583, 1, 1).atStartOfDay(BERLIN).toInstant().toEpochMilli())));
+        assertThat(parser.parse("1488362400000"), is(toDate(1488362400000L)));
+        assertThat(parser.parse("0"), is(toDate(0L)));
+        assertThat(parser.parse("-1"), is(toDate(-1L)));
+        assertThat(parser.parse(String.valueOf(Long.MAX_VALUE)), is(toDate(Long.MAX_VALUE)));
+        assertThat(parser.parse(String.valueOf(Long.MIN_VALUE)), is(toDate(Long.MIN_VALUE)));
+    }
+
+    /**
+     * Tests {@link IsoDateParser#parse(String)} to make sure anything that's not quite right is declined.
+     */
+    @Test
+    public void testParseDeclined() throws Exception {
+        final IsoDateParser parser = new IsoDateParser(BERLIN);
+
+        for (final String value : new String[]{"", "-", "abc", "12a", "9223372036854775808", "-9223372036854775809",
+                "99999999999999999999", "2017-3-1", "2017/03/01", "2017-03/01", "2017-13-01", "2017-00-01", "2017-02-29",
+                "2017-04-31", "2017-03-00", "2017-03-01 10:00", "2017-03-01T10", "2017-03-01T1:00", "2017-03-01T24:00",
+                "2017-03-01T10:60", "2017-03-01T10:00:60", "2017-03-01T10:00:00.", "2017-03-01T10:00:00.1234567890",
+                "2017-03-01T10:00:00X", "2017-03-01T10:00:00+2", "2017-03-01T10:00:00+020", "2017-03-01T10:00:00+02-00",
+                "2017-03-01T10:00:00+19:00", "2017-03-01T10:00:00+18:01", "2017-03-01T10:00:00+02:60",
+                "2017-03-01T10:00:00Z0", "2017-03-01Z", "-2017-03-01", "0000-01-01", "0099-01-01", "1582-10-15",
+                "1582-12-31T23:59:59Z"}) {
+            assertThat(value, parser.parse(value), is(nullValue()));
+        }
+    }
+
+    /**
+     * Tests {@link IsoDateParser#parse(String)} to make sure the earliest dates we accept come out just as they would
+     * from the {@link SimpleDateFormat} CXF uses, which is no longer the case once it switches to the Julian calendar.
+     */
+    @Test
+    public void testParseAgainstSimpleDateFormat() throws Exception {
+        final ZoneId zone = ZoneOffset.UTC;
+        final IsoDateParser parser = new IsoDateParser(zone);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone(zone));
+
+        assertThat(parser.parse("1583-01-01"), is(format.parse("1583-01-01")));
+        assertThat(parser.parse("0099-01-01"), is(nullValue()));
+        assertThat(toDate(LocalDate.of(99, 1, 1).atStartOfDay(zone).toInstant().toEpochMilli()), is(not(format.parse("0099-01-01"))));
+    }
+
+    /**
+     * Tests {@link IsoDateParser#parse(String)} against {@code java.time} for random local times across the centuries,
+     * in a zone that keeps changing its clocks.
+     */
+    @Test
+    public void testParseAgainstZoneRules() throws Exception {
+        final Random random = new Random(42);
+
+        for (final ZoneId zone : new ZoneId[]{BERLIN, ZoneId.of("America/New_York"), ZoneId.of("Australia/Lord_Howe"), ZoneOffset.ofHours(-7)}) {
+            final IsoDateParser parser = new IsoDateParser(zone);
+
+            for (int count = 0; count < 10_000; count++) {
+                final LocalDateTime dateTime = LocalDateTime.of(1800 + random.nextInt(400), 1 + random.nextInt(12),
+                        1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000) * 1_000_000);
+                final String value = dateTime.toString();
+
+                assertThat(zone + " " + value, parser.parse(value), is(toDate(dateTime, zone)));
+            }
+        }
+    }
+
+    /**
+     * Tests {@link IsoDateParser#toEpochMillis(long, int)} to make sure we only remember offsets for times that can't
+     * be mistaken, and resolve skipped and repeated local times the way {@code java.time} does.
+     */
+    @Test
+    public void testToEpochMillisAcrossTransitions() throws Exception {
+        final IsoDateParser parser = new IsoDateParser(BERLIN);
+        assertThat(parser.getOffsetWindow(), is(nullValue()));
+
+        // Clocks went forward from 02:00 to 03:00 on the 26th of March 2017, and back from 03:00 to 02:00 in October.
+        assertThat(parser.parse("2017-03-26T02:30"), is(toDate(LocalDateTime.of(2017, 3, 26, 2, 30), BERLIN)));
+        assertThat(parser.getOffsetWindow(), is(nullValue()));
+        assertThat(parser.parse("2017-10-29T02:30"), is(toDate(LocalDateTime.of(2017, 10, 29, 2, 30), BERLIN)));
+        assertThat(parser.getOffsetWindow(), is(nullValue()));
+
+        assertThat(parser.parse("2017-07-01T12:00"), is(toDate(LocalDateTime.of(2017, 7, 1, 12, 0), BERLIN)));
+        final IsoDateParser.OffsetWindow window = parser.getOffsetWindow();
+
+        assertThat(window, is(notNullValue()));
+        assertThat(window.getOffset(), is(7200));
+        assertThat(window.getStart(), is(LocalDateTime.of(2017, 3, 26, 3, 0).toEpochSecond(ZoneOffset.UTC)));
+        assertThat(window.getEnd(), is(LocalDateTime.of(2017, 10, 29, 2, 0).toEpochSecond(ZoneOffset.UTC)));
+
+        // Anything else in the summer is served from the same window.
+        assertThat(parser.parse("2017-10-29T01:59:59"), is(toDate(LocalDateTime.of(2017, 10, 29, 1, 59, 59), BERLIN)));
+        assertThat(parser.parse("2017-03-26T03:00"), is(toDate(LocalDateTime.of(2017, 3, 26, 3, 0), BERLIN)));
+        assertThat(parser.getOffsetWindow(), is(window));
+
+        assertThat(parser.parse("2017-12-01"), is(toDate(LocalDateTime.of(2017, 12, 1, 0, 0), BERLIN)));
+        assertThat(parser.getOffsetWindow().getOffset(), is(3600));
+    }
+
+    /**
+     * Tests {@link IsoDateParser#toEpochDay(int, int, int)} against {@link LocalDate#toEpochDay()}.
+     */
+    @Test
+    public void testToEpochDay() throws Exception {
+        for (LocalDate date = LocalDate.of(0, 1, 1); date.getYear() < 10_000; date = date.plusDays(17)) {
+            assertThat(date.toString(), IsoDateParser.toEpochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()),
+                    is(date.toEpochDay()));
+            assertThat(date.toString(), IsoDateParser.getLengthOfMonth(date.getYear(), date.getMonthValue()), is(date.lengthOfMonth()));
+        }
+    }
+
+    private Date toDate(final LocalDateTime dateTime, final ZoneId zone) {
+        return toDate(dateTime.atZone(zone).toInstant().toEpochMilli());
+    }
+
+    private Date toDate(final long millis) {
+        return new Date(millis);
+    }
+}
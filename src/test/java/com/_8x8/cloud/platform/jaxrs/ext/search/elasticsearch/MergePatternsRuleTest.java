@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RegexpQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link MergePatternsRule} at the unit level.
+ */
+public class MergePatternsRuleTest {
+    private final MergePatternsRule rule = new MergePatternsRule();
+
+    /**
+     * Tests {@link MergePatternsRule#rewrite(QueryBuilder)} to make sure we fold OR'ed prefix and wildcard queries over
+     * the same field into the place of the first, around clauses over other fields, and without repeating patterns.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new PrefixQueryBuilder("containerName", "logs-"))
+                .should(new TermQueryBuilder("containerName", "taters"))
+                .should(new WildcardQueryBuilder("tenantName", "*a"))
+                .should(new WildcardQueryBuilder("containerName", "*-trace-?"))
+                .should(new PrefixQueryBuilder("containerName", "metrics-"))
+                .should(new PrefixQueryBuilder("containerName", "logs-"));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query.should(), is(Arrays.<QueryBuilder>asList(
+                new RegexpQueryBuilder("containerName", "logs-.*|.*-trace-.|metrics-.*"),
+                new TermQueryBuilder("containerName", "taters"),
+                new WildcardQueryBuilder("tenantName", "*a"))));
+
+        // Once folded, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link MergePatternsRule#rewrite(QueryBuilder)} to make sure we fold negated patterns over the same field,
+     * whatever else the bool query holds.
+     */
+    @Test
+    public void testRewriteForNegations() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new PrefixQueryBuilder("containerName", "a"))
+                .must(new PrefixQueryBuilder("containerName", "b"))
+                .mustNot(new PrefixQueryBuilder("tenantName", "x"))
+                .mustNot(new PrefixQueryBuilder("tenantName", "y"));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .must(new PrefixQueryBuilder("containerName", "a"))
+                .must(new PrefixQueryBuilder("containerName", "b"))
+                .mustNot(new RegexpQueryBuilder("tenantName", "x.*|y.*"))));
+    }
+
+    /**
+     * Tests {@link MergePatternsRule#toRegexp(QueryBuilder)} to make sure literal characters come out escaped, and
+     * wildcards, escaped or not, mean what they did.
+     */
+    @Test
+    public void testToRegexp() throws Exception {
+        assertThat(rule.toRegexp(new PrefixQueryBuilder("tenantName", "a.b+c")), is("a\\.b\\+c.*"));
+        assertThat(rule.toRegexp(new PrefixQueryBuilder("tenantName", "*?")), is("\\*\\?.*"));
+        assertThat(rule.toRegexp(new PrefixQueryBuilder("tenantName", "|{}[]()\"\\#@&<>~")),
+                is("\\|\\{\\}\\[\\]\\(\\)\\\"\\\\\\#\\@\\&\\<\\>\\~.*"));
+        assertThat(rule.toRegexp(new PrefixQueryBuilder("tenantName", "café-")), is("café-.*"));
+
+        assertThat(rule.toRegexp(new WildcardQueryBuilder("tenantName", "a*b?c")), is("a.*b.c"));
+        assertThat(rule.toRegexp(new WildcardQueryBuilder("tenantName", "a\\*b\\?c\\")), is("a\\*b\\?c\\\\"));
+        assertThat(rule.toRegexp(new WildcardQueryBuilder("tenantName", "(a)*")), is("\\(a\\).*"));
+    }
+
+    /**
+     * Tests {@link MergePatternsRule#rewrite(QueryBuilder)} to make sure we leave patterns alone when their union would
+     * need more states than we allow.
+     */
+    @Test
+    public void testRewriteForStateBudget() throws Exception {
+        // Each leading wildcard followed by single character wildcards doubles the states needed to tell them apart.
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new WildcardQueryBuilder("containerName", "*a??????"))
+                .should(new WildcardQueryBuilder("containerName", "*b??????"))
+                .should(new PrefixQueryBuilder("tenantName", "x"))
+                .should(new PrefixQueryBuilder("tenantName", "y"));
+
+        assertThat(new MergePatternsRule(100).rewrite(query), is(sameInstance(query)));
+        assertThat(query.should(), is(Arrays.<QueryBuilder>asList(
+                new WildcardQueryBuilder("containerName", "*a??????"),
+                new WildcardQueryBuilder("containerName", "*b??????"),
+                new RegexpQueryBuilder("tenantName", "x.*|y.*"))));
+
+        assertThat(rule.isWithinBudget(".*a.....|.*b....."), is(true));
+        assertThat(rule.isWithinBudget(".*a......|.*b......"), is(false));
+        assertThat(new MergePatternsRule(10).isWithinBudget("x.*|y.*"), is(true));
+    }
+
+    /**
+     * Tests {@link MergePatternsRule#rewrite(QueryBuilder)} for things we must leave alone: AND'ed patterns, patterns
+     * over different fields, boosted, named or rewritten patterns, and anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnmergeableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new PrefixQueryBuilder("containerName", "a"))
+                .must(new PrefixQueryBuilder("containerName", "b"))), is(nullValue()));
+
+        // Should clauses next to must clauses aren't an OR.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .should(new PrefixQueryBuilder("containerName", "a"))
+                .should(new PrefixQueryBuilder("containerName", "b"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new PrefixQueryBuilder("containerName", "a"))
+                .should(new PrefixQueryBuilder("tenantName", "b"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new PrefixQueryBuilder("containerName", "a").boost(2))
+                .should(new PrefixQueryBuilder("containerName", "b"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new WildcardQueryBuilder("containerName", "*a").queryName("taters"))
+                .should(new PrefixQueryBuilder("containerName", "b"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new WildcardQueryBuilder("containerName", "*a").rewrite("top_terms_10"))
+                .should(new PrefixQueryBuilder("containerName", "b"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new PrefixQueryBuilder("containerName", "a"))
+                .should(new PrefixQueryBuilder("containerName", "b"))
+                .minimumShouldMatch(2)), is(nullValue()));
+
+        assertThat(rule.rewrite(new PrefixQueryBuilder("containerName", "a")), is(nullValue()));
+    }
+}
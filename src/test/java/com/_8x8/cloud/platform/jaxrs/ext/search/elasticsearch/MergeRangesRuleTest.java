@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link MergeRangesRule} at the unit level.
+ */
+public class MergeRangesRuleTest {
+    private final MergeRangesRule rule = new MergeRangesRule();
+
+    /**
+     * Tests {@link MergeRangesRule#rewrite(QueryBuilder)} to make sure we fold every range over the same field into the
+     * first, wherever they are, keeping the tightest bounds.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(100))
+                .must(new RangeQueryBuilder("storedBytes").lt(3000))
+                .must(new RangeQueryBuilder("containerId").lt(5))
+                .must(new RangeQueryBuilder("storedBytes").lte(1000))
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .must(new RangeQueryBuilder("storedBytes").gte(5))
+                .must(new RangeQueryBuilder("containerId").lte(5));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query.must(), is(Arrays.<QueryBuilder>asList(
+                new RangeQueryBuilder("storedBytes").gt(100).lte(1000),
+                new RangeQueryBuilder("containerId").lt(5),
+                new TermQueryBuilder("tenantName", "taters"))));
+
+        // Once folded, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link MergeRangesRule#intersect(RangeQueryBuilder, RangeQueryBuilder)} to make sure we keep the tightest
+     * bound on either side, preferring exclusive bounds to inclusive ones at the same value, across number types.
+     */
+    @Test
+    public void testIntersect() throws Exception {
+        assertIntersection(new RangeQueryBuilder("a").gt(5), new RangeQueryBuilder("a").gt(10), new RangeQueryBuilder("a").gt(10));
+        assertIntersection(new RangeQueryBuilder("a").gt(10), new RangeQueryBuilder("a").gte(5), new RangeQueryBuilder("a").gt(10));
+        assertIntersection(new RangeQueryBuilder("a").gte(5), new RangeQueryBuilder("a").gt(5), new RangeQueryBuilder("a").gt(5));
+        assertIntersection(new RangeQueryBuilder("a").lte(5), new RangeQueryBuilder("a").lt(5L), new RangeQueryBuilder("a").lt(5));
+        assertIntersection(new RangeQueryBuilder("a").lte(5), new RangeQueryBuilder("a").lte(5.5), new RangeQueryBuilder("a").lte(5));
+        assertIntersection(new RangeQueryBuilder("a").lt(9), new RangeQueryBuilder("a").gte(1).lt(20), new RangeQueryBuilder("a").gte(1).lt(9));
+        assertIntersection(new RangeQueryBuilder("a").gt("b"), new RangeQueryBuilder("a").gt("ab"), new RangeQueryBuilder("a").gt("b"));
+        assertIntersection(new RangeQueryBuilder("a").lt(new Date(5)), new RangeQueryBuilder("a").lt(new Date(3)),
+                new RangeQueryBuilder("a").lt(new Date(3)));
+
+        // Bounds we can't compare leave the range as it was.
+        final RangeQueryBuilder range = new RangeQueryBuilder("a").gt(5);
+        assertThat(rule.intersect(range, new RangeQueryBuilder("a").gt("5")), is(false));
+        assertThat(range, is(new RangeQueryBuilder("a").gt(5)));
+    }
+
+    /**
+     * Tests {@link MergeRangesRule#rewrite(QueryBuilder)} to make sure AND'ed ranges that can't all match turn the
+     * whole bool query into a {@code match_none} query.
+     */
+    @Test
+    public void testRewriteForEmptyRanges() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").lt(5))
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .must(new RangeQueryBuilder("storedBytes").gt(10))), is(new MatchNoneQueryBuilder()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").lt(5))
+                .must(new RangeQueryBuilder("storedBytes").gte(5))), is(new MatchNoneQueryBuilder()));
+
+        // A single value is fine, so long as both bounds include it.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").lte(5))
+                .must(new RangeQueryBuilder("storedBytes").gte(5))), is(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").lte(5).gte(5))));
+    }
+
+    /**
+     * Tests {@link MergeRangesRule#rewrite(QueryBuilder)} for things we must leave alone: ranges over different fields,
+     * OR'ed ranges, boosted ranges, ranges with different formats, bounds we can't compare, and anything that isn't a
+     * bool query.
+     */
+    @Test
+    public void testRewriteForUnmergeableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(100))
+                .must(new RangeQueryBuilder("containerId").lt(1000))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").gt(100))
+                .should(new RangeQueryBuilder("storedBytes").lt(1000))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(100).boost(2))
+                .must(new RangeQueryBuilder("storedBytes").lt(1000))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("updatedTime").gt("2010-01-01").format("yyyy-MM-dd"))
+                .must(new RangeQueryBuilder("updatedTime").lt("2011-01-01"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(100))
+                .must(new RangeQueryBuilder("storedBytes").gt("1000"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new RangeQueryBuilder("storedBytes").gt(100)), is(nullValue()));
+    }
+
+    /**
+     * Provides a convenience method to intersect two ranges, and check the outcome.
+     */
+    private void assertIntersection(final RangeQueryBuilder range, final RangeQueryBuilder otherRange, final RangeQueryBuilder expected) {
+        assertThat(rule.intersect(range, otherRange), is(true));
+        assertThat(range, is(expected));
+    }
+}
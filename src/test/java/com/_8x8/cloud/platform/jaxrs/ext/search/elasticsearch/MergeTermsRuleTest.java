@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link MergeTermsRule} at the unit level.
+ */
+public class MergeTermsRuleTest {
+    private final MergeTermsRule rule = new MergeTermsRule();
+
+    /**
+     * Tests {@link MergeTermsRule#rewrite(QueryBuilder)} to make sure we fold OR'ed term and terms queries over the
+     * same field into the place of the first, around clauses over other fields, and without repeating values.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new TermQueryBuilder("status", "DELETED"))
+                .should(new TermQueryBuilder("containerId", 1L))
+                .should(new WildcardQueryBuilder("status", "A*"))
+                .should(new TermsQueryBuilder("containerId", Arrays.asList(2L, 3L)))
+                .should(new TermQueryBuilder("tenantName", "taters"))
+                .should(new TermQueryBuilder("status", "AVAILABLE"))
+                .should(new TermQueryBuilder("status", "DELETED"))
+                .mustNot(new TermQueryBuilder("containerId", 4L));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query.should(), is(Arrays.<QueryBuilder>asList(
+                new TermsQueryBuilder("status", "DELETED", "AVAILABLE"),
+                new TermsQueryBuilder("containerId", Arrays.asList(1L, 2L, 3L)),
+                new WildcardQueryBuilder("status", "A*"),
+                new TermQueryBuilder("tenantName", "taters"))));
+
+        // Once folded, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link MergeTermsRule#rewrite(QueryBuilder)} to make sure we fold negated term queries over the same field,
+     * whatever else the bool query holds.
+     */
+    @Test
+    public void testRewriteForNegations() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .must(new TermQueryBuilder("tenantName", "potatoes"))
+                .mustNot(new TermQueryBuilder("status", "DELETED"))
+                .mustNot(new WildcardQueryBuilder("containerName", "a*"))
+                .mustNot(new TermQueryBuilder("status", "AVAILABLE"));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .must(new TermQueryBuilder("tenantName", "potatoes"))
+                .mustNot(new TermsQueryBuilder("status", "DELETED", "AVAILABLE"))
+                .mustNot(new WildcardQueryBuilder("containerName", "a*"))));
+
+        // OR'ed negations are another matter entirely.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "DELETED")))
+                .should(new BoolQueryBuilder().mustNot(new TermQueryBuilder("status", "AVAILABLE")))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .mustNot(new TermQueryBuilder("status", "DELETED"))
+                .mustNot(new TermQueryBuilder("status", "AVAILABLE"))
+                .boost(2)), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link MergeTermsRule#rewrite(QueryBuilder)} for things we must leave alone: AND'ed terms, terms over
+     * different fields, boosted or named terms, lookups, and anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnmergeableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("status", "DELETED"))
+                .must(new TermQueryBuilder("status", "AVAILABLE"))), is(nullValue()));
+
+        // Should clauses next to must clauses aren't an OR.
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .should(new TermQueryBuilder("status", "DELETED"))
+                .should(new TermQueryBuilder("status", "AVAILABLE"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("status", "DELETED"))
+                .should(new TermQueryBuilder("tenantName", "DELETED"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("status", "DELETED").boost(2))
+                .should(new TermQueryBuilder("status", "AVAILABLE"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermQueryBuilder("status", "DELETED").queryName("taters"))
+                .should(new TermQueryBuilder("status", "AVAILABLE"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new TermsQueryBuilder("status", new TermsLookup("index", "type", "id", "path")))
+                .should(new TermQueryBuilder("status", "AVAILABLE"))), is(nullValue()));
+
+        assertThat(rule.rewrite(new TermQueryBuilder("status", "DELETED")), is(nullValue()));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+
+import java.util.HashMap;
+
+/**
+ * Tests the {@link NativeFiqlParser} at the integration level. Every scenario from the
+ * {@link ElasticsearchQueryBuilderVisitorIT} is run through our parser instead of CXF's, and checked against the very
+ * same expected results.
+ */
+public class NativeFiqlParserIT extends ElasticsearchQueryBuilderVisitorIT {
+    @Override
+    FiqlParser<MetadataRecord> createParser() {
+        return new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataSearchResult;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.ObjectMetadata;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.Status;
+import org.apache.cxf.jaxrs.ext.search.AndSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.OrSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.PropertyNotFoundException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link NativeFiqlParser} at the unit level.
+ */
+public class NativeFiqlParserTest {
+    private final NativeFiqlParser<MetadataRecord> parser = new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>());
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} for a single comparison, to make sure we convert the value and
+     * remember the class of the property.
+     */
+    @Test
+    public void testParseComparison() throws Exception {
+        final SearchCondition<MetadataRecord> condition = parser.parse("status==deleted");
+        final PrimitiveStatement statement = condition.getStatement();
+
+        assertThat(condition, is(instanceOf(NativeFiqlParser.StatementSearchCondition.class)));
+        assertThat(condition.getConditionType(), is(ConditionType.EQUALS));
+        assertThat(statement.getProperty(), is("status"));
+        assertThat(statement.getValue(), is(Status.DELETED));
+        assertThat(statement.getValueType(), is((Type) Status.class));
+        assertThat(parser.getSchema().getProperties().get("status").getValueClass(), is((Object) Status.class));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} for composite expressions, to make sure we build the same
+     * structure CXF does.
+     */
+    @Test
+    public void testParseComposite() throws Exception {
+        final SearchCondition<MetadataRecord> condition = parser.parse("tenantName==taters,(storedBytes=gt=1;storedBytes=lt=5)");
+
+        assertThat(condition, is(instanceOf(OrSearchCondition.class)));
+        assertThat(condition.getSearchConditions().size(), is(2));
+        assertThat(condition.getSearchConditions().get(1), is(instanceOf(AndSearchCondition.class)));
+        assertThat(condition.getSearchConditions().get(1).getSearchConditions().get(1).getStatement().getValue(), is(5L));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} to make sure {@code count()} expressions are left to CXF.
+     */
+    @Test
+    public void testParseCount() throws Exception {
+        final SearchCondition<MetadataRecord> condition = parser.parse("count(storedBytes)=ge=2");
+
+        assertThat(condition, is(not(instanceOf(NativeFiqlParser.StatementSearchCondition.class))));
+        assertThat(condition.getStatement().getProperty(), is("storedBytes"));
+        assertThat(parser.getSchema().getProperties().containsKey("count(storedBytes)"), is(false));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(CharSequence)} to make sure we can parse straight out of a buffer.
+     */
+    @Test
+    public void testParseCharSequence() throws Exception {
+        final CharBuffer buffer = CharBuffer.wrap("xxtenantName==taters;storedBytes=gt=5yy".toCharArray(), 2, 35);
+        final SearchCondition<MetadataRecord> condition = parser.parse(buffer);
+
+        assertThat(condition, is(instanceOf(AndSearchCondition.class)));
+        assertThat(condition.getSearchConditions().get(0).getStatement().getValue(), is("taters"));
+        assertThat(condition.getSearchConditions().get(1).getStatement().getValue(), is(5L));
+        assertThat(buffer.position(), is(2));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} to make sure nested properties are left to CXF, as visitors expect
+     * to find their values wrapped up in beans.
+     */
+    @Test
+    public void testParseNestedProperty() throws Exception {
+        final NativeFiqlParser<MetadataSearchResult> nestedParser = new NativeFiqlParser<>(MetadataSearchResult.class, new HashMap<>());
+        final SearchCondition<MetadataSearchResult> condition = nestedParser.parse("objectMetadata.status==deleted");
+
+        assertThat(condition, is(not(instanceOf(NativeFiqlParser.StatementSearchCondition.class))));
+        assertThat(condition.getStatement().getProperty(), is("objectMetadata.status"));
+        assertThat(((ObjectMetadata) condition.getStatement().getValue()).getStatus(), is(Status.DELETED));
+        assertThat(nestedParser.getSchema().getProperties().containsKey("objectMetadata.status"), is(false));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} with a {@link FiqlDateParser}, to make sure dates are offered to it
+     * first, and only those it declines go to CXF. The same goes for CXF's own parser, via a
+     * {@link FiqlValueConverter}.
+     */
+    @Test
+    public void testParseWithDateParser() throws Exception {
+        final FiqlDateParser dateParser = value -> value.startsWith("1") ? new Date(Long.parseLong(value)) : null;
+        final NativeFiqlParser<MetadataRecord> dateAwareParser = new NativeFiqlParser<>(MetadataRecord.class, new HashMap<>(), dateParser);
+        final Date midnight = (Date) parser.parse("updatedTime==2017-03-01").getStatement().getValue();
+
+        assertThat(dateAwareParser.getDateParser(), is(dateParser));
+        assertThat(dateAwareParser.parse("updatedTime=gt=1488362400000").getStatement().getValue(), is(new Date(1488362400000L)));
+        assertThat(dateAwareParser.parse("updatedTime=gt=2017-03-01").getStatement().getValue(), is(midnight));
+        assertThat(new FiqlValueConverter<>(MetadataRecord.class, new HashMap<>(), dateParser).parse("updatedTime=lt=12")
+                .getStatement().getValue(), is(new Date(12L)));
+
+        try {
+            parser.parse("updatedTime=gt=1488362400000");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), containsString("1488362400000"));
+        }
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser#parse(String)} for properties that don't exist, which mustn't be remembered.
+     */
+    @Test
+    public void testParseForUnknownProperty() throws Exception {
+        try {
+            parser.parse("taters==delicious");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final PropertyNotFoundException ex) {
+            assertThat(ex.getName(), is("taters"));
+        }
+
+        assertThat(parser.getSchema().getProperties().containsKey("taters"), is(false));
+    }
+
+    /**
+     * Tests {@link NativeFiqlParser.StatementSearchCondition} to make sure it evaluates beans in memory exactly as the
+     * conditions built by CXF would, both alone and as part of a composite.
+     */
+    @Test
+    public void testStatementSearchCondition() throws Exception {
+        final SearchCondition<MetadataRecord> condition = parser.parse("tenantName==taters");
+
+        assertThat(condition.getCondition(), is(nullValue()));
+        assertThat(condition.getSearchConditions(), is(nullValue()));
+
+        final MetadataRecord taters = new MetadataRecord();
+        taters.setTenantName("taters");
+        taters.setStoredBytes(50L);
+        taters.setStatus(Status.AVAILABLE);
+        taters.setUpdatedTime(new Date(1000000000000L));
+
+        final MetadataRecord dinner = new MetadataRecord();
+        dinner.setTenantName("dinner");
+        dinner.setStoredBytes(500L);
+        dinner.setStatus(Status.DELETED);
+
+        final List<MetadataRecord> records = Arrays.asList(taters, dinner);
+        final FiqlParser<MetadataRecord> cxfParser = new FiqlParser<>(MetadataRecord.class);
+
+        assertThat(condition.isMet(taters), is(true));
+        assertThat(condition.isMet(dinner), is(false));
+        assertThat(condition.findAll(records), is(Collections.singletonList(taters)));
+        assertThat(condition.findAll(Collections.emptyList()), is(Collections.emptyList()));
+
+        for (final String fiqlFilter : Arrays.asList("tenantName!=taters", "tenantName==tat*", "storedBytes=gt=100",
+                "storedBytes=le=50", "status!=DELETED", "updatedTime=gt=2000-01-01", "containerName==taters",
+                "tenantName==taters;storedBytes=lt=100", "tenantName==dinner,storedBytes=lt=100")) {
+            final SearchCondition<MetadataRecord> expected = cxfParser.parse(fiqlFilter);
+            final SearchCondition<MetadataRecord> actual = parser.parse(fiqlFilter);
+
+            for (final MetadataRecord record : records) {
+                assertThat(fiqlFilter, actual.isMet(record), is(expected.isMet(record)));
+            }
+
+            assertThat(fiqlFilter, actual.findAll(records), is(expected.findAll(records)));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/**
+ * Tests the {@link PreparedQuery} at the unit level.
+ */
+public class PreparedQueryTest {
+    @SuppressWarnings("unchecked")
+    private final ElasticsearchQueryBuilderVisitor<MetadataRecord> visitor =
+            (ElasticsearchQueryBuilderVisitor<MetadataRecord>) mock(ElasticsearchQueryBuilderVisitor.class);
+
+    private final FiqlValueConverter<MetadataRecord> valueConverter = new FiqlValueConverter<>(MetadataRecord.class, new HashMap<>());
+
+    private final PreparedQuery.ParameterNode<MetadataRecord> parameterNode =
+            new PreparedQuery.ParameterNode<>(new PropertySchema.Property("storedBytes", Long.class, false), ConditionType.GREATER_THAN, 0,
+                    valueConverter);
+
+    private final PreparedQuery<MetadataRecord> preparedQuery =
+            new PreparedQuery<>("storedBytes=gt=?", parameterNode, 1, () -> visitor, ElasticsearchQueryBuilderVisitor::reset);
+
+    /**
+     * Tests {@link PreparedQuery#bind(Object...)} to make sure we convert our value, hand it to the visitor, and then
+     * hand the visitor back.
+     */
+    @Test
+    public void testBind() throws Exception {
+        final QueryBuilder expected = new TermQueryBuilder("tenantName", "taters");
+        final ArgumentCaptor<PrimitiveStatement> statement = ArgumentCaptor.forClass(PrimitiveStatement.class);
+
+        doReturn(expected).when(visitor).buildSimpleExpression(statement.capture());
+        doReturn(expected).when(visitor).optimize(expected, null);
+
+        assertThat(preparedQuery.bind("0100"), is(sameInstance(expected)));
+
+        assertThat(statement.getValue().getProperty(), is("storedBytes"));
+        assertThat(statement.getValue().getValue(), is(100L));
+        assertThat(statement.getValue().getValueType(), is((Type) Long.class));
+        assertThat(statement.getValue().getCondition(), is(ConditionType.GREATER_THAN));
+
+        verify(visitor).buildSimpleExpression(statement.getValue());
+        verify(visitor).optimize(expected, null);
+        verify(visitor).reset();
+        verifyNoMoreInteractions(visitor);
+    }
+
+    /**
+     * Tests {@link PreparedQuery#bind(Object...)} for the wrong number of values.
+     */
+    @Test
+    public void testBindForWrongValueCount() throws Exception {
+        try {
+            preparedQuery.bind(1L, 2L);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Expected 1 values for template storedBytes=gt=?, got 2"));
+        }
+    }
+
+    /**
+     * Tests {@link PreparedQuery.ParameterNode#convert(Object)} to make sure it does what we expect.
+     */
+    @Test
+    public void testConvert() throws Exception {
+        assertThat(parameterNode.convert(5L), is(5L));
+        assertThat(parameterNode.convert("5"), is(5L));
+    }
+
+    /**
+     * Tests {@link PreparedQuery.ParameterNode#convert(Object)} for values we can't do anything with.
+     */
+    @Test
+    public void testConvertForInvalidValues() throws Exception {
+        try {
+            parameterNode.convert(null);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Value 0 for property storedBytes must not be null"));
+        }
+
+        try {
+            parameterNode.convert(5);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Value 0 for property storedBytes must be a java.lang.Long or a String, got java.lang.Integer"));
+        }
+
+        try {
+            parameterNode.convert("taters");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), containsString("taters"));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataSearchResult;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.Status;
+import org.apache.cxf.jaxrs.ext.search.PropertyNotFoundException;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link PropertySchema} at the unit level.
+ */
+public class PropertySchemaTest {
+    private final FiqlValueConverter<MetadataRecord> valueConverter = new FiqlValueConverter<>(MetadataRecord.class, new HashMap<>());
+
+    /**
+     * Tests {@link PropertySchema#forClass(Class)} to make sure there's one schema per model class.
+     */
+    @Test
+    public void testForClass() throws Exception {
+        assertThat(PropertySchema.forClass(MetadataRecord.class), is(sameInstance(PropertySchema.forClass(MetadataRecord.class))));
+        assertThat(PropertySchema.forClass(MetadataRecord.class).getModelClass(), is((Object) MetadataRecord.class));
+        assertThat(new FiqlValueConverter<>(MetadataRecord.class, new HashMap<>()).getSchema(),
+                is(sameInstance(valueConverter.getSchema())));
+        assertThat(PropertySchema.forClass(MetadataSearchResult.class), is(instanceOf(PropertySchema.class)));
+        assertThat(PropertySchema.forClass(MetadataSearchResult.class) == valueConverter.getSchema(), is(false));
+    }
+
+    /**
+     * Tests {@link PropertySchema#loadGeneratedSchema(Class)} to make sure annotated model classes get the schema the
+     * {@link FiqlSearchableProcessor} generated for them, and that it agrees with what we'd resolve via reflection.
+     */
+    @Test
+    public void testLoadGeneratedSchema() throws Exception {
+        final FiqlSchema generated = PropertySchema.loadGeneratedSchema(MetadataRecord.class);
+        final PropertySchema schema = PropertySchema.forClass(MetadataRecord.class);
+
+        assertThat(generated.getModelClass(), is((Object) MetadataRecord.class));
+        assertThat(PropertySchema.loadGeneratedSchema(MetadataSearchResult.class), is(nullValue()));
+        assertThat(PropertySchema.getSchemaClassName("a.b.Outer$Inner"), is("a.b.Outer_Inner" + FiqlSchema.CLASS_SUFFIX));
+        assertThat(schema.getProperties().keySet(), containsInAnyOrder("containerId", "containerName", "status",
+                "storedBytes", "tags", "tenantName", "updatedTime"));
+
+        for (final PropertySchema.Property property : schema.getProperties().values()) {
+            final PropertySchema.Property resolved = valueConverter.resolveProperty(property.getPath());
+
+            assertThat(property.getPath(), property.getValueClass(), is((Object) resolved.getValueClass()));
+            assertThat(property.getPath(), property.isCollection(), is(resolved.isCollection()));
+            assertThat(property.getPath(), property.getEnumConstants(), is(resolved.getEnumConstants()));
+        }
+    }
+
+    /**
+     * Tests {@link PropertySchema#getProperty(String, FiqlValueConverter)} to make sure properties are only resolved
+     * the first time we see them, and that properties that don't exist aren't remembered.
+     */
+    @Test
+    public void testGetProperty() throws Exception {
+        final PropertySchema schema = PropertySchema.forClass(MetadataRecord.class);
+        final FiqlValueConverter<MetadataRecord> resolver = spy(valueConverter);
+
+        schema.getProperties().remove("containerId");
+
+        final PropertySchema.Property property = schema.getProperty("containerId", resolver);
+        assertThat(schema.getProperty("containerId", resolver), is(sameInstance(property)));
+        assertThat(property.getPath(), is("containerId"));
+        assertThat(property.getValueClass(), is((Object) Long.class));
+        assertThat(property.isCollection(), is(false));
+        assertThat(property.getEnumConstants(), is(nullValue()));
+
+        verify(resolver, times(1)).resolveProperty("containerId");
+
+        try {
+            schema.getProperty("taters", resolver);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final PropertyNotFoundException ex) {
+            assertThat(ex.getName(), is("taters"));
+        }
+
+        assertThat(schema.getProperties().containsKey("taters"), is(false));
+    }
+
+    /**
+     * Tests {@link FiqlValueConverter#resolveProperty(String)} for collections and enums, as well as nested properties.
+     */
+    @Test
+    public void testResolveProperty() throws Exception {
+        final PropertySchema.Property tags = valueConverter.resolveProperty("tags");
+        assertThat(tags.getValueClass(), is((Object) String.class));
+        assertThat(tags.isCollection(), is(true));
+
+        final PropertySchema.Property status = valueConverter.resolveProperty("status");
+        assertThat(status.isCollection(), is(false));
+        assertThat(status.getEnumConstants().get("AVAILABLE"), is((Object) Status.AVAILABLE));
+        assertThat(status.getEnumConstants().size(), is(Status.values().length));
+
+        final PropertySchema.Property nested = new FiqlValueConverter<>(MetadataSearchResult.class, new HashMap<>())
+                .resolveProperty("objectMetadata.status");
+        assertThat(nested.getValueClass(), is((Object) Status.class));
+    }
+
+    /**
+     * Tests {@link PropertySchema.Property#convert(String, FiqlValueConverter)} to make sure every class converts
+     * exactly as it would via CXF.
+     */
+    @Test
+    public void testConvert() throws Exception {
+        for (final String property : new String[]{"tenantName", "storedBytes", "status", "updatedTime", "tags"}) {
+            for (final String value : new String[]{"5", "-12", "deleted", "DELETED", "2017-03-01", "taters"}) {
+                final PropertySchema.Property schemaProperty = valueConverter.getProperty(property);
+                Object expected;
+
+                try {
+                    expected = valueConverter.convert(property, schemaProperty.getValueClass(), value);
+                } catch (final SearchParseException ex) {
+                    expected = ex.getMessage();
+                }
+
+                Object actual;
+
+                try {
+                    actual = schemaProperty.convert(value, valueConverter);
+                } catch (final SearchParseException ex) {
+                    actual = ex.getMessage();
+                }
+
+                assertThat(property + "==" + value, actual, is(expected));
+            }
+        }
+
+        assertThat(valueConverter.getProperty("status").convert("DEL*", valueConverter), is((Object) "DEL*"));
+        assertThat(valueConverter.getProperty("updatedTime").convert("2017-03-01", valueConverter), is(instanceOf(Date.class)));
+    }
+
+    /**
+     * Tests {@link PropertySchema#createConverter(Class, java.util.Map)} for each class we convert ourselves, and the
+     * ones we leave to CXF.
+     */
+    @Test
+    public void testCreateConverter() throws Exception {
+        assertThat(PropertySchema.createConverter(Long.class, null).apply("5"), is((Object) 5L));
+        assertThat(PropertySchema.createConverter(Long.class, null).apply("five"), is(nullValue()));
+        assertThat(PropertySchema.createConverter(Integer.class, null).apply("5"), is((Object) 5));
+        assertThat(PropertySchema.createConverter(Short.class, null).apply("5"), is((Object) (short) 5));
+        assertThat(PropertySchema.createConverter(Byte.class, null).apply("5"), is((Object) (byte) 5));
+        assertThat(PropertySchema.createConverter(Double.class, null).apply("5.5"), is((Object) 5.5d));
+        assertThat(PropertySchema.createConverter(Float.class, null).apply("5.5"), is((Object) 5.5f));
+        assertThat(PropertySchema.createConverter(Boolean.class, null).apply("TRUE"), is((Object) true));
+        assertThat(PropertySchema.createConverter(String.class, null).apply("taters"), is((Object) "taters"));
+        assertThat(PropertySchema.createConverter(Date.class, null), is(nullValue()));
+
+        assertThat(PropertySchema.createConverter(Status.class, PropertySchema.indexEnumConstants(Status.class)).apply("deleted"),
+                is((Object) Status.DELETED));
+        assertThat(PropertySchema.createConverter(Status.class, PropertySchema.indexEnumConstants(Status.class)).apply("gone"),
+                is(nullValue()));
+        assertThat(PropertySchema.indexEnumConstants(String.class), is(nullValue()));
+    }
+}
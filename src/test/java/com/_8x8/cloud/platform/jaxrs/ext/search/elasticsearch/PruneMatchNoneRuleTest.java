@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link PruneMatchNoneRule} at the unit level.
+ */
+public class PruneMatchNoneRuleTest {
+    private final PruneMatchNoneRule rule = new PruneMatchNoneRule();
+    private final TermQueryBuilder term = new TermQueryBuilder("tenantName", "taters");
+
+    /**
+     * Tests {@link PruneMatchNoneRule#rewrite(QueryBuilder)} to make sure a must or filter clause that matches nothing
+     * takes its whole bool query with it.
+     */
+    @Test
+    public void testRewriteForConjunctions() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term).must(new MatchNoneQueryBuilder())), is(new MatchNoneQueryBuilder()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().filter(new MatchNoneQueryBuilder()).should(term)), is(new MatchNoneQueryBuilder()));
+    }
+
+    /**
+     * Tests {@link PruneMatchNoneRule#rewrite(QueryBuilder)} to make sure should and must_not clauses that match
+     * nothing are dropped, and an OR group with nothing left matches nothing.
+     */
+    @Test
+    public void testRewriteForDisjunctionsAndNegations() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new MatchNoneQueryBuilder())
+                .should(term)
+                .mustNot(new MatchNoneQueryBuilder());
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query, is(new BoolQueryBuilder().should(term)));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new MatchNoneQueryBuilder())
+                .should(new MatchNoneQueryBuilder())
+                .mustNot(term)), is(new MatchNoneQueryBuilder()));
+
+        final BoolQueryBuilder negation = new BoolQueryBuilder().must(term).mustNot(new MatchNoneQueryBuilder());
+        assertThat(rule.rewrite(negation), is(sameInstance(negation)));
+        assertThat(negation, is(new BoolQueryBuilder().must(term)));
+    }
+
+    /**
+     * Tests {@link PruneMatchNoneRule#rewrite(QueryBuilder)} for things we must leave alone: optional should clauses,
+     * bool queries with a minimum number of should clauses, and anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnprunableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term).should(new MatchNoneQueryBuilder())), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new MatchNoneQueryBuilder())
+                .should(term)
+                .minimumShouldMatch(2)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term)), is(nullValue()));
+        assertThat(rule.rewrite(new MatchNoneQueryBuilder()), is(nullValue()));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link QueryBudget} at the unit level.
+ */
+public class QueryBudgetTest {
+    /**
+     * Tests a fresh {@link QueryBudget} to make sure it doesn't limit anything.
+     */
+    @Test
+    public void testDefaults() throws Exception {
+        final QueryBudget budget = new QueryBudget();
+
+        assertThat(budget.maxLength(), is(Integer.MAX_VALUE));
+        assertThat(budget.maxDepth(), is(Integer.MAX_VALUE));
+        assertThat(budget.maxLeaves(), is(Integer.MAX_VALUE));
+        assertThat(budget.maxWildcards(), is(Integer.MAX_VALUE));
+        assertThat(budget.maxLeadingWildcards(), is(Integer.MAX_VALUE));
+        assertThat(budget.maxCost(), is(Long.MAX_VALUE));
+
+        budget.check(String.join(",", Collections.nCopies(1000, "(tenantName==*taters)")));
+    }
+
+    /**
+     * Tests the {@link QueryBudget} setters to make sure we refuse negative limits.
+     */
+    @Test
+    public void testSettersForNegativeLimit() throws Exception {
+        try {
+            new QueryBudget().maxLeadingWildcards(-1);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Maximum number of leading wildcards must not be negative, got -1"));
+        }
+
+        try {
+            new QueryBudget().maxCost(-5);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Maximum estimated cost must not be negative, got -5"));
+        }
+    }
+
+    /**
+     * Tests {@link QueryBudget#check(CharSequence)} for filters right at the limits, which are fine.
+     */
+    @Test
+    public void testCheckWithinBudget() throws Exception {
+        final String filter = "tenantName==*a;(storedBytes=gt=5,(containerName==b*;status==deleted))";
+
+        new QueryBudget()
+                .maxLength(filter.length())
+                .maxDepth(2)
+                .maxLeaves(4)
+                .maxWildcards(2)
+                .maxLeadingWildcards(1)
+                .maxCost(QueryBudget.LEADING_WILDCARD_COST + QueryBudget.WILDCARD_COST + 2 * QueryBudget.LEAF_COST)
+                .check(filter);
+    }
+
+    /**
+     * Tests {@link QueryBudget#check(CharSequence)} for each limit being exceeded in turn.
+     */
+    @Test
+    public void testCheckOverBudget() throws Exception {
+        final String filter = "tenantName==*a;(storedBytes=gt=5,(containerName==b*;status==deleted))";
+
+        assertOverBudget(new QueryBudget().maxLength(filter.length() - 1), filter, QueryBudget.Limit.LENGTH,
+                "Filter exceeds the maximum length of 68");
+        assertOverBudget(new QueryBudget().maxDepth(1), filter, QueryBudget.Limit.DEPTH,
+                "Filter exceeds the maximum nesting depth of 1");
+        assertOverBudget(new QueryBudget().maxLeaves(3), filter, QueryBudget.Limit.LEAVES,
+                "Filter exceeds the maximum number of comparisons of 3");
+        assertOverBudget(new QueryBudget().maxWildcards(1), filter, QueryBudget.Limit.WILDCARDS,
+                "Filter exceeds the maximum number of wildcards of 1");
+        assertOverBudget(new QueryBudget().maxLeadingWildcards(0), filter, QueryBudget.Limit.LEADING_WILDCARDS,
+                "Filter exceeds the maximum number of leading wildcards of 0");
+        assertOverBudget(new QueryBudget().maxCost(100), filter, QueryBudget.Limit.COST,
+                "Filter exceeds the maximum estimated cost of 100");
+    }
+
+    /**
+     * Tests {@link QueryBudget#check(CharSequence)} to make sure only equality and inequality count as wildcards, and
+     * that values containing operators are measured by their last operator, just like the parsers do.
+     */
+    @Test
+    public void testCheckForWildcards() throws Exception {
+        final QueryBudget budget = new QueryBudget().maxWildcards(0);
+
+        budget.check("tenantName=gt=*a;storedBytes=le=*");
+        budget.check("tenantName==a=b");
+
+        assertOverBudget(budget, "tenantName!=a*", QueryBudget.Limit.WILDCARDS, "Filter exceeds the maximum number of wildcards of 0");
+        assertOverBudget(budget, "tenantName==a==*", QueryBudget.Limit.WILDCARDS, "Filter exceeds the maximum number of wildcards of 0");
+    }
+
+    /**
+     * Tests {@link QueryBudget#check(CharSequence)} for absurdly deep filters, which we should turn away long before
+     * anything recursive gets a look at them.
+     */
+    @Test
+    public void testCheckForDeepFilter() throws Exception {
+        final StringBuilder filter = new StringBuilder();
+
+        for (int depth = 0; depth < 100_000; depth++) {
+            filter.append('(');
+        }
+
+        assertOverBudget(new QueryBudget().maxDepth(32), filter, QueryBudget.Limit.DEPTH, "Filter exceeds the maximum nesting depth of 32");
+    }
+
+    /**
+     * Tests {@link QueryBudget.Meter} to make sure it keeps an accurate tally.
+     */
+    @Test
+    public void testMeter() throws Exception {
+        final QueryBudget.Meter meter = new QueryBudget().meter();
+
+        meter.enterGroup(5);
+        meter.leaf(false, false);
+        meter.leaf(true, false);
+        meter.leaf(true, true);
+
+        assertThat(meter.getLeaves(), is(3));
+        assertThat(meter.getWildcards(), is(2));
+        assertThat(meter.getLeadingWildcards(), is(1));
+        assertThat(meter.getCost(), is(QueryBudget.LEAF_COST + QueryBudget.WILDCARD_COST + QueryBudget.LEADING_WILDCARD_COST));
+    }
+
+    /**
+     * Provides a convenience method to make sure a filter goes over budget in the way we expect.
+     */
+    private void assertOverBudget(final QueryBudget budget, final CharSequence filter, final QueryBudget.Limit limit, final String message) {
+        try {
+            budget.check(filter);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final QueryBudgetExceededException ex) {
+            assertThat(ex.getLimit(), is(limit));
+            assertThat(ex.getMessage(), is(message));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link QueryFingerprint} at the unit level.
+ */
+public class QueryFingerprintTest {
+    /**
+     * Tests {@link QueryFingerprint#equals(Object)} and {@link QueryFingerprint#hashCode()} for fingerprints built from
+     * the same canonical form.
+     */
+    @Test
+    public void testEquals() throws Exception {
+        final QueryFingerprint fingerprint = new QueryFingerprint("and(a==1,b==2)", "and(a==?,b==?)");
+        final QueryFingerprint otherFingerprint = new QueryFingerprint("and(a==1,b==2)", "and(a==?,b==?)");
+
+        assertThat(fingerprint, is(otherFingerprint));
+        assertThat(fingerprint.hashCode(), is(otherFingerprint.hashCode()));
+        assertThat(fingerprint, is(not(new QueryFingerprint("and(a==1,b==3)", "and(a==?,b==?)"))));
+    }
+
+    /**
+     * Tests {@link QueryFingerprint#equals(Object)} for two different filters whose hashes collide. These must never
+     * share a cache entry, or one caller could be handed the query compiled for someone else's filter.
+     */
+    @Test
+    public void testEqualsForHashCollision() throws Exception {
+        final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+        hash.h1 = 42L;
+        hash.h2 = 7L;
+
+        final QueryFingerprint fingerprint = new QueryFingerprint("tenantName==taters", "tenantName==?", hash, hash);
+        final QueryFingerprint collidingFingerprint = new QueryFingerprint("tenantName==dinner", "tenantName==?", hash, hash);
+
+        assertThat(fingerprint.getStructuralHashString(), is(collidingFingerprint.getStructuralHashString()));
+        assertThat(fingerprint.hashCode(), is(collidingFingerprint.hashCode()));
+        assertThat(fingerprint, is(not(collidingFingerprint)));
+    }
+}
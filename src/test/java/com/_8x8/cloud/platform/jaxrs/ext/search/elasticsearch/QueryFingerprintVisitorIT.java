@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.AndSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.TimeZone;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link QueryFingerprintVisitor} at the integration level.
+ */
+public class QueryFingerprintVisitorIT {
+    private static final TimeZone defaultTimezone = TimeZone.getDefault();
+
+    private final FiqlParser<MetadataRecord> parser = new FiqlParser<>(MetadataRecord.class);
+
+    @Before
+    public void setUp() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TimeZone.setDefault(defaultTimezone);
+    }
+
+    /**
+     * Tests the canonical form and shape of a simple expression.
+     */
+    @Test
+    public void testSimpleExpression() throws Exception {
+        final QueryFingerprint fingerprint = fingerprint("storedBytes=gt=0100");
+
+        assertThat(fingerprint.getCanonicalForm(), is("storedBytes=gt=100"));
+        assertThat(fingerprint.getShape(), is("storedBytes=gt=?"));
+        assertThat(fingerprint.getStructuralHashString().length(), is(32));
+    }
+
+    /**
+     * Tests that the order of the parts of an {@code AND} or {@code OR} doesn't matter.
+     */
+    @Test
+    public void testCommutativeExpressions() throws Exception {
+        assertSameFingerprint("tenantName==taters;containerName==delicious", "containerName==delicious;tenantName==taters");
+        assertSameFingerprint("tenantName==taters,containerName==delicious", "containerName==delicious,tenantName==taters");
+        assertSameFingerprint("storedBytes=gt=100;storedBytes=lt=1000", "storedBytes=lt=1000;storedBytes=gt=100");
+    }
+
+    /**
+     * Tests that redundant parenthesis and nested groups of the same type don't matter.
+     */
+    @Test
+    public void testNestedExpressions() throws Exception {
+        assertSameFingerprint("tenantName==taters", "(tenantName==taters)");
+        assertSameFingerprint("tenantName==taters,(containerName==delicious,tenantName==dinner)",
+                "(tenantName==dinner,tenantName==taters),containerName==delicious");
+        assertSameFingerprint("tenantName==taters;(containerName==delicious;storedBytes=gt=5)",
+                "storedBytes=gt=5;tenantName==taters;containerName==delicious");
+
+        // Mixing up the types is a different story entirely.
+        assertThat(fingerprint("tenantName==taters;(containerName==delicious,storedBytes=gt=5)"),
+                is(not(fingerprint("(tenantName==taters;containerName==delicious),storedBytes=gt=5"))));
+    }
+
+    /**
+     * Tests that literals are compared by value, rather than by how they were written.
+     */
+    @Test
+    public void testNormalizedLiterals() throws Exception {
+        assertSameFingerprint("storedBytes==5", "storedBytes==0005");
+        assertSameFingerprint("updatedTime=ge=2017-03-24", "updatedTime=ge=2017-03-24T00:00:00.000+0000");
+        assertSameFingerprint("status==AVAILABLE", "status==available");
+
+        assertThat(fingerprint("tenantName==taters"), is(not(fingerprint("tenantName==Taters"))));
+    }
+
+    /**
+     * Tests that an {@code AND} with several lower bounds on the same field keeps its order, as without an optimizer, the
+     * order decides which bound wins.
+     */
+    @Test
+    public void testConflictingRangeBounds() throws Exception {
+        assertThat(fingerprint("storedBytes=gt=1;storedBytes=gt=5"), is(not(fingerprint("storedBytes=gt=5;storedBytes=gt=1"))));
+    }
+
+    /**
+     * Tests that an {@code AND} keeping its order still holds on to its own parts once the visitor has moved on to
+     * the next group, so the parent sees exactly what was written.
+     */
+    @Test
+    public void testConflictingRangeBoundsFollowedByGroup() throws Exception {
+        assertThat(fingerprint("(storedBytes=gt=1;storedBytes=gt=5);(tenantName==a,tenantName==b)").getCanonicalForm(),
+                is("and(and(storedBytes=gt=1,storedBytes=gt=5),or(tenantName==a,tenantName==b))"));
+    }
+
+    /**
+     * Tests that we can fingerprint an expression far too deep to have recursed through.
+     */
+    @Test
+    public void testDeepNesting() throws Exception {
+        SearchCondition<MetadataRecord> condition = parser.parse("storedBytes=gt=1");
+
+        for (int level = 0; level < 100000; level++) {
+            condition = new AndSearchCondition<>(Collections.singletonList(condition));
+        }
+
+        final QueryFingerprintVisitor<MetadataRecord> visitor = new QueryFingerprintVisitor<>();
+        visitor.visit(condition);
+
+        assertThat(visitor.getQuery(), is(fingerprint("storedBytes=gt=1")));
+    }
+
+    /**
+     * Tests that we refuse to fingerprint an expression nested deeper than we allow.
+     */
+    @Test
+    public void testMaxDepth() throws Exception {
+        final QueryFingerprintVisitor<MetadataRecord> visitor = new QueryFingerprintVisitor<>(1);
+
+        try {
+            visitor.visit(parser.parse("tenantName==a;(tenantName==b,(tenantName==c;tenantName==d))"));
+            fail("Expected a QueryBudgetExceededException");
+        } catch (final QueryBudgetExceededException e) {
+            assertThat(e.getLimit(), is(QueryBudget.Limit.DEPTH));
+            assertThat(e.getMaximum(), is(1L));
+        }
+    }
+
+    /**
+     * Tests that the shape of an expression ignores its literals, but still tells wildcards apart.
+     */
+    @Test
+    public void testShape() throws Exception {
+        final QueryFingerprint first = fingerprint("tenantName==taters;storedBytes=gt=5");
+        final QueryFingerprint second = fingerprint("storedBytes=gt=100;tenantName==dinner");
+
+        assertThat(first, is(not(second)));
+        assertThat(first.getShape(), is("and(storedBytes=gt=?,tenantName==?)"));
+        assertThat(first.getShapeHash(), is(second.getShapeHash()));
+        assertThat(first.getShapeHashString(), is(second.getShapeHashString()));
+
+        assertThat(fingerprint("tenantName==tat*").getShape(), is("tenantName==?*"));
+    }
+
+    /**
+     * Tests that collection operators are kept as part of the fingerprint.
+     */
+    @Test
+    public void testCollectionCheck() throws Exception {
+        assertThat(fingerprint("count(tags)=ge=2").getCanonicalForm(), is("count(tags)=ge=2"));
+    }
+
+    private void assertSameFingerprint(final String first, final String second) {
+        final QueryFingerprint firstFingerprint = fingerprint(first);
+        final QueryFingerprint secondFingerprint = fingerprint(second);
+
+        assertThat(firstFingerprint.getCanonicalForm(), is(secondFingerprint.getCanonicalForm()));
+        assertThat(firstFingerprint, is(secondFingerprint));
+        assertThat(firstFingerprint.getStructuralHash(), is(secondFingerprint.getStructuralHash()));
+        assertThat(firstFingerprint.getShapeHash(), is(secondFingerprint.getShapeHash()));
+    }
+
+    private QueryFingerprint fingerprint(final String fiqlExpression) {
+        final QueryFingerprintVisitor<MetadataRecord> visitor = new QueryFingerprintVisitor<>();
+        visitor.visit(parser.parse(fiqlExpression));
+
+        return visitor.getQuery();
+    }
+}
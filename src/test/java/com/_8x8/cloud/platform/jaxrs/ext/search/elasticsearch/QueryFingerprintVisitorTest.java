@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.Status;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link QueryFingerprintVisitor} at the unit level.
+ */
+public class QueryFingerprintVisitorTest {
+    private final QueryFingerprintVisitor<MetadataRecord> visitor = new QueryFingerprintVisitor<>();
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#buildSimpleNode(PrimitiveStatement)} to make sure it does what we expect.
+     */
+    @Test
+    public void testBuildSimpleNode() throws Exception {
+        final QueryFingerprintVisitor.Node node = visitor.buildSimpleNode(
+                new PrimitiveStatement("storedBytes", 100L, Long.class, ConditionType.LESS_THAN));
+
+        assertThat(node.getCanonicalForm(), is("storedBytes=lt=100"));
+        assertThat(node.getShape(), is("storedBytes=lt=?"));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#buildSimpleNode(PrimitiveStatement)} for wildcards.
+     */
+    @Test
+    public void testBuildSimpleNodeForWildcard() throws Exception {
+        final QueryFingerprintVisitor.Node node = visitor.buildSimpleNode(
+                new PrimitiveStatement("tenantName", "Test*", String.class, ConditionType.NOT_EQUALS));
+
+        assertThat(node.getCanonicalForm(), is("tenantName!=Test*"));
+        assertThat(node.getShape(), is("tenantName!=?*"));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#buildCompositeNode(ConditionType, java.util.List)} to make sure we sort
+     * and flatten our parts.
+     */
+    @Test
+    public void testBuildCompositeNode() throws Exception {
+        final QueryFingerprintVisitor.Node nested = visitor.buildCompositeNode(ConditionType.OR,
+                Arrays.asList(leaf("tenantName", "b", ConditionType.EQUALS), leaf("tenantName", "a", ConditionType.EQUALS)));
+
+        final QueryFingerprintVisitor.Node node = visitor.buildCompositeNode(ConditionType.OR,
+                Arrays.asList(nested, leaf("containerName", "c", ConditionType.EQUALS)));
+
+        assertThat(nested.getCanonicalForm(), is("or(tenantName==a,tenantName==b)"));
+        assertThat(node.getCanonicalForm(), is("or(containerName==c,tenantName==a,tenantName==b)"));
+        assertThat(node.getShape(), is("or(containerName==?,tenantName==?,tenantName==?)"));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#buildCompositeNode(ConditionType, java.util.List)} for the case where we
+     * can't re-order our parts.
+     */
+    @Test
+    public void testBuildCompositeNodeForConflictingRangeBounds() throws Exception {
+        final QueryFingerprintVisitor.Node node = visitor.buildCompositeNode(ConditionType.AND,
+                Arrays.asList(leaf("storedBytes", 5L, ConditionType.GREATER_THAN), leaf("storedBytes", 1L, ConditionType.GREATER_OR_EQUALS)));
+
+        assertThat(node.getCanonicalForm(), is("and(storedBytes=gt=5,storedBytes=ge=1)"));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#buildCompositeNode(ConditionType, java.util.List)} for the degenerate cases
+     * of zero and one part.
+     */
+    @Test
+    public void testBuildCompositeNodeForDegenerateCases() throws Exception {
+        final QueryFingerprintVisitor.Node leaf = leaf("tenantName", "a", ConditionType.EQUALS);
+
+        assertThat(visitor.buildCompositeNode(ConditionType.AND, Collections.emptyList()), is(nullValue()));
+        assertThat(visitor.buildCompositeNode(ConditionType.AND, Collections.singletonList(leaf)), is(leaf));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#normalizeLiteral(Object)} to make sure it does what we expect.
+     */
+    @Test
+    public void testNormalizeLiteral() throws Exception {
+        assertThat(visitor.normalizeLiteral(new Date(1490334452000L)), is("1490334452000"));
+        assertThat(visitor.normalizeLiteral(Status.DELETED), is("DELETED"));
+        assertThat(visitor.normalizeLiteral(42L), is("42"));
+        assertThat(visitor.normalizeLiteral("a,b(c)\\"), is("a\\,b\\(c\\)\\\\"));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#getRangeBound(String, ConditionType)} to make sure it does what we expect.
+     */
+    @Test
+    public void testGetRangeBound() throws Exception {
+        assertThat(visitor.getRangeBound("a", ConditionType.GREATER_THAN), is(visitor.getRangeBound("a", ConditionType.GREATER_OR_EQUALS)));
+        assertThat(visitor.getRangeBound("a", ConditionType.LESS_THAN), is(visitor.getRangeBound("a", ConditionType.LESS_OR_EQUALS)));
+        assertThat(visitor.getRangeBound("a", ConditionType.EQUALS), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#getOperator(ConditionType)} for an operator FIQL doesn't have.
+     */
+    @Test
+    public void testGetOperatorForCustomCondition() throws Exception {
+        try {
+            visitor.getOperator(ConditionType.CUSTOM);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Query contains an unsupported operation: CUSTOM"));
+        }
+    }
+
+    /**
+     * Tests {@link QueryFingerprintVisitor#getQuery()} for the case where nothing has been visited.
+     */
+    @Test
+    public void testGetQueryForEmptyState() throws Exception {
+        assertThat(visitor.getQuery(), is(nullValue()));
+    }
+
+    private QueryFingerprintVisitor.Node leaf(final String property, final Object value, final ConditionType conditionType) {
+        return visitor.buildSimpleNode(new PrimitiveStatement(property, value, value.getClass(), conditionType));
+    }
+}
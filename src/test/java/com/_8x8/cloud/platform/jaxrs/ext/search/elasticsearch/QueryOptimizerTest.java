@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link QueryOptimizer} at the unit level.
+ */
+public class QueryOptimizerTest {
+    /**
+     * Tests {@link QueryOptimizer#optimize(QueryBuilder, QueryRewriteTrace)} to make sure the built-in rules fold
+     * ranges just like the visitor used to, at every level of the tree, and tidy up after themselves.
+     */
+    @Test
+    public void testOptimize() throws Exception {
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new BoolQueryBuilder()
+                        .must(new RangeQueryBuilder("storedBytes").gt(5))
+                        .must(new RangeQueryBuilder("storedBytes").lt(10)))
+                .should(new TermQueryBuilder("tenantName", "taters"));
+
+        final QueryBuilder optimized = new QueryOptimizer().optimize(query, trace);
+
+        assertThat(optimized, is(new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").gt(5).lt(10))
+                .should(new TermQueryBuilder("tenantName", "taters"))));
+
+        assertThat(new ArrayList<>(trace.getFirings().keySet()),
+                is(Arrays.asList(QueryOptimizer.MERGE_RANGES, QueryOptimizer.UNWRAP_SINGLE_CLAUSE_BOOLS)));
+        assertThat(trace.getFiringCount(QueryOptimizer.MERGE_RANGES), is(1));
+        assertThat(trace.getPasses(), is(2));
+        assertThat(trace.isConverged(), is(true));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#optimize(QueryBuilder, QueryRewriteTrace)} to make sure rules see the rewritten
+     * children of a node, that later rules see whatever earlier rules did, and that a replaced root comes back to us.
+     */
+    @Test
+    public void testOptimizeForCustomRules() throws Exception {
+        final List<String> seen = new ArrayList<>();
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        final QueryOptimizer optimizer = withoutBuiltInRules()
+                .addRule(new TestRule("record", query -> {
+                    seen.add(query.getName());
+                    return null;
+                }))
+                .addRule(new TestRule("unwrap", query -> {
+                    // Swaps a bool holding a single must clause for the clause itself.
+                    if (query instanceof BoolQueryBuilder && 1 == ((BoolQueryBuilder) query).must().size()) {
+                        return ((BoolQueryBuilder) query).must().get(0);
+                    }
+
+                    return null;
+                }));
+
+        final QueryBuilder optimized = optimizer.optimize(new BoolQueryBuilder()
+                .must(new BoolQueryBuilder().must(new TermQueryBuilder("tenantName", "taters"))), trace);
+
+        assertThat(optimized, is(new TermQueryBuilder("tenantName", "taters")));
+        assertThat(seen.subList(0, 3), is(Arrays.asList(TermQueryBuilder.NAME, BoolQueryBuilder.NAME, BoolQueryBuilder.NAME)));
+        assertThat(trace.getFiringCount("unwrap"), is(2));
+        assertThat(trace.getFiringCount("record"), is(0));
+        assertThat(trace.isConverged(), is(true));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#disableRule(String)} and {@link QueryOptimizer#enableRule(String)} to make sure rules
+     * can be switched off and on again.
+     */
+    @Test
+    public void testDisableRule() throws Exception {
+        final QueryOptimizer optimizer = new QueryOptimizer().disableRule(QueryOptimizer.MERGE_RANGES);
+
+        assertThat(optimizer.isRuleEnabled(QueryOptimizer.MERGE_RANGES), is(false));
+        assertThat(optimizer.getEnabledRuleNames().contains(QueryOptimizer.MERGE_RANGES), is(false));
+
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(5))
+                .must(new RangeQueryBuilder("storedBytes").lt(10));
+
+        assertThat(optimizer.optimize(query, trace).toString(), is(query.toString()));
+        assertThat(query.must().size(), is(2));
+        assertThat(trace.hasFired(), is(false));
+        assertThat(trace.getPasses(), is(1));
+
+        optimizer.enableRule(QueryOptimizer.MERGE_RANGES);
+        assertThat(optimizer.getEnabledRuleNames(), is(new QueryOptimizer().getEnabledRuleNames()));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#optimize(QueryBuilder, QueryRewriteTrace)} for rules that never settle down. We
+     * should give up after our maximum number of passes, rather than spinning forever.
+     */
+    @Test
+    public void testOptimizeForRulesThatNeverSettle() throws Exception {
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        final TermQueryBuilder query = new TermQueryBuilder("tenantName", "taters");
+        final QueryOptimizer optimizer = new QueryOptimizer()
+                .maxPasses(3)
+                .addRule(new TestRule("restless", rewritten -> rewritten));
+
+        assertThat(optimizer.optimize(query, trace), is(sameInstance(query)));
+        assertThat(trace.getPasses(), is(3));
+        assertThat(trace.getFiringCount("restless"), is(3));
+        assertThat(trace.isConverged(), is(false));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#optimize(QueryBuilder, QueryRewriteTrace)} for a tree far too deep to have walked
+     * by recursion.
+     */
+    @Test
+    public void testOptimizeForDeepNesting() throws Exception {
+        QueryBuilder query = new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").gt(5))
+                .must(new RangeQueryBuilder("storedBytes").lt(10));
+
+        for (int level = 0; level < 100000; level++) {
+            query = new BoolQueryBuilder().should(query);
+        }
+
+        final QueryRewriteTrace trace = new QueryRewriteTrace();
+        new QueryOptimizer().optimize(query, trace);
+
+        assertThat(trace.getFiringCount(QueryOptimizer.MERGE_RANGES), is(1));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#optimize(QueryBuilder, QueryRewriteTrace)} for a null query, and a null trace.
+     */
+    @Test
+    public void testOptimizeForNull() throws Exception {
+        assertThat(new QueryOptimizer().optimize(null, null), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#addRule(QueryRewriteRule)} for a rule whose name is already taken.
+     */
+    @Test
+    public void testAddRuleForDuplicateName() throws Exception {
+        try {
+            new QueryOptimizer().addRule(new TestRule(QueryOptimizer.MERGE_RANGES, query -> null));
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("A rewrite rule named merge-ranges already exists"));
+        }
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#disableRule(String)} for a rule that doesn't exist.
+     */
+    @Test
+    public void testDisableRuleForUnknownRule() throws Exception {
+        try {
+            new QueryOptimizer().disableRule("taters");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Unknown rewrite rule: taters"));
+        }
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#maxPasses(int)} for too few passes.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxPassesForZero() throws Exception {
+        new QueryOptimizer().maxPasses(0);
+    }
+
+    /**
+     * Tests {@link QueryOptimizer#maxPatternStates(int)} to make sure the {@link QueryOptimizer#MERGE_PATTERNS} rule
+     * gets the new budget, without moving, or being switched back on.
+     */
+    @Test
+    public void testMaxPatternStates() throws Exception {
+        final QueryOptimizer optimizer = new QueryOptimizer().disableRule(QueryOptimizer.MERGE_PATTERNS);
+        final List<String> ruleNames = new ArrayList<>(new QueryOptimizer().getEnabledRuleNames());
+
+        assertThat(optimizer.maxPatternStates(), is(MergePatternsRule.DEFAULT_MAX_STATES));
+        assertThat(optimizer.maxPatternStates(50), is(sameInstance(optimizer)));
+        assertThat(optimizer.maxPatternStates(), is(50));
+        assertThat(((MergePatternsRule) optimizer.findRule(QueryOptimizer.MERGE_PATTERNS)).getMaxStates(), is(50));
+        assertThat(optimizer.isRuleEnabled(QueryOptimizer.MERGE_PATTERNS), is(false));
+
+        optimizer.enableRule(QueryOptimizer.MERGE_PATTERNS);
+        assertThat(new ArrayList<>(optimizer.getEnabledRuleNames()), is(ruleNames));
+
+        try {
+            optimizer.maxPatternStates(0);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Maximum pattern states must be at least 1, got 0"));
+        }
+    }
+
+    /**
+     * Provides a convenience method to build an optimizer with every built-in rule switched off.
+     */
+    static QueryOptimizer withoutBuiltInRules() {
+        final QueryOptimizer optimizer = new QueryOptimizer();
+
+        for (final String ruleName : optimizer.getEnabledRuleNames()) {
+            optimizer.disableRule(ruleName);
+        }
+
+        return optimizer;
+    }
+
+    /**
+     * Provides a rule built out of a lambda, for brevity.
+     */
+    private static class TestRule implements QueryRewriteRule {
+        private final String name;
+        private final Function<QueryBuilder, QueryBuilder> rewriter;
+
+        TestRule(final String name, final Function<QueryBuilder, QueryBuilder> rewriter) {
+            this.name = name;
+            this.rewriter = rewriter;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public QueryBuilder rewrite(final QueryBuilder query) {
+            return rewriter.apply(query);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
+import org.apache.cxf.jaxrs.ext.search.AndSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.OrSearchCondition;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link SearchConditionWalker} at the unit level.
+ */
+public class SearchConditionWalkerTest {
+    /**
+     * Tests {@link SearchConditionWalker#walk(SearchCondition)} to make sure we visit everything, in order, with the
+     * right depths.
+     */
+    @Test
+    public void testWalk() throws Exception {
+        final RecordingWalker walker = new RecordingWalker(Integer.MAX_VALUE);
+
+        walker.walk(and(statement("a"), or(statement("b"), statement("c")), statement("d")));
+
+        assertThat(walker.getEvents(), is(Arrays.asList("AND@0", "a", "OR@1", "b", "c", "/OR", "d", "/AND")));
+    }
+
+    /**
+     * Tests {@link SearchConditionWalker#walk(SearchCondition)} for a single comparison, with no composites at all.
+     */
+    @Test
+    public void testWalkForStatement() throws Exception {
+        final RecordingWalker walker = new RecordingWalker(0);
+
+        walker.walk(statement("a"));
+
+        assertThat(walker.getEvents(), is(Collections.singletonList("a")));
+    }
+
+    /**
+     * Tests {@link SearchConditionWalker#walk(SearchCondition)} to make sure we can walk something far too deep to
+     * have recursed through, and can keep on walking afterwards.
+     */
+    @Test
+    public void testWalkForDeepNesting() throws Exception {
+        final int depth = 100000;
+        final RecordingWalker walker = new RecordingWalker(Integer.MAX_VALUE);
+
+        walker.walk(nest(depth));
+        assertThat(walker.getEvents().size(), is(depth * 2 + 1));
+        assertThat(walker.getEvents().get(depth - 1), is("AND@" + (depth - 1)));
+        assertThat(walker.getEvents().get(depth), is("a"));
+
+        walker.getEvents().clear();
+        walker.walk(statement("b"));
+        assertThat(walker.getEvents(), is(Collections.singletonList("b")));
+    }
+
+    /**
+     * Tests {@link SearchConditionWalker#walk(SearchCondition)} to make sure we enforce our maximum depth before
+     * walking anything beneath it, and start over cleanly afterwards.
+     */
+    @Test
+    public void testWalkBeyondMaxDepth() throws Exception {
+        final RecordingWalker walker = new RecordingWalker(2);
+
+        // Three levels of parenthesis is fine, as the outermost doesn't count.
+        walker.walk(nest(3));
+        walker.getEvents().clear();
+
+        try {
+            walker.walk(nest(4));
+            fail("Expected a QueryBudgetExceededException");
+        } catch (final QueryBudgetExceededException e) {
+            assertThat(e.getLimit(), is(QueryBudget.Limit.DEPTH));
+            assertThat(e.getMaximum(), is(2L));
+        }
+
+        assertThat(walker.getEvents(), is(Arrays.asList("AND@0", "AND@1", "AND@2")));
+
+        walker.getEvents().clear();
+        walker.walk(and(statement("a")));
+        assertThat(walker.getEvents(), is(Arrays.asList("AND@0", "a", "/AND")));
+    }
+
+    /**
+     * Tests {@link SearchConditionWalker#SearchConditionWalker(int)} for a negative maximum depth.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorForNegativeMaxDepth() throws Exception {
+        new RecordingWalker(-1);
+    }
+
+    /**
+     * Provides a convenience method to build a single comparison.
+     */
+    private static SearchCondition<MetadataRecord> statement(final String property) {
+        return new NativeFiqlParser.StatementSearchCondition<>(new PrimitiveStatement(property, "taters", String.class, ConditionType.EQUALS));
+    }
+
+    @SafeVarargs
+    private static SearchCondition<MetadataRecord> and(final SearchCondition<MetadataRecord>... parts) {
+        return new AndSearchCondition<>(Arrays.asList(parts));
+    }
+
+    @SafeVarargs
+    private static SearchCondition<MetadataRecord> or(final SearchCondition<MetadataRecord>... parts) {
+        return new OrSearchCondition<>(Arrays.asList(parts));
+    }
+
+    /**
+     * Provides a convenience method to wrap a single comparison in the given number of ANDs.
+     */
+    private static SearchCondition<MetadataRecord> nest(final int depth) {
+        SearchCondition<MetadataRecord> condition = statement("a");
+
+        for (int level = 0; level < depth; level++) {
+            condition = and(condition);
+        }
+
+        return condition;
+    }
+
+    /**
+     * Writes down everything it's handed, so we can see what was walked and in what order.
+     */
+    private static class RecordingWalker extends SearchConditionWalker<MetadataRecord> {
+        private final List<String> events = new ArrayList<>();
+
+        List<String> getEvents() {
+            return events;
+        }
+
+        RecordingWalker(final int maxDepth) {
+            super(maxDepth);
+        }
+
+        @Override
+        void visitStatement(final PrimitiveStatement statement) {
+            events.add(statement.getProperty());
+        }
+
+        @Override
+        void enterComposite(final SearchCondition<MetadataRecord> composite, final int depth) {
+            events.add(composite.getConditionType() + "@" + depth);
+        }
+
+        @Override
+        void exitComposite(final SearchCondition<MetadataRecord> composite) {
+            events.add("/" + composite.getConditionType());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EmptyStackException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link StateStack} at the unit level.
+ */
+public class StateStackTest {
+    private final StateStack<String> stateStack = new StateStack<>();
+
+    /**
+     * Tests {@link StateStack#push()}, {@link StateStack#peek()} and {@link StateStack#pop()} to make sure they behave
+     * like any other stack.
+     */
+    @Test
+    public void testPushPeekPop() throws Exception {
+        assertThat(stateStack.isEmpty(), is(true));
+
+        stateStack.push().add("taters");
+        stateStack.push().add("delicious");
+
+        assertThat(stateStack.size(), is(2));
+        assertThat(stateStack.peek(), is(Collections.singletonList("delicious")));
+        assertThat(stateStack.pop(), is(Collections.singletonList("delicious")));
+        assertThat(stateStack.pop(), is(Collections.singletonList("taters")));
+        assertThat(stateStack.isEmpty(), is(true));
+    }
+
+    /**
+     * Tests {@link StateStack#push()} to make sure we re-use popped frames, clearing them first.
+     */
+    @Test
+    public void testPushReusesFrames() throws Exception {
+        final List<String> first = stateStack.push();
+        first.add("taters");
+        stateStack.pop();
+
+        final List<String> second = stateStack.push();
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(second.isEmpty(), is(true));
+    }
+
+    /**
+     * Tests {@link StateStack#push()} to make sure we grow past our initial depth without losing anything.
+     */
+    @Test
+    public void testPushBeyondInitialDepth() throws Exception {
+        final int depth = StateStack.INITIAL_DEPTH * 3 + 1;
+
+        for (int frame = 0; frame < depth; frame++) {
+            stateStack.push().add(Integer.toString(frame));
+        }
+
+        assertThat(stateStack.size(), is(depth));
+
+        for (int frame = depth - 1; frame >= 0; frame--) {
+            assertThat(stateStack.pop(), is(Collections.singletonList(Integer.toString(frame))));
+        }
+    }
+
+    /**
+     * Tests {@link StateStack#clear()} to make sure we drop everything we were holding on to, including in frames that
+     * were already popped, but keep the frames themselves.
+     */
+    @Test
+    public void testClear() throws Exception {
+        final List<String> first = stateStack.push();
+        first.add("taters");
+        stateStack.push().add("delicious");
+        final List<String> popped = stateStack.pop();
+
+        stateStack.clear();
+
+        assertThat(stateStack.isEmpty(), is(true));
+        assertThat(first.isEmpty(), is(true));
+        assertThat(popped.isEmpty(), is(true));
+        assertThat(stateStack.push(), is(sameInstance(first)));
+    }
+
+    /**
+     * Tests {@link StateStack#peek()} and {@link StateStack#pop()} for an empty stack.
+     */
+    @Test
+    public void testEmptyStack() throws Exception {
+        try {
+            stateStack.peek();
+            fail("Oops, we should have caught an exception here...");
+        } catch (final EmptyStackException ex) {
+            // Expected.
+        }
+
+        try {
+            stateStack.pop();
+            fail("Oops, we should have caught an exception here...");
+        } catch (final EmptyStackException ex) {
+            // Expected.
+        }
+    }
+}
@@ -18,14 +18,22 @@ package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
 import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
 import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataSearchResult;
+import org.apache.cxf.jaxrs.ext.search.SearchParseException;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Tests the {@link TranslatingQueryBuilder} at the integration level.
@@ -59,6 +67,116 @@ public class TranslatingQueryBuilderIT {
         assertThat(generatedFilter, is(filter));
     }
 
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(byte[], int, int)} and friends to make sure that filters
+     * straight off the wire translate exactly like their decoded strings, dates included.
+     */
+    @Test
+    public void testTranslateFiqlQueryForEncodedFilter() throws Exception {
+        final Map<String, String> fieldMap = new HashMap<>();
+        fieldMap.put("objectMetadata.tenantName", "tenant");
+
+        final TranslatingQueryBuilder<MetadataSearchResult> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataSearchResult.class, fieldMap, "yyyy-MM-dd'T'HH:mm:ss.SSSZ", null);
+
+        final String fiqlFilter = "objectMetadata.lastUpdatedTime=gt=2017-07-04T07:07:07.235-0700,(objectMetadata.tenantName==café*;objectMetadata.sizeInBytes=le=5)";
+        final String expected = translatingQueryBuilder.translateFiqlQuery(fiqlFilter);
+        final byte[] encoded = URLEncoder.encode(fiqlFilter, "UTF-8").getBytes(StandardCharsets.US_ASCII);
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery(encoded, 0, encoded.length), is(expected));
+        assertThat(translatingQueryBuilder.translateFiqlQuery(ByteBuffer.wrap(encoded)), is(expected));
+        assertThat(translatingQueryBuilder.translateFiqlQuery(new StringBuilder(fiqlFilter)), is(expected));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(CharSequence)} for a wildcard over an enum property, which
+     * the native parser passes through, but CXF rejects, along with the string overload.
+     */
+    @Test
+    public void testTranslateFiqlQueryForCharSequenceWithEnumWildcard() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, null, null, null);
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery(new StringBuilder("status==AVAIL*")), is("status==AVAIL*"));
+
+        try {
+            translatingQueryBuilder.translateFiqlQuery("status==AVAIL*");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final SearchParseException ex) {
+            assertThat(ex.getMessage(), containsString("AVAIL*"));
+        }
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} with caching enabled. We should get back exactly
+     * what we would have without caching.
+     */
+    @Test
+    public void testTranslateFiqlQueryWithCache() throws Exception {
+        final Map<String, String> fieldMap = new HashMap<>();
+        fieldMap.put("tenantName", "objectMetadata.tenantName");
+
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, fieldMap, null, null,
+                        new TranslatingQueryBuilderOptions().cacheSize(10));
+
+        final String fiqlFilter = "tenantName==taters,(containerName==delicious;tenantName==dinner)";
+        final String expected = "objectMetadata.tenantName==taters,(containerName==delicious;objectMetadata.tenantName==dinner)";
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery(fiqlFilter), is(expected));
+        assertThat(translatingQueryBuilder.translateFiqlQuery(fiqlFilter), is(expected));
+
+        final CacheStatistics statistics = translatingQueryBuilder.getCacheStatistics();
+        assertThat(statistics.getHitCount(), is(1L));
+        assertThat(statistics.getMissCount(), is(1L));
+        assertThat(statistics.getWeight(), is((long) (fiqlFilter.length() + expected.length())));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} with caching enabled, for a filter holding a
+     * duration. Once the clock has moved on, the same filter must translate to a later date, rather than the one we
+     * first translated it to.
+     */
+    @Test
+    public void testTranslateFiqlQueryWithCacheForDuration() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, null, "yyyy-MM-dd'T'HH:mm:ss.SSSZ", null,
+                        new TranslatingQueryBuilderOptions().cacheSize(10));
+
+        final String first = translatingQueryBuilder.translateFiqlQuery("updatedTime=gt=-P1D");
+        final long firstCalled = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() == firstCalled) {
+            Thread.sleep(1);
+        }
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery("updatedTime=gt=-P1D").compareTo(first) > 0, is(true));
+        assertThat(translatingQueryBuilder.getCacheStatistics().getHitCount(), is(0L));
+        assertThat(translatingQueryBuilder.getCacheStatistics().getSize(), is(0L));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} with fingerprinting enabled, for equivalent
+     * filters holding a duration, neither of which should come anywhere near the fingerprint cache.
+     */
+    @Test
+    public void testTranslateFiqlQueryWithFingerprintCacheForDuration() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, null, "yyyy-MM-dd'T'HH:mm:ss.SSSZ", null,
+                        new TranslatingQueryBuilderOptions().cacheSize(10).fingerprintCacheKeys(true));
+
+        final String first = translatingQueryBuilder.translateFiqlQuery("updatedTime=gt=-P1D");
+        final long firstCalled = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() == firstCalled) {
+            Thread.sleep(1);
+        }
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery("(updatedTime=gt=-P1D)").compareTo(first) > 0, is(true));
+        assertThat(translatingQueryBuilder.getFingerprintCacheStatistics().getHitCount(), is(0L));
+        assertThat(translatingQueryBuilder.getFingerprintCacheStatistics().getMissCount(), is(0L));
+    }
+
     /**
      * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} for the case where no date format was provided.
      */
@@ -92,4 +210,47 @@ public class TranslatingQueryBuilderIT {
         // we can have consistent date handling.
         assertThat(generatedFilter, is("objectMetadata.lastUpdatedTime==2017-07-04T14:07:07.235+0000"));
     }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} with fingerprinting enabled. Equivalent filters
+     * should share a single translation, while anything else gets its own.
+     */
+    @Test
+    public void testTranslateFiqlQueryWithFingerprintCache() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, null, null, null,
+                        new TranslatingQueryBuilderOptions().cacheSize(10).fingerprintCacheKeys(true));
+
+        final String expected = "tenantName==taters;containerName==delicious";
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery("tenantName==taters;containerName==delicious"), is(expected));
+        assertThat(translatingQueryBuilder.translateFiqlQuery("(containerName==delicious;tenantName==taters)"), is(expected));
+        assertThat(translatingQueryBuilder.translateFiqlQuery("tenantName==taters"), is("tenantName==taters"));
+
+        assertThat(translatingQueryBuilder.getCacheStatistics().getMissCount(), is(3L));
+        assertThat(translatingQueryBuilder.getFingerprintCacheStatistics().getHitCount(), is(1L));
+        assertThat(translatingQueryBuilder.getFingerprintCacheStatistics().getMissCount(), is(2L));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} with a maximum depth. Anything nested deeper than
+     * that is rejected rather than translated.
+     */
+    @Test
+    public void testTranslateFiqlQueryWithMaxDepth() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, null, null, null,
+                        new TranslatingQueryBuilderOptions().maxDepth(1));
+
+        assertThat(translatingQueryBuilder.translateFiqlQuery("tenantName==taters;(containerName==delicious,storedBytes=gt=5)"),
+                is("tenantName==taters;(containerName==delicious,storedBytes=gt=5)"));
+
+        try {
+            translatingQueryBuilder.translateFiqlQuery("tenantName==taters;(containerName==delicious,(storedBytes=gt=5;status==deleted))");
+            fail("Oops, we should have caught an exception here...");
+        } catch (final QueryBudgetExceededException ex) {
+            assertThat(ex.getLimit(), is(QueryBudget.Limit.DEPTH));
+            assertThat(ex.getMessage(), is("Filter exceeds the maximum nesting depth of 1"));
+        }
+    }
 }
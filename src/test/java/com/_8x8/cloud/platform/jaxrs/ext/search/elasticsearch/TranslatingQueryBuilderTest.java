@@ -18,19 +18,25 @@ package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
 
 import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model.MetadataRecord;
 import org.apache.cxf.jaxrs.ext.search.AbstractSearchConditionParser;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 import org.apache.cxf.jaxrs.ext.search.SearchUtils;
 import org.apache.cxf.jaxrs.ext.search.fiql.FiqlParser;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMapOf;
@@ -39,6 +45,7 @@ import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -77,7 +84,14 @@ public class TranslatingQueryBuilderTest {
         builder.translateFiqlQuery("taters");
 
         verify(builder).translateFiqlQuery("taters");
+        verify(builder).getTranslationCache();
+        verify(builder).doTranslateFiqlQuery("taters");
+        verify(builder).getFingerprintCache();
+        verify(builder).translateSearchCondition(any());
+        verify(builder).acquireVisitor();
         verify(builder).createVisitor(fieldMap, dateformat, transformationFunctionMap);
+        verify(builder).releaseVisitor(visitor);
+        verify(builder, times(2)).getVisitorPool();
         verify(builder).getFiqlParser();
         verify(builder).getFieldMap();
         verify(builder).getDateFormat();
@@ -85,12 +99,220 @@ public class TranslatingQueryBuilderTest {
 
         verify(visitor).visit(any());
         verify(visitor).getQuery();
+        verify(visitor).reset();
 
         verify(fiqlParser).parse("taters");
 
         verifyNoMoreCollaboration();
     }
 
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(String)} for the case where caching is enabled. We should
+     * only translate each filter once.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testTranslateFiqlQueryWithCache() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10);
+
+        doReturn(cache).when(builder).getTranslationCache();
+        doReturn("translated").when(builder).doTranslateFiqlQuery("taters");
+
+        assertThat(builder.translateFiqlQuery("taters"), is("translated"));
+        assertThat(builder.translateFiqlQuery("taters"), is("translated"));
+
+        verify(builder, times(2)).translateFiqlQuery("taters");
+        verify(builder, times(2)).getTranslationCache();
+        verify(builder).doTranslateFiqlQuery("taters");
+
+        verifyNoMoreCollaboration();
+
+        assertThat(cache.getStatistics().getHitCount(), is(1L));
+        assertThat(cache.getStatistics().getMissCount(), is(1L));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(CharSequence)} to make sure we parse the filter in place
+     * via the native parser.
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored", "unchecked"})
+    @Test
+    public void testTranslateFiqlQueryForCharSequence() throws Exception {
+        final NativeFiqlParser<MetadataRecord> nativeParser = mock(NativeFiqlParser.class);
+        final SearchCondition<MetadataRecord> searchCondition = mock(SearchCondition.class);
+        final CharSequence filter = new StringBuilder("taters");
+
+        doReturn(nativeParser).when(builder).getNativeParser();
+        doReturn(searchCondition).when(nativeParser).parse(filter);
+
+        builder.translateFiqlQuery(filter);
+
+        verify(builder).translateFiqlQuery(filter);
+        verify(builder).getTranslationCache();
+        verify(builder).getNativeParser();
+        verify(builder).translateSearchCondition(searchCondition);
+        verify(builder).acquireVisitor();
+        verify(builder).createVisitor(fieldMap, dateformat, transformationFunctionMap);
+        verify(builder).releaseVisitor(visitor);
+        verify(builder, times(2)).getVisitorPool();
+        verify(builder).getFieldMap();
+        verify(builder).getDateFormat();
+        verify(builder).getTransformationFunctions();
+
+        verify(visitor).visit(searchCondition);
+        verify(visitor).getQuery();
+        verify(visitor).reset();
+
+        verify(nativeParser).parse(filter);
+
+        verifyNoMoreCollaboration(nativeParser, searchCondition);
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(CharSequence)} for the case where caching is enabled, in
+     * which case we need a string to use as the key after all.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testTranslateFiqlQueryForCharSequenceWithCache() throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<>(10);
+        final CharSequence filter = new StringBuilder("taters");
+
+        doReturn(cache).when(builder).getTranslationCache();
+        doReturn("translated").when(builder).doTranslateFiqlQuery("taters");
+
+        assertThat(builder.translateFiqlQuery(filter), is("translated"));
+
+        verify(builder).translateFiqlQuery(filter);
+        verify(builder).translateFiqlQuery("taters");
+        verify(builder, times(2)).getTranslationCache();
+        verify(builder).doTranslateFiqlQuery("taters");
+
+        verifyNoMoreCollaboration();
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(ByteBuffer)} to make sure we decode the filter before
+     * handing it off.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testTranslateFiqlQueryForByteBuffer() throws Exception {
+        final ByteBuffer filter = ByteBuffer.wrap("tenantName%3D%3Dtaters".getBytes(StandardCharsets.UTF_8));
+        final ArgumentCaptor<CharSequence> captor = ArgumentCaptor.forClass(CharSequence.class);
+
+        doReturn(null).when(builder).translateFiqlQuery(any(CharSequence.class));
+
+        builder.translateFiqlQuery(filter);
+
+        verify(builder).translateFiqlQuery(filter);
+        verify(builder).translateFiqlQuery(captor.capture());
+
+        verifyNoMoreCollaboration();
+
+        assertThat(captor.getValue().toString(), is("tenantName==taters"));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#translateFiqlQuery(byte[], int, int)} to make sure we decode only the given
+     * slice before handing it off.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testTranslateFiqlQueryForBytes() throws Exception {
+        final byte[] filter = "&_s=tenantName%3D%3Dtaters".getBytes(StandardCharsets.UTF_8);
+        final ArgumentCaptor<CharSequence> captor = ArgumentCaptor.forClass(CharSequence.class);
+
+        doReturn(null).when(builder).translateFiqlQuery(any(CharSequence.class));
+
+        builder.translateFiqlQuery(filter, 4, filter.length - 4);
+
+        verify(builder).translateFiqlQuery(filter, 4, filter.length - 4);
+        verify(builder).translateFiqlQuery(captor.capture());
+
+        verifyNoMoreCollaboration();
+
+        assertThat(captor.getValue().toString(), is("tenantName==taters"));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#doTranslateFiqlQuery(String)} for the case where fingerprinting is enabled.
+     * Filters sharing a fingerprint should only be translated once.
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored", "unchecked"})
+    @Test
+    public void testDoTranslateFiqlQueryWithFingerprintCache() throws Exception {
+        final BoundedCache<QueryFingerprint, String> cache = new BoundedCache<>(10);
+        final SearchCondition<MetadataRecord> first = mock(SearchCondition.class);
+        final SearchCondition<MetadataRecord> second = mock(SearchCondition.class);
+        final QueryFingerprint fingerprint = new QueryFingerprint("and(a==1,b==2)", "and(a==?,b==?)");
+
+        doReturn(cache).when(builder).getFingerprintCache();
+        doReturn(first).when(fiqlParser).parse("a==1;b==2");
+        doReturn(second).when(fiqlParser).parse("b==2;a==1");
+        doReturn(fingerprint).when(builder).fingerprint(first);
+        doReturn(fingerprint).when(builder).fingerprint(second);
+        doReturn("a==1;b==2").when(builder).translateSearchCondition(first);
+
+        assertThat(builder.doTranslateFiqlQuery("a==1;b==2"), is("a==1;b==2"));
+        assertThat(builder.doTranslateFiqlQuery("b==2;a==1"), is("a==1;b==2"));
+
+        verify(builder).doTranslateFiqlQuery("a==1;b==2");
+        verify(builder).doTranslateFiqlQuery("b==2;a==1");
+        verify(builder, times(2)).getFiqlParser();
+        verify(builder, times(2)).getFingerprintCache();
+        verify(builder).fingerprint(first);
+        verify(builder).fingerprint(second);
+        verify(builder).translateSearchCondition(first);
+
+        verify(fiqlParser).parse("a==1;b==2");
+        verify(fiqlParser).parse("b==2;a==1");
+
+        verifyNoMoreCollaboration(first, second);
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#fingerprint(String)} to make sure it does what we expect.
+     */
+    @Test
+    public void testFingerprint() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, fieldMap, null, transformationFunctionMap);
+
+        assertThat(translatingQueryBuilder.fingerprint("tenantName==taters,containerName==delicious"),
+                is(translatingQueryBuilder.fingerprint("containerName==delicious,tenantName==taters")));
+    }
+
+    /**
+     * Tests constructing a {@link TranslatingQueryBuilder} with caching enabled will size and weigh our cache as asked.
+     */
+    @Test
+    public void testConstructorWithCache() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder =
+                new TranslatingQueryBuilder<>(MetadataRecord.class, fieldMap, dateformat, transformationFunctionMap,
+                        new TranslatingQueryBuilderOptions().cacheSize(10).cacheWeight(12));
+
+        final BoundedCache<String, String> cache = translatingQueryBuilder.getTranslationCache();
+        cache.put("abc", "def");
+        cache.put("ghi", "jkl");
+        cache.put("mno", "pqr");
+
+        // Each entry weighs 6 characters, so we can only hold on to two of them.
+        assertThat(cache.size(), is(2L));
+        assertThat(translatingQueryBuilder.getCacheStatistics().getWeight(), is(12L));
+    }
+
+    /**
+     * Tests constructing a {@link TranslatingQueryBuilder} without any options leaves caching off.
+     */
+    @Test
+    public void testConstructorWithoutCache() throws Exception {
+        assertThat(builder.getTranslationCache(), is(nullValue()));
+        assertThat(builder.getFingerprintCache(), is(nullValue()));
+        assertThat(builder.getCacheStatistics(), is(CacheStatistics.EMPTY));
+        assertThat(builder.getFingerprintCacheStatistics(), is(CacheStatistics.EMPTY));
+    }
+
     /**
      * Tests {@link TranslatingQueryBuilder#createVisitor(Map, String, Map)} to make sure it does what we expect.
      */
@@ -103,6 +325,21 @@ public class TranslatingQueryBuilderTest {
                 builder.createVisitor(fieldMap, dateformat, transformationFunctionMap);
 
         assertThat(translatingQueryBuilderVisitor, is(notNullValue()));
+        assertThat(translatingQueryBuilderVisitor.getWalker().getMaxDepth(), is(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Tests {@link TranslatingQueryBuilder#createVisitor(Map, String, Map)} to make sure the maximum depth from our
+     * options makes it to the visitor.
+     */
+    @Test
+    public void testCreateVisitorWithMaxDepth() throws Exception {
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder = new TranslatingQueryBuilder<>(MetadataRecord.class,
+                fieldMap, dateformat, transformationFunctionMap, new TranslatingQueryBuilderOptions().maxDepth(3));
+
+        assertThat(translatingQueryBuilder.getMaxDepth(), is(3));
+        assertThat(translatingQueryBuilder.createVisitor(fieldMap, dateformat, transformationFunctionMap).getWalker().getMaxDepth(), is(3));
+        assertThat(translatingQueryBuilder.createFingerprintVisitor().getWalker().getMaxDepth(), is(3));
     }
 
     /**
@@ -117,6 +354,22 @@ public class TranslatingQueryBuilderTest {
 
         assertThat(contextConfiguration.size(), is(1));
         assertThat(contextConfiguration.get(SearchUtils.DATE_FORMAT_PROPERTY), is(dateformat));
+        assertThat(getConfiguration(translatingQueryBuilder.getNativeParser()), is(contextConfiguration));
+    }
+
+    /**
+     * Tests constructing a {@link TranslatingQueryBuilder} with a {@link FiqlDateParser} hands it to both parsers, while
+     * keeping the date format for anything it declines.
+     */
+    @Test
+    public void testConstructorWithDateParser() throws Exception {
+        final FiqlDateParser dateParser = new IsoDateParser();
+        final TranslatingQueryBuilder<MetadataRecord> translatingQueryBuilder = new TranslatingQueryBuilder<>(MetadataRecord.class,
+                fieldMap, dateformat, transformationFunctionMap, new TranslatingQueryBuilderOptions().dateParser(dateParser));
+
+        assertThat(((FiqlValueConverter<MetadataRecord>) translatingQueryBuilder.getFiqlParser()).getDateParser(), is(sameInstance(dateParser)));
+        assertThat(translatingQueryBuilder.getNativeParser().getDateParser(), is(sameInstance(dateParser)));
+        assertThat(getConfiguration(translatingQueryBuilder.getFiqlParser()).get(SearchUtils.DATE_FORMAT_PROPERTY), is(dateformat));
     }
 
     /**
@@ -131,6 +384,7 @@ public class TranslatingQueryBuilderTest {
         final Map<String, String> contextConfiguration = getConfiguration(translatingQueryBuilder.getFiqlParser());
 
         assertThat(contextConfiguration.isEmpty(), is(true));
+        assertThat(getConfiguration(translatingQueryBuilder.getNativeParser()).isEmpty(), is(true));
     }
 
     /**
@@ -35,7 +35,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.TimeZone;
 import java.util.stream.Stream;
 
@@ -67,6 +66,9 @@ public class TranslatingQueryBuilderVisitorTest {
     public void setUp() throws Exception {
         // FIQL has a nasty habit of using the local timezone... So, let's set our TZ to GMT for now.
         TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+
+        // Our walker needs to call back into the spy, rather than the visitor it was copied from.
+        doReturn(visitor.new Walker(Integer.MAX_VALUE)).when(visitor).getWalker();
     }
 
     /**
@@ -224,6 +226,7 @@ public class TranslatingQueryBuilderVisitorTest {
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
+        verify(visitor).getWalker();
         verify(visitor).getStateStack();
         verify(visitor).buildSimpleExpression(statement);
 
@@ -254,6 +257,7 @@ public class TranslatingQueryBuilderVisitorTest {
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
+        verify(visitor).getWalker();
 
         verify(searchCondition).getStatement();
 
@@ -277,25 +281,31 @@ public class TranslatingQueryBuilderVisitorTest {
         final SearchCondition<MetadataRecord> nestedCondition = mock(SearchCondition.class);
         searchConditions.add(nestedCondition);
 
+        doReturn(statement).when(nestedCondition).getStatement();
+        doReturn("potato").when(statement).getProperty();
+
         final SearchCondition<MetadataRecord> searchCondition = mock(SearchCondition.class);
         final String expression = "taters";
 
         doReturn(searchConditions).when(searchCondition).getSearchConditions();
+        doReturn("potato==taters").when(visitor).buildSimpleExpression(statement);
         doReturn(expression).when(visitor).buildCompositeExpression(any(ConditionType.class), anyListOf(String.class));
 
         visitor.visit(searchCondition);
 
         verify(visitor).visit(searchCondition);
-        verify(visitor, times(3)).getStateStack();
+        verify(visitor).getWalker();
+        verify(visitor, times(4)).getStateStack();
+        verify(visitor).buildSimpleExpression(statement);
         verify(visitor).buildCompositeExpression(any(ConditionType.class), anyListOf(String.class));
 
         verify(searchCondition).getStatement();
         verify(searchCondition).getSearchConditions();
         verify(searchCondition).getConditionType();
 
-        verify(searchCondition).getStatement();
+        verify(nestedCondition).getStatement();
 
-        verify(nestedCondition).accept(visitor);
+        verify(statement).getProperty();
 
         verifyNoMoreCollaboration(searchCondition, nestedCondition);
 
@@ -310,7 +320,7 @@ public class TranslatingQueryBuilderVisitorTest {
      */
     @Test
     public void testGetQueryForEmptyStateStack() throws Exception {
-        doReturn(new Stack<List<String>>()).when(visitor).getStateStack();
+        doReturn(new StateStack<String>()).when(visitor).getStateStack();
         assertThat(visitor.getQuery(), is(""));
     }
 
@@ -320,8 +330,8 @@ public class TranslatingQueryBuilderVisitorTest {
      */
     @Test
     public void testGetQueryForSingleFrameStateStack() throws Exception {
-        final Stack<List<String>> stateStack = new Stack<>();
-        stateStack.push(new ArrayList<>());
+        final StateStack<String> stateStack = new StateStack<>();
+        stateStack.push();
 
         doReturn(stateStack).when(visitor).getStateStack();
         assertThat(visitor.getQuery(), is(""));
@@ -333,8 +343,8 @@ public class TranslatingQueryBuilderVisitorTest {
     @Test
     public void testGetQuery() throws Exception {
         final String expression = "A==1003";
-        final Stack<List<String>> stateStack = new Stack<>();
-        stateStack.push(Collections.singletonList(expression));
+        final StateStack<String> stateStack = new StateStack<>();
+        stateStack.push().add(expression);
 
         doReturn(stateStack).when(visitor).getStateStack();
         assertThat(visitor.getQuery(), is(expression));
@@ -482,6 +492,21 @@ public class TranslatingQueryBuilderVisitorTest {
         verifyNoMoreCollaboration();
     }
 
+    /**
+     * Tests {@link TranslatingQueryBuilderVisitor#reset()} to make sure we're left with a single, empty frame, so that
+     * the visitor can be used again.
+     */
+    @Test
+    public void testReset() throws Exception {
+        visitor.getStateStack().push().add("tenantName==taters");
+        visitor.getStateStack().push().add("(");
+        visitor.reset();
+
+        assertThat(visitor.getStateStack().size(), is(1));
+        assertThat(visitor.getStateStack().peek().isEmpty(), is(true));
+        assertThat(visitor.requiresParenthesisWrapping(), is(false));
+    }
+
     /**
      * Tests {@link TranslatingQueryBuilderVisitor#requiresParenthesisWrapping()} to make sure it behaves as expected.
      * This call is mostly to make sure we don't wind up with extra parenthesis around a single, simple expression, such
@@ -489,18 +514,18 @@ public class TranslatingQueryBuilderVisitorTest {
      */
     @Test
     public void testRequiresParenthesisWrapping() throws Exception {
-        final Stack<List<String>> state = new Stack<>();
+        final StateStack<String> state = new StateStack<>();
         doReturn(state).when(visitor).getStateStack();
 
         // If our stack is empty, IE: no expression, we need no parenthesis.
         assertThat(visitor.requiresParenthesisWrapping(), is(false));
 
         // Likewise, a single stackframe is a simple expression (IE: foo==bar).
-        state.push(new ArrayList<>());
+        state.push();
         assertThat(visitor.requiresParenthesisWrapping(), is(false));
 
         // If we have two stack frames, however, we've got a complex composite expression (IE: foo==bar;quux==baz).
-        state.push(new ArrayList<>());
+        state.push();
         assertThat(visitor.requiresParenthesisWrapping(), is(true));
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link UnionRangesRule} at the unit level.
+ */
+public class UnionRangesRuleTest {
+    private final UnionRangesRule rule = new UnionRangesRule();
+
+    /**
+     * Tests {@link UnionRangesRule#rewrite(QueryBuilder)} to make sure we fold OR'ed ranges that overlap or touch into
+     * the first, wherever they are, including ranges that only meet once others have been folded in.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").gte(10).lt(20))
+                .should(new RangeQueryBuilder("containerId").lt(5))
+                .should(new RangeQueryBuilder("storedBytes").gte(30).lte(40))
+                .should(new TermQueryBuilder("tenantName", "taters"))
+                .should(new RangeQueryBuilder("storedBytes").gte(15).lt(30))
+                .should(new RangeQueryBuilder("storedBytes").gt(40).lt(50))
+                .should(new RangeQueryBuilder("containerId").gt(9));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query.should(), is(Arrays.<QueryBuilder>asList(
+                new RangeQueryBuilder("storedBytes").gte(10).lt(50),
+                new RangeQueryBuilder("containerId").lt(5),
+                new TermQueryBuilder("tenantName", "taters"),
+                new RangeQueryBuilder("containerId").gt(9))));
+
+        // Once folded, there's nothing left to do.
+        assertThat(rule.rewrite(query), is(nullValue()));
+    }
+
+    /**
+     * Tests {@link UnionRangesRule#union(RangeQueryBuilder, RangeQueryBuilder)} to make sure we keep the loosest bound
+     * on either side, and only when the ranges meet.
+     */
+    @Test
+    public void testUnion() throws Exception {
+        assertUnion(new RangeQueryBuilder("a").lt(10), new RangeQueryBuilder("a").lt(20), new RangeQueryBuilder("a").lt(20));
+        assertUnion(new RangeQueryBuilder("a").gt(5).lt(10), new RangeQueryBuilder("a").gte(5).lte(7), new RangeQueryBuilder("a").gte(5).lt(10));
+        assertUnion(new RangeQueryBuilder("a").lt(5), new RangeQueryBuilder("a").gte(5).lt(9), new RangeQueryBuilder("a").lt(9));
+        assertUnion(new RangeQueryBuilder("a").lte(5), new RangeQueryBuilder("a").gt(5), new RangeQueryBuilder("a"));
+
+        // A gap of a single value is still a gap, as is a gap we can't measure.
+        final RangeQueryBuilder range = new RangeQueryBuilder("a").lt(5);
+        assertThat(rule.union(range, new RangeQueryBuilder("a").gt(5)), is(false));
+        assertThat(rule.union(range, new RangeQueryBuilder("a").gte(6)), is(false));
+        assertThat(rule.union(range, new RangeQueryBuilder("a").gte("1")), is(false));
+        assertThat(range, is(new RangeQueryBuilder("a").lt(5)));
+    }
+
+    /**
+     * Tests {@link UnionRangesRule#rewrite(QueryBuilder)} to make sure ranges covering every value become an
+     * {@code exists} query.
+     */
+    @Test
+    public void testRewriteForEverything() throws Exception {
+        final BoolQueryBuilder query = new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").lt(5))
+                .should(new TermQueryBuilder("tenantName", "taters"))
+                .should(new RangeQueryBuilder("storedBytes").gte(3));
+
+        assertThat(rule.rewrite(query), is(sameInstance(query)));
+        assertThat(query.should(), is(Arrays.<QueryBuilder>asList(
+                new ExistsQueryBuilder("storedBytes"),
+                new TermQueryBuilder("tenantName", "taters"))));
+    }
+
+    /**
+     * Tests {@link UnionRangesRule#rewrite(QueryBuilder)} for things we must leave alone: AND'ed ranges, ranges over
+     * different fields, boosted ranges, and anything that isn't a bool query.
+     */
+    @Test
+    public void testRewriteForUnmergeableQueries() throws Exception {
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new RangeQueryBuilder("storedBytes").lt(10))
+                .must(new RangeQueryBuilder("storedBytes").lt(20))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .must(new TermQueryBuilder("tenantName", "taters"))
+                .should(new RangeQueryBuilder("storedBytes").lt(10))
+                .should(new RangeQueryBuilder("storedBytes").lt(20))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").lt(10))
+                .should(new RangeQueryBuilder("containerId").lt(20))), is(nullValue()));
+
+        assertThat(rule.rewrite(new BoolQueryBuilder()
+                .should(new RangeQueryBuilder("storedBytes").lt(10).boost(2))
+                .should(new RangeQueryBuilder("storedBytes").lt(20))), is(nullValue()));
+
+        assertThat(rule.rewrite(new RangeQueryBuilder("storedBytes").lt(10)), is(nullValue()));
+    }
+
+    /**
+     * Provides a convenience method to union two ranges, and check the outcome.
+     */
+    private void assertUnion(final RangeQueryBuilder range, final RangeQueryBuilder otherRange, final RangeQueryBuilder expected) {
+        assertThat(rule.union(range, otherRange), is(true));
+        assertThat(range, is(expected));
+    }
+}
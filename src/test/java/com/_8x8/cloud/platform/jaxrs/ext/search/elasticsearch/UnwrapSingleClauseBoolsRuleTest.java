@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the {@link UnwrapSingleClauseBoolsRule} at the unit level.
+ */
+public class UnwrapSingleClauseBoolsRuleTest {
+    private final UnwrapSingleClauseBoolsRule rule = new UnwrapSingleClauseBoolsRule();
+
+    /**
+     * Tests {@link UnwrapSingleClauseBoolsRule#rewrite(QueryBuilder)} to make sure a lone must or should clause takes
+     * the place of its bool query.
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        final TermQueryBuilder term = new TermQueryBuilder("tenantName", "taters");
+
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term)), is(sameInstance(term)));
+        assertThat(rule.rewrite(new BoolQueryBuilder().should(term)), is(sameInstance(term)));
+    }
+
+    /**
+     * Tests {@link UnwrapSingleClauseBoolsRule#rewrite(QueryBuilder)} for things we must leave alone: a lone must_not
+     * or filter clause, more than one clause, bool queries someone built on purpose, and anything that isn't a bool
+     * query.
+     */
+    @Test
+    public void testRewriteForMultipleOrNegatedClauses() throws Exception {
+        final TermQueryBuilder term = new TermQueryBuilder("tenantName", "taters");
+
+        assertThat(rule.rewrite(new BoolQueryBuilder().mustNot(term)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().filter(term)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term).mustNot(term)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term).should(term)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().should(term).should(term)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().must(term).boost(2)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder().should(term).minimumShouldMatch(1)), is(nullValue()));
+        assertThat(rule.rewrite(new BoolQueryBuilder()), is(nullValue()));
+        assertThat(rule.rewrite(term), is(nullValue()));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch;
+
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link WildcardPolicy} at the unit level.
+ */
+public class WildcardPolicyTest {
+    /**
+     * Tests a fresh {@link WildcardPolicy} to make sure it allows every wildcard.
+     */
+    @Test
+    public void testDefaults() throws Exception {
+        final WildcardPolicy policy = new WildcardPolicy();
+
+        assertThat(policy.leadingWildcards(), is(WildcardPolicy.Action.ALLOW));
+        assertThat(policy.reverseSubfield(), is(nullValue()));
+
+        try {
+            policy.leadingWildcards(null);
+            fail("Oops, we should have caught an exception here...");
+        } catch (final IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), is("Leading wildcard action must not be null"));
+        }
+    }
+
+    /**
+     * Tests {@link WildcardPolicy#toQuery(String, String)} for the patterns that don't need a wildcard query at all,
+     * whatever the policy.
+     */
+    @Test
+    public void testToQueryForExistsAndPrefix() throws Exception {
+        for (final WildcardPolicy.Action action : WildcardPolicy.Action.values()) {
+            final WildcardPolicy policy = new WildcardPolicy().leadingWildcards(action).reverseSubfield("reversed");
+
+            assertThat(policy.toQuery("tenantName", "*"), is(new ExistsQueryBuilder("tenantName")));
+            assertThat(policy.toQuery("tenantName", "***"), is(new ExistsQueryBuilder("tenantName")));
+            assertThat(policy.toQuery("tenantName", "taters*"), is(new PrefixQueryBuilder("tenantName", "taters")));
+            assertThat(policy.toQuery("tenantName", "taters**"), is(new PrefixQueryBuilder("tenantName", "taters")));
+
+            // Single character wildcards and escapes mean something to a wildcard query, but not to a prefix query.
+            assertThat(policy.toQuery("tenantName", "tat?rs*"), is(new WildcardQueryBuilder("tenantName", "tat?rs*")));
+            assertThat(policy.toQuery("tenantName", "tat\\ers*"), is(new WildcardQueryBuilder("tenantName", "tat\\ers*")));
+        }
+    }
+
+    /**
+     * Tests {@link WildcardPolicy#toQuery(String, String)} for leading and infix wildcards, which are allowed by
+     * default.
+     */
+    @Test
+    public void testToQueryForAllow() throws Exception {
+        final WildcardPolicy policy = new WildcardPolicy().reverseSubfield("reversed");
+
+        assertThat(policy.toQuery("tenantName", "*taters"), is(new WildcardQueryBuilder("tenantName", "*taters")));
+        assertThat(policy.toQuery("tenantName", "ta*ters"), is(new WildcardQueryBuilder("tenantName", "ta*ters")));
+        assertThat(policy.toQuery("tenantName", "*taters*"), is(new WildcardQueryBuilder("tenantName", "*taters*")));
+    }
+
+    /**
+     * Tests {@link WildcardPolicy#toQuery(String, String)} for leading and infix wildcards, when we reject them.
+     */
+    @Test
+    public void testToQueryForReject() throws Exception {
+        final WildcardPolicy policy = new WildcardPolicy().leadingWildcards(WildcardPolicy.Action.REJECT);
+
+        for (final String pattern : new String[]{"*taters", "ta*ters", "*taters*", "?a*ters"}) {
+            try {
+                policy.toQuery("tenantName", pattern);
+                fail("Oops, we should have caught an exception here...");
+            } catch (final IllegalArgumentException ex) {
+                assertThat(ex.getMessage(), is("Query contains a leading or infix wildcard, which isn't allowed: tenantName " + pattern));
+            }
+        }
+    }
+
+    /**
+     * Tests {@link WildcardPolicy#toQuery(String, String)} for leading wildcards, when we match them against a reverse
+     * subfield.
+     */
+    @Test
+    public void testToQueryForReverse() throws Exception {
+        final WildcardPolicy policy = new WildcardPolicy().leadingWildcards(WildcardPolicy.Action.REVERSE).reverseSubfield("reversed");
+
+        assertThat(policy.toQuery("tenantName", "*taters"), is(new PrefixQueryBuilder("tenantName.reversed", "sretat")));
+        assertThat(policy.toQuery("tenantName", "**taters"), is(new PrefixQueryBuilder("tenantName.reversed", "sretat")));
+        assertThat(policy.toQuery("tenantName", "*ta*ters"), is(new WildcardQueryBuilder("tenantName.reversed", "sret*at*")));
+        assertThat(policy.toQuery("tenantName", "*tat?rs"), is(new WildcardQueryBuilder("tenantName.reversed", "sr?tat*")));
+
+        // Reversing doesn't help once there's a wildcard at the end, and would turn an escape around.
+        assertThat(policy.toQuery("tenantName", "*taters*"), is(new WildcardQueryBuilder("tenantName", "*taters*")));
+        assertThat(policy.toQuery("tenantName", "ta*ters"), is(new WildcardQueryBuilder("tenantName", "ta*ters")));
+        assertThat(policy.toQuery("tenantName", "*tat\\ers"), is(new WildcardQueryBuilder("tenantName", "*tat\\ers")));
+
+        // Without a reverse subfield, there's nowhere to send them.
+        assertThat(new WildcardPolicy().leadingWildcards(WildcardPolicy.Action.REVERSE).toQuery("tenantName", "*taters"),
+                is(new WildcardQueryBuilder("tenantName", "*taters")));
+    }
+}
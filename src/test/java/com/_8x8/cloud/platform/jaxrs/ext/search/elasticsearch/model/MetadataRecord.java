@@ -16,6 +16,8 @@
 
 package com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.model;
 
+import com._8x8.cloud.platform.jaxrs.ext.search.elasticsearch.FiqlSearchable;
+
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -23,6 +25,7 @@ import java.util.List;
 /**
  * Provides a sample class for testing our expressions. This is a subset of the indexer model.
  */
+@FiqlSearchable
 @SuppressWarnings("unused")
 public class MetadataRecord {
     private String tenantName;